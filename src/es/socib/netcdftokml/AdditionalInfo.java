@@ -1,5 +1,9 @@
 package es.socib.netcdftokml;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class AdditionalInfo {
 
 	/**
@@ -23,6 +27,62 @@ public class AdditionalInfo {
 	 * in the kml placemark, except quality controls variables.
 	 */
 	private boolean displayAncillaryVariables;
+	
+	/**
+	 * displayLevel the level index displayed of the two dimensional (time, level) variables. By default the level zero.
+	 */
+	private int displayLevel;
+	
+	/**
+	 * incremental indicates if the kmz file is updated incrementally, converting only the records
+	 * appended to the NetCDF file since the previous conversion. See {@link IncrementalCheckpoint}.
+	 */
+	private boolean incremental;
+	
+	/**
+	 * lineSimplificationTolerance the tolerance, in degrees of latitude, used to simplify the trajectory
+	 * line string. By default zero, the line string isn't simplified. See {@link TrajectorySimplifier}.
+	 */
+	private double lineSimplificationTolerance;
+	
+	/**
+	 * levelOfDetailTierCount the number of level of detail tiers of the trajectory line string. With two or
+	 * more tiers, a line string for each tier is written with a kml region, from the coarsest one, shown
+	 * when the trajectory is seen from far, to the full resolution one, shown when zoomed in.
+	 * By default zero, a single line string.
+	 */
+	private int levelOfDetailTierCount;
+	
+	/**
+	 * qcFlagPolicy the quality control flags accepted as good data. By default the flags lower than
+	 * the probably good data flag.
+	 */
+	private QcFlagPolicy qcFlagPolicy = new QcFlagPolicy();
+	
+	/**
+	 * placemarkWorkerCount the number of threads that create the placemarks of a conversion. The placemarks
+	 * are created in chunks and merged in order, so the output is the same. By default one, the placemarks
+	 * are created by the conversion thread. If less than one, the number of available processors.
+	 */
+	private int placemarkWorkerCount = 1;
+	
+	/**
+	 * kmzCompression the compression of the kmz written by the {@link KmlManager}. By default the default
+	 * deflate level on a single thread.
+	 */
+	private KmzCompression kmzCompression = new KmzCompression();
+	
+	/**
+	 * trajectorySubset the time window and bounding box converted, null to convert the whole trajectory.
+	 * Ignored by the incremental conversion.
+	 */
+	private TrajectorySubset trajectorySubset;
+	
+	/**
+	 * conversionListenerList the listeners of the conversion instrumentation, besides the {@link ConversionStatistics}
+	 * MBean that receives the instrumentation of all the conversions.
+	 */
+	private List<ConversionListener> conversionListenerList = new ArrayList<ConversionListener>();
 
 	/**
 	 * Construct a new {@link AdditionalInfo}.
@@ -81,13 +141,125 @@ public class AdditionalInfo {
 		this.threddsLink = threddsLink;
 	}
 
+	public int getDisplayLevel() {
+		return displayLevel;
+	}
+
+	public void setDisplayLevel(int displayLevel) {
+		this.displayLevel = displayLevel;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public double getLineSimplificationTolerance() {
+		return lineSimplificationTolerance;
+	}
+
+	public void setLineSimplificationTolerance(double lineSimplificationTolerance) {
+		this.lineSimplificationTolerance = lineSimplificationTolerance;
+	}
+
+	public QcFlagPolicy getQcFlagPolicy() {
+		return qcFlagPolicy;
+	}
+
+	public void setQcFlagPolicy(QcFlagPolicy qcFlagPolicy) {
+		this.qcFlagPolicy = qcFlagPolicy;
+	}
+
+	public int getLevelOfDetailTierCount() {
+		return levelOfDetailTierCount;
+	}
+
+	public void setLevelOfDetailTierCount(int levelOfDetailTierCount) {
+		this.levelOfDetailTierCount = levelOfDetailTierCount;
+	}
+
+	public int getPlacemarkWorkerCount() {
+		return placemarkWorkerCount;
+	}
+
+	public void setPlacemarkWorkerCount(int placemarkWorkerCount) {
+		this.placemarkWorkerCount = placemarkWorkerCount;
+	}
+
+	public KmzCompression getKmzCompression() {
+		return kmzCompression;
+	}
+
+	public void setKmzCompression(KmzCompression kmzCompression) {
+		this.kmzCompression = kmzCompression;
+	}
+
+	public TrajectorySubset getTrajectorySubset() {
+		return trajectorySubset;
+	}
+
+	public void setTrajectorySubset(TrajectorySubset trajectorySubset) {
+		this.trajectorySubset = trajectorySubset;
+	}
+
+	public List<ConversionListener> getConversionListenerList() {
+		return conversionListenerList;
+	}
+
+	/**
+	 * Add a listener of the conversion instrumentation, for example a {@link JsonRunReportListener}.
+	 * 
+	 * @param conversionListener the {@link ConversionListener}
+	 */
+	public void addConversionListener(ConversionListener conversionListener) {
+		conversionListenerList.add(conversionListener);
+	}
+
+	/**
+	 * Retrieve the fingerprint of the parameters that change the conversion output, used as part of the
+	 * {@link KmzOutputCache} key. The incremental mode, the placemark workers and the listeners don't change the output.
+	 * The balloon template is fingerprinted by its contents, not only by its path.
+	 * 
+	 * @return the output fingerprint
+	 * @throws IOException if the balloon template can't be read
+	 */
+	public String getOutputFingerprint() throws IOException {
+
+		String templateHash = null;
+		if (null != kmlStyleInfo && null != kmlStyleInfo.getTemplatePath()){
+			templateHash = BalloonTemplate.getTemplateHash(kmlStyleInfo.getTemplatePath());
+		}
+
+		return "deploymentInfo=" + deploymentInfo + 
+				", kmlStyleInfo=" + kmlStyleInfo + 
+				", templateHash=" + templateHash + 
+				", threddsLink=" + threddsLink + 
+				", displayAncillaryVariables=" + displayAncillaryVariables + 
+				", displayLevel=" + displayLevel + 
+				", lineSimplificationTolerance=" + lineSimplificationTolerance + 
+				", levelOfDetailTierCount=" + levelOfDetailTierCount + 
+				", qcFlagPolicy=" + qcFlagPolicy + 
+				", kmzCompression=" + kmzCompression + 
+				", trajectorySubset=" + trajectorySubset;
+	}
+
 	@Override
 	public String toString() {
 		return "AdditionalInfo [" +
 				"\n     deploymentInfo=" + deploymentInfo +
 				"\n     kmlStyleInfo=" + kmlStyleInfo + 
 				"\n     threddsLink=" + threddsLink + 
-				"\n     displayAncillaryVariables=" + displayAncillaryVariables + "]";
+				"\n     displayAncillaryVariables=" + displayAncillaryVariables + 
+				"\n     displayLevel=" + displayLevel + 
+				"\n     incremental=" + incremental + 
+				"\n     lineSimplificationTolerance=" + lineSimplificationTolerance + 
+				"\n     levelOfDetailTierCount=" + levelOfDetailTierCount + 
+				"\n     qcFlagPolicy=" + qcFlagPolicy + 
+				"\n     trajectorySubset=" + trajectorySubset + 
+				"\n     conversionListenerList=" + conversionListenerList + "]";
 	}
 	
 }
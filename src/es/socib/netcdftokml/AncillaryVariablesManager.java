@@ -5,9 +5,12 @@ package es.socib.netcdftokml;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -39,12 +42,13 @@ public class AncillaryVariablesManager {
 	
 	private static String QUALITY_CONTROL_PREFIX = "quality_control_";
 	
-	private static int PROBABLY_GOOD_DATA = 2;
-	
-//	private static int INTERPOLATED_DATA = 8;
-	
 	private NetcdfDataset netcdfDataset;
 	
+	/**
+	 * readSession the {@link NetcdfReadSession} used to read the quality control variables.
+	 */
+	private NetcdfReadSession readSession;
+	
 	private List<Variable> variableListWithotAncillaryVariables;
 	
 	private List<Variable> ancillaryVariableList;
@@ -52,20 +56,30 @@ public class AncillaryVariablesManager {
 	private Map<Variable, Array> mapVariableAncillaryVariableNames;
 	
 	/**
-	 * qcVariableNameArrayMap Map with the qc variable name as key and the qc variable data as value.
+	 * variableQcVariableMap Map with the variable as key and the qc variable as value.
 	 * 					Used to improve the performance.
 	 */
-	private Map<String, Array> qcVariableNameArrayMap;
+	private Map<Variable, Variable> variableQcVariableMap;
+	
+	private String qcLatVariableName;
+	
+	private String qcLonVariableName;
 	
 	/**
-	 * variableQcVariableMap Map with the variable as key and the qc variable as value.
-	 * 					Used to improve the performance.
+	 * qcFlagPolicy the quality control flags accepted as good data.
 	 */
-	private Map<Variable, Variable> variableQcVariableMap;
+	private QcFlagPolicy qcFlagPolicy;
 	
-	private Array qcLatVariableArray;
+	/**
+	 * goodPositions the good position indexes, from the latitude and longitude quality controls.
+	 * Null if the position doesn't have quality controls applied.
+	 */
+	private BitSet goodPositions;
 	
-	private Array qcLonVariableArray;
+	/**
+	 * positionCount the number of positions.
+	 */
+	private int positionCount;
 	
 	private Integer latestGoodDataIdx;
 
@@ -85,64 +99,244 @@ public class AncillaryVariablesManager {
 	 * @param coordinateAxisMap
 	 */
 	public AncillaryVariablesManager(NetcdfDataset netcdfDataset,  Map<AxisType, VariableDS> coordinateAxisMap){
+		this(new NetcdfReadSession(netcdfDataset), coordinateAxisMap);
+	}
+	
+	/**
+	 * Constructs a new {@link AncillaryVariablesManager} reading the quality control variables
+	 * through the given {@link NetcdfReadSession}.
+	 * 
+	 * @param readSession the {@link NetcdfReadSession}
+	 * @param coordinateAxisMap
+	 * @see #AncillaryVariablesManager(NetcdfDataset, Map)
+	 */
+	public AncillaryVariablesManager(NetcdfReadSession readSession,  Map<AxisType, VariableDS> coordinateAxisMap){
+		this(readSession, coordinateAxisMap, new QcFlagPolicy());
+	}
+	
+	/**
+	 * Constructs a new {@link AncillaryVariablesManager} reading the quality control variables
+	 * through the given {@link NetcdfReadSession} and accepting the quality control flags of the
+	 * given {@link QcFlagPolicy}.
+	 * 
+	 * The latitude and longitude quality controls are compiled into the good position index set, and
+	 * released from the read session. The time spent is reported to the {@link ConversionListener} of
+	 * the read session, if set, as the {@link ConversionPhase#ANCILLARY_DISCOVERY}.
+	 * 
+	 * @param readSession the {@link NetcdfReadSession}
+	 * @param coordinateAxisMap
+	 * @param qcFlagPolicy the {@link QcFlagPolicy}
+	 * @see #AncillaryVariablesManager(NetcdfDataset, Map)
+	 */
+	public AncillaryVariablesManager(NetcdfReadSession readSession,  Map<AxisType, VariableDS> coordinateAxisMap, QcFlagPolicy qcFlagPolicy){
+		this(readSession, coordinateAxisMap, qcFlagPolicy, null);
+	}
+	
+	/**
+	 * Constructs a new {@link AncillaryVariablesManager} from the discovery of the given {@link DatasetSchema},
+	 * cached from a previous dataset with the same structure. If the schema is null or its variables aren't
+	 * found in the dataset, the variables are discovered.
+	 * 
+	 * @param readSession the {@link NetcdfReadSession}
+	 * @param coordinateAxisMap
+	 * @param qcFlagPolicy the {@link QcFlagPolicy}
+	 * @param datasetSchema the {@link DatasetSchema} of the dataset, can be null.
+	 * @see #AncillaryVariablesManager(NetcdfReadSession, Map, QcFlagPolicy)
+	 */
+	public AncillaryVariablesManager(NetcdfReadSession readSession,  Map<AxisType, VariableDS> coordinateAxisMap, QcFlagPolicy qcFlagPolicy, DatasetSchema datasetSchema){
 		
-		//TODO Option to display the interpolated data.
+		long start = System.nanoTime();
 		
-		this.netcdfDataset = netcdfDataset;
+		this.qcFlagPolicy = qcFlagPolicy;
+		this.readSession = readSession;
+		this.netcdfDataset = readSession.getDataset();
 		this.mapVariableAncillaryVariableNames = new HashMap<Variable, Array>();
-		this.qcVariableNameArrayMap = new HashMap<String, Array>();
 		this.variableQcVariableMap = new HashMap<Variable, Variable>();
-		this.ancillaryVariableList = retrieveAncillaryVariablesWithinTheDataset();
-		this.variableListWithotAncillaryVariables = retrieveVariableListWithoutAncillaryVariables();
-		this.variableListWithotAncillaryVariables.removeAll(netcdfDataset.getCoordinateAxes());
 		
-		String qcLatVariableName = findQCAncillaryVariableName(findAncillaryVariableNames(coordinateAxisMap.get(AxisType.Lat)));
-		String qcLonVariableName = findQCAncillaryVariableName(findAncillaryVariableNames(coordinateAxisMap.get(AxisType.Lon)));
+		if (null == datasetSchema || !resolveDatasetSchema(datasetSchema)){
+			
+			if (null != datasetSchema){
+				logger.warn("The variables of the dataset schema " + datasetSchema.getFingerprint() + " aren't in " + netcdfDataset.getLocation());
+				mapVariableAncillaryVariableNames.clear();
+				variableQcVariableMap.clear();
+			}
+			
+			this.ancillaryVariableList = retrieveAncillaryVariablesWithinTheDataset();
+			this.variableListWithotAncillaryVariables = retrieveVariableListWithoutAncillaryVariables();
+			this.variableListWithotAncillaryVariables.removeAll(netcdfDataset.getCoordinateAxes());
+			
+			qcLatVariableName = findQCAncillaryVariableName(findAncillaryVariableNames(coordinateAxisMap.get(AxisType.Lat)));
+			qcLonVariableName = findQCAncillaryVariableName(findAncillaryVariableNames(coordinateAxisMap.get(AxisType.Lon)));
+			
+		}
 		
+		// The remote variables are fetched at once, before the first read
+		if (readSession.isRemote()){
+			prefetchVariables(coordinateAxisMap);
+		}
+		
+		Array qcLatVariableArray = null;
 		if (null != qcLatVariableName){
 			qcLatVariableArray = readVariable(qcLatVariableName);
-		} else {
-			qcLatVariableArray = null;
 		}
 		
+		Array qcLonVariableArray = null;
 		if (null != qcLonVariableName){
 			qcLonVariableArray = readVariable(qcLonVariableName);
-		} else {
-			qcLonVariableArray = null;
 		}
 		
-		searchLastAndFirstGoodDataIdx();
+		searchLastAndFirstGoodDataIdx(qcLatVariableArray, qcLonVariableArray);
+		
+		// The position quality controls aren't needed once compiled
+		if (null != goodPositions){
+			readSession.release(netcdfDataset.findVariable(qcLatVariableName));
+			readSession.release(netcdfDataset.findVariable(qcLonVariableName));
+		}
+		
+		if (null != readSession.getConversionListener()){
+			readSession.getConversionListener().phaseFinished(readSession.getLocation(), ConversionPhase.ANCILLARY_DISCOVERY, System.nanoTime() - start);
+		}
 		
 	}
 
 	/**
-	 * Set the first and latest good data index. If the position doesn't have quality controls applied then
-	 * the latest and first good data index set them to null. If there aren't good position then the latest 
-	 * and first good data index set them to -1
+	 * Fetch the variables read by the conversion through the read planner of the {@link NetcdfReadSession}: the
+	 * coordinate axes, the variables without ancillary variables, their quality controls and the position quality
+	 * controls. If the fetch fails the variables are read one by one.
+	 * 
+	 * @param coordinateAxisMap the coordinate axes
+	 */
+	private void prefetchVariables(Map<AxisType, VariableDS> coordinateAxisMap) {
+		
+		Set<Variable> variableSet = new LinkedHashSet<Variable>();
+		variableSet.addAll(coordinateAxisMap.values());
+		variableSet.addAll(variableListWithotAncillaryVariables);
+		variableSet.addAll(variableQcVariableMap.values());
+		if (null != qcLatVariableName){
+			variableSet.add(netcdfDataset.findVariable(qcLatVariableName));
+		}
+		if (null != qcLonVariableName){
+			variableSet.add(netcdfDataset.findVariable(qcLonVariableName));
+		}
+		
+		try {
+			readSession.prefetch(variableSet);
+		} catch (IOException e) {
+			logger.warn("Impossible prefetch the variables of " + netcdfDataset.getLocation() + " " + e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Resolve the variables of the given {@link DatasetSchema} in the dataset.
+	 * 
+	 * @param datasetSchema the {@link DatasetSchema}
+	 * @return true if all the variables are found, otherwise false.
+	 */
+	private boolean resolveDatasetSchema(DatasetSchema datasetSchema) {
+		
+		ancillaryVariableList = findVariables(datasetSchema.getAncillaryVariableNameList());
+		variableListWithotAncillaryVariables = findVariables(datasetSchema.getDisplayVariableNameList());
+		if (null == ancillaryVariableList || null == variableListWithotAncillaryVariables){
+			return false;
+		}
+		
+		for (Map.Entry<String, Array> ancillaryVariableNames : datasetSchema.getAncillaryVariableNamesMap().entrySet()){
+			Variable variable = netcdfDataset.findVariable(ancillaryVariableNames.getKey());
+			if (null == variable){
+				return false;
+			}
+			mapVariableAncillaryVariableNames.put(variable, ancillaryVariableNames.getValue());
+		}
+		
+		for (Map.Entry<String, String> qcVariableName : datasetSchema.getQcVariableNameMap().entrySet()){
+			Variable variable = netcdfDataset.findVariable(qcVariableName.getKey());
+			Variable qcVariable = netcdfDataset.findVariable(qcVariableName.getValue());
+			if (null == variable || null == qcVariable){
+				return false;
+			}
+			variableQcVariableMap.put(variable, qcVariable);
+		}
+		
+		qcLatVariableName = datasetSchema.getQcLatVariableName();
+		qcLonVariableName = datasetSchema.getQcLonVariableName();
+		
+		return true;
+	}
+	
+	/**
+	 * Find the variables of the given names.
+	 * 
+	 * @param variableNameList the variable names
+	 * @return the {@link Variable} list, null if a variable isn't found.
+	 */
+	private List<Variable> findVariables(List<String> variableNameList) {
+		
+		List<Variable> variableList = new ArrayList<Variable>(variableNameList.size());
+		for (String variableName : variableNameList){
+			Variable variable = netcdfDataset.findVariable(variableName);
+			if (null == variable){
+				return null;
+			}
+			variableList.add(variable);
+		}
+		
+		return variableList;
+	}
+	
+	/**
+	 * Build the good position index set and set the first and latest good data index. If the position doesn't
+	 * have quality controls applied then the latest and first good data index set them to null. If there aren't
+	 * good position then the latest and first good data index set them to -1
+	 * 
+	 * @param qcLatVariableArray the latitude quality control data, can be null.
+	 * @param qcLonVariableArray the longitude quality control data, can be null.
 	 */
-	private void searchLastAndFirstGoodDataIdx() {
+	private void searchLastAndFirstGoodDataIdx(Array qcLatVariableArray, Array qcLonVariableArray) {
 		
 		if(null == qcLatVariableArray || null == qcLonVariableArray){
+			goodPositions = null;
 			latestGoodDataIdx = firstGoodDataIdx = null;
 			return;
 		}
 		
-		this.latestGoodDataIdx = 0;
-		this.firstGoodDataIdx = (int) qcLatVariableArray.getSize();
+		positionCount = (int) qcLatVariableArray.getSize();
 		
-		for (int i =  0; i < (int) qcLatVariableArray.getSize(); i++){
-			if (isGoodPosition(qcLatVariableArray.getInt(i), qcLonVariableArray.getInt(i))){
-				if (latestGoodDataIdx < i){
-					latestGoodDataIdx = i;
-				}
-				if (firstGoodDataIdx > i){
-					firstGoodDataIdx =  i;
-				}
-			}
+		// Good position if both latitude and longitude are good data
+		goodPositions = qcFlagPolicy.compile(qcLatVariableArray);
+		goodPositions.and(qcFlagPolicy.compile(qcLonVariableArray));
+		
+		if (goodPositions.isEmpty()){
+			latestGoodDataIdx = firstGoodDataIdx = -1;
+		} else {
+			firstGoodDataIdx = goodPositions.nextSetBit(0);
+			latestGoodDataIdx = goodPositions.length() - 1;
 		}
 		
-		if (latestGoodDataIdx < firstGoodDataIdx){
+	}
+	
+	/**
+	 * Restrict the good positions to the given position set, for example the positions inside the bounding box
+	 * of a {@link TrajectorySubset}. Without position quality controls the given set becomes the good positions.
+	 * The first and latest good data index are updated.
+	 * 
+	 * @param positions the position indexes kept
+	 * @param positionCount the number of positions
+	 */
+	public void restrictGoodPositions(BitSet positions, int positionCount) {
+		
+		if (null == goodPositions){
+			goodPositions = (BitSet) positions.clone();
+			this.positionCount = positionCount;
+		} else {
+			goodPositions.and(positions);
+		}
+		
+		if (goodPositions.isEmpty()){
 			latestGoodDataIdx = firstGoodDataIdx = -1;
+		} else {
+			firstGoodDataIdx = goodPositions.nextSetBit(0);
+			latestGoodDataIdx = goodPositions.length() - 1;
 		}
 		
 	}
@@ -158,41 +352,33 @@ public class AncillaryVariablesManager {
 		
 		int nextGoodDataIdx = currentIdx + 1;
 		
-		if(null == qcLatVariableArray || null == qcLonVariableArray){
+		if(null == goodPositions){
 			return nextGoodDataIdx;
 		}
 		
-		for (int i = nextGoodDataIdx; i <= latestGoodDataIdx; i ++){
-			
-			if (isGoodPosition(qcLatVariableArray.getInt(nextGoodDataIdx), qcLonVariableArray.getInt(nextGoodDataIdx))){
-				return nextGoodDataIdx;
-			} else {
-				nextGoodDataIdx ++;
-			}
+		int nextGoodPositionIdx = goodPositions.nextSetBit(nextGoodDataIdx);
+		if (-1 != nextGoodPositionIdx && nextGoodPositionIdx <= latestGoodDataIdx){
+			return nextGoodPositionIdx;
 		}
 		
-		return nextGoodDataIdx;
+		// No more good positions
+		return Math.max(nextGoodDataIdx, latestGoodDataIdx + 1);
 	}
 	
 	/**
-	 * If the qc latitude and longitude value are good data then return true.
-	 * Otherwise return false.
+	 * Find the first good position index from the given index, inclusive.
 	 * 
-	 * @param qcLatValue the qc latitude value.
-	 * @param qcLonValue the qc longitude value.
-	 * @return true if is good data and otherwise false.
+	 * @param fromIdx the index to start the search from
+	 * @return the given index if the position doesn't have quality controls applied, otherwise the first good
+	 * position index from the given index or -1 if there aren't more good positions.
 	 */
-	private boolean isGoodPosition(int qcLatValue, int qcLonValue){
+	public int findGoodPositionIdx(int fromIdx) {
 		
-		if (qcLatValue < PROBABLY_GOOD_DATA && qcLonValue < PROBABLY_GOOD_DATA){
-			return true;
+		if (null == goodPositions){
+			return fromIdx;
 		}
 		
-//		if (qcLatValue == INTERPOLATED_DATA && qcLonValue == INTERPOLATED_DATA){
-//			return true;
-//		}
-		
-		return false;
+		return goodPositions.nextSetBit(fromIdx);
 	}
 	
 	/**
@@ -202,21 +388,22 @@ public class AncillaryVariablesManager {
 	 * @return true if the position doesn't have quality controls applied or is good position. Otherwise return false.
 	 */
 	public boolean isGoodPosition(Index ima){
+		return isGoodPosition(ima.getCurrentCounter()[0]);
+	}
+	
+	/**
+	 * If the position (latitude and longitude variable) at the given index is good data.
+	 * 
+	 * @param idx the time index.
+	 * @return true if the position doesn't have quality controls applied or is good position. Otherwise return false.
+	 */
+	public boolean isGoodPosition(int idx){
 		
-		int i = ima.getCurrentCounter()[0];
-		
-		if( null == qcLatVariableArray || null == qcLonVariableArray){
-			return true;
-		}
-		
-		Byte qcLatValue = qcLatVariableArray.getByte(i);
-		Byte qcLonValue = qcLonVariableArray.getByte(i);
-		
-		if (isGoodPosition(qcLatValue.intValue(), qcLonValue.intValue())){
+		if (null == goodPositions){
 			return true;
 		}
 		
-		return false;
+		return goodPositions.get(idx);
 	}
 	
 
@@ -246,8 +433,8 @@ public class AncillaryVariablesManager {
 	/**
 	 * Retrieve the {@link Variable} list of ancillary variables, in the {@link NetcdfDataset},
 	 * from the the given {@link Array} of ancillary variable names. Also, if the ancillary variable
-	 * is qc variable then associate the qc variable name with the qc variable {@link Array} 
-	 * (qcVariableNameArrayMap). And associate the variable with the qc variable (variableQcVariableMap)
+	 * is qc variable then associate the variable with the qc variable (variableQcVariableMap). The qc
+	 * variable data is read when needed.
 	 * 
 	 * @param ancillaryVariableNames the given {@link Array} of ancillary variable names
 	 * @return the {@link Variable} list of ancillary variables
@@ -263,13 +450,7 @@ public class AncillaryVariablesManager {
 			if (null != ancVariable){
 				ancillaryVaraibleList.add(ancVariable);
 				if (isQCVariable(ancVariable.getFullName())){
-					try {
-						qcVariableNameArrayMap.put(ancVariable.getFullName(), ancVariable.read());
-						variableQcVariableMap.put(variable, ancVariable);
-					} catch (IOException e) {
-						logger.error("Impossible read the variable data of " + ancVariable.getFullName());
-						e.printStackTrace();
-					}
+					variableQcVariableMap.put(variable, ancVariable);
 				}
 			} else {
 				logger.error("Ancillary variable " + ancVariableArray + " isn't in the NetCDF dataset " + netcdfDataset.getLocation());
@@ -427,7 +608,7 @@ public class AncillaryVariablesManager {
 			return null;
 		} else {
 			try {
-				return qcVariable.read();
+				return readSession.read(qcVariable);
 			} catch (IOException e) {
 				logger.warn("Reading variable " + variableName + " " + e.getMessage());
 				return null;
@@ -446,8 +627,9 @@ public class AncillaryVariablesManager {
 	 */
 	public static boolean isQCVariable(String variableName){
 		
-		if (variableName.toLowerCase().contains(QC_SUFFIX) || variableName.toLowerCase().contains(QC_PREFIX) 
-				|| variableName.toLowerCase().contains(QUALITY_CONTROL_SUFFIX)){
+		String lowerCaseVariableName = variableName.toLowerCase();
+		if (lowerCaseVariableName.contains(QC_SUFFIX) || lowerCaseVariableName.contains(QC_PREFIX) 
+				|| lowerCaseVariableName.contains(QUALITY_CONTROL_SUFFIX)){
 			return true;
 		}
 		
@@ -469,12 +651,58 @@ public class AncillaryVariablesManager {
 			return true;
 		}
 		
-		Array qcVariableArray = qcVariableNameArrayMap.get(qcVariable.getFullName());
-		if (PROBABLY_GOOD_DATA <= qcVariableArray.getInt(index)){
-			return false;
+		Array qcVariableArray;
+		try {
+			qcVariableArray = readSession.read(qcVariable);
+		} catch (IOException e) {
+			logger.error("Impossible read the variable data of " + qcVariable.getFullName());
+			e.printStackTrace();
+			return true;
 		}
 		
-		return true;
+		return qcFlagPolicy.isAccepted(qcVariableArray.getInt(index));
+	}
+	
+	/**
+	 * If the given quality control value is good data, with the default {@link QcFlagPolicy}.
+	 * 
+	 * @param qcValue the quality control value.
+	 * @return true if is good data and otherwise false.
+	 */
+	public static boolean isGoodData(int qcValue){
+		return qcValue < QcFlagPolicy.PROBABLY_GOOD_DATA;
+	}
+	
+	/**
+	 * Retrieve the quality control variable of the given variable.
+	 * 
+	 * @param variable the {@link Variable}.
+	 * @return the quality control {@link Variable}, null if the variable doesn't have quality controls applied.
+	 */
+	public Variable getQcVariable(Variable variable){
+		return variableQcVariableMap.get(variable);
+	}
+	
+	/**
+	 * Retrieve the latitude quality control variable name.
+	 * 
+	 * @return the variable name, null if the latitude doesn't have quality controls applied.
+	 */
+	public String getQcLatVariableName() {
+		return qcLatVariableName;
+	}
+	
+	/**
+	 * Retrieve the longitude quality control variable name.
+	 * 
+	 * @return the variable name, null if the longitude doesn't have quality controls applied.
+	 */
+	public String getQcLonVariableName() {
+		return qcLonVariableName;
+	}
+
+	public QcFlagPolicy getQcFlagPolicy() {
+		return qcFlagPolicy;
 	}
 
 	public List<Variable> getVariableListWithotAncillaryVariables() {
@@ -495,7 +723,7 @@ public class AncillaryVariablesManager {
 			return latestGoodDataIdx;
 		}
 		
-		return (int) qcLatVariableArray.getSize() - 1;
+		return positionCount - 1;
 	}
 	
 	public Integer getFirstGoodDataIdx() {
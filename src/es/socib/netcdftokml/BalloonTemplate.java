@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+
+/**
+ * The balloon layout shared by all the placemarks, written once as the {@link de.micromata.opengis.kml.v_2_2_0.BalloonStyle}
+ * text. The placemark values are referenced with $[field] entities and each placemark only carries the bare values as
+ * {@link ExtendedData}, see {@link #createExtendedData(int)}. The units and the labels are written once, in the template.
+ *
+ * The fields of each placemark are the field name of each variable displayed and of the height coordinate of the two
+ * dimensional variables (see {@link #getFieldName(String)}). The time and the position aren't repeated as fields, they are
+ * already in the placemark time span and coordinates, which the balloon entities can't reference.
+ * The fields $[title] and $[tdsLink] are the same for all the placemarks, so they are replaced when the template is created.
+ *
+ * If the {@link KmlStyleInfo} template path is set the template is read from it, a local file or an url. Otherwise the
+ * default template has the same layout as the placemark descriptions.
+ *
+ */
+public class BalloonTemplate {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(BalloonTemplate.class.getSimpleName());
+
+	public static final String TITLE_FIELD = "title";
+
+	public static final String TDS_LINK_FIELD = "tdsLink";
+
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * text the balloon style text.
+	 */
+	private String text;
+
+	/**
+	 * variableRenderPlans the variables displayed.
+	 */
+	private VariableRenderPlan[] variableRenderPlans;
+
+	/**
+	 * heightRenderPlans a variable of each height coordinate field, the two dimensional variables can share it.
+	 */
+	private VariableRenderPlan[] heightRenderPlans;
+
+	private BalloonTemplate(String text, List<VariableRenderPlan> variableRenderPlanList) {
+
+		this.text = text;
+		this.variableRenderPlans = variableRenderPlanList.toArray(new VariableRenderPlan[variableRenderPlanList.size()]);
+
+		Map<String, VariableRenderPlan> heightRenderPlanMap = new LinkedHashMap<String, VariableRenderPlan>();
+		for (VariableRenderPlan variableRenderPlan : variableRenderPlanList){
+			heightRenderPlanMap.put(variableRenderPlan.getFieldName(), null);
+		}
+		List<VariableRenderPlan> heightRenderPlanList = new ArrayList<VariableRenderPlan>();
+		for (VariableRenderPlan variableRenderPlan : variableRenderPlanList){
+			String heightFieldName = variableRenderPlan.getHeightFieldName();
+			// A height coordinate displayed as variable already has its field
+			if (null != heightFieldName && !heightRenderPlanMap.containsKey(heightFieldName)){
+				heightRenderPlanMap.put(heightFieldName, variableRenderPlan);
+				heightRenderPlanList.add(variableRenderPlan);
+			}
+		}
+		this.heightRenderPlans = heightRenderPlanList.toArray(new VariableRenderPlan[heightRenderPlanList.size()]);
+
+	}
+
+	/**
+	 * Create the balloon template.
+	 *
+	 * @param kmlStyleInfo the {@link KmlStyleInfo} with the template path.
+	 * @param title the balloon title, see {@link KmlStyleInfo#formatKmlTitleName(String, String)}.
+	 * @param threddsLink the opendap link of the kml data, can be null.
+	 * @param variableRenderPlanList the variables displayed.
+	 * @return the {@link BalloonTemplate}
+	 * @throws IOException if the template can't be read.
+	 */
+	public static BalloonTemplate create(KmlStyleInfo kmlStyleInfo, String title, String threddsLink, List<VariableRenderPlan> variableRenderPlanList) throws IOException {
+
+		String text;
+		if (null != kmlStyleInfo.getTemplatePath()){
+			text = readTemplate(kmlStyleInfo.getTemplatePath());
+			logger.info("Balloon template read from " + kmlStyleInfo.getTemplatePath());
+		} else {
+			text = createDefaultTemplate(variableRenderPlanList, null != threddsLink && !"".equals(threddsLink));
+		}
+
+		text = text.replace(getEntity(TITLE_FIELD), title);
+		text = text.replace(getEntity(TDS_LINK_FIELD), null == threddsLink ? "" : threddsLink);
+
+		return new BalloonTemplate(text, variableRenderPlanList);
+	}
+
+	/**
+	 * Create the default template, with the same layout as the placemark descriptions, but the time and position.
+	 */
+	private static String createDefaultTemplate(List<VariableRenderPlan> variableRenderPlanList, boolean hasThreddsLink) {
+
+		StringBuffer template = new StringBuffer();
+		template.append("<h3>" + getEntity(TITLE_FIELD) + "</h3>");
+
+		for (VariableRenderPlan variableRenderPlan : variableRenderPlanList){
+			template.append("<br><strong>" + variableRenderPlan.getName() + ": </strong>" + getEntity(variableRenderPlan.getFieldName()));
+			template.append(variableRenderPlan.getUnits().length() == 0 ? "" : " " + variableRenderPlan.getUnits());
+			if (null != variableRenderPlan.getHeightFieldName()){
+				template.append(" at " + getEntity(variableRenderPlan.getHeightFieldName()));
+				template.append(null == variableRenderPlan.getHeightUnits() ? "" : variableRenderPlan.getHeightUnits());
+			}
+		}
+
+		if (hasThreddsLink){
+			template.append("<br> <strong>TDS link:</strong> <a href=\"" + getEntity(TDS_LINK_FIELD) + "\" title=\"OPeNDAP link\"> OPeNDAP link</a>");
+		}
+
+		return template.toString();
+	}
+
+	private static String readTemplate(String templatePath) throws IOException {
+
+		InputStream stream;
+		if (templatePath.contains("://")){
+			stream = new URL(templatePath).openStream();
+		} else {
+			stream = new FileInputStream(templatePath);
+		}
+
+		StringBuffer template = new StringBuffer();
+		Reader reader = new InputStreamReader(stream, ENCODING);
+		try {
+			char[] buffer = new char[4096];
+			int read;
+			while (-1 != (read = reader.read(buffer))){
+				template.append(buffer, 0, read);
+			}
+		} finally {
+			reader.close();
+		}
+
+		return template.toString();
+	}
+
+	/**
+	 * Create the extended data of the placemark at the given time index: the bare value of each variable
+	 * (see {@link VariableRenderPlan#readData(int)}) and of each height coordinate.
+	 *
+	 * @param timeIdx the time index
+	 * @return the {@link ExtendedData}
+	 */
+	public ExtendedData createExtendedData(int timeIdx) {
+
+		ExtendedData extendedData = new ExtendedData();
+		for (VariableRenderPlan variableRenderPlan : variableRenderPlans){
+			extendedData.createAndAddData(variableRenderPlan.readData(timeIdx)).setName(variableRenderPlan.getFieldName());
+		}
+		for (VariableRenderPlan heightRenderPlan : heightRenderPlans){
+			extendedData.createAndAddData(heightRenderPlan.readHeight(timeIdx)).setName(heightRenderPlan.getHeightFieldName());
+		}
+
+		return extendedData;
+	}
+
+	/**
+	 * Compute the hash of the template contents, so a template rewritten at the same path changes the
+	 * cache keys of the conversions using it.
+	 *
+	 * @param templatePath the template path, a local file or an url
+	 * @return the hex hash of the template contents
+	 * @throws IOException if the template can't be read.
+	 */
+	public static String getTemplateHash(String templatePath) throws IOException {
+
+		MessageDigest digest = DiskLruCache.createDigest();
+		DiskLruCache.update(digest, readTemplate(templatePath));
+
+		return DiskLruCache.toHex(digest.digest());
+	}
+
+	/**
+	 * Retrieve the extended data field name of the given variable name. The characters not allowed in a
+	 * kml entity are replaced by underscores.
+	 *
+	 * @param variableName the variable name
+	 * @return the field name
+	 */
+	public static String getFieldName(String variableName) {
+		return variableName.replaceAll("[^A-Za-z0-9_]", "_");
+	}
+
+	private static String getEntity(String fieldName) {
+		return "$[" + fieldName + "]";
+	}
+
+	public String getText() {
+		return text;
+	}
+
+}
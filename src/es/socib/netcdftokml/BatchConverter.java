@@ -0,0 +1,498 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Converts many NetCDF files to kmz on a bounded worker pool.
+ *
+ * The conversion of each file is split in two stages: the read stage opens the file and builds the
+ * {@link KmlManager}, and the write stage streams the kmz. Each stage runs on its own pool, so reading
+ * the next files overlaps the writing of the previous ones. The number of files read and waiting to be
+ * written is bounded to keep the memory used under control.
+ *
+ * Optionally the kmz outputs are cached in a {@link KmzOutputCache}, then the files that didn't change
+ * since their last conversion are copied from the cache without converting them.
+ *
+ */
+public class BatchConverter {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(BatchConverter.class.getSimpleName());
+
+	private static final String NETCDF_EXTENSION = ".nc";
+
+	private static final String KMZ_EXTENSION = ".kmz";
+
+	/**
+	 * outputDirectory the directory where the kmz files are written.
+	 */
+	private File outputDirectory;
+
+	/**
+	 * workerCount the number of threads of each stage.
+	 */
+	private int workerCount;
+
+	/**
+	 * kmzOutputCache the cache of the kmz outputs, null if not used.
+	 */
+	private KmzOutputCache kmzOutputCache;
+
+	/**
+	 * remoteArrayCache the cache of the arrays read from the opendap sources, null if not used.
+	 */
+	private RemoteArrayCache remoteArrayCache;
+
+	/**
+	 * Construct a new {@link BatchConverter}.
+	 *
+	 * @param outputDirectory the directory where the kmz files are written.
+	 * @param workerCount the number of threads of each stage. If less than 1, the number of available processors is used.
+	 */
+	public BatchConverter(File outputDirectory, int workerCount) {
+		this.outputDirectory = outputDirectory;
+		this.workerCount = workerCount;
+		if (this.workerCount < 1){
+			this.workerCount = Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * Convert the given NetCDF file locations. The kmz of each file is written in the output directory
+	 * with the same base name and the kmz extension. The files whose kmz name is already taken by a previous
+	 * location of the list aren't converted, their result is a failure.
+	 *
+	 * @param netCdfFileLocationList the NetCDF file locations, can be local files or opendap links.
+	 * @return the {@link ConversionResult} of each file, in the same order as the given locations.
+	 * @throws InterruptedException
+	 */
+	public List<ConversionResult> convert(List<String> netCdfFileLocationList) throws InterruptedException {
+
+		final ConversionResult[] results = new ConversionResult[netCdfFileLocationList.size()];
+		final CountDownLatch pendingConversions = new CountDownLatch(netCdfFileLocationList.size());
+		final Semaphore inFlightPermits = new Semaphore(2 * workerCount);
+
+		final ExecutorService readExecutor = Executors.newFixedThreadPool(workerCount);
+		final ExecutorService writeExecutor = Executors.newFixedThreadPool(workerCount);
+
+		try {
+
+			Map<String, String> outputFileLocationMap = new HashMap<String, String>();
+
+			for (int i = 0; i < netCdfFileLocationList.size(); i++){
+
+				final int resultIdx = i;
+				final String netCdfFileLocation = netCdfFileLocationList.get(i);
+				final String outputFileName = getOutputFileName(netCdfFileLocation);
+
+				// Two inputs with the same base name would write the same kmz
+				String previousFileLocation = outputFileLocationMap.put(new File(outputFileName).getAbsolutePath(), netCdfFileLocation);
+				if (null != previousFileLocation){
+					logger.error("The output " + outputFileName + " of " + netCdfFileLocation + " is already written by " + previousFileLocation);
+					results[resultIdx] = new ConversionResult(netCdfFileLocation, outputFileName, false,
+							"The output " + outputFileName + " is already written by " + previousFileLocation, 0);
+					pendingConversions.countDown();
+					continue;
+				}
+
+				inFlightPermits.acquire();
+
+				readExecutor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+
+						final long startMillis = System.currentTimeMillis();
+						boolean writeScheduled = false;
+
+						try {
+
+							AdditionalInfo additionalInfo = createAdditionalInfo(netCdfFileLocation);
+							final String cacheKey = getCacheKey(netCdfFileLocation, additionalInfo);
+							if (null != cacheKey && kmzOutputCache.get(cacheKey, new File(outputFileName))){
+								logger.debug("Cached " + netCdfFileLocation);
+								results[resultIdx] = ConversionResult.createCachedResult(netCdfFileLocation, outputFileName, System.currentTimeMillis() - startMillis);
+								return;
+							}
+
+							final KmlManager kmlManager = openKmlManager(netCdfFileLocation, additionalInfo, outputFileName);
+							try {
+								writeExecutor.execute(new Runnable() {
+
+									@Override
+									public void run() {
+
+										try {
+											kmlManager.writeKmz(outputFileName);
+											if (null != cacheKey){
+												cacheOutput(cacheKey, outputFileName);
+											}
+											results[resultIdx] = new ConversionResult(netCdfFileLocation, outputFileName, true, null, System.currentTimeMillis() - startMillis);
+										} catch (Throwable e) {
+											logger.error("Writing " + outputFileName + " " + e.getMessage());
+											results[resultIdx] = new ConversionResult(netCdfFileLocation, outputFileName, false, e.toString(), System.currentTimeMillis() - startMillis);
+										} finally {
+											closeQuietly(kmlManager);
+											inFlightPermits.release();
+											pendingConversions.countDown();
+										}
+
+									}
+								});
+								writeScheduled = true;
+							} finally {
+								if (!writeScheduled){
+									closeQuietly(kmlManager);
+								}
+							}
+
+						} catch (Throwable e) {
+							logger.error("Reading " + netCdfFileLocation + " " + e.getMessage());
+							results[resultIdx] = new ConversionResult(netCdfFileLocation, outputFileName, false, e.toString(), System.currentTimeMillis() - startMillis);
+						} finally {
+							// Otherwise released by the write stage
+							if (!writeScheduled){
+								inFlightPermits.release();
+								pendingConversions.countDown();
+							}
+						}
+
+					}
+				});
+
+			}
+
+			pendingConversions.await();
+
+		} finally {
+			readExecutor.shutdown();
+			writeExecutor.shutdown();
+		}
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Compute the cache key of the given NetCDF file. If the key can't be computed the file is converted.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location.
+	 * @param additionalInfo the {@link AdditionalInfo} of the file.
+	 * @return the cache key, null if the cache isn't used or the file isn't cacheable.
+	 */
+	private String getCacheKey(String netCdfFileLocation, AdditionalInfo additionalInfo) {
+
+		if (null == kmzOutputCache){
+			return null;
+		}
+
+		try {
+			return kmzOutputCache.getCacheKey(netCdfFileLocation, additionalInfo);
+		} catch (IOException e) {
+			logger.warn("Impossible compute the cache key of " + netCdfFileLocation + " " + e.getMessage());
+			return null;
+		}
+
+	}
+
+	private void cacheOutput(String cacheKey, String outputFileName) {
+		try {
+			kmzOutputCache.put(cacheKey, new File(outputFileName));
+		} catch (IOException e) {
+			logger.warn("Impossible cache " + outputFileName + " " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Open the NetCDF file and build its {@link KmlManager}. If the {@link KmlManager} can't be built
+	 * the NetCDF file is closed.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location.
+	 * @param additionalInfo the {@link AdditionalInfo} of the file.
+	 * @param outputFileName the kmz file name.
+	 * @return the {@link KmlManager}
+	 * @throws IOException
+	 */
+	private KmlManager openKmlManager(String netCdfFileLocation, AdditionalInfo additionalInfo, String outputFileName) throws IOException {
+
+		NetcdfReadSession readSession = NetcdfReadSession.open(netCdfFileLocation);
+		readSession.setRemoteArrayCache(remoteArrayCache);
+
+		try {
+			return new KmlManager(readSession, additionalInfo, outputFileName);
+		} catch (IOException e) {
+			readSession.close();
+			throw e;
+		} catch (RuntimeException e) {
+			readSession.close();
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Create the {@link AdditionalInfo} of the given NetCDF file. Called by the read workers, concurrently.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location.
+	 * @return the {@link AdditionalInfo}, null to use the default values.
+	 */
+	protected AdditionalInfo createAdditionalInfo(String netCdfFileLocation) {
+		return null;
+	}
+
+	/**
+	 * Retrieve the kmz file name of the given NetCDF file location.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location.
+	 * @return the kmz file name in the output directory.
+	 */
+	private String getOutputFileName(String netCdfFileLocation) {
+
+		String baseName = netCdfFileLocation.substring(netCdfFileLocation.lastIndexOf('/') + 1);
+		if (baseName.endsWith(NETCDF_EXTENSION)){
+			baseName = baseName.substring(0, baseName.length() - NETCDF_EXTENSION.length());
+		}
+
+		return new File(outputDirectory, baseName + KMZ_EXTENSION).getPath();
+	}
+
+	public KmzOutputCache getKmzOutputCache() {
+		return kmzOutputCache;
+	}
+
+	/**
+	 * Set the cache of the kmz outputs.
+	 *
+	 * @param kmzOutputCache the {@link KmzOutputCache}, null to convert all the files.
+	 */
+	public void setKmzOutputCache(KmzOutputCache kmzOutputCache) {
+		this.kmzOutputCache = kmzOutputCache;
+	}
+
+	public RemoteArrayCache getRemoteArrayCache() {
+		return remoteArrayCache;
+	}
+
+	/**
+	 * Set the cache of the arrays read from the opendap sources.
+	 *
+	 * @param remoteArrayCache the {@link RemoteArrayCache}, null to read all the variables from the servers.
+	 */
+	public void setRemoteArrayCache(RemoteArrayCache remoteArrayCache) {
+		this.remoteArrayCache = remoteArrayCache;
+	}
+
+	private static void closeQuietly(KmlManager kmlManager) {
+		try {
+			kmlManager.close();
+		} catch (IOException e) {
+			logger.warn("Closing the NetCDF file " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Find the NetCDF files in the given directory and its subdirectories, sorted by path.
+	 *
+	 * @param directory the directory.
+	 * @return the NetCDF file paths.
+	 */
+	public static List<String> findNetcdfFiles(File directory) {
+
+		List<String> netCdfFileList = new ArrayList<String>();
+
+		File[] files = directory.listFiles();
+		if (null == files){
+			return netCdfFileList;
+		}
+
+		for (File file : files){
+			if (file.isDirectory()){
+				netCdfFileList.addAll(findNetcdfFiles(file));
+			} else if (file.getName().endsWith(NETCDF_EXTENSION)){
+				netCdfFileList.add(file.getPath());
+			}
+		}
+
+		Collections.sort(netCdfFileList);
+
+		return netCdfFileList;
+	}
+
+	/**
+	 * Read the NetCDF file locations from the given file list, one location per line. The empty lines
+	 * and the lines starting with # are ignored.
+	 *
+	 * @param fileList the file list.
+	 * @return the NetCDF file locations.
+	 * @throws IOException
+	 */
+	public static List<String> readFileList(File fileList) throws IOException {
+
+		List<String> netCdfFileList = new ArrayList<String>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(fileList));
+		try {
+			String line;
+			while (null != (line = reader.readLine())){
+				line = line.trim();
+				if (!"".equals(line) && !line.startsWith("#")){
+					netCdfFileList.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return netCdfFileList;
+	}
+
+	/**
+	 * Batch conversion from the command line.
+	 *
+	 * Usage: BatchConverter [-t threads] [-c cacheDirectory [-h]] [-a arrayCacheDirectory] [-m cacheMegabytes] [-f fleetKmzName] outputDirectory input...
+	 *
+	 * Each input can be a directory, walked for NetCDF files, a NetCDF file or opendap link, or a
+	 * file list with one location per line. The exit status is 1 if any conversion failed.
+	 *
+	 * With a cache directory the kmz outputs are cached, by default up to 1024 megabytes. With -h the
+	 * files are identified by the hash of the header and coordinates instead of the modification time, so the
+	 * touched files are still cached (see {@link KmzOutputCache}). With an array cache directory
+	 * the variables fetched from the opendap sources are cached (see {@link RemoteArrayCache}), by default
+	 * also up to 1024 megabytes. With a fleet kmz name all the inputs are written to a single kmz in the output
+	 * directory, with a folder per platform (see {@link FleetKmzWriter}), and the kmz outputs aren't cached.
+	 *
+	 * @param args the command line arguments.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int workerCount = 0;
+		File cacheDirectory = null;
+		File arrayCacheDirectory = null;
+		long cacheMegabytes = 1024;
+		boolean contentHash = false;
+		String fleetKmzName = null;
+		int argIdx = 0;
+
+		while (args.length - argIdx > 2 && args[argIdx].startsWith("-")){
+			if ("-h".equals(args[argIdx])){
+				contentHash = true;
+				argIdx++;
+			} else if ("-t".equals(args[argIdx])){
+				workerCount = Integer.parseInt(args[argIdx + 1]);
+				argIdx += 2;
+			} else if ("-c".equals(args[argIdx])){
+				cacheDirectory = new File(args[argIdx + 1]);
+				argIdx += 2;
+			} else if ("-a".equals(args[argIdx])){
+				arrayCacheDirectory = new File(args[argIdx + 1]);
+				argIdx += 2;
+			} else if ("-f".equals(args[argIdx])){
+				fleetKmzName = args[argIdx + 1];
+				argIdx += 2;
+			} else if ("-m".equals(args[argIdx])){
+				cacheMegabytes = Long.parseLong(args[argIdx + 1]);
+				argIdx += 2;
+			} else {
+				break;
+			}
+		}
+
+		if (args.length - argIdx < 2){
+			System.err.println("Usage: BatchConverter [-t threads] [-c cacheDirectory [-h]] [-a arrayCacheDirectory] [-m cacheMegabytes] [-f fleetKmzName] outputDirectory input...");
+			System.exit(2);
+		}
+
+		File outputDirectory = new File(args[argIdx++]);
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()){
+			System.err.println("Impossible create the output directory " + outputDirectory);
+			System.exit(2);
+		}
+
+		List<String> netCdfFileLocationList = new ArrayList<String>();
+		for (; argIdx < args.length; argIdx++){
+			File input = new File(args[argIdx]);
+			if (input.isDirectory()){
+				netCdfFileLocationList.addAll(findNetcdfFiles(input));
+			} else if (args[argIdx].endsWith(NETCDF_EXTENSION) || args[argIdx].contains("://")){
+				netCdfFileLocationList.add(args[argIdx]);
+			} else {
+				netCdfFileLocationList.addAll(readFileList(input));
+			}
+		}
+
+		long startMillis = System.currentTimeMillis();
+		RemoteArrayCache remoteArrayCache = null;
+		if (null != arrayCacheDirectory){
+			remoteArrayCache = new RemoteArrayCache(arrayCacheDirectory, cacheMegabytes * 1024 * 1024);
+		}
+
+		List<ConversionResult> results;
+		if (null != fleetKmzName){
+
+			FleetKmzWriter fleetKmzWriter = new FleetKmzWriter(new KmlStyleInfo("Fleet", null, null, null, null, null, null), workerCount);
+			fleetKmzWriter.setRemoteArrayCache(remoteArrayCache);
+			OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(new File(outputDirectory, fleetKmzName)));
+			try {
+				results = fleetKmzWriter.write(netCdfFileLocationList, outputStream);
+			} finally {
+				outputStream.close();
+			}
+
+		} else {
+
+			BatchConverter batchConverter = new BatchConverter(outputDirectory, workerCount);
+			if (null != cacheDirectory){
+				batchConverter.setKmzOutputCache(new KmzOutputCache(cacheDirectory, cacheMegabytes * 1024 * 1024, contentHash));
+			}
+			batchConverter.setRemoteArrayCache(remoteArrayCache);
+			results = batchConverter.convert(netCdfFileLocationList);
+
+		}
+
+		int failures = 0;
+		int cachedCount = 0;
+		for (ConversionResult result : results){
+			if (result.isCached()){
+				cachedCount++;
+				logger.info("CACHED " + result.getNetCdfFileLocation());
+			} else if (result.isSuccess()){
+				logger.info("OK     " + result.getNetCdfFileLocation() + " (" + result.getElapsedMillis() + " ms)");
+			} else {
+				failures++;
+				logger.error("FAILED " + result.getNetCdfFileLocation() + " " + result.getMessage());
+			}
+		}
+
+		String summary = results.size() + " files converted in " + (System.currentTimeMillis() - startMillis) + " ms, "
+				+ (results.size() - failures) + " succeeded (" + cachedCount + " from the cache), " + failures + " failed";
+		logger.info(summary);
+		System.out.println(summary);
+
+		System.exit(failures > 0 ? 1 : 0);
+
+	}
+
+}
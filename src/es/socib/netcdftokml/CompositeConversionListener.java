@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link ConversionListener} that forwards the events to a list of listeners. An exception thrown by a
+ * listener is logged and doesn't stop the conversion nor the other listeners.
+ *
+ */
+public class CompositeConversionListener implements ConversionListener {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(CompositeConversionListener.class.getSimpleName());
+
+	private List<ConversionListener> conversionListenerList;
+
+	/**
+	 * Construct a new {@link CompositeConversionListener}.
+	 *
+	 * @param conversionListenerList the listeners, copied.
+	 */
+	public CompositeConversionListener(List<ConversionListener> conversionListenerList) {
+		this.conversionListenerList = new ArrayList<ConversionListener>(conversionListenerList);
+	}
+
+	@Override
+	public void conversionStarted(String location) {
+		for (ConversionListener conversionListener : conversionListenerList){
+			try {
+				conversionListener.conversionStarted(location);
+			} catch (RuntimeException e) {
+				logger.error("The conversion listener " + conversionListener + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void phaseFinished(String location, ConversionPhase phase, long elapsedNanos) {
+		for (ConversionListener conversionListener : conversionListenerList){
+			try {
+				conversionListener.phaseFinished(location, phase, elapsedNanos);
+			} catch (RuntimeException e) {
+				logger.error("The conversion listener " + conversionListener + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void variableRead(String location, String variableName, long bytes, long elapsedNanos) {
+		for (ConversionListener conversionListener : conversionListenerList){
+			try {
+				conversionListener.variableRead(location, variableName, bytes, elapsedNanos);
+			} catch (RuntimeException e) {
+				logger.error("The conversion listener " + conversionListener + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void counted(String location, ConversionCounter counter, long count) {
+		for (ConversionListener conversionListener : conversionListenerList){
+			try {
+				conversionListener.counted(location, counter, count);
+			} catch (RuntimeException e) {
+				logger.error("The conversion listener " + conversionListener + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void conversionFinished(String location, boolean success) {
+		for (ConversionListener conversionListener : conversionListenerList){
+			try {
+				conversionListener.conversionFinished(location, success);
+			} catch (RuntimeException e) {
+				logger.error("The conversion listener " + conversionListener + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+}
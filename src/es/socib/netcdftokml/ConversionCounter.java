@@ -0,0 +1,52 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+/**
+ * The counters of a conversion reported to the {@link ConversionListener}.
+ *
+ */
+public enum ConversionCounter {
+
+	/**
+	 * ROWS the records between the first and the last good position.
+	 */
+	ROWS,
+
+	/**
+	 * ROWS_SKIPPED_BAD_QC the records skipped because the position quality controls aren't good data.
+	 */
+	ROWS_SKIPPED_BAD_QC,
+
+	/**
+	 * ROWS_SKIPPED_NAN the records skipped because the latitude or the longitude is NaN.
+	 */
+	ROWS_SKIPPED_NAN,
+
+	/**
+	 * PLACEMARKS the placemarks created, without the line strings.
+	 */
+	PLACEMARKS,
+
+	/**
+	 * KML_BYTES the bytes of the kml written, before the compression.
+	 */
+	KML_BYTES,
+
+	/**
+	 * KMZ_BYTES the bytes of the kmz written.
+	 */
+	KMZ_BYTES,
+
+	/**
+	 * READ_REQUESTS the reads issued to the source by the read planner, one for each batch of whole variables.
+	 */
+	READ_REQUESTS,
+
+	/**
+	 * ARRAY_CACHE_HITS the variables read from the {@link RemoteArrayCache} instead of the source.
+	 */
+	ARRAY_CACHE_HITS
+
+}
@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+/**
+ * Listener of the instrumentation of the conversions: the timings of each {@link ConversionPhase}, the
+ * reads of each variable and the {@link ConversionCounter}s.
+ *
+ * The events of a conversion are identified by the NetCDF file location. A listener can receive the events
+ * of concurrent conversions, from different threads, so it must be thread safe if it is shared.
+ *
+ * The listeners are added to the {@link AdditionalInfo}, the {@link ConversionStatistics} MBean receives
+ * the events of all the conversions.
+ *
+ */
+public interface ConversionListener {
+
+	/**
+	 * The conversion of the given NetCDF file started.
+	 *
+	 * @param location the NetCDF file location
+	 */
+	public void conversionStarted(String location);
+
+	/**
+	 * A phase of the conversion finished.
+	 *
+	 * @param location the NetCDF file location
+	 * @param phase the {@link ConversionPhase}
+	 * @param elapsedNanos the time spent in the phase, in nanoseconds
+	 */
+	public void phaseFinished(String location, ConversionPhase phase, long elapsedNanos);
+
+	/**
+	 * A variable was read from the NetCDF file.
+	 *
+	 * @param location the NetCDF file location
+	 * @param variableName the variable name, with the level read if it is a level read
+	 * @param bytes the bytes read
+	 * @param elapsedNanos the time spent reading, in nanoseconds
+	 */
+	public void variableRead(String location, String variableName, long bytes, long elapsedNanos);
+
+	/**
+	 * A counter of the conversion was counted.
+	 *
+	 * @param location the NetCDF file location
+	 * @param counter the {@link ConversionCounter}
+	 * @param count the count
+	 */
+	public void counted(String location, ConversionCounter counter, long count);
+
+	/**
+	 * The conversion of the given NetCDF file finished.
+	 *
+	 * @param location the NetCDF file location
+	 * @param success true if the conversion succeeded
+	 */
+	public void conversionFinished(String location, boolean success);
+
+}
@@ -0,0 +1,191 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * {@link ConversionListener} that collects the metrics of one conversion: the time of each phase, the
+ * bytes and time of each variable read and the counters. The metrics are written as a json run report
+ * with {@link #writeJson(Writer)}.
+ *
+ */
+public class ConversionMetrics implements ConversionListener {
+
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	private String location;
+
+	/**
+	 * startTime the conversion start time, expressed in milliseconds.
+	 */
+	private long startTime;
+
+	private long startNanos;
+
+	private long elapsedNanos;
+
+	private Boolean success;
+
+	private Map<ConversionPhase, Long> phaseNanosMap = new EnumMap<ConversionPhase, Long>(ConversionPhase.class);
+
+	private Map<ConversionCounter, Long> counterMap = new EnumMap<ConversionCounter, Long>(ConversionCounter.class);
+
+	/**
+	 * variableReadMap Map with the variable name as key and the bytes and nanoseconds read as value.
+	 */
+	private Map<String, long[]> variableReadMap = new LinkedHashMap<String, long[]>();
+
+	@Override
+	public synchronized void conversionStarted(String location) {
+		this.location = location;
+		this.startTime = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+	}
+
+	@Override
+	public synchronized void phaseFinished(String location, ConversionPhase phase, long elapsedNanos) {
+		Long phaseNanos = phaseNanosMap.get(phase);
+		phaseNanosMap.put(phase, null == phaseNanos ? elapsedNanos : phaseNanos + elapsedNanos);
+	}
+
+	@Override
+	public synchronized void variableRead(String location, String variableName, long bytes, long elapsedNanos) {
+
+		long[] variableRead = variableReadMap.get(variableName);
+		if (null == variableRead){
+			variableRead = new long[2];
+			variableReadMap.put(variableName, variableRead);
+		}
+
+		variableRead[0] += bytes;
+		variableRead[1] += elapsedNanos;
+
+	}
+
+	@Override
+	public synchronized void counted(String location, ConversionCounter counter, long count) {
+		Long total = counterMap.get(counter);
+		counterMap.put(counter, null == total ? count : total + count);
+	}
+
+	@Override
+	public synchronized void conversionFinished(String location, boolean success) {
+		this.success = success;
+		this.elapsedNanos = System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Retrieve the time spent in the given phase.
+	 *
+	 * @param phase the {@link ConversionPhase}
+	 * @return the time in nanoseconds, 0 if the phase wasn't reported.
+	 */
+	public synchronized long getPhaseNanos(ConversionPhase phase) {
+		Long phaseNanos = phaseNanosMap.get(phase);
+		return null == phaseNanos ? 0 : phaseNanos;
+	}
+
+	/**
+	 * Retrieve the count of the given counter.
+	 *
+	 * @param counter the {@link ConversionCounter}
+	 * @return the count, 0 if the counter wasn't reported.
+	 */
+	public synchronized long getCount(ConversionCounter counter) {
+		Long count = counterMap.get(counter);
+		return null == count ? 0 : count;
+	}
+
+	/**
+	 * Retrieve the total bytes read from the NetCDF file.
+	 *
+	 * @return the bytes read
+	 */
+	public synchronized long getBytesRead() {
+
+		long bytesRead = 0;
+		for (long[] variableRead : variableReadMap.values()){
+			bytesRead += variableRead[0];
+		}
+
+		return bytesRead;
+	}
+
+	public synchronized String getLocation() {
+		return location;
+	}
+
+	/**
+	 * Write the metrics as a json run report.
+	 *
+	 * @param writer the {@link Writer}, not closed
+	 * @throws IOException
+	 */
+	public synchronized void writeJson(Writer writer) throws IOException {
+
+		writer.write("{\n");
+		writer.write("  \"location\": " + quote(location) + ",\n");
+		writer.write("  \"startTime\": " + quote(KmlManager.format(startTime, PlacemarkBalloonRenderer.KML_TIME_PATTERN) + "Z") + ",\n");
+		writer.write("  \"success\": " + success + ",\n");
+		writer.write("  \"elapsedMillis\": " + toMillis(elapsedNanos) + ",\n");
+
+		writer.write("  \"phases\": {");
+		String separator = "\n";
+		for (Map.Entry<ConversionPhase, Long> phaseNanos : phaseNanosMap.entrySet()){
+			writer.write(separator + "    " + quote(phaseNanos.getKey().name()) + ": " + toMillis(phaseNanos.getValue()));
+			separator = ",\n";
+		}
+		writer.write("\n  },\n");
+
+		writer.write("  \"counters\": {");
+		separator = "\n";
+		for (Map.Entry<ConversionCounter, Long> count : counterMap.entrySet()){
+			writer.write(separator + "    " + quote(count.getKey().name()) + ": " + count.getValue());
+			separator = ",\n";
+		}
+		writer.write("\n  },\n");
+
+		writer.write("  \"bytesRead\": " + getBytesRead() + ",\n");
+		writer.write("  \"variableReads\": [");
+		separator = "\n";
+		for (Map.Entry<String, long[]> variableRead : variableReadMap.entrySet()){
+			writer.write(separator + "    {\"variable\": " + quote(variableRead.getKey()) + ", \"bytes\": " + variableRead.getValue()[0]
+					+ ", \"millis\": " + toMillis(variableRead.getValue()[1]) + "}");
+			separator = ",\n";
+		}
+		writer.write("\n  ]\n");
+		writer.write("}\n");
+
+	}
+
+	private static String toMillis(long nanos) {
+		return String.valueOf(Math.round(nanos / NANOS_PER_MILLI * 1000) / 1000.0);
+	}
+
+	private static String quote(String value) {
+		return null == value ? "null" : "\"" + StringEscapeUtils.escapeJava(value) + "\"";
+	}
+
+	@Override
+	public String toString() {
+
+		StringWriter writer = new StringWriter();
+		try {
+			writeJson(writer);
+		} catch (IOException e) {
+			return "ConversionMetrics [location=" + location + "]";
+		}
+
+		return writer.toString();
+	}
+
+}
@@ -0,0 +1,43 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+/**
+ * The phases of a conversion timed by the {@link ConversionListener}.
+ *
+ */
+public enum ConversionPhase {
+
+	/**
+	 * OPEN the NetCDF dataset open, only when the read session opened it (see {@link NetcdfReadSession#open(String)}).
+	 */
+	OPEN,
+
+	/**
+	 * CHECK_FILE the check of the NetCDF file specifications.
+	 */
+	CHECK_FILE,
+
+	/**
+	 * ANCILLARY_DISCOVERY the discovery of the ancillary variables and the compilation of the position quality controls.
+	 */
+	ANCILLARY_DISCOVERY,
+
+	/**
+	 * ROW_LOOP the creation of the placemarks from the records, without the time spent in the placemark sink.
+	 */
+	ROW_LOOP,
+
+	/**
+	 * MARSHALLING the time spent in the placemark sink, the serialization of the placemarks when the kmz is streamed,
+	 * without the compression.
+	 */
+	MARSHALLING,
+
+	/**
+	 * COMPRESSION the compression of the kml into the kmz, including the write of the compressed bytes.
+	 */
+	COMPRESSION
+
+}
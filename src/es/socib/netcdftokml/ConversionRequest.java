@@ -0,0 +1,366 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ucar.nc2.units.DateUnit;
+
+/**
+ * A conversion requested to the {@link ConversionServer}: the NetCDF source and the {@link AdditionalInfo} and
+ * {@link KmlStyleInfo} parameters, parsed from the query string of the request.
+ *
+ * The parameters are:
+ * 		source the NetCDF file path or opendap link, mandatory. It must be inside a data directory or start with a
+ * 		remote prefix allowed by the server, see {@link #checkSource(List, List)}.
+ * 		title, dateFormat, lineColor, template, homeIcon, regularIcon, endIcon and balloonTemplate the {@link KmlStyleInfo}.
+ * 		The template is a file name in the template directory of the server, not a path nor a link.
+ * 		threddsLink, displayAncillaryVariables, displayLevel, lineTolerance and lodTiers the {@link AdditionalInfo}.
+ * 		deploymentTime, deploymentLon and deploymentLat the {@link DeploymentInfo}, all or none.
+ * 		acceptQcFlags the quality control flags accepted besides the good data, comma separated (see {@link QcFlagPolicy}).
+ * 		compressionLevel and compressionWorkers the {@link KmzCompression}, the level 0 is the stored mode.
+ * 		startTime and endTime (ISO 8601) or lastDays, and bbox (west,south,east,north) the {@link TrajectorySubset}.
+ *
+ */
+public class ConversionRequest {
+
+	public static final String SOURCE = "source";
+
+	private static final String ENCODING = "UTF-8";
+
+	private String source;
+
+	/**
+	 * parameterMap Map with the parameter name as key and the value as value, sorted by name. Without the source.
+	 */
+	private Map<String, String> parameterMap = new TreeMap<String, String>();
+
+	private ConversionRequest() {
+	}
+
+	/**
+	 * Parse the given query string.
+	 *
+	 * @param query the url encoded query string, can be null.
+	 * @return the {@link ConversionRequest}
+	 * @throws KmlManagerException if the source isn't set or a parameter is repeated.
+	 */
+	public static ConversionRequest parse(String query) throws KmlManagerException {
+
+		ConversionRequest conversionRequest = new ConversionRequest();
+
+		if (null != query){
+			for (String parameter : query.split("&")){
+
+				if ("".equals(parameter)){
+					continue;
+				}
+
+				int separatorIdx = parameter.indexOf('=');
+				String name = decode(separatorIdx < 0 ? parameter : parameter.substring(0, separatorIdx));
+				String value = separatorIdx < 0 ? "" : decode(parameter.substring(separatorIdx + 1));
+
+				if (SOURCE.equals(name)){
+					conversionRequest.source = value;
+				} else if (null != conversionRequest.parameterMap.put(name, value)){
+					throw new KmlManagerException("The parameter " + name + " is repeated");
+				}
+
+			}
+		}
+
+		if (null == conversionRequest.source || "".equals(conversionRequest.source)){
+			throw new KmlManagerException("The parameter " + SOURCE + " is mandatory");
+		}
+
+		return conversionRequest;
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Check that the source is allowed: a local file inside one of the given data directories, or a remote link
+	 * starting with one of the given prefixes. The links with dot segments aren't allowed.
+	 *
+	 * @param dataDirectoryList the directories of the local sources allowed
+	 * @param remotePrefixList the prefixes of the remote sources allowed, each one ending with /
+	 * @throws KmlManagerException if the source isn't allowed
+	 */
+	public void checkSource(List<File> dataDirectoryList, List<String> remotePrefixList) throws KmlManagerException {
+
+		if (isRemoteSource()){
+
+			URI uri;
+			try {
+				uri = new URI(source);
+			} catch (URISyntaxException e) {
+				throw new KmlManagerException("The source " + source + " isn't a valid link");
+			}
+
+			if (null == uri.getRawUserInfo() && null != uri.getRawPath() && !uri.getRawPath().contains("..") && !uri.getRawPath().contains("%")){
+				for (String remotePrefix : remotePrefixList){
+					if (source.startsWith(remotePrefix)){
+						return;
+					}
+				}
+			}
+
+		} else {
+
+			for (File dataDirectory : dataDirectoryList){
+				if (isInsideDirectory(new File(source), dataDirectory)){
+					return;
+				}
+			}
+
+		}
+
+		throw new KmlManagerException("The source " + source + " isn't allowed");
+	}
+
+	/**
+	 * If the given file is inside the given directory, once the links and the dot segments are resolved.
+	 *
+	 * @param file the file
+	 * @param directory the directory
+	 * @return true if the file is inside the directory, otherwise false.
+	 */
+	private static boolean isInsideDirectory(File file, File directory) {
+		try {
+			String directoryPath = directory.getCanonicalPath() + File.separator;
+			return file.getCanonicalPath().startsWith(directoryPath);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Create a new {@link AdditionalInfo} from the parameters.
+	 *
+	 * @param templateDirectory the directory of the balloon templates, null if the template parameter isn't allowed.
+	 * @return the {@link AdditionalInfo}
+	 * @throws KmlManagerException if a parameter value isn't valid.
+	 */
+	public AdditionalInfo createAdditionalInfo(File templateDirectory) throws KmlManagerException {
+
+		DeploymentInfo deploymentInfo = null;
+		if (parameterMap.containsKey("deploymentTime") || parameterMap.containsKey("deploymentLon") || parameterMap.containsKey("deploymentLat")){
+			try {
+				deploymentInfo = DeploymentInfo.createDeploymentInfo(parameterMap.get("deploymentTime"), parameterMap.get("deploymentLon"), parameterMap.get("deploymentLat"));
+			} catch (NullPointerException e) {
+				throw new KmlManagerException("The parameters deploymentTime, deploymentLon and deploymentLat must be set together");
+			}
+		}
+
+		KmlStyleInfo kmlStyleInfo = new KmlStyleInfo(parameterMap.get("title"), parameterMap.get("dateFormat"), parameterMap.get("lineColor"),
+				getTemplatePath(templateDirectory), parameterMap.get("homeIcon"), parameterMap.get("regularIcon"), parameterMap.get("endIcon"));
+		kmlStyleInfo.setBalloonTemplate(getBoolean("balloonTemplate"));
+
+		AdditionalInfo additionalInfo = new AdditionalInfo(deploymentInfo, kmlStyleInfo, parameterMap.get("threddsLink"), getBoolean("displayAncillaryVariables"));
+
+		try {
+
+			if (parameterMap.containsKey("displayLevel")){
+				additionalInfo.setDisplayLevel(Integer.parseInt(parameterMap.get("displayLevel")));
+			}
+			if (parameterMap.containsKey("lineTolerance")){
+				additionalInfo.setLineSimplificationTolerance(Double.parseDouble(parameterMap.get("lineTolerance")));
+			}
+			if (parameterMap.containsKey("lodTiers")){
+				additionalInfo.setLevelOfDetailTierCount(Integer.parseInt(parameterMap.get("lodTiers")));
+			}
+			if (parameterMap.containsKey("compressionLevel") || parameterMap.containsKey("compressionWorkers")){
+				KmzCompression kmzCompression = new KmzCompression();
+				if (parameterMap.containsKey("compressionLevel")){
+					kmzCompression.setLevel(Integer.parseInt(parameterMap.get("compressionLevel")));
+				}
+				if (parameterMap.containsKey("compressionWorkers")){
+					kmzCompression.setWorkerCount(Integer.parseInt(parameterMap.get("compressionWorkers")));
+				}
+				additionalInfo.setKmzCompression(kmzCompression);
+			}
+			if (parameterMap.containsKey("acceptQcFlags")){
+				QcFlagPolicy qcFlagPolicy = new QcFlagPolicy();
+				for (String flag : parameterMap.get("acceptQcFlags").split(",")){
+					qcFlagPolicy.acceptFlag(Integer.parseInt(flag.trim()));
+				}
+				additionalInfo.setQcFlagPolicy(qcFlagPolicy);
+			}
+			if (parameterMap.containsKey("startTime") || parameterMap.containsKey("endTime") || parameterMap.containsKey("lastDays")
+					|| parameterMap.containsKey("bbox")){
+				additionalInfo.setTrajectorySubset(createTrajectorySubset());
+			}
+
+		} catch (IllegalArgumentException e) {
+			throw new KmlManagerException("Invalid parameter value: " + e.getMessage());
+		}
+
+		return additionalInfo;
+	}
+
+	/**
+	 * Create the {@link TrajectorySubset} from the time window and bounding box parameters.
+	 * 
+	 * @return the {@link TrajectorySubset}
+	 * @throws KmlManagerException if a time can't be parsed or the bounding box doesn't have four values.
+	 */
+	private TrajectorySubset createTrajectorySubset() throws KmlManagerException {
+
+		TrajectorySubset trajectorySubset;
+		if (parameterMap.containsKey("lastDays")){
+			trajectorySubset = TrajectorySubset.createLastDays(Integer.parseInt(parameterMap.get("lastDays")));
+		} else {
+			trajectorySubset = TrajectorySubset.createTimeWindow(getDate("startTime"), getDate("endTime"));
+		}
+
+		if (parameterMap.containsKey("bbox")){
+			String[] bbox = parameterMap.get("bbox").split(",");
+			if (4 != bbox.length){
+				throw new KmlManagerException("The parameter bbox must be west,south,east,north");
+			}
+			trajectorySubset.setBoundingBox(Double.parseDouble(bbox[3].trim()), Double.parseDouble(bbox[1].trim()),
+					Double.parseDouble(bbox[2].trim()), Double.parseDouble(bbox[0].trim()));
+		}
+
+		return trajectorySubset;
+	}
+
+	/**
+	 * Resolve the template parameter in the given template directory.
+	 *
+	 * @param templateDirectory the directory of the balloon templates, null if the template parameter isn't allowed.
+	 * @return the template path, null if the template parameter isn't set.
+	 * @throws KmlManagerException if the template isn't a file of the template directory
+	 */
+	private String getTemplatePath(File templateDirectory) throws KmlManagerException {
+
+		String template = parameterMap.get("template");
+		if (null == template){
+			return null;
+		}
+
+		if (null == templateDirectory){
+			throw new KmlManagerException("The parameter template isn't allowed");
+		}
+
+		File templateFile = new File(templateDirectory, template);
+		if (!isInsideDirectory(templateFile, templateDirectory) || !templateFile.isFile()){
+			throw new KmlManagerException("The template " + template + " isn't in the template directory");
+		}
+
+		return templateFile.getPath();
+	}
+
+	private Date getDate(String name) throws KmlManagerException {
+
+		if (!parameterMap.containsKey(name)){
+			return null;
+		}
+
+		Date date = DateUnit.getStandardOrISO(parameterMap.get(name));
+		if (null == date){
+			throw new KmlManagerException("The parameter " + name + " " + parameterMap.get(name) + " isn't an ISO 8601 time");
+		}
+
+		return date;
+	}
+
+	private boolean getBoolean(String name) {
+		return Boolean.parseBoolean(parameterMap.get(name));
+	}
+
+	/**
+	 * If the source is a remote opendap link, otherwise it is a local file.
+	 *
+	 * @return true if the source is remote
+	 */
+	public boolean isRemoteSource() {
+		return source.contains("://");
+	}
+
+	/**
+	 * Retrieve the identity of the source content. For a local file the path, the last modification time and the
+	 * size, so a file rewritten gets a new identity. For a remote source only the link, the remote content can't be
+	 * checked cheaply.
+	 *
+	 * @return the source identity
+	 * @throws KmlManagerException if the local file doesn't exist.
+	 */
+	public String getSourceIdentity() throws KmlManagerException {
+
+		if (isRemoteSource()){
+			return source;
+		}
+
+		File file = new File(source);
+		if (!file.isFile()){
+			throw new KmlManagerException("The NetCDF file " + source + " doesn't exist");
+		}
+
+		return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+	}
+
+	/**
+	 * Retrieve the cache key of the request, the source identity, the sorted parameters and the hash of the
+	 * balloon template contents, so a template rewritten isn't served from the cache.
+	 *
+	 * @param templateDirectory the directory of the balloon templates, null if the template parameter isn't allowed.
+	 * @return the cache key
+	 * @throws KmlManagerException if the local file doesn't exist or the template can't be read.
+	 */
+	public String getCacheKey(File templateDirectory) throws KmlManagerException {
+
+		StringBuilder cacheKey = new StringBuilder(getSourceIdentity());
+		for (Map.Entry<String, String> parameter : parameterMap.entrySet()){
+			cacheKey.append('\n').append(parameter.getKey()).append('=').append(parameter.getValue());
+		}
+
+		String templatePath;
+		try {
+			templatePath = getTemplatePath(templateDirectory);
+		} catch (KmlManagerException e) {
+			// Not cached, the template parameter is rejected by createAdditionalInfo
+			templatePath = null;
+		}
+
+		if (null != templatePath){
+			try {
+				cacheKey.append("\ntemplateHash=").append(BalloonTemplate.getTemplateHash(templatePath));
+			} catch (IOException e) {
+				throw new KmlManagerException("The template " + parameterMap.get("template") + " can't be read: " + e.getMessage());
+			}
+		}
+
+		return cacheKey.toString();
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public Map<String, String> getParameterMap() {
+		return parameterMap;
+	}
+
+	@Override
+	public String toString() {
+		return "ConversionRequest [source=" + source + ", parameterMap=" + parameterMap + "]";
+	}
+
+}
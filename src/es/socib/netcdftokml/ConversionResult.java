@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+/**
+ * Result of the conversion of one NetCDF file to kmz.
+ *
+ */
+public class ConversionResult {
+
+	/**
+	 * netCdfFileLocation the NetCDF file location, can be a local file or opendap link.
+	 */
+	private String netCdfFileLocation;
+
+	/**
+	 * outputFileName the kmz file name.
+	 */
+	private String outputFileName;
+
+	private boolean success;
+
+	/**
+	 * message the error message if the conversion failed, null otherwise.
+	 */
+	private String message;
+
+	/**
+	 * elapsedMillis the conversion wall time in milliseconds.
+	 */
+	private long elapsedMillis;
+
+	/**
+	 * cached true if the kmz was copied from the {@link KmzOutputCache}, without converting the NetCDF file.
+	 */
+	private boolean cached;
+
+	/**
+	 * Construct a new {@link ConversionResult}.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location.
+	 * @param outputFileName the kmz file name.
+	 * @param success true if the conversion succeeded.
+	 * @param message the error message if the conversion failed, null otherwise.
+	 * @param elapsedMillis the conversion wall time in milliseconds.
+	 */
+	public ConversionResult(String netCdfFileLocation, String outputFileName, boolean success, String message, long elapsedMillis) {
+		this.netCdfFileLocation = netCdfFileLocation;
+		this.outputFileName = outputFileName;
+		this.success = success;
+		this.message = message;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Construct a new successful {@link ConversionResult} of a kmz copied from the {@link KmzOutputCache}.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location.
+	 * @param outputFileName the kmz file name.
+	 * @param elapsedMillis the wall time in milliseconds.
+	 * @return the {@link ConversionResult}
+	 */
+	public static ConversionResult createCachedResult(String netCdfFileLocation, String outputFileName, long elapsedMillis) {
+		ConversionResult conversionResult = new ConversionResult(netCdfFileLocation, outputFileName, true, null, elapsedMillis);
+		conversionResult.cached = true;
+		return conversionResult;
+	}
+
+	public String getNetCdfFileLocation() {
+		return netCdfFileLocation;
+	}
+
+	public String getOutputFileName() {
+		return outputFileName;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public boolean isCached() {
+		return cached;
+	}
+
+	@Override
+	public String toString() {
+		return "ConversionResult [netCdfFileLocation=" + netCdfFileLocation
+				+ ", outputFileName=" + outputFileName + ", success=" + success
+				+ ", message=" + message + ", elapsedMillis=" + elapsedMillis
+				+ ", cached=" + cached + "]";
+	}
+
+}
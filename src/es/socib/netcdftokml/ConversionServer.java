@@ -0,0 +1,462 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running conversion service, over the HTTP server of the JDK. It avoids the virtual machine and JAXB
+ * start up of a conversion per process.
+ *
+ * GET /kmz?source=... converts the NetCDF file or opendap link to kmz with the parameters of the {@link ConversionRequest}
+ * and streams back the kmz. Only the sources inside the data directories or starting with the remote prefixes of the
+ * server are converted, and the balloon templates are only read from its template directory. The responses are cached in a {@link KmzResponseCache}, so the repeated refreshes of the
+ * same deployment are served from memory. GET /status returns the cache and conversion statistics as plain text.
+ *
+ * The kmz is buffered until the first megabyte is written, so the conversions that fail early get an error
+ * status. The longer ones are streamed with chunked encoding and, if they fail, the connection is closed without
+ * completing the response.
+ *
+ */
+public class ConversionServer {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(ConversionServer.class.getSimpleName());
+
+	public static final String KMZ_PATH = "/kmz";
+
+	public static final String STATUS_PATH = "/status";
+
+	private static final String KMZ_CONTENT_TYPE = "application/vnd.google-earth.kmz";
+
+	private static final String NETCDF_EXTENSION = ".nc";
+
+	/**
+	 * COMMIT_THRESHOLD the bytes buffered before the response headers are sent and the kmz is streamed.
+	 */
+	private static final int COMMIT_THRESHOLD = 1024 * 1024;
+
+	private static final long MEGABYTE = 1024 * 1024;
+
+	private HttpServer httpServer;
+
+	private ExecutorService executor;
+
+	private KmzResponseCache kmzResponseCache;
+
+	/**
+	 * dataDirectoryList the directories of the local sources allowed.
+	 */
+	private List<File> dataDirectoryList = new ArrayList<File>();
+
+	/**
+	 * remotePrefixList the prefixes of the remote sources allowed.
+	 */
+	private List<String> remotePrefixList = new ArrayList<String>();
+
+	/**
+	 * templateDirectory the directory of the balloon templates, null if the template parameter isn't allowed.
+	 */
+	private File templateDirectory;
+
+	/**
+	 * Construct a new {@link ConversionServer}, not started.
+	 *
+	 * @param port the port listened
+	 * @param workerCount the number of requests served concurrently. If less than 1, the number of available processors is used.
+	 * @param kmzResponseCache the {@link KmzResponseCache}
+	 * @throws IOException if the port can't be bound
+	 */
+	public ConversionServer(int port, int workerCount, KmzResponseCache kmzResponseCache) throws IOException {
+
+		this.kmzResponseCache = kmzResponseCache;
+		this.executor = Executors.newFixedThreadPool(workerCount < 1 ? Runtime.getRuntime().availableProcessors() : workerCount);
+
+		httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		httpServer.setExecutor(executor);
+		httpServer.createContext(KMZ_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleKmz(exchange);
+			}
+		});
+		httpServer.createContext(STATUS_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleStatus(exchange);
+			}
+		});
+
+	}
+
+	/**
+	 * Allow the local sources inside the given directory.
+	 *
+	 * @param dataDirectory the data directory
+	 */
+	public void addDataDirectory(File dataDirectory) {
+		dataDirectoryList.add(dataDirectory);
+	}
+
+	/**
+	 * Allow the remote sources starting with the given prefix, for example the opendap root of a thredds server.
+	 *
+	 * @param remotePrefix the prefix, with scheme and host. A / is appended if it doesn't end with /.
+	 */
+	public void addRemotePrefix(String remotePrefix) {
+		remotePrefixList.add(remotePrefix.endsWith("/") ? remotePrefix : remotePrefix + "/");
+	}
+
+	public File getTemplateDirectory() {
+		return templateDirectory;
+	}
+
+	/**
+	 * Set the directory of the balloon templates that the requests can name.
+	 *
+	 * @param templateDirectory the template directory, null if the template parameter isn't allowed.
+	 */
+	public void setTemplateDirectory(File templateDirectory) {
+		this.templateDirectory = templateDirectory;
+	}
+
+	public void start() {
+		httpServer.start();
+		logger.info("Conversion server listening on " + httpServer.getAddress());
+	}
+
+	/**
+	 * Stop the server, waiting at most the given delay for the requests in progress.
+	 *
+	 * @param delaySeconds the delay in seconds
+	 */
+	public void stop(int delaySeconds) {
+		httpServer.stop(delaySeconds);
+		executor.shutdown();
+	}
+
+	/**
+	 * Serve a kmz request, from the cache or converting the source.
+	 */
+	private void handleKmz(HttpExchange exchange) throws IOException {
+
+		try {
+
+			if (!"GET".equals(exchange.getRequestMethod())){
+				sendText(exchange, 405, "Only GET is allowed");
+				return;
+			}
+
+			ConversionRequest conversionRequest;
+			try {
+				conversionRequest = ConversionRequest.parse(exchange.getRequestURI().getRawQuery());
+			} catch (KmlManagerException e) {
+				sendText(exchange, 400, e.getMessage());
+				return;
+			}
+
+			try {
+				conversionRequest.checkSource(dataDirectoryList, remotePrefixList);
+			} catch (KmlManagerException e) {
+				sendText(exchange, 403, e.getMessage());
+				return;
+			}
+
+			String cacheKey;
+			try {
+				cacheKey = conversionRequest.getCacheKey(templateDirectory);
+			} catch (KmlManagerException e) {
+				sendText(exchange, 404, e.getMessage());
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", KMZ_CONTENT_TYPE);
+			exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + getKmzFileName(conversionRequest.getSource()) + "\"");
+
+			byte[] kmz = kmzResponseCache.get(cacheKey);
+			if (null != kmz){
+				exchange.getResponseHeaders().set("X-Cache", "HIT");
+				exchange.sendResponseHeaders(200, kmz.length);
+				exchange.getResponseBody().write(kmz);
+				return;
+			}
+
+			exchange.getResponseHeaders().set("X-Cache", "MISS");
+			convert(exchange, conversionRequest, cacheKey);
+
+		} finally {
+			exchange.close();
+		}
+
+	}
+
+	/**
+	 * Convert the source of the request, stream the kmz and cache it.
+	 */
+	private void convert(HttpExchange exchange, ConversionRequest conversionRequest, String cacheKey) throws IOException {
+
+		long startMillis = System.currentTimeMillis();
+		ResponseOutputStream responseOutputStream = new ResponseOutputStream(exchange, kmzResponseCache.getMaxBytes());
+
+		try {
+
+			AdditionalInfo additionalInfo = conversionRequest.createAdditionalInfo(templateDirectory);
+			KmlManager kmlManager = openKmlManager(conversionRequest.getSource(), additionalInfo);
+			try {
+				kmlManager.writeKmz(responseOutputStream);
+			} finally {
+				kmlManager.close();
+			}
+
+			byte[] kmz = responseOutputStream.finish();
+			if (null != kmz){
+				kmzResponseCache.put(cacheKey, kmz, conversionRequest.isRemoteSource());
+			}
+
+			logger.info("Converted " + conversionRequest.getSource() + " in " + (System.currentTimeMillis() - startMillis) + " ms");
+
+		} catch (Exception e) {
+
+			logger.error("Converting " + conversionRequest + " " + e.getMessage());
+			if (!responseOutputStream.isCommitted()){
+				sendText(exchange, e instanceof KmlManagerException ? 422 : 500, "The conversion failed: " + e.getMessage());
+			}
+
+		}
+
+	}
+
+	/**
+	 * Open the NetCDF source and build its {@link KmlManager}. If the {@link KmlManager} can't be built
+	 * the NetCDF source is closed.
+	 */
+	private static KmlManager openKmlManager(String source, AdditionalInfo additionalInfo) throws IOException {
+
+		NetcdfReadSession readSession = NetcdfReadSession.open(source);
+
+		try {
+			return new KmlManager(readSession, additionalInfo, null);
+		} catch (IOException e) {
+			readSession.close();
+			throw e;
+		} catch (RuntimeException e) {
+			readSession.close();
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Serve the status request.
+	 */
+	private void handleStatus(HttpExchange exchange) throws IOException {
+
+		try {
+
+			ConversionStatistics conversionStatistics = ConversionStatistics.getInstance();
+			StringBuilder status = new StringBuilder();
+			status.append(kmzResponseCache).append('\n');
+			status.append("conversions=").append(conversionStatistics.getConversionCount());
+			status.append(" failed=").append(conversionStatistics.getFailedConversionCount());
+			status.append(" active=").append(conversionStatistics.getActiveConversionCount()).append('\n');
+			status.append("lastConversion=").append(conversionStatistics.getLastConversionLocation());
+			status.append(" (").append(conversionStatistics.getLastConversionMillis()).append(" ms)\n");
+
+			sendText(exchange, 200, status.toString());
+
+		} finally {
+			exchange.close();
+		}
+
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+
+		byte[] body = (text + "\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.getResponseHeaders().remove("Content-Disposition");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+
+	}
+
+	private static String getKmzFileName(String source) {
+
+		String baseName = source.substring(source.lastIndexOf('/') + 1);
+		if (baseName.endsWith(NETCDF_EXTENSION)){
+			baseName = baseName.substring(0, baseName.length() - NETCDF_EXTENSION.length());
+		}
+
+		return baseName.replaceAll("[^A-Za-z0-9_.-]", "_") + ".kmz";
+	}
+
+	/**
+	 * {@link OutputStream} of the kmz response. The kmz is buffered until the commit threshold, then the response
+	 * headers are sent and the kmz is streamed. The kmz is also captured for the cache up to the capture limit.
+	 */
+	private static class ResponseOutputStream extends OutputStream {
+
+		private HttpExchange exchange;
+
+		private long captureLimit;
+
+		/**
+		 * buffer the kmz written, null if it exceeded the capture limit once committed.
+		 */
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		/**
+		 * body the response body, null until committed.
+		 */
+		private OutputStream body;
+
+		public ResponseOutputStream(HttpExchange exchange, long captureLimit) {
+			this.exchange = exchange;
+			this.captureLimit = captureLimit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			if (null != buffer && (null == body || buffer.size() + len <= captureLimit)){
+				buffer.write(b, off, len);
+			} else {
+				buffer = null;
+			}
+
+			if (null != body){
+				body.write(b, off, len);
+			} else if (buffer.size() > COMMIT_THRESHOLD){
+				// Chunked response
+				exchange.sendResponseHeaders(200, 0);
+				body = exchange.getResponseBody();
+				buffer.writeTo(body);
+				if (buffer.size() > captureLimit){
+					buffer = null;
+				}
+			}
+
+		}
+
+		/**
+		 * Complete the response.
+		 *
+		 * @return the kmz captured, null if it exceeded the capture limit
+		 * @throws IOException
+		 */
+		public byte[] finish() throws IOException {
+
+			if (null == body){
+				byte[] kmz = buffer.toByteArray();
+				exchange.sendResponseHeaders(200, kmz.length);
+				body = exchange.getResponseBody();
+				body.write(kmz);
+				return kmz;
+			}
+
+			body.flush();
+
+			return null == buffer ? null : buffer.toByteArray();
+		}
+
+		public boolean isCommitted() {
+			return null != body;
+		}
+
+	}
+
+	/**
+	 * Conversion service from the command line.
+	 *
+	 * Usage: ConversionServer [-p port] [-t threads] [-e cacheEntries] [-m cacheMegabytes] [-r remoteTimeToLiveSeconds] [-d dataDirectory]... [-u remotePrefix]... [-T templateDirectory]
+	 *
+	 * By default the port is 8080, the threads the available processors, the cache 64 entries and 256 megabytes and
+	 * the cached kmz of remote sources expire after 300 seconds. The options -d and -u can be repeated, at least one
+	 * data directory or remote prefix is required. Without template directory the template parameter isn't allowed.
+	 *
+	 * @param args the command line arguments.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int port = 8080;
+		int workerCount = 0;
+		int cacheEntries = 64;
+		long cacheMegabytes = 256;
+		long remoteTimeToLiveSeconds = 300;
+		List<File> dataDirectoryList = new ArrayList<File>();
+		List<String> remotePrefixList = new ArrayList<String>();
+		File templateDirectory = null;
+
+		for (int argIdx = 0; argIdx < args.length; argIdx += 2){
+
+			if (argIdx + 1 >= args.length){
+				System.err.println("Usage: ConversionServer [-p port] [-t threads] [-e cacheEntries] [-m cacheMegabytes] [-r remoteTimeToLiveSeconds] [-d dataDirectory]... [-u remotePrefix]... [-T templateDirectory]");
+				System.exit(2);
+			}
+
+			String value = args[argIdx + 1];
+			if ("-p".equals(args[argIdx])){
+				port = Integer.parseInt(value);
+			} else if ("-t".equals(args[argIdx])){
+				workerCount = Integer.parseInt(value);
+			} else if ("-e".equals(args[argIdx])){
+				cacheEntries = Integer.parseInt(value);
+			} else if ("-m".equals(args[argIdx])){
+				cacheMegabytes = Long.parseLong(value);
+			} else if ("-r".equals(args[argIdx])){
+				remoteTimeToLiveSeconds = Long.parseLong(value);
+			} else if ("-d".equals(args[argIdx])){
+				dataDirectoryList.add(new File(value));
+			} else if ("-u".equals(args[argIdx])){
+				remotePrefixList.add(value);
+			} else if ("-T".equals(args[argIdx])){
+				templateDirectory = new File(value);
+			} else {
+				System.err.println("Unknown option " + args[argIdx]);
+				System.exit(2);
+			}
+
+		}
+
+		if (dataDirectoryList.isEmpty() && remotePrefixList.isEmpty()){
+			System.err.println("At least one data directory (-d) or remote prefix (-u) is required");
+			System.exit(2);
+		}
+
+		KmzResponseCache kmzResponseCache = new KmzResponseCache(cacheEntries, cacheMegabytes * MEGABYTE, remoteTimeToLiveSeconds * 1000);
+		ConversionServer conversionServer = new ConversionServer(port, workerCount, kmzResponseCache);
+		for (File dataDirectory : dataDirectoryList){
+			conversionServer.addDataDirectory(dataDirectory);
+		}
+		for (String remotePrefix : remotePrefixList){
+			conversionServer.addRemotePrefix(remotePrefix);
+		}
+		conversionServer.setTemplateDirectory(templateDirectory);
+		conversionServer.start();
+
+	}
+
+}
@@ -0,0 +1,241 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link ConversionListener} that aggregates the metrics of all the conversions of the virtual machine and
+ * exposes them as the JMX MBean {@value #OBJECT_NAME}. It is the default listener of the {@link KmlManager}.
+ *
+ */
+public class ConversionStatistics implements ConversionListener, ConversionStatisticsMBean {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(ConversionStatistics.class.getSimpleName());
+
+	public static final String OBJECT_NAME = "es.socib.netcdftokml:type=ConversionStatistics";
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	private static ConversionStatistics instance;
+
+	private AtomicLong conversionCount = new AtomicLong();
+
+	private AtomicLong failedConversionCount = new AtomicLong();
+
+	private AtomicLong variableReadNanos = new AtomicLong();
+
+	private AtomicLong bytesRead = new AtomicLong();
+
+	private AtomicLongArray phaseNanos = new AtomicLongArray(ConversionPhase.values().length);
+
+	private AtomicLongArray counters = new AtomicLongArray(ConversionCounter.values().length);
+
+	/**
+	 * startNanosMap Map with the location of the conversions in progress as key and their start time as value.
+	 */
+	private Map<String, Long> startNanosMap = new ConcurrentHashMap<String, Long>();
+
+	private volatile String lastConversionLocation;
+
+	private volatile long lastConversionMillis;
+
+	/**
+	 * Retrieve the shared instance, registered in the platform MBean server the first time. If the MBean can't be
+	 * registered the statistics are collected anyway.
+	 *
+	 * @return the {@link ConversionStatistics}
+	 */
+	public static synchronized ConversionStatistics getInstance() {
+
+		if (null == instance){
+
+			instance = new ConversionStatistics();
+
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+			} catch (JMException e) {
+				logger.warn("Impossible register the MBean " + OBJECT_NAME + ": " + e.getMessage());
+			}
+
+		}
+
+		return instance;
+	}
+
+	@Override
+	public void conversionStarted(String location) {
+		startNanosMap.put(location, System.nanoTime());
+	}
+
+	@Override
+	public void phaseFinished(String location, ConversionPhase phase, long elapsedNanos) {
+		phaseNanos.addAndGet(phase.ordinal(), elapsedNanos);
+	}
+
+	@Override
+	public void variableRead(String location, String variableName, long bytes, long elapsedNanos) {
+		variableReadNanos.addAndGet(elapsedNanos);
+		bytesRead.addAndGet(bytes);
+	}
+
+	@Override
+	public void counted(String location, ConversionCounter counter, long count) {
+		counters.addAndGet(counter.ordinal(), count);
+	}
+
+	@Override
+	public void conversionFinished(String location, boolean success) {
+
+		conversionCount.incrementAndGet();
+		if (!success){
+			failedConversionCount.incrementAndGet();
+		}
+
+		Long startNanos = startNanosMap.remove(location);
+		if (null != startNanos){
+			lastConversionLocation = location;
+			lastConversionMillis = (System.nanoTime() - startNanos) / NANOS_PER_MILLI;
+		}
+
+	}
+
+	@Override
+	public long getConversionCount() {
+		return conversionCount.get();
+	}
+
+	@Override
+	public long getFailedConversionCount() {
+		return failedConversionCount.get();
+	}
+
+	@Override
+	public long getActiveConversionCount() {
+		return startNanosMap.size();
+	}
+
+	@Override
+	public String getLastConversionLocation() {
+		return lastConversionLocation;
+	}
+
+	@Override
+	public long getLastConversionMillis() {
+		return lastConversionMillis;
+	}
+
+	@Override
+	public long getOpenMillis() {
+		return getPhaseMillis(ConversionPhase.OPEN);
+	}
+
+	@Override
+	public long getCheckFileMillis() {
+		return getPhaseMillis(ConversionPhase.CHECK_FILE);
+	}
+
+	@Override
+	public long getAncillaryDiscoveryMillis() {
+		return getPhaseMillis(ConversionPhase.ANCILLARY_DISCOVERY);
+	}
+
+	@Override
+	public long getRowLoopMillis() {
+		return getPhaseMillis(ConversionPhase.ROW_LOOP);
+	}
+
+	@Override
+	public long getMarshallingMillis() {
+		return getPhaseMillis(ConversionPhase.MARSHALLING);
+	}
+
+	@Override
+	public long getCompressionMillis() {
+		return getPhaseMillis(ConversionPhase.COMPRESSION);
+	}
+
+	@Override
+	public long getVariableReadMillis() {
+		return variableReadNanos.get() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getRowCount() {
+		return counters.get(ConversionCounter.ROWS.ordinal());
+	}
+
+	@Override
+	public long getRowsSkippedBadQc() {
+		return counters.get(ConversionCounter.ROWS_SKIPPED_BAD_QC.ordinal());
+	}
+
+	@Override
+	public long getRowsSkippedNaN() {
+		return counters.get(ConversionCounter.ROWS_SKIPPED_NAN.ordinal());
+	}
+
+	@Override
+	public long getPlacemarkCount() {
+		return counters.get(ConversionCounter.PLACEMARKS.ordinal());
+	}
+
+	@Override
+	public long getKmlBytes() {
+		return counters.get(ConversionCounter.KML_BYTES.ordinal());
+	}
+
+	@Override
+	public long getKmzBytes() {
+		return counters.get(ConversionCounter.KMZ_BYTES.ordinal());
+	}
+
+	@Override
+	public long getReadRequests() {
+		return counters.get(ConversionCounter.READ_REQUESTS.ordinal());
+	}
+
+	@Override
+	public long getArrayCacheHits() {
+		return counters.get(ConversionCounter.ARRAY_CACHE_HITS.ordinal());
+	}
+
+	@Override
+	public void reset() {
+
+		conversionCount.set(0);
+		failedConversionCount.set(0);
+		variableReadNanos.set(0);
+		bytesRead.set(0);
+		for (int i = 0; i < phaseNanos.length(); i++){
+			phaseNanos.set(i, 0);
+		}
+		for (int i = 0; i < counters.length(); i++){
+			counters.set(i, 0);
+		}
+
+	}
+
+	private long getPhaseMillis(ConversionPhase phase) {
+		return phaseNanos.get(phase.ordinal()) / NANOS_PER_MILLI;
+	}
+
+}
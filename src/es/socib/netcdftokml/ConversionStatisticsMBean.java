@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+/**
+ * JMX management interface of the {@link ConversionStatistics}. The times and counters are totals since
+ * the start, or the last reset, so the alerts must be defined on their rate.
+ *
+ */
+public interface ConversionStatisticsMBean {
+
+	public long getConversionCount();
+
+	public long getFailedConversionCount();
+
+	public long getActiveConversionCount();
+
+	public String getLastConversionLocation();
+
+	public long getLastConversionMillis();
+
+	public long getOpenMillis();
+
+	public long getCheckFileMillis();
+
+	public long getAncillaryDiscoveryMillis();
+
+	public long getRowLoopMillis();
+
+	public long getMarshallingMillis();
+
+	public long getCompressionMillis();
+
+	public long getVariableReadMillis();
+
+	public long getBytesRead();
+
+	public long getRowCount();
+
+	public long getRowsSkippedBadQc();
+
+	public long getRowsSkippedNaN();
+
+	public long getPlacemarkCount();
+
+	public long getKmlBytes();
+
+	public long getKmzBytes();
+
+	public long getReadRequests();
+
+	public long getArrayCacheHits();
+
+	/**
+	 * Reset the times and counters.
+	 */
+	public void reset();
+
+}
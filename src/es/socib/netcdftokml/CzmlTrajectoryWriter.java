@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * {@link TrajectoryWriter} that writes the trajectory as CZML, the Cesium time dynamic format: the document
+ * packet, a packet with the deployment position and the platform packet, whose position is sampled at each
+ * good position and drawn as a path.
+ *
+ * The position samples are written as soon as the rows are received, the platform availability is written
+ * when the trajectory is finished. Only the position is sampled, the variable values aren't written.
+ *
+ */
+public class CzmlTrajectoryWriter implements TrajectoryWriter {
+
+	private static Logger logger = Logger.getLogger(CzmlTrajectoryWriter.class.getSimpleName());
+
+	private static final double MILLIS_PER_SECOND = 1000d;
+
+	private Writer writer;
+
+	private String title;
+
+	/**
+	 * epochMillis the time of the first position sample, expressed in milliseconds. -1 before the first row.
+	 */
+	private long epochMillis = -1;
+
+	private long lastTimeMillis;
+
+	private int sampleCount;
+
+	/**
+	 * Construct a new {@link CzmlTrajectoryWriter}. The given {@link Writer} isn't closed by the writer.
+	 *
+	 * @param writer the {@link Writer} where the CZML is written.
+	 */
+	public CzmlTrajectoryWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	@Override
+	public void startTrajectory(TrajectoryHeader trajectoryHeader) throws IOException {
+
+		title = trajectoryHeader.getTitle();
+
+		writer.write("[\n{\"id\": \"document\", \"name\": " + quote(title) + ", \"version\": \"1.0\"}");
+
+		// The deployment position
+		DeploymentInfo deploymentInfo = trajectoryHeader.getDeploymentInfo();
+		if (null != deploymentInfo){
+			writer.write(",\n{\"id\": \"deployment\", \"name\": \"Deployment\", \"position\": {\"cartographicDegrees\": ["
+					+ new BigDecimal(deploymentInfo.getLongitude()).toPlainString() + ", " + new BigDecimal(deploymentInfo.getLatitude()).toPlainString()
+					+ ", 0]}, \"point\": {\"pixelSize\": 8}}");
+		}
+
+	}
+
+	@Override
+	public void addRow(TrajectoryRow trajectoryRow) throws IOException {
+
+		long timeMillis = trajectoryRow.getTimeMillis();
+
+		// The platform packet is opened with the first sample, the epoch
+		if (-1 == epochMillis){
+			epochMillis = timeMillis;
+			writer.write(",\n{\"id\": \"platform\", \"name\": " + quote(title) + ", \"position\": {\"epoch\": "
+					+ quote(GeoJsonTrajectoryWriter.formatTime(epochMillis)) + ", \"cartographicDegrees\": [");
+		} else {
+			writer.write(", ");
+		}
+
+		writer.write(Double.toString((timeMillis - epochMillis) / MILLIS_PER_SECOND));
+		writer.write(", ");
+		writer.write(formatCoordinate(trajectoryRow.getLongitude(), trajectoryRow.isSinglePrecision()));
+		writer.write(", ");
+		writer.write(formatCoordinate(trajectoryRow.getLatitude(), trajectoryRow.isSinglePrecision()));
+		writer.write(", 0");
+
+		lastTimeMillis = timeMillis;
+		sampleCount++;
+
+	}
+
+	@Override
+	public void finishTrajectory() throws IOException {
+
+		if (-1 != epochMillis){
+			writer.write("]}, \"availability\": " + quote(GeoJsonTrajectoryWriter.formatTime(epochMillis) + "/" + GeoJsonTrajectoryWriter.formatTime(lastTimeMillis))
+					+ ", \"path\": {\"width\": 2, \"leadTime\": 0, \"resolution\": 60}, \"point\": {\"pixelSize\": 6}}");
+		}
+
+		writer.write("\n]\n");
+		writer.flush();
+
+		logger.info(sampleCount + " position samples written to the CZML stream");
+
+	}
+
+	private static String formatCoordinate(double value, boolean singlePrecision) {
+		return singlePrecision ? Float.toString((float) value) : Double.toString(value);
+	}
+
+	private static String quote(String value) {
+		return null == value ? "null" : "\"" + StringEscapeUtils.escapeJava(value) + "\"";
+	}
+
+}
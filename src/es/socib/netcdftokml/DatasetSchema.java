@@ -0,0 +1,305 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import ucar.ma2.Array;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.Variable;
+import ucar.nc2.constants.AxisType;
+import ucar.nc2.dataset.CoordinateAxis;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+
+/**
+ * The variable discovery of a NetCDF dataset structure: the coordinate axes, the ancillary and quality control
+ * variables and the variables displayed, by name. The files of the same platform type share the same structure, so
+ * the discovery is done once and cached on the schema fingerprint, see {@link #computeFingerprint(NetcdfDataset)}.
+ *
+ * The cache is shared by all the conversions of the virtual machine. The names are resolved against the variables
+ * of each dataset, see {@link AncillaryVariablesManager}.
+ *
+ */
+public class DatasetSchema {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(DatasetSchema.class.getSimpleName());
+
+	/**
+	 * MAX_CACHED_SCHEMAS the maximum number of schemas cached, the cache is cleared when exceeded.
+	 */
+	private static final int MAX_CACHED_SCHEMAS = 256;
+
+	/**
+	 * FINGERPRINT_ATTRIBUTES the variable attributes whose value is part of the fingerprint, because the discovery
+	 * depends on them. Only the name of the other attributes is part of the fingerprint, their value can change
+	 * between the files of the same platform.
+	 */
+	private static final Set<String> FINGERPRINT_ATTRIBUTES = new HashSet<String>(Arrays.asList(AttributesNamesAndValues.ANCILLARY_VARIABLES,
+			AttributesNamesAndValues.CF_ROLE, AttributesNamesAndValues.AXIS, AttributesNamesAndValues.STANDARD_NAME, AttributesNamesAndValues.POSITIVE,
+			"units", "coordinates", "_CoordinateAxisType"));
+
+	/**
+	 * FINGERPRINT_GLOBAL_ATTRIBUTES the global attributes whose value is part of the fingerprint.
+	 */
+	private static final String[] FINGERPRINT_GLOBAL_ATTRIBUTES = {"featureType", "Conventions"};
+
+	/**
+	 * schemaMap Map with the schema fingerprint as key and the {@link DatasetSchema} as value.
+	 */
+	private static Map<String, DatasetSchema> schemaMap = new ConcurrentHashMap<String, DatasetSchema>();
+
+	private String fingerprint;
+
+	/**
+	 * coordinateAxisNameMap Map with the {@link AxisType} as key and the coordinate axis name as value.
+	 */
+	private Map<AxisType, String> coordinateAxisNameMap;
+
+	private List<String> ancillaryVariableNameList;
+
+	/**
+	 * ancillaryVariableNamesMap Map with the variable name as key and the array of ancillary variable names as value.
+	 */
+	private Map<String, Array> ancillaryVariableNamesMap;
+
+	/**
+	 * qcVariableNameMap Map with the variable name as key and the quality control variable name as value.
+	 */
+	private Map<String, String> qcVariableNameMap;
+
+	/**
+	 * displayVariableNameList the variables without the ancillary and coordinate variables.
+	 */
+	private List<String> displayVariableNameList;
+
+	private String qcLatVariableName;
+
+	private String qcLonVariableName;
+
+	/**
+	 * Construct a new {@link DatasetSchema} from the discovery of the given {@link AncillaryVariablesManager}.
+	 *
+	 * @param fingerprint the schema fingerprint
+	 * @param coordinateAxisMap the coordinate axes
+	 * @param ancillaryVariablesManager the {@link AncillaryVariablesManager} of a dataset with this schema
+	 */
+	public DatasetSchema(String fingerprint, Map<AxisType, VariableDS> coordinateAxisMap, AncillaryVariablesManager ancillaryVariablesManager) {
+
+		this.fingerprint = fingerprint;
+
+		coordinateAxisNameMap = new HashMap<AxisType, String>();
+		for (Map.Entry<AxisType, VariableDS> coordinateAxis : coordinateAxisMap.entrySet()){
+			coordinateAxisNameMap.put(coordinateAxis.getKey(), coordinateAxis.getValue().getFullName());
+		}
+
+		ancillaryVariableNameList = getNameList(ancillaryVariablesManager.getAncillaryVariableList());
+		displayVariableNameList = getNameList(ancillaryVariablesManager.getVariableListWithotAncillaryVariables());
+
+		ancillaryVariableNamesMap = new HashMap<String, Array>();
+		for (Map.Entry<Variable, Array> ancillaryVariableNames : ancillaryVariablesManager.getMapVariableAncillaryVariable().entrySet()){
+			ancillaryVariableNamesMap.put(ancillaryVariableNames.getKey().getFullName(), ancillaryVariableNames.getValue());
+		}
+
+		qcVariableNameMap = new HashMap<String, String>();
+		for (Variable variable : ancillaryVariablesManager.getMapVariableAncillaryVariable().keySet()){
+			Variable qcVariable = ancillaryVariablesManager.getQcVariable(variable);
+			if (null != qcVariable){
+				qcVariableNameMap.put(variable.getFullName(), qcVariable.getFullName());
+			}
+		}
+
+		qcLatVariableName = ancillaryVariablesManager.getQcLatVariableName();
+		qcLonVariableName = ancillaryVariablesManager.getQcLonVariableName();
+
+	}
+
+	private static List<String> getNameList(List<Variable> variableList) {
+
+		List<String> nameList = new ArrayList<String>(variableList.size());
+		for (Variable variable : variableList){
+			nameList.add(variable.getFullName());
+		}
+
+		return Collections.unmodifiableList(nameList);
+	}
+
+	/**
+	 * Compute the schema fingerprint of the given {@link NetcdfDataset}: the coordinate axes, the name, data type
+	 * and dimension names of the variables, the name of their attributes and the value of the attributes the
+	 * discovery depends on. The dimension lengths aren't part of the fingerprint, the files of a platform have
+	 * different number of records.
+	 *
+	 * @param netcdfDataset the {@link NetcdfDataset}
+	 * @return the fingerprint
+	 */
+	public static String computeFingerprint(NetcdfDataset netcdfDataset) {
+
+		StringBuilder schema = new StringBuilder();
+
+		for (String globalAttributeName : FINGERPRINT_GLOBAL_ATTRIBUTES){
+			Attribute globalAttribute = netcdfDataset.findGlobalAttribute(globalAttributeName);
+			schema.append(globalAttributeName).append('=').append(null == globalAttribute ? "" : getValue(globalAttribute)).append('\n');
+		}
+
+		for (CoordinateAxis coordinateAxis : netcdfDataset.getCoordinateAxes()){
+			schema.append("axis ").append(coordinateAxis.getAxisType()).append(' ').append(coordinateAxis.getFullName()).append('\n');
+		}
+
+		for (Variable variable : netcdfDataset.getRootGroup().getVariables()){
+
+			schema.append(variable.getFullName()).append(' ').append(variable.getDataType()).append('(');
+			for (Dimension dimension : variable.getDimensions()){
+				schema.append(dimension.getShortName()).append(',');
+			}
+			schema.append(")\n");
+
+			for (Attribute attribute : variable.getAttributes()){
+				schema.append('\t').append(attribute.getShortName());
+				if (FINGERPRINT_ATTRIBUTES.contains(attribute.getShortName())){
+					schema.append('=').append(getValue(attribute));
+				}
+				schema.append('\n');
+			}
+
+		}
+
+		return digest(schema.toString());
+	}
+
+	private static String getValue(Attribute attribute) {
+		return attribute.isString() ? attribute.getStringValue() : String.valueOf(attribute.getNumericValue());
+	}
+
+	private static String digest(String schema) {
+
+		try {
+
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(schema.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(2 * digest.length);
+			for (byte b : digest){
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+
+			return hex.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	/**
+	 * Retrieve the cached schema of the given fingerprint.
+	 *
+	 * @param fingerprint the schema fingerprint
+	 * @return the {@link DatasetSchema}, null if not cached
+	 */
+	public static DatasetSchema getCachedSchema(String fingerprint) {
+		return schemaMap.get(fingerprint);
+	}
+
+	/**
+	 * Cache the given schema. If the cache is full it is cleared first.
+	 *
+	 * @param datasetSchema the {@link DatasetSchema}
+	 */
+	public static void cacheSchema(DatasetSchema datasetSchema) {
+
+		if (schemaMap.size() >= MAX_CACHED_SCHEMAS){
+			logger.info("The dataset schema cache is full, clearing it");
+			schemaMap.clear();
+		}
+
+		schemaMap.put(datasetSchema.getFingerprint(), datasetSchema);
+	}
+
+	/**
+	 * Clear the cached schemas.
+	 */
+	public static void clearCache() {
+		schemaMap.clear();
+	}
+
+	public static int getCachedSchemaCount() {
+		return schemaMap.size();
+	}
+
+	/**
+	 * Resolve the coordinate axes in the given {@link NetcdfDataset}.
+	 *
+	 * @param netcdfDataset the {@link NetcdfDataset} with this schema
+	 * @return the map with the {@link AxisType} and {@link VariableDS}, null if a coordinate axis isn't found
+	 */
+	public Map<AxisType, VariableDS> resolveCoordinateAxisMap(NetcdfDataset netcdfDataset) {
+
+		Map<AxisType, VariableDS> coordinateAxisMap = new HashMap<AxisType, VariableDS>();
+		for (Map.Entry<AxisType, String> coordinateAxisName : coordinateAxisNameMap.entrySet()){
+
+			Variable coordinateAxis = netcdfDataset.findVariable(coordinateAxisName.getValue());
+			if (!(coordinateAxis instanceof CoordinateAxis)){
+				return null;
+			}
+
+			coordinateAxisMap.put(coordinateAxisName.getKey(), (CoordinateAxis) coordinateAxis);
+
+		}
+
+		return coordinateAxisMap;
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public List<String> getAncillaryVariableNameList() {
+		return ancillaryVariableNameList;
+	}
+
+	public Map<String, Array> getAncillaryVariableNamesMap() {
+		return ancillaryVariableNamesMap;
+	}
+
+	public Map<String, String> getQcVariableNameMap() {
+		return qcVariableNameMap;
+	}
+
+	public List<String> getDisplayVariableNameList() {
+		return displayVariableNameList;
+	}
+
+	public String getQcLatVariableName() {
+		return qcLatVariableName;
+	}
+
+	public String getQcLonVariableName() {
+		return qcLonVariableName;
+	}
+
+	@Override
+	public String toString() {
+		return "DatasetSchema [fingerprint=" + fingerprint + ", coordinateAxisNameMap=" + coordinateAxisNameMap + ", displayVariableNameList="
+				+ displayVariableNameList + ", qcVariableNameMap=" + qcVariableNameMap + "]";
+	}
+
+}
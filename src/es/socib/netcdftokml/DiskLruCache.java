@@ -0,0 +1,218 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Directory of cache entries bounded by their total size, shared by the {@link KmzOutputCache} and the
+ * {@link RemoteArrayCache}.
+ *
+ * The entry of each key is stored as key plus the entry extension in the directory. The least recently used entries
+ * are evicted first, the entry modification time is the last use (see {@link #touch(File)}). The entries are written
+ * to a temporary file and renamed by {@link #commit(File, String)}, and the eviction holds a file lock, so the
+ * directory can be shared by concurrent workers and processes. The workers of a process must share the same instance.
+ *
+ */
+class DiskLruCache {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(DiskLruCache.class.getSimpleName());
+
+	private static final String LOCK_FILE_NAME = "cache.lock";
+
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+
+	private File directory;
+
+	private long maxBytes;
+
+	private String extension;
+
+	/**
+	 * Construct a new {@link DiskLruCache}.
+	 *
+	 * @param directory the cache directory, created if it doesn't exist
+	 * @param maxBytes the maximum total size of the entries
+	 * @param extension the file extension of the entries, like .kmz
+	 * @throws IOException if the directory can't be created
+	 */
+	DiskLruCache(File directory, long maxBytes, String extension) throws IOException {
+
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.extension = extension;
+
+		if (!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Impossible create the cache directory " + directory);
+		}
+
+	}
+
+	/**
+	 * Retrieve the entry file of the given key.
+	 *
+	 * @param cacheKey the cache key
+	 * @return the entry file, null if the key isn't cached
+	 */
+	File getEntryFile(String cacheKey) {
+
+		File entryFile = new File(directory, cacheKey + extension);
+
+		return entryFile.isFile() ? entryFile : null;
+	}
+
+	/**
+	 * Mark the given entry as used, after a hit.
+	 *
+	 * @param entryFile the entry file
+	 */
+	void touch(File entryFile) {
+		entryFile.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Create the temporary file where a new entry is written before {@link #commit(File, String)}. The caller
+	 * must delete it if the entry isn't committed.
+	 *
+	 * @return the temporary file, in the cache directory
+	 * @throws IOException
+	 */
+	File createTempFile() throws IOException {
+		return File.createTempFile("entry", ".tmp", directory);
+	}
+
+	/**
+	 * Rename the given temporary file to the entry of the given key, and evict the least recently used entries
+	 * if the cache exceeds its size.
+	 *
+	 * @param tmpEntryFile the temporary file written
+	 * @param cacheKey the cache key
+	 * @throws IOException if the entry can't be renamed
+	 */
+	void commit(File tmpEntryFile, String cacheKey) throws IOException {
+
+		File entryFile = new File(directory, cacheKey + extension);
+
+		// Another worker could have cached the same key, the content is the same
+		if (!tmpEntryFile.renameTo(entryFile) && !entryFile.isFile()){
+			throw new IOException("Impossible rename " + tmpEntryFile + " to " + entryFile);
+		}
+
+		evict();
+
+	}
+
+	/**
+	 * Evict the least recently used entries until the total size is under the maximum. The eviction is locked
+	 * between the workers of this and other processes.
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void evict() throws IOException {
+
+		RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+		try {
+
+			FileLock fileLock = lockFile.getChannel().lock();
+			try {
+
+				File[] entryFiles = directory.listFiles();
+				if (null == entryFiles){
+					return;
+				}
+
+				long totalBytes = 0;
+				for (File entryFile : entryFiles){
+					if (entryFile.getName().endsWith(extension)){
+						totalBytes += entryFile.length();
+					}
+				}
+
+				if (totalBytes <= maxBytes){
+					return;
+				}
+
+				final long[] lastModified = new long[entryFiles.length];
+				Integer[] order = new Integer[entryFiles.length];
+				for (int i = 0; i < entryFiles.length; i++){
+					lastModified[i] = entryFiles[i].lastModified();
+					order[i] = i;
+				}
+				Arrays.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return lastModified[a] < lastModified[b] ? -1 : (lastModified[a] == lastModified[b] ? 0 : 1);
+					}
+				});
+
+				for (int i = 0; i < order.length && totalBytes > maxBytes; i++){
+					File entryFile = entryFiles[order[i]];
+					if (entryFile.getName().endsWith(extension)){
+						long length = entryFile.length();
+						if (entryFile.delete()){
+							totalBytes -= length;
+							logger.debug("Evicted " + entryFile);
+						}
+					}
+				}
+
+			} finally {
+				fileLock.release();
+			}
+
+		} finally {
+			lockFile.close();
+		}
+
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static void update(MessageDigest digest, String value) {
+		try {
+			digest.update(value.getBytes("UTF-8"));
+			digest.update((byte) 0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+
+		StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes){
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "DiskLruCache [directory=" + directory + ", maxBytes=" + maxBytes + ", extension=" + extension + "]";
+	}
+
+}
@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.List;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+
+/**
+ * {@link PlacemarkSink} that adds the placemarks to an in memory kml {@link Document}.
+ *
+ */
+public class DocumentPlacemarkSink implements PlacemarkSink {
+
+	private Document document;
+
+	/**
+	 * Construct a new {@link DocumentPlacemarkSink}
+	 *
+	 * @param document the kml {@link Document} where the placemarks are added.
+	 */
+	public DocumentPlacemarkSink(Document document) {
+		this.document = document;
+	}
+
+	@Override
+	public void addPlacemark(Placemark placemark) {
+		document.getFeature().add(placemark);
+	}
+
+	@Override
+	public void finish(List<Placemark> linePlacemarkList) {
+
+		if (document.getFeature().size() > 0){
+
+			/*
+			 * Set first and last posistion icon style
+			 */
+			List<Feature> featureList = document.getFeature();
+			featureList.get(0).setStyleUrl(KmlStyleInfo.HOME_ICON_STYLE_URL);
+			featureList.get(featureList.size() - 1).setStyleUrl(KmlStyleInfo.FINAL_ICON_STYLE_URL);
+
+		}
+
+		document.getFeature().addAll(linePlacemarkList);
+
+	}
+
+	public Document getDocument() {
+		return document;
+	}
+
+}
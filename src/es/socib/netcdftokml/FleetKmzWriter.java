@@ -0,0 +1,389 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+
+/**
+ * Converts many NetCDF files, one per platform, to a single kmz with a kml Folder per platform, the fleet view.
+ *
+ * The platforms are converted concurrently on a bounded worker pool. Each worker serializes the folder of its
+ * platform to a temporary file with a {@link KmlFolderWriter}, and the folders are copied to the doc.kml entry
+ * as they complete, so the memory used is bounded by the workers and not by the number of platforms. The
+ * folders are written in completion order. The folder is named from the platform, see {@link KmlManager#getPlatformName()}.
+ *
+ * The styles are written once in the document, from the fleet {@link KmlStyleInfo}, and shared by all the
+ * folders. Therefore the balloons aren't formatted with a {@link BalloonTemplate}, each placemark has its own
+ * description.
+ *
+ */
+public class FleetKmzWriter {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(FleetKmzWriter.class.getSimpleName());
+
+	private static final String ENCODING = "UTF-8";
+
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	/**
+	 * kmlStyleInfo the {@link KmlStyleInfo} of the document, the styles shared by the platforms.
+	 */
+	private KmlStyleInfo kmlStyleInfo;
+
+	/**
+	 * workerCount the number of platforms converted concurrently.
+	 */
+	private int workerCount;
+
+	private KmzCompression kmzCompression = new KmzCompression();
+
+	/**
+	 * remoteArrayCache the cache of the arrays read from the opendap sources, null if not used.
+	 */
+	private RemoteArrayCache remoteArrayCache;
+
+	/**
+	 * Construct a new {@link FleetKmzWriter}.
+	 *
+	 * @param kmlStyleInfo the {@link KmlStyleInfo} of the document, its title is the document name.
+	 * @param workerCount the number of platforms converted concurrently. If less than 1, the number of available processors is used.
+	 */
+	public FleetKmzWriter(KmlStyleInfo kmlStyleInfo, int workerCount) {
+		this.kmlStyleInfo = kmlStyleInfo;
+		this.workerCount = workerCount;
+		if (this.workerCount < 1){
+			this.workerCount = Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * Convert the given NetCDF file locations and write the fleet kmz to the given {@link OutputStream}.
+	 * The given {@link OutputStream} isn't closed. The platforms that can't be converted are left out of the kmz.
+	 *
+	 * @param netCdfFileLocationList the NetCDF file locations, can be local files or opendap links.
+	 * @param outputStream the {@link OutputStream} where the kmz is written.
+	 * @return the {@link ConversionResult} of each platform, in the same order as the given locations.
+	 * @throws IOException if the kmz can't be written
+	 * @throws InterruptedException
+	 */
+	public List<ConversionResult> write(List<String> netCdfFileLocationList, OutputStream outputStream) throws IOException, InterruptedException {
+
+		final ConversionResult[] results = new ConversionResult[netCdfFileLocationList.size()];
+
+		MeteredZipOutputStream zipOutputStream = new MeteredZipOutputStream(outputStream, kmzCompression);
+		zipOutputStream.putNextEntry(new ZipEntry(KmzStreamWriter.KML_ENTRY_NAME));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(zipOutputStream, ENCODING));
+		XMLStreamWriter xmlStreamWriter = startDocument(writer);
+
+		final ExecutorService platformExecutor = Executors.newFixedThreadPool(workerCount);
+		CompletionService<PlatformFolder> completionService = new ExecutorCompletionService<PlatformFolder>(platformExecutor);
+		List<Future<PlatformFolder>> platformFolderFutureList = new ArrayList<Future<PlatformFolder>>();
+
+		try {
+
+			for (int i = 0; i < netCdfFileLocationList.size(); i++){
+
+				final int resultIdx = i;
+				final String netCdfFileLocation = netCdfFileLocationList.get(i);
+
+				platformFolderFutureList.add(completionService.submit(new Callable<PlatformFolder>() {
+					@Override
+					public PlatformFolder call() {
+						return convertPlatform(resultIdx, netCdfFileLocation, platformExecutor);
+					}
+				}));
+
+			}
+
+			// Copy each folder as soon as its platform is converted
+			int folderCount = 0;
+			for (int i = 0; i < netCdfFileLocationList.size(); i++){
+
+				PlatformFolder platformFolder = getPlatformFolder(completionService.take());
+				results[platformFolder.resultIdx] = platformFolder.conversionResult;
+
+				if (null != platformFolder.folderFile){
+					try {
+						xmlStreamWriter.flush();
+						copyFolder(platformFolder.folderFile, writer);
+					} catch (XMLStreamException e) {
+						throw new IOException(e);
+					} finally {
+						platformFolder.deleteFolderFile();
+					}
+					folderCount++;
+				}
+
+			}
+
+			finishDocument(xmlStreamWriter);
+			writer.flush();
+			zipOutputStream.closeEntry();
+			zipOutputStream.finish();
+
+			logger.info(folderCount + " of " + netCdfFileLocationList.size() + " platforms written to the fleet kmz");
+
+		} finally {
+
+			platformExecutor.shutdownNow();
+
+			// The folders not copied when the writing failed
+			for (Future<PlatformFolder> platformFolderFuture : platformFolderFutureList){
+				if (platformFolderFuture.isDone() && !platformFolderFuture.isCancelled()){
+					try {
+						platformFolderFuture.get().deleteFolderFile();
+					} catch (ExecutionException e) {
+						// Already logged
+					}
+				}
+			}
+
+		}
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Convert the given NetCDF file location and write its folder to a temporary file.
+	 *
+	 * @param resultIdx the index of the location
+	 * @param netCdfFileLocation the NetCDF file location
+	 * @param platformExecutor the {@link ExecutorService}, shut down if the fleet kmz isn't written anymore.
+	 * @return the {@link PlatformFolder}, without folder file if the platform can't be converted.
+	 */
+	private PlatformFolder convertPlatform(int resultIdx, String netCdfFileLocation, ExecutorService platformExecutor) {
+
+		long startMillis = System.currentTimeMillis();
+		File folderFile = null;
+		KmlManager kmlManager = null;
+
+		try {
+
+			AdditionalInfo additionalInfo = createAdditionalInfo(netCdfFileLocation);
+
+			NetcdfReadSession readSession = NetcdfReadSession.open(netCdfFileLocation);
+			readSession.setRemoteArrayCache(remoteArrayCache);
+			try {
+				kmlManager = new KmlManager(readSession, additionalInfo, null);
+			} catch (IOException e) {
+				readSession.close();
+				throw e;
+			} catch (RuntimeException e) {
+				readSession.close();
+				throw e;
+			}
+
+			folderFile = File.createTempFile("platform", ".kml");
+			Writer folderWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(folderFile), ENCODING));
+			try {
+				kmlManager.writePlacemarks(new KmlFolderWriter(folderWriter, kmlManager.getPlatformName()));
+			} finally {
+				folderWriter.close();
+			}
+
+			PlatformFolder platformFolder = new PlatformFolder(resultIdx, folderFile,
+					new ConversionResult(netCdfFileLocation, null, true, null, System.currentTimeMillis() - startMillis));
+
+			// The fleet kmz isn't written anymore
+			if (platformExecutor.isShutdown()){
+				platformFolder.deleteFolderFile();
+			}
+
+			return platformFolder;
+
+		} catch (Exception e) {
+
+			logger.error("Converting " + netCdfFileLocation + " " + e.getMessage());
+			if (null != folderFile){
+				folderFile.delete();
+			}
+			return new PlatformFolder(resultIdx, null,
+					new ConversionResult(netCdfFileLocation, null, false, e.toString(), System.currentTimeMillis() - startMillis));
+
+		} finally {
+
+			if (null != kmlManager){
+				try {
+					kmlManager.close();
+				} catch (IOException e) {
+					logger.warn("Closing the NetCDF file " + e.getMessage());
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * Start the kml document. Write the document name and the shared styles.
+	 *
+	 * @param writer the {@link Writer} of the doc.kml entry
+	 * @return the {@link XMLStreamWriter} of the document
+	 * @throws IOException
+	 */
+	private XMLStreamWriter startDocument(Writer writer) throws IOException {
+
+		try {
+
+			XMLStreamWriter xmlStreamWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+			xmlStreamWriter.writeStartDocument(ENCODING, "1.0");
+			xmlStreamWriter.setDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+			xmlStreamWriter.writeStartElement("kml");
+			xmlStreamWriter.writeDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+			xmlStreamWriter.writeStartElement("Document");
+			KmlXmlSerializer.writeElement(xmlStreamWriter, "name", kmlStyleInfo.getKmlTitleName());
+			KmlXmlSerializer.writeElement(xmlStreamWriter, "open", Boolean.TRUE);
+
+			// The styles are written once, the folders reference them
+			Document styleDocument = new Document();
+			kmlStyleInfo.setKmlDocumentStyle(styleDocument);
+			for (StyleSelector styleSelector : styleDocument.getStyleSelector()){
+				KmlXmlSerializer.writeStyle(xmlStreamWriter, (Style) styleSelector);
+			}
+
+			return xmlStreamWriter;
+
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	private static void finishDocument(XMLStreamWriter xmlStreamWriter) throws IOException {
+
+		try {
+			// Document and kml
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndDocument();
+			xmlStreamWriter.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	private static void copyFolder(File folderFile, Writer writer) throws IOException {
+
+		Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(folderFile), ENCODING));
+		try {
+			char[] buffer = new char[COPY_BUFFER_SIZE];
+			int read;
+			while (-1 != (read = reader.read(buffer))){
+				writer.write(buffer, 0, read);
+			}
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	private static PlatformFolder getPlatformFolder(Future<PlatformFolder> platformFolderFuture) throws IOException {
+		try {
+			return platformFolderFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Create the {@link AdditionalInfo} of the given NetCDF file. The same instance can be returned for many
+	 * files, concurrently: neither the {@link KmlManager} nor this writer modify it nor its {@link KmlStyleInfo}.
+	 * The balloon template of the style is ignored, the placemarks are described one by one.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location.
+	 * @return the {@link AdditionalInfo}, null to use the default values.
+	 */
+	protected AdditionalInfo createAdditionalInfo(String netCdfFileLocation) {
+		return null;
+	}
+
+	public KmzCompression getKmzCompression() {
+		return kmzCompression;
+	}
+
+	public void setKmzCompression(KmzCompression kmzCompression) {
+		this.kmzCompression = kmzCompression;
+	}
+
+	public RemoteArrayCache getRemoteArrayCache() {
+		return remoteArrayCache;
+	}
+
+	/**
+	 * Set the cache of the arrays read from the opendap sources.
+	 *
+	 * @param remoteArrayCache the {@link RemoteArrayCache}, null to read all the variables from the servers.
+	 */
+	public void setRemoteArrayCache(RemoteArrayCache remoteArrayCache) {
+		this.remoteArrayCache = remoteArrayCache;
+	}
+
+	/**
+	 * The folder of a converted platform, written to a temporary file, and its {@link ConversionResult}.
+	 */
+	private static class PlatformFolder {
+
+		private int resultIdx;
+
+		/**
+		 * folderFile the temporary file with the folder, null if the platform can't be converted or the file was deleted.
+		 */
+		private File folderFile;
+
+		private ConversionResult conversionResult;
+
+		private PlatformFolder(int resultIdx, File folderFile, ConversionResult conversionResult) {
+			this.resultIdx = resultIdx;
+			this.folderFile = folderFile;
+			this.conversionResult = conversionResult;
+		}
+
+		private synchronized void deleteFolderFile() {
+			if (null != folderFile){
+				folderFile.delete();
+				folderFile = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,175 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * {@link TrajectoryWriter} that writes the trajectory as a GeoJSON feature collection: a point feature
+ * for the deployment position and each good position, with the time and the variable values as properties,
+ * and finally a line string feature with the platform trajectory.
+ *
+ * The features are written as soon as the rows are received, only the line string coordinates are kept.
+ *
+ */
+public class GeoJsonTrajectoryWriter implements TrajectoryWriter {
+
+	private static Logger logger = Logger.getLogger(GeoJsonTrajectoryWriter.class.getSimpleName());
+
+	private Writer writer;
+
+	private List<VariableRenderPlan> variableRenderPlanList;
+
+	/**
+	 * lineCoordinates the json coordinates of the line string, that represent the platform trajectory.
+	 */
+	private StringBuilder lineCoordinates = new StringBuilder();
+
+	private int featureCount;
+
+	/**
+	 * Construct a new {@link GeoJsonTrajectoryWriter}. The given {@link Writer} isn't closed by the writer.
+	 *
+	 * @param writer the {@link Writer} where the GeoJSON is written.
+	 */
+	public GeoJsonTrajectoryWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	@Override
+	public void startTrajectory(TrajectoryHeader trajectoryHeader) throws IOException {
+
+		variableRenderPlanList = trajectoryHeader.getVariableRenderPlanList();
+
+		writer.write("{\"type\": \"FeatureCollection\", \"name\": " + quote(trajectoryHeader.getTitle()) + ",\n");
+		writer.write("\"features\": [");
+
+		// The deployment position
+		DeploymentInfo deploymentInfo = trajectoryHeader.getDeploymentInfo();
+		if (null != deploymentInfo){
+			String lon = new BigDecimal(deploymentInfo.getLongitude()).toPlainString();
+			String lat = new BigDecimal(deploymentInfo.getLatitude()).toPlainString();
+			startFeature(lon, lat);
+			writer.write("\"deployment\": true");
+			long deploymentTimeMillis = trajectoryHeader.getDeploymentTimeMillis();
+			if (-1 != deploymentTimeMillis){
+				writer.write(", \"time\": " + quote(formatTime(deploymentTimeMillis)));
+			}
+			writer.write("}}");
+			appendLineCoordinate(lon, lat);
+		}
+
+	}
+
+	@Override
+	public void addRow(TrajectoryRow trajectoryRow) throws IOException {
+
+		String lon = formatCoordinate(trajectoryRow.getLongitude(), trajectoryRow.isSinglePrecision());
+		String lat = formatCoordinate(trajectoryRow.getLatitude(), trajectoryRow.isSinglePrecision());
+
+		startFeature(lon, lat);
+		writer.write("\"time\": " + quote(formatTime(trajectoryRow.getTimeMillis())));
+		if (!trajectoryRow.isLast()){
+			writer.write(", \"endTime\": " + quote(formatTime(trajectoryRow.getEndTimeMillis())));
+		}
+		for (int i = 0; i < variableRenderPlanList.size(); i++){
+			writer.write(", " + quote(variableRenderPlanList.get(i).getName()) + ": " + toJson(trajectoryRow.getValue(i)));
+		}
+		writer.write("}}");
+
+		appendLineCoordinate(lon, lat);
+
+	}
+
+	@Override
+	public void finishTrajectory() throws IOException {
+
+		if (featureCount > 1){
+			writer.write(",\n{\"type\": \"Feature\", \"geometry\": {\"type\": \"LineString\", \"coordinates\": [");
+			writer.append(lineCoordinates);
+			writer.write("]}, \"properties\": {\"trajectory\": true}}");
+		}
+
+		writer.write("\n]}\n");
+		writer.flush();
+
+		logger.info(featureCount + " point features written to the GeoJSON stream");
+
+	}
+
+	/**
+	 * Write the start of a point feature, up to the first property.
+	 *
+	 * @param lon the json longitude
+	 * @param lat the json latitude
+	 * @throws IOException
+	 */
+	private void startFeature(String lon, String lat) throws IOException {
+		writer.write(0 == featureCount ? "\n" : ",\n");
+		writer.write("{\"type\": \"Feature\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [" + lon + ", " + lat + "]}, \"properties\": {");
+		featureCount++;
+	}
+
+	private void appendLineCoordinate(String lon, String lat) {
+		if (lineCoordinates.length() > 0){
+			lineCoordinates.append(", ");
+		}
+		lineCoordinates.append('[').append(lon).append(", ").append(lat).append(']');
+	}
+
+	/**
+	 * Format the coordinate without the noise digits of the float position values.
+	 *
+	 * @param value the coordinate value
+	 * @param singlePrecision true if the NetCDF position values are float
+	 * @return the json number
+	 */
+	private static String formatCoordinate(double value, boolean singlePrecision) {
+		return singlePrecision ? Float.toString((float) value) : Double.toString(value);
+	}
+
+	/**
+	 * Format the time in ISO 8601, in UTC.
+	 *
+	 * @param timeMillis the time expressed in milliseconds
+	 * @return the formatted time
+	 */
+	static String formatTime(long timeMillis) {
+		return KmlManager.format(timeMillis, PlacemarkBalloonRenderer.KML_TIME_PATTERN) + "Z";
+	}
+
+	/**
+	 * Convert a variable value to json. NaN and infinite values aren't valid json numbers, they are written as null.
+	 *
+	 * @param value the variable value, can be null
+	 * @return the json value
+	 */
+	static String toJson(Object value) {
+
+		if (null == value){
+			return "null";
+		}
+
+		if (value instanceof Number){
+			double doubleValue = ((Number) value).doubleValue();
+			if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)){
+				return "null";
+			}
+			return value.toString();
+		}
+
+		return quote(value.toString());
+	}
+
+	private static String quote(String value) {
+		return null == value ? "null" : "\"" + StringEscapeUtils.escapeJava(value) + "\"";
+	}
+
+}
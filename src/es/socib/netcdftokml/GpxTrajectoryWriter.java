@@ -0,0 +1,175 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link TrajectoryWriter} that writes the trajectory as a GPX 1.1 track: a way point for the deployment
+ * position and a track point for each good position, with the time and, as description, the variable
+ * values like displayed in the balloons.
+ *
+ */
+public class GpxTrajectoryWriter implements TrajectoryWriter {
+
+	private static Logger logger = Logger.getLogger(GpxTrajectoryWriter.class.getSimpleName());
+
+	public static final String GPX_NAMESPACE = "http://www.topografix.com/GPX/1/1";
+
+	private static final String ENCODING = "UTF-8";
+
+	private Writer writer;
+
+	private XMLStreamWriter xmlStreamWriter;
+
+	private List<VariableRenderPlan> variableRenderPlanList;
+
+	private StringBuilder description = new StringBuilder();
+
+	private int trackPointCount;
+
+	/**
+	 * Construct a new {@link GpxTrajectoryWriter}. The given {@link OutputStream} isn't closed by the writer.
+	 *
+	 * @param outputStream the {@link OutputStream} where the GPX is written.
+	 */
+	public GpxTrajectoryWriter(OutputStream outputStream) {
+		try {
+			this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, ENCODING));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void startTrajectory(TrajectoryHeader trajectoryHeader) throws IOException {
+
+		variableRenderPlanList = trajectoryHeader.getVariableRenderPlanList();
+
+		try {
+
+			xmlStreamWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+			xmlStreamWriter.writeStartDocument(ENCODING, "1.0");
+			xmlStreamWriter.setDefaultNamespace(GPX_NAMESPACE);
+			xmlStreamWriter.writeStartElement("gpx");
+			xmlStreamWriter.writeDefaultNamespace(GPX_NAMESPACE);
+			xmlStreamWriter.writeAttribute("version", "1.1");
+			xmlStreamWriter.writeAttribute("creator", "NC2KML");
+
+			xmlStreamWriter.writeStartElement("metadata");
+			writeElement("name", trajectoryHeader.getTitle());
+			if (null != trajectoryHeader.getThreddsLink()){
+				xmlStreamWriter.writeStartElement("link");
+				xmlStreamWriter.writeAttribute("href", trajectoryHeader.getThreddsLink());
+				xmlStreamWriter.writeEndElement();
+			}
+			xmlStreamWriter.writeEndElement();
+
+			// The deployment position
+			DeploymentInfo deploymentInfo = trajectoryHeader.getDeploymentInfo();
+			if (null != deploymentInfo){
+				xmlStreamWriter.writeStartElement("wpt");
+				xmlStreamWriter.writeAttribute("lat", deploymentInfo.getLatitude());
+				xmlStreamWriter.writeAttribute("lon", deploymentInfo.getLongitude());
+				long deploymentTimeMillis = trajectoryHeader.getDeploymentTimeMillis();
+				if (-1 != deploymentTimeMillis){
+					writeElement("time", GeoJsonTrajectoryWriter.formatTime(deploymentTimeMillis));
+				}
+				writeElement("name", "Deployment");
+				xmlStreamWriter.writeEndElement();
+			}
+
+			xmlStreamWriter.writeStartElement("trk");
+			writeElement("name", trajectoryHeader.getTitle());
+			xmlStreamWriter.writeStartElement("trkseg");
+
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	@Override
+	public void addRow(TrajectoryRow trajectoryRow) throws IOException {
+
+		description.setLength(0);
+		for (int i = 0; i < variableRenderPlanList.size(); i++){
+			if (i > 0){
+				description.append(", ");
+			}
+			description.append(variableRenderPlanList.get(i).getName()).append(": ").append(trajectoryRow.getDisplayValue(i));
+		}
+
+		try {
+
+			xmlStreamWriter.writeStartElement("trkpt");
+			xmlStreamWriter.writeAttribute("lat", formatCoordinate(trajectoryRow.getLatitude(), trajectoryRow.isSinglePrecision()));
+			xmlStreamWriter.writeAttribute("lon", formatCoordinate(trajectoryRow.getLongitude(), trajectoryRow.isSinglePrecision()));
+			writeElement("time", GeoJsonTrajectoryWriter.formatTime(trajectoryRow.getTimeMillis()));
+			if (description.length() > 0){
+				writeElement("desc", description.toString());
+			}
+			xmlStreamWriter.writeEndElement();
+
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		trackPointCount++;
+
+	}
+
+	@Override
+	public void finishTrajectory() throws IOException {
+
+		try {
+			// trkseg, trk and gpx
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndDocument();
+			xmlStreamWriter.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		writer.flush();
+
+		logger.info(trackPointCount + " track points written to the GPX stream");
+
+	}
+
+	private void writeElement(String name, String value) throws XMLStreamException {
+		if (null != value){
+			xmlStreamWriter.writeStartElement(name);
+			xmlStreamWriter.writeCharacters(value);
+			xmlStreamWriter.writeEndElement();
+		}
+	}
+
+	/**
+	 * Format the coordinate as a GPX decimal, without exponent nor the noise digits of the float position values.
+	 *
+	 * @param value the coordinate value
+	 * @param singlePrecision true if the NetCDF position values are float
+	 * @return the decimal
+	 */
+	private static String formatCoordinate(double value, boolean singlePrecision) {
+		return new BigDecimal(singlePrecision ? Float.toString((float) value) : Double.toString(value)).toPlainString();
+	}
+
+}
@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+
+/**
+ * Checkpoint of an incremental kmz conversion, persisted next to the kmz file.
+ *
+ * The checkpoint records the last placemark written: its time index, time value and position, and the
+ * {@link AdditionalInfo#getOutputFingerprint()} of the conversion, so the journals are only reused with the same
+ * parameters. The
+ * placemarks before it are kept, already serialized, in the placemark journal and their coordinates
+ * in the coordinate journal. The last placemark isn't journaled because its end time and icon style
+ * change when new records are appended, so the next conversion starts from its time index.
+ *
+ */
+public class IncrementalCheckpoint {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(IncrementalCheckpoint.class.getSimpleName());
+
+	public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	public static final String PLACEMARK_JOURNAL_SUFFIX = ".placemarks";
+
+	public static final String COORDINATE_JOURNAL_SUFFIX = ".coordinates";
+
+	private static final String ENCODING = "UTF-8";
+
+	private static final String SOURCE = "source";
+
+	private static final String OUTPUT_FINGERPRINT = "outputFingerprint";
+
+	private static final String LAST_INDEX = "lastIndex";
+
+	private static final String LAST_TIME_VALUE = "lastTimeValue";
+
+	private static final String LAST_LATITUDE = "lastLatitude";
+
+	private static final String LAST_LONGITUDE = "lastLongitude";
+
+	/**
+	 * source the NetCDF file location.
+	 */
+	private String source;
+
+	/**
+	 * outputFingerprint the {@link AdditionalInfo#getOutputFingerprint()} of the conversion.
+	 */
+	private String outputFingerprint;
+
+	/**
+	 * lastIndex the time index of the last placemark written.
+	 */
+	private int lastIndex;
+
+	/**
+	 * lastTimeValue the time value, as stored in the NetCDF file, of the last placemark written.
+	 */
+	private double lastTimeValue;
+
+	private double lastLatitude;
+
+	private double lastLongitude;
+
+	/**
+	 * Construct a new {@link IncrementalCheckpoint}
+	 *
+	 * @param source the NetCDF file location.
+	 * @param outputFingerprint the {@link AdditionalInfo#getOutputFingerprint()} of the conversion.
+	 * @param lastIndex the time index of the last placemark written.
+	 * @param lastTimeValue the time value, as stored in the NetCDF file, of the last placemark written.
+	 * @param lastLatitude the latitude of the last placemark written.
+	 * @param lastLongitude the longitude of the last placemark written.
+	 */
+	public IncrementalCheckpoint(String source, String outputFingerprint, int lastIndex, double lastTimeValue, double lastLatitude, double lastLongitude) {
+		this.source = source;
+		this.outputFingerprint = outputFingerprint;
+		this.lastIndex = lastIndex;
+		this.lastTimeValue = lastTimeValue;
+		this.lastLatitude = lastLatitude;
+		this.lastLongitude = lastLongitude;
+	}
+
+	/**
+	 * Load the checkpoint of the given kmz file.
+	 *
+	 * @param outputFileName the kmz file name.
+	 * @return the {@link IncrementalCheckpoint}, null if the checkpoint or the journals don't exist or can't be read.
+	 */
+	public static IncrementalCheckpoint load(String outputFileName) {
+
+		File checkpointFile = getCheckpointFile(outputFileName);
+
+		if (!checkpointFile.isFile() || !getPlacemarkJournalFile(outputFileName).isFile() || !getCoordinateJournalFile(outputFileName).isFile()){
+			return null;
+		}
+
+		Properties properties = new Properties();
+		try {
+			InputStream stream = new FileInputStream(checkpointFile);
+			try {
+				properties.load(stream);
+			} finally {
+				stream.close();
+			}
+			return new IncrementalCheckpoint(properties.getProperty(SOURCE),
+					properties.getProperty(OUTPUT_FINGERPRINT),
+					Integer.parseInt(properties.getProperty(LAST_INDEX)),
+					Double.parseDouble(properties.getProperty(LAST_TIME_VALUE)),
+					Double.parseDouble(properties.getProperty(LAST_LATITUDE)),
+					Double.parseDouble(properties.getProperty(LAST_LONGITUDE)));
+		} catch (IOException e) {
+			logger.warn("Impossible read the checkpoint " + checkpointFile + " " + e.getMessage());
+		} catch (RuntimeException e) {
+			logger.warn("Invalid checkpoint " + checkpointFile + " " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Save the checkpoint to the given file.
+	 *
+	 * @param checkpointFile the checkpoint file.
+	 * @throws IOException
+	 */
+	public void save(File checkpointFile) throws IOException {
+
+		Properties properties = new Properties();
+		properties.setProperty(SOURCE, source);
+		properties.setProperty(OUTPUT_FINGERPRINT, outputFingerprint);
+		properties.setProperty(LAST_INDEX, Integer.toString(lastIndex));
+		properties.setProperty(LAST_TIME_VALUE, Double.toString(lastTimeValue));
+		properties.setProperty(LAST_LATITUDE, Double.toString(lastLatitude));
+		properties.setProperty(LAST_LONGITUDE, Double.toString(lastLongitude));
+
+		OutputStream stream = new FileOutputStream(checkpointFile);
+		try {
+			properties.store(stream, "NC2KML incremental checkpoint");
+		} finally {
+			stream.close();
+		}
+
+	}
+
+	/**
+	 * Read the coordinates of the coordinate journal.
+	 *
+	 * @param coordinateJournalFile the coordinate journal file.
+	 * @return the {@link Coordinate} list.
+	 * @throws IOException
+	 */
+	public static List<Coordinate> readCoordinateJournal(File coordinateJournalFile) throws IOException {
+
+		List<Coordinate> coordinateList = new ArrayList<Coordinate>();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(coordinateJournalFile), ENCODING));
+		try {
+			String line;
+			while (null != (line = reader.readLine())){
+				if (!"".equals(line)){
+					coordinateList.add(new Coordinate(line));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return coordinateList;
+	}
+
+	/**
+	 * Write the coordinate journal, one coordinate per line.
+	 *
+	 * @param coordinateJournalFile the coordinate journal file.
+	 * @param coordinateList the {@link Coordinate} list.
+	 * @throws IOException
+	 */
+	public static void writeCoordinateJournal(File coordinateJournalFile, List<Coordinate> coordinateList) throws IOException {
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(coordinateJournalFile), ENCODING));
+		try {
+			for (Coordinate coordinate : coordinateList){
+				writer.write(coordinate.toString());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+
+	}
+
+	public static File getCheckpointFile(String outputFileName) {
+		return new File(outputFileName + CHECKPOINT_SUFFIX);
+	}
+
+	public static File getPlacemarkJournalFile(String outputFileName) {
+		return new File(outputFileName + PLACEMARK_JOURNAL_SUFFIX);
+	}
+
+	public static File getCoordinateJournalFile(String outputFileName) {
+		return new File(outputFileName + COORDINATE_JOURNAL_SUFFIX);
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Retrieve the output fingerprint of the conversion.
+	 *
+	 * @return the output fingerprint, null if the checkpoint was saved without it.
+	 */
+	public String getOutputFingerprint() {
+		return outputFingerprint;
+	}
+
+	public int getLastIndex() {
+		return lastIndex;
+	}
+
+	public double getLastTimeValue() {
+		return lastTimeValue;
+	}
+
+	public double getLastLatitude() {
+		return lastLatitude;
+	}
+
+	public double getLastLongitude() {
+		return lastLongitude;
+	}
+
+	@Override
+	public String toString() {
+		return "IncrementalCheckpoint [source=" + source + ", lastIndex="
+				+ lastIndex + ", lastTimeValue=" + lastTimeValue
+				+ ", lastLatitude=" + lastLatitude + ", lastLongitude="
+				+ lastLongitude + "]";
+	}
+
+}
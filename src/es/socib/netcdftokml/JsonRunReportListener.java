@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link ConversionListener} that writes a json run report (see {@link ConversionMetrics}) of each conversion
+ * to a directory. The report of the NetCDF file name.nc is written to name-hash.json when the conversion finishes,
+ * replacing the report of the previous conversion of the same file. The hash of the full location tells apart the
+ * files with the same name in different directories.
+ *
+ */
+public class JsonRunReportListener implements ConversionListener {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(JsonRunReportListener.class.getSimpleName());
+
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * LOCATION_HASH_LENGTH the hex digits of the location hash in the report name.
+	 */
+	private static final int LOCATION_HASH_LENGTH = 8;
+
+	private File directory;
+
+	/**
+	 * metricsMap Map with the NetCDF file location as key and the metrics of the conversion in progress as value.
+	 */
+	private Map<String, ConversionMetrics> metricsMap = new ConcurrentHashMap<String, ConversionMetrics>();
+
+	/**
+	 * Construct a new {@link JsonRunReportListener}.
+	 *
+	 * @param directory the directory of the run reports
+	 */
+	public JsonRunReportListener(File directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public void conversionStarted(String location) {
+		ConversionMetrics conversionMetrics = new ConversionMetrics();
+		conversionMetrics.conversionStarted(location);
+		metricsMap.put(location, conversionMetrics);
+	}
+
+	@Override
+	public void phaseFinished(String location, ConversionPhase phase, long elapsedNanos) {
+		ConversionMetrics conversionMetrics = metricsMap.get(location);
+		if (null != conversionMetrics){
+			conversionMetrics.phaseFinished(location, phase, elapsedNanos);
+		}
+	}
+
+	@Override
+	public void variableRead(String location, String variableName, long bytes, long elapsedNanos) {
+		ConversionMetrics conversionMetrics = metricsMap.get(location);
+		if (null != conversionMetrics){
+			conversionMetrics.variableRead(location, variableName, bytes, elapsedNanos);
+		}
+	}
+
+	@Override
+	public void counted(String location, ConversionCounter counter, long count) {
+		ConversionMetrics conversionMetrics = metricsMap.get(location);
+		if (null != conversionMetrics){
+			conversionMetrics.counted(location, counter, count);
+		}
+	}
+
+	@Override
+	public void conversionFinished(String location, boolean success) {
+
+		ConversionMetrics conversionMetrics = metricsMap.remove(location);
+		if (null == conversionMetrics){
+			return;
+		}
+
+		conversionMetrics.conversionFinished(location, success);
+
+		File reportFile = getReportFile(location);
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), ENCODING);
+			try {
+				conversionMetrics.writeJson(writer);
+			} finally {
+				writer.close();
+			}
+			logger.info("Run report written to " + reportFile);
+		} catch (IOException e) {
+			logger.error("Impossible write the run report " + reportFile + ": " + e.getMessage());
+		}
+
+	}
+
+	/**
+	 * Retrieve the run report file of the given NetCDF file location.
+	 *
+	 * @param location the NetCDF file location, can be a local file or opendap link
+	 * @return the run report {@link File}
+	 */
+	public File getReportFile(String location) {
+
+		String name = location.substring(location.lastIndexOf('/') + 1);
+		name = name.substring(name.lastIndexOf(File.separatorChar) + 1);
+		if (name.endsWith(".nc")){
+			name = name.substring(0, name.length() - ".nc".length());
+		}
+
+		MessageDigest digest = DiskLruCache.createDigest();
+		DiskLruCache.update(digest, location.contains("://") ? location : new File(location).getAbsolutePath());
+		String hash = DiskLruCache.toHex(digest.digest()).substring(0, LOCATION_HASH_LENGTH);
+
+		return new File(directory, name + "-" + hash + ".json");
+	}
+
+}
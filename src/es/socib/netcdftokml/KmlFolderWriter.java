@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+
+/**
+ * {@link PlacemarkSink} that serializes the placemarks of one trajectory as a kml Folder fragment, without
+ * the kml document. The fragment is written in the kml namespace but without declaring it, so it can be
+ * copied inside a kml document (see {@link FleetKmzWriter}). The placemarks reference the styles by url, so
+ * the styles must be defined by the document.
+ *
+ * Like the {@link KmzStreamWriter}, only the last received placemark is retained, because the end icon style
+ * must be set to the last placemark of the trajectory.
+ *
+ */
+public class KmlFolderWriter implements PlacemarkSink {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(KmlFolderWriter.class.getSimpleName());
+
+	private Writer writer;
+
+	private XMLStreamWriter xmlStreamWriter;
+
+	private String folderName;
+
+	/**
+	 * pendingPlacemark the last received placemark, not yet written.
+	 */
+	private Placemark pendingPlacemark;
+
+	private boolean homePlacemarkWritten;
+
+	private int placemarkCount;
+
+	/**
+	 * Construct a new {@link KmlFolderWriter} and start the folder. The given {@link Writer} isn't closed by the writer.
+	 *
+	 * @param writer the {@link Writer} where the folder is written.
+	 * @param folderName the folder name
+	 * @throws IOException
+	 */
+	public KmlFolderWriter(Writer writer, String folderName) throws IOException {
+
+		this.writer = writer;
+		this.folderName = folderName;
+
+		try {
+			xmlStreamWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+			xmlStreamWriter.setDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+			xmlStreamWriter.writeStartElement("Folder");
+			KmlXmlSerializer.writeElement(xmlStreamWriter, "name", folderName);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	@Override
+	public void addPlacemark(Placemark placemark) throws IOException {
+
+		if (null != pendingPlacemark){
+			writePlacemark(pendingPlacemark);
+		} else if (!homePlacemarkWritten){
+			placemark.setStyleUrl(KmlStyleInfo.HOME_ICON_STYLE_URL);
+		}
+
+		pendingPlacemark = placemark;
+		homePlacemarkWritten = true;
+
+	}
+
+	@Override
+	public void finish(List<Placemark> linePlacemarkList) throws IOException {
+
+		if (null != pendingPlacemark){
+			pendingPlacemark.setStyleUrl(KmlStyleInfo.FINAL_ICON_STYLE_URL);
+			writePlacemark(pendingPlacemark);
+			pendingPlacemark = null;
+		}
+
+		for (Placemark linePlacemark : linePlacemarkList){
+			writePlacemark(linePlacemark);
+		}
+
+		try {
+			// Folder
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		writer.flush();
+
+		logger.info(placemarkCount + " placemarks written to the folder " + folderName);
+
+	}
+
+	private void writePlacemark(Placemark placemark) throws IOException {
+
+		try {
+			KmlXmlSerializer.writePlacemark(xmlStreamWriter, placemark);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		placemarkCount++;
+
+	}
+
+	public int getPlacemarkCount() {
+		return placemarkCount;
+	}
+
+}
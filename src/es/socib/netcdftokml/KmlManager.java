@@ -3,46 +3,66 @@
  */
 package es.socib.netcdftokml;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang.time.DateFormatUtils;
 import org.apache.log4j.Logger;
 
 import ucar.ma2.Array;
-import ucar.ma2.Index;
-import ucar.ma2.Index1D;
-import ucar.ma2.Index2D;
+import ucar.ma2.DataType;
 import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Attribute;
-import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
 import ucar.nc2.constants.AxisType;
 import ucar.nc2.dataset.CoordinateAxis;
-import ucar.nc2.dataset.CoordinateSystem;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.units.DateUnit;
 import de.micromata.opengis.kml.v_2_2_0.Coordinate;
 import de.micromata.opengis.kml.v_2_2_0.Document;
-import de.micromata.opengis.kml.v_2_2_0.Feature;
 import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.LatLonAltBox;
 import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.Lod;
 import de.micromata.opengis.kml.v_2_2_0.Placemark;
 import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.Region;
 import de.micromata.opengis.kml.v_2_2_0.TimePrimitive;
 import de.micromata.opengis.kml.v_2_2_0.TimeSpan;
 
 /**
  * @author slora
  */
-public class KmlManager implements Runnable {
+public class KmlManager implements Runnable, Closeable {
 	
 	
 	/**
@@ -56,10 +76,20 @@ public class KmlManager implements Runnable {
 	
 	private static final String FT_TRAJECTORY_PROFILE = "trajectoryProfile";
 	
+	/**
+	 * PLACEMARK_CHUNK_SIZE the time indexes of each chunk of placemarks created in parallel.
+	 */
+	private static final int PLACEMARK_CHUNK_SIZE = 8192;
+	
 	private AdditionalInfo additionalInfo;
 	
 	private NetcdfDataset netcdfDataset;
 	
+	/**
+	 * readSession the {@link NetcdfReadSession} owned by the manager. All the data is read through it.
+	 */
+	private NetcdfReadSession readSession;
+	
 	private List<Variable> variableListWithoutAncillaryVariables;
 	
 //	private List<Variable> ancillaryVariableList;
@@ -69,14 +99,77 @@ public class KmlManager implements Runnable {
 	private Map<AxisType, VariableDS> coordinateVariableMap;
 	
 	/**
-	 * variableArrayMap Map with the variable as key and the variable data as value.
-	 * 					Used to improve the performance.	
+	 * variableRenderPlanList the render plan of each variable displayed in the placemark description.
+	 */
+	private List<VariableRenderPlan> variableRenderPlanList;
+	
+	/**
+	 * trajectoryCoordinates the time, latitude and longitude data decoded once.
 	 */
-	private Map<Variable, Array> variableArrayMap;
+	private TrajectoryCoordinates trajectoryCoordinates;
+	
+	/**
+	 * kmlStyleInfo the {@link KmlStyleInfo} of the {@link AdditionalInfo} or, if not set, the default style.
+	 * Held here so the {@link AdditionalInfo} given isn't modified.
+	 */
+	private KmlStyleInfo kmlStyleInfo;
+	
+	/**
+	 * balloonTemplate the balloon layout shared by the placemarks, null if each placemark has its own description.
+	 */
+	private BalloonTemplate balloonTemplate;
+	
+	/**
+	 * kmlTitleName the kml document name, the title of the {@link KmlStyleInfo} or, if not set, of the NetCDF file.
+	 * Held here so the {@link AdditionalInfo} can be shared by the conversions of many files.
+	 */
+	private String kmlTitleName;
 	
 	private String netCdfFileLocation;
 	
 	private String outputFileName;
+	
+	/**
+	 * previousCheckpoint the checkpoint of the previous incremental conversion, null if the whole file is converted.
+	 */
+	private IncrementalCheckpoint previousCheckpoint;
+	
+	/**
+	 * recordOrigin the first time index read. Greater than zero when an incremental conversion is resumed
+	 * or a time window is converted.
+	 */
+	private int recordOrigin;
+	
+	/**
+	 * lastCheckpoint the checkpoint of the last placemark created, null if no placemark was created.
+	 */
+	private IncrementalCheckpoint lastCheckpoint;
+	
+	/**
+	 * outputFingerprint the {@link AdditionalInfo#getOutputFingerprint()} saved in the checkpoint, null if the conversion isn't incremental.
+	 */
+	private String outputFingerprint;
+	
+	/**
+	 * trajectorySubset the time window and bounding box converted, null if the whole trajectory is converted.
+	 */
+	private TrajectorySubset trajectorySubset;
+	
+	/**
+	 * cfRoleVariable the variable with the cf_role attribute, the platform identifier. Null if not exists.
+	 */
+	private Variable cfRoleVariable;
+	
+	/**
+	 * coordinateList the trajectory coordinates of the last placemarks created.
+	 */
+	private List<Coordinate> coordinateList;
+	
+	/**
+	 * conversionListener the listeners of the conversion instrumentation: the {@link ConversionStatistics} MBean
+	 * and the listeners of the additional info.
+	 */
+	private ConversionListener conversionListener;
 
 	/**
 	 * Constructs a new {@link KmlManager}. The NetCDF file must be compliant with the following specification:
@@ -90,12 +183,41 @@ public class KmlManager implements Runnable {
 	 * 		The kml style info (Kml title name, data format pattern, line style color, template path and home, regular and end icon sytle)
 	 * 		The opendap link of the kml data
 	 * 
+	 * The kml manager becomes the owner of the given dataset, that is closed after the kml creation or
+	 * when the manager is closed.
+	 * 
 	 * @param netCDFDataSet the NetCDF file location, can be a local file or opendap link
 	 * @param additionalInfo the additional info provided. If null the default values will be provided to the kml manager.
 	 * @param outputFileName 
 	 * @throws IOException 
 	 */
 	public KmlManager(NetcdfDataset netCDFDataSet, AdditionalInfo additionalInfo, String outputFileName) throws IOException{
+		this(new NetcdfReadSession(netCDFDataSet), additionalInfo, outputFileName);
+	}
+	
+	/**
+	 * Constructs a new {@link KmlManager} opening the given NetCDF file location.
+	 * 
+	 * @param netCdfFileLocation the NetCDF file location, can be a local file or opendap link
+	 * @param additionalInfo the additional info provided. If null the default values will be provided to the kml manager.
+	 * @param outputFileName 
+	 * @throws IOException 
+	 * @see #KmlManager(NetcdfDataset, AdditionalInfo, String)
+	 */
+	public KmlManager(String netCdfFileLocation, AdditionalInfo additionalInfo, String outputFileName) throws IOException{
+		this(NetcdfReadSession.open(netCdfFileLocation), additionalInfo, outputFileName);
+	}
+	
+	/**
+	 * Constructs a new {@link KmlManager} reading the NetCDF file through the given {@link NetcdfReadSession}.
+	 * 
+	 * @param readSession the {@link NetcdfReadSession}, owned by the kml manager
+	 * @param additionalInfo the additional info provided. If null the default values will be provided to the kml manager.
+	 * @param outputFileName 
+	 * @throws IOException 
+	 * @see #KmlManager(NetcdfDataset, AdditionalInfo, String)
+	 */
+	public KmlManager(NetcdfReadSession readSession, AdditionalInfo additionalInfo, String outputFileName) throws IOException{
 		
 		try {
 			
@@ -104,11 +226,14 @@ public class KmlManager implements Runnable {
 			this.outputFileName = outputFileName;
 			
 			// Open the NetCDF file
-			this.netCdfFileLocation = netCDFDataSet.getLocation();
-			netcdfDataset = netCDFDataSet;
+			this.readSession = readSession;
+			this.netCdfFileLocation = readSession.getLocation();
+			netcdfDataset = readSession.getDataset();
 		
 			// Check that the files is compliant with the defined specifications
+			long checkFileStart = System.nanoTime();
 			checkFile(netcdfDataset);
+			long checkFileNanos = System.nanoTime() - checkFileStart;
 			
 			// Set the kml document name. Used as the balloon title name also.
 			String kmlDocumentName;
@@ -121,20 +246,64 @@ public class KmlManager implements Runnable {
 			// Set the additional info. If null then set to the default values
 			this.additionalInfo = additionalInfo;
 			if (null == this.additionalInfo){
-				KmlStyleInfo kmlStyleInfo = new KmlStyleInfo(kmlDocumentName, null, null, null, null, null, null);
-				this.additionalInfo = new AdditionalInfo(null, kmlStyleInfo, null, false);
-			} else if (null == this.additionalInfo.getKmlStyleInfo()){
-				KmlStyleInfo kmlStyleInfo = new KmlStyleInfo(kmlDocumentName, null, null, null, null, null, null);
-				this.additionalInfo.setKmlStyleInfo(kmlStyleInfo);
-			} else if (null == this.additionalInfo.getKmlStyleInfo().getKmlTitleName()){
-				this.additionalInfo.getKmlStyleInfo().setKmlTitleName(kmlDocumentName);
+				this.additionalInfo = new AdditionalInfo(null, null, null, false);
+			}
+			kmlStyleInfo = this.additionalInfo.getKmlStyleInfo();
+			if (null == kmlStyleInfo){
+				kmlStyleInfo = new KmlStyleInfo(kmlDocumentName, null, null, null, null, null, null);
+			}
+			kmlTitleName = kmlStyleInfo.getKmlTitleName();
+			if (null == kmlTitleName){
+				kmlTitleName = kmlDocumentName;
+			}
+			
+			// Instrument the conversion. The variable reads are reported by the read session
+			List<ConversionListener> conversionListenerList = new ArrayList<ConversionListener>();
+			conversionListenerList.add(ConversionStatistics.getInstance());
+			conversionListenerList.addAll(this.additionalInfo.getConversionListenerList());
+			conversionListener = new CompositeConversionListener(conversionListenerList);
+			readSession.setConversionListener(conversionListener);
+			conversionListener.conversionStarted(netCdfFileLocation);
+			if (readSession.getOpenNanos() > 0){
+				conversionListener.phaseFinished(netCdfFileLocation, ConversionPhase.OPEN, readSession.getOpenNanos());
+			}
+			conversionListener.phaseFinished(netCdfFileLocation, ConversionPhase.CHECK_FILE, checkFileNanos);
+			
+			// Get the coordinate variable list, resolved from the cached schema of the files with the same structure
+			String schemaFingerprint = DatasetSchema.computeFingerprint(netcdfDataset);
+			DatasetSchema datasetSchema = DatasetSchema.getCachedSchema(schemaFingerprint);
+			if (null != datasetSchema){
+				coordinateVariableMap = datasetSchema.resolveCoordinateAxisMap(netcdfDataset);
+			}
+			if (null == coordinateVariableMap){
+				datasetSchema = null;
+				coordinateVariableMap = getCoordinateVariableList(netcdfDataset);
 			}
 			
-			// Get the coordinate variable list
-			coordinateVariableMap = getCoordinateVariableList(netcdfDataset);
+			// Restrict the conversion to the subset. The incremental conversion converts the whole file
+			trajectorySubset = this.additionalInfo.getTrajectorySubset();
+			if (null != trajectorySubset && this.additionalInfo.isIncremental()){
+				logger.warn("The incremental conversion of " + netCdfFileLocation + " ignores the subset " + trajectorySubset);
+				trajectorySubset = null;
+			}
+			if (null != trajectorySubset && trajectorySubset.hasTimeWindow()){
+				initializeTimeWindow();
+			}
+			
+			// Resume the previous incremental conversion, reading only the new records
+			if (this.additionalInfo.isIncremental() && null != outputFileName){
+				outputFingerprint = this.additionalInfo.getOutputFingerprint();
+				initializeIncrementalConversion();
+			}
+			
+			// Only the display level of the two dimensional variables is fetched
+			readSession.setPrefetchLevel(this.additionalInfo.getDisplayLevel());
 			
 			// Initialize the ancillary variables manager
-			ancillaryVariablesMananger = new AncillaryVariablesManager(netcdfDataset, coordinateVariableMap);
+			ancillaryVariablesMananger = new AncillaryVariablesManager(readSession, coordinateVariableMap, this.additionalInfo.getQcFlagPolicy(), datasetSchema);
+			if (null == datasetSchema){
+				DatasetSchema.cacheSchema(new DatasetSchema(schemaFingerprint, coordinateVariableMap, ancillaryVariablesMananger));
+			}
 			
 			// Retrieve the variable list whitout the ancillary variable
 			variableListWithoutAncillaryVariables = ancillaryVariablesMananger.getVariableListWithotAncillaryVariables();
@@ -144,290 +313,1279 @@ public class KmlManager implements Runnable {
 //			ancillaryVariableList = ancillaryVariablesMananger.getAncillaryVariableList();
 			
 			// Find cf role variable, if exists remove it from the variableListWithotAncillaryVariables
-			Variable cfRole = findCFRoleVariable(variableListWithoutAncillaryVariables);
-			if (null != cfRole){
-				variableListWithoutAncillaryVariables.remove(cfRole);
+			cfRoleVariable = findCFRoleVariable(variableListWithoutAncillaryVariables);
+			if (null != cfRoleVariable){
+				variableListWithoutAncillaryVariables.remove(cfRoleVariable);
 			}
 			
-			initializeVariableArrayMap();
+			initializeVariableRenderPlanList();
+			
+			// The balloon layout is written once in the balloon style
+			if (kmlStyleInfo.isBalloonTemplate()){
+				balloonTemplate = BalloonTemplate.create(kmlStyleInfo, getTitle(), this.additionalInfo.getThreddsLink(), variableRenderPlanList);
+			}
 			
 			logger.info("Kml manager initialiced");
 
 		} catch (KmlManagerException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-			netcdfDataset.close();
+			readSession.close();
+			fireConversionFinished(false);
+		} catch (IOException e) {
+			fireConversionFinished(false);
+			throw e;
+		}
+	}
+	
+	private void fireConversionFinished(boolean success) {
+		if (null != conversionListener){
+			conversionListener.conversionFinished(netCdfFileLocation, success);
+		}
+	}
+	
+	/**
+	 * Restrict the records read to the time window of the {@link TrajectorySubset}. The first and last time index of
+	 * the window are found by binary search on the time coordinate, which must be monotone, and only the records of the
+	 * window are read from the record variables (see {@link NetcdfReadSession#setRecordRange(String, int, int)}).
+	 * 
+	 * @throws KmlManagerException if the time units can't be parsed
+	 * @throws IOException if the time can't be read or there aren't records in the time window
+	 */
+	private void initializeTimeWindow() throws KmlManagerException, IOException {
+		
+		Variable timeVariable = coordinateVariableMap.get(AxisType.Time);
+		
+		// The remote time coordinate is read in one request, the local one only at the probed indexes
+		TimeIndexSearch timeIndexSearch = new TimeIndexSearch(timeVariable, readSession.isRemote() ? readSession.read(timeVariable) : null);
+		
+		int firstIdx = 0;
+		if (null != trajectorySubset.getStartTimeMillis()){
+			firstIdx = timeIndexSearch.findFirstIndex(trajectorySubset.getStartTimeMillis());
+		}
+		
+		int lastIdx = timeIndexSearch.getSize() - 1;
+		if (null != trajectorySubset.getEndTimeMillis()){
+			lastIdx = timeIndexSearch.findLastIndex(trajectorySubset.getEndTimeMillis());
+		}
+		
+		if (firstIdx > lastIdx){
+			throw new IOException("The NetCDF file " + netCdfFileLocation + " doesn't have records in the time window of " + trajectorySubset);
+		}
+		
+		readSession.setRecordRange(timeVariable.getDimensions().get(0).getShortName(), firstIdx, lastIdx - firstIdx + 1);
+		recordOrigin = firstIdx;
+		
+		logger.info("Converting the time indexes " + firstIdx + " to " + lastIdx + " of " + timeIndexSearch.getSize() + ", "
+				+ timeIndexSearch.getProbeCount() + " time values probed");
+		
+	}
+	
+	/**
+	 * Load the checkpoint of the previous incremental conversion of the output file. If the checkpoint
+	 * is valid for the NetCDF file, the record range of the read session is set from the last placemark
+	 * written, so only the records appended since then are read. Otherwise the whole file is converted.
+	 * 
+	 * The checkpoint is valid if it was created from the same NetCDF location, with the same output fingerprint
+	 * (see {@link AdditionalInfo#getOutputFingerprint()}), and the time value of its
+	 * last placemark didn't change.
+	 * 
+	 * @throws IOException
+	 */
+	private void initializeIncrementalConversion() throws IOException {
+		
+		IncrementalCheckpoint checkpoint = IncrementalCheckpoint.load(outputFileName);
+		if (null == checkpoint){
+			logger.info("No checkpoint found for " + outputFileName + ", converting the whole file");
+			return;
+		}
+		
+		Variable timeVariable = coordinateVariableMap.get(AxisType.Time);
+		int lastIndex = checkpoint.getLastIndex();
+		
+		if (!netCdfFileLocation.equals(checkpoint.getSource()) || lastIndex < 0 || lastIndex >= timeVariable.getShape()[0]){
+			logger.warn("The checkpoint " + checkpoint + " doesn't match the NetCDF file " + netCdfFileLocation + ", converting the whole file");
+			return;
+		}
+		
+		// The journaled placemarks were written with the previous style, level, quality controls...
+		if (!outputFingerprint.equals(checkpoint.getOutputFingerprint())){
+			logger.warn("The conversion parameters changed since the checkpoint " + checkpoint + ", converting the whole file");
+			return;
+		}
+		
+		double lastTimeValue;
+		try {
+			lastTimeValue = timeVariable.read(new int[] {lastIndex}, new int[] {1}).getDouble(0);
+		} catch (InvalidRangeException e) {
+			throw new IOException(e.getMessage());
+		}
+		
+		if (lastTimeValue != checkpoint.getLastTimeValue()){
+			logger.warn("The time value of the checkpoint " + checkpoint + " changed to " + lastTimeValue + ", converting the whole file");
+			return;
+		}
+		
+		readSession.setRecordRange(timeVariable.getDimensions().get(0).getShortName(), lastIndex, -1);
+		previousCheckpoint = checkpoint;
+		recordOrigin = lastIndex;
+		
+		logger.info("Resuming the incremental conversion from the time index " + lastIndex);
+		
+	}
+	
+	/**
+	 * Initialize the render plan of each variable displayed in the placemark description. The variables
+	 * that can't be displayed are logged and discarded.
+	 * 
+	 * Only the display level of the two dimensional (time, level) variables is read, so the data read
+	 * depends on the number of time steps only.
+	 */
+	private void initializeVariableRenderPlanList() {
+		
+		variableRenderPlanList = new ArrayList<VariableRenderPlan>();
+		
+		for (Variable variable : variableListWithoutAncillaryVariables){
+			
+			try {
+				Variable qcVariable = ancillaryVariablesMananger.getQcVariable(variable);
+				variableRenderPlanList.add(new VariableRenderPlan(variable, qcVariable, readSession, additionalInfo.getDisplayLevel(), additionalInfo.getQcFlagPolicy()));
+			} catch (KmlManagerException e) {
+				logger.error(e.getMessage());
+			} catch (IOException e) {
+				logger.error("Impossible read the variable data of " + variable.getFullName() + " " + e.getMessage());
+				e.printStackTrace();
+			}
+			
+		}
+		
+	}
+
+	/**
+	 * Create a {@link Kml} object representation of the NetCDF file of type trajectory or trajectoryProfile.
+	 * 
+	 * First add the deployment position, if not null.  Loop over the time array to read the variable data, it
+	 * can be of one dimension (time) or two dimensions (time, level). If have two dimensions the value
+	 * displayed the current time index and the display level, by default the level zero, array.get(i,0).
+	 * 
+	 * If the latitude and longitude have quality controls applied, the bad positions won't be added to the
+	 * kml.
+	 * 
+	 * The whole kml object tree is kept in memory, use {@link #writeKmz(OutputStream)} for long deployments.
+	 * 
+	 * @return the {@link Kml} object
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 */
+	public Kml createKMLFile() throws KmlManagerException, IOException {
+		
+		checkNotResumed();
+		
+		// Create and initialize the kml object
+		Kml kml = new Kml();
+		final Document document = new Document();
+		kml.setFeature(document);
+		document.setName(getTitle());
+		document.setOpen(true);
+		kmlStyleInfo.setKmlDocumentStyle(document, getBalloonText());
+		
+		createPlacemarks(new DocumentPlacemarkSink(document), null);
+		
+		logger.info("Kml object created from the NetCDF file " + netCdfFileLocation);
+		
+		return kml;
+	}
+	
+	/**
+	 * Write the kmz representation of the NetCDF file to the given {@link OutputStream}. Each placemark
+	 * is serialized as soon as it is created, so the memory used doesn't depend on the deployment length.
+	 * The given {@link OutputStream} isn't closed.
+	 * 
+	 * @param outputStream the {@link OutputStream}
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 * @see #createKMLFile()
+	 */
+	public void writeKmz(OutputStream outputStream) throws KmlManagerException, IOException {
+		
+		checkNotResumed();
+		
+		KmzStreamWriter kmzStreamWriter = new KmzStreamWriter(outputStream, additionalInfo.getKmzCompression());
+		kmzStreamWriter.startDocument(getTitle(), kmlStyleInfo, getBalloonText());
+		
+		createPlacemarks(kmzStreamWriter, kmzStreamWriter.getZipOutputStream());
+		
+		logger.info("Kmz stream written from the NetCDF file " + netCdfFileLocation);
+		
+	}
+	
+	/**
+	 * Marshal the given {@link Kml}, created by {@link #createKMLFile()}, as kmz to the given file name. Unlike
+	 * {@link Kml#marshalAsKmz(String, Kml...)}, the kmz is compressed with the {@link KmzCompression} of the
+	 * {@link AdditionalInfo}.
+	 * 
+	 * @param kml the {@link Kml}
+	 * @param fileName the kmz file name
+	 * @throws IOException
+	 */
+	public void marshalAsKmz(Kml kml, String fileName) throws IOException {
+		
+		OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(fileName));
+		try {
+			KmzStreamWriter.marshalAsKmz(kml, outputStream, additionalInfo.getKmzCompression());
+		} finally {
+			outputStream.close();
+		}
+		
+	}
+	
+	/**
+	 * Write the kmz representation of the NetCDF file to the given {@link WritableByteChannel}.
+	 * The given {@link WritableByteChannel} isn't closed.
+	 * 
+	 * @param channel the {@link WritableByteChannel}
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 * @see #writeKmz(OutputStream)
+	 */
+	public void writeKmz(WritableByteChannel channel) throws KmlManagerException, IOException {
+		writeKmz(Channels.newOutputStream(channel));
+	}
+	
+	/**
+	 * Write the kmz representation of the NetCDF file to the given file name.
+	 * 
+	 * In incremental mode the kmz is written with {@link #writeIncrementalKmz(String)}.
+	 * 
+	 * @param fileName the kmz file name
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 * @see #writeKmz(OutputStream)
+	 */
+	public void writeKmz(String fileName) throws KmlManagerException, IOException {
+		
+		if (additionalInfo.isIncremental()){
+			writeIncrementalKmz(fileName);
+			return;
+		}
+		
+		OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(fileName));
+		try {
+			writeKmz(outputStream);
+		} finally {
+			outputStream.close();
+		}
+		
+	}
+	
+	/**
+	 * Write the kmz file incrementally. The placemarks of the previous conversion are copied from the
+	 * placemark journal, without reading nor decoding their NetCDF records again, and only the records
+	 * appended since the last placemark written are converted. The last placemark is converted again
+	 * because its end time and icon style change.
+	 * 
+	 * The kmz file, the journals and the checkpoint are written to temporary files and renamed once all
+	 * of them are complete, so an interrupted conversion leaves the previous ones in place.
+	 * 
+	 * @param fileName the kmz file name
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 */
+	private void writeIncrementalKmz(String fileName) throws KmlManagerException, IOException {
+		
+		if (null != previousCheckpoint && !fileName.equals(outputFileName)){
+			throw new KmlManagerException("The incremental conversion was resumed for " + outputFileName + ", not for " + fileName);
+		}
+		
+		File kmzFile = new File(fileName);
+		File placemarkJournalFile = IncrementalCheckpoint.getPlacemarkJournalFile(fileName);
+		File coordinateJournalFile = IncrementalCheckpoint.getCoordinateJournalFile(fileName);
+		File checkpointFile = IncrementalCheckpoint.getCheckpointFile(fileName);
+		
+		File tmpKmzFile = getTemporaryFile(kmzFile);
+		File tmpPlacemarkJournalFile = getTemporaryFile(placemarkJournalFile);
+		File tmpCoordinateJournalFile = getTemporaryFile(coordinateJournalFile);
+		File tmpCheckpointFile = getTemporaryFile(checkpointFile);
+		
+		coordinateList = new ArrayList<Coordinate>();
+		if (null != previousCheckpoint){
+			coordinateList.addAll(IncrementalCheckpoint.readCoordinateJournal(coordinateJournalFile));
+		}
+		
+		OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tmpKmzFile));
+		Writer placemarkJournal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpPlacemarkJournalFile), "UTF-8"));
+		
+		try {
+			
+			KmzStreamWriter kmzStreamWriter = new KmzStreamWriter(outputStream, additionalInfo.getKmzCompression());
+			kmzStreamWriter.startDocument(getTitle(), kmlStyleInfo, getBalloonText());
+			kmzStreamWriter.setPlacemarkJournal(placemarkJournal);
+			
+			if (null != previousCheckpoint){
+				Reader previousPlacemarkJournal = new InputStreamReader(new FileInputStream(placemarkJournalFile), "UTF-8");
+				try {
+					kmzStreamWriter.appendJournaledPlacemarks(previousPlacemarkJournal);
+				} finally {
+					previousPlacemarkJournal.close();
+				}
+			}
+			
+			createPlacemarks(kmzStreamWriter, kmzStreamWriter.getZipOutputStream());
+			
+		} finally {
+			outputStream.close();
+			placemarkJournal.close();
+		}
+		
+		// The coordinate of the last placemark is added again by the next conversion
+		if (null != lastCheckpoint){
+			IncrementalCheckpoint.writeCoordinateJournal(tmpCoordinateJournalFile, coordinateList.subList(0, coordinateList.size() - 1));
+			lastCheckpoint.save(tmpCheckpointFile);
+			replaceFile(tmpPlacemarkJournalFile, placemarkJournalFile);
+			replaceFile(tmpCoordinateJournalFile, coordinateJournalFile);
+			replaceFile(tmpCheckpointFile, checkpointFile);
+		} else {
+			tmpPlacemarkJournalFile.delete();
+			checkpointFile.delete();
+			placemarkJournalFile.delete();
+			coordinateJournalFile.delete();
+		}
+		replaceFile(tmpKmzFile, kmzFile);
+		
+		logger.info("Kmz file " + fileName + " written incrementally from the time index " + recordOrigin);
+		
+	}
+	
+	private static File getTemporaryFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+	
+	/**
+	 * Replace the target file with the given source file.
+	 * 
+	 * @param source the source file
+	 * @param target the target file
+	 * @throws IOException
+	 */
+	private static void replaceFile(File source, File target) throws IOException {
+		
+		if (source.renameTo(target)){
+			return;
+		}
+		
+		// Some platforms can't rename over an existing file
+		if (!target.delete() || !source.renameTo(target)){
+			throw new IOException("Impossible rename " + source + " to " + target);
+		}
+		
+	}
+	
+	/**
+	 * The incremental conversion resumed from a checkpoint converts only the new records, so the whole
+	 * kml can only be written to the output file.
+	 * 
+	 * @throws KmlManagerException
+	 */
+	private void checkNotResumed() throws KmlManagerException {
+		if (null != previousCheckpoint){
+			throw new KmlManagerException("The incremental conversion of " + netCdfFileLocation + " can only be written to " + outputFileName);
+		}
+	}
+	
+	/**
+	 * Send the placemarks of the trajectory to the given {@link PlacemarkSink}, for example a {@link KmlFolderWriter}
+	 * of a {@link FleetKmzWriter} document. The styles are defined by the document of the sink, so the
+	 * {@link BalloonTemplate} is ignored and each placemark has its own description.
+	 * 
+	 * @param placemarkSink the {@link PlacemarkSink}
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 */
+	public void writePlacemarks(PlacemarkSink placemarkSink) throws KmlManagerException, IOException {
+		
+		checkNotResumed();
+		
+		if (null != balloonTemplate){
+			logger.warn("The balloon template of " + netCdfFileLocation + " is ignored, the placemark styles are defined by the sink document");
+			balloonTemplate = null;
+		}
+		
+		createPlacemarks(placemarkSink, null);
+		
+		logger.info("Placemarks written from the NetCDF file " + netCdfFileLocation);
+		
+	}
+	
+	/**
+	 * Retrieve the platform name: the title global attribute or, if not exists, the value of the cf_role variable.
+	 * Must be called before the placemarks are written, because then the NetCDF file is closed.
+	 * 
+	 * @return the platform name, the NetCDF file location if it doesn't have title nor cf_role variable.
+	 */
+	public String getPlatformName() {
+		
+		Attribute title = netcdfDataset.findGlobalAttribute(AttributesNamesAndValues.TITLE);
+		if (null != title && null != title.getStringValue()){
+			return title.getStringValue();
+		}
+		
+		if (null != cfRoleVariable){
+			try {
+				DataType dataType = cfRoleVariable.getDataType();
+				String platformName;
+				if (DataType.CHAR == dataType || DataType.STRING == dataType){
+					platformName = cfRoleVariable.readScalarString();
+				} else {
+					platformName = String.valueOf(cfRoleVariable.read().getObject(0));
+				}
+				if (null != platformName && !"".equals(platformName.trim())){
+					return platformName.trim();
+				}
+			} catch (IOException e) {
+				logger.warn("Impossible read the cf role variable " + cfRoleVariable.getFullName() + ": " + e.getMessage());
+			}
+		}
+		
+		return netCdfFileLocation;
+	}
+	
+	/**
+	 * Write the kmz representation of the NetCDF file partitioned by time periods to the given {@link OutputStream}.
+	 * The given {@link OutputStream} isn't closed.
+	 * 
+	 * @param outputStream the {@link OutputStream}
+	 * @param timePartition the {@link TimePartition}
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 * @see PartitionedKmzWriter
+	 */
+	public void writePartitionedKmz(OutputStream outputStream, TimePartition timePartition) throws KmlManagerException, IOException {
+		
+		checkNotResumed();
+		
+		PartitionedKmzWriter partitionedKmzWriter = new PartitionedKmzWriter(outputStream, timePartition, additionalInfo.getLineSimplificationTolerance(),
+				additionalInfo.getKmzCompression());
+		partitionedKmzWriter.startDocument(getTitle(), kmlStyleInfo, getBalloonText(), findPlacemarkPeriods(timePartition));
+		
+		createPlacemarks(partitionedKmzWriter, partitionedKmzWriter.getZipOutputStream());
+		
+		logger.info("Partitioned kmz stream written from the NetCDF file " + netCdfFileLocation);
+		
+	}
+	
+	/**
+	 * Write the kmz representation of the NetCDF file partitioned by time periods to the given file name.
+	 * 
+	 * @param fileName the kmz file name
+	 * @param timePartition the {@link TimePartition}
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 * @see #writePartitionedKmz(OutputStream, TimePartition)
+	 */
+	public void writePartitionedKmz(String fileName, TimePartition timePartition) throws KmlManagerException, IOException {
+		
+		OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(fileName));
+		try {
+			writePartitionedKmz(outputStream, timePartition);
+		} finally {
+			outputStream.close();
+		}
+		
+	}
+	
+	/**
+	 * Write the trajectory to all the given {@link TrajectoryWriter} in a single pass. The NetCDF file is read,
+	 * the quality controls applied and the time and positions decoded once, then each good position row is sent
+	 * to every writer, so one conversion emits several formats and style variants at once: GeoJSON, GPX, CZML
+	 * and kmz with other {@link KmlStyleInfo} (see {@link #createKmzTrajectoryWriter(OutputStream, KmlStyleInfo)}).
+	 * 
+	 * The time spent in the writers is reported to the conversion listener as marshalling.
+	 * 
+	 * @param trajectoryWriterList the {@link TrajectoryWriter} list
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 */
+	public void writeTrajectory(List<TrajectoryWriter> trajectoryWriterList) throws KmlManagerException, IOException {
+		
+		checkNotResumed();
+		
+		boolean success = false;
+		
+		try {
+			
+			String title = getTitle();
+			loadTrajectoryCoordinates();
+			
+			// Retrieve the first and last good data index
+			int[] goodDataRange = getGoodDataRange();
+			int firstGoodDataIdx = goodDataRange[0];
+			int latestGoodDataIdx = goodDataRange[1];
+			
+			long loopStart = System.nanoTime();
+			long writerNanos = 0;
+			long writerStart = System.nanoTime();
+			int goodPositionCount = 0;
+			int nanPositionCount = 0;
+			int writtenRowCount = 0;
+			
+			TrajectoryHeader trajectoryHeader = new TrajectoryHeader(netCdfFileLocation, title, additionalInfo.getThreddsLink(),
+					getSubsetDeploymentInfo(), variableRenderPlanList);
+			for (TrajectoryWriter trajectoryWriter : trajectoryWriterList){
+				trajectoryWriter.startTrajectory(trajectoryHeader);
+			}
+			writerNanos += System.nanoTime() - writerStart;
+			
+			// The row is reused, the writers copy the values they retain
+			TrajectoryRow trajectoryRow = new TrajectoryRow(variableRenderPlanList);
+			boolean singlePrecision = trajectoryCoordinates.isSinglePrecisionPosition();
+			
+			for (int i = ancillaryVariablesMananger.findGoodPositionIdx(firstGoodDataIdx); -1 != i && i <= latestGoodDataIdx; i = ancillaryVariablesMananger.findGoodPositionIdx(i + 1)){
+				
+				goodPositionCount++;
+				
+				if (trajectoryCoordinates.isNaNPosition(i)){
+					nanPositionCount++;
+					continue;
+				}
+				
+				trajectoryRow.set(i, trajectoryCoordinates.getTimeMillis(i), getEndTimeMillis(i, latestGoodDataIdx),
+						trajectoryCoordinates.getLatitude(i), trajectoryCoordinates.getLongitude(i), singlePrecision);
+				
+				writerStart = System.nanoTime();
+				for (TrajectoryWriter trajectoryWriter : trajectoryWriterList){
+					trajectoryWriter.addRow(trajectoryRow);
+				}
+				writerNanos += System.nanoTime() - writerStart;
+				writtenRowCount++;
+				
+			}
+			
+			writerStart = System.nanoTime();
+			for (TrajectoryWriter trajectoryWriter : trajectoryWriterList){
+				trajectoryWriter.finishTrajectory();
+			}
+			writerNanos += System.nanoTime() - writerStart;
+			
+			// Report the conversion metrics
+			String location = netCdfFileLocation;
+			conversionListener.phaseFinished(location, ConversionPhase.ROW_LOOP, System.nanoTime() - loopStart - writerNanos);
+			conversionListener.phaseFinished(location, ConversionPhase.MARSHALLING, writerNanos);
+			
+			int rowCount = latestGoodDataIdx - firstGoodDataIdx + 1;
+			conversionListener.counted(location, ConversionCounter.ROWS, rowCount);
+			conversionListener.counted(location, ConversionCounter.ROWS_SKIPPED_BAD_QC, rowCount - goodPositionCount);
+			conversionListener.counted(location, ConversionCounter.ROWS_SKIPPED_NAN, nanPositionCount);
+			conversionListener.counted(location, ConversionCounter.PLACEMARKS, writtenRowCount);
+			
+			logger.info(writtenRowCount + " rows written to " + trajectoryWriterList.size() + " trajectory writers from the NetCDF file " + netCdfFileLocation);
+			
+			success = true;
+			
+		} finally {
+			
+			readSession.close();
+			fireConversionFinished(success);
+			
+		}
+		
+	}
+	
+	/**
+	 * Create a {@link TrajectoryWriter} that writes the kmz representation of the trajectory with the given
+	 * style to the given {@link OutputStream}, to be used with {@link #writeTrajectory(List)}. The given
+	 * {@link OutputStream} isn't closed.
+	 * 
+	 * @param outputStream the {@link OutputStream}
+	 * @param kmlStyleInfo the {@link KmlStyleInfo} of this style variant. Without title, the kml document name of this file.
+	 * @return the {@link TrajectoryWriter}
+	 */
+	public TrajectoryWriter createKmzTrajectoryWriter(OutputStream outputStream, KmlStyleInfo kmlStyleInfo) {
+		
+		String variantTitleName = kmlStyleInfo.getKmlTitleName();
+		if (null == variantTitleName){
+			variantTitleName = kmlTitleName;
+		}
+		
+		return new KmzTrajectoryWriter(new KmzStreamWriter(outputStream, additionalInfo.getKmzCompression()), kmlStyleInfo, variantTitleName);
+	}
+	
+	/**
+	 * {@link TrajectoryWriter} that creates the placemarks of the rows with its own {@link KmlStyleInfo} and
+	 * serializes them with a {@link KmzStreamWriter}.
+	 */
+	private class KmzTrajectoryWriter implements TrajectoryWriter {
+		
+		private KmzStreamWriter kmzStreamWriter;
+		
+		private KmlStyleInfo kmlStyleInfo;
+		
+		private PlacemarkBalloonRenderer balloonRenderer;
+		
+		private BalloonTemplate kmzBalloonTemplate;
+		
+		private List<Coordinate> coordinateList = new ArrayList<Coordinate>();
+		
+		/**
+		 * variantTitleName the kml document name of this style variant.
+		 */
+		private String variantTitleName;
+		
+		private KmzTrajectoryWriter(KmzStreamWriter kmzStreamWriter, KmlStyleInfo kmlStyleInfo, String variantTitleName) {
+			this.kmzStreamWriter = kmzStreamWriter;
+			this.kmlStyleInfo = kmlStyleInfo;
+			this.variantTitleName = variantTitleName;
+		}
+		
+		@Override
+		public void startTrajectory(TrajectoryHeader trajectoryHeader) throws IOException {
+			
+			String threddsLink = trajectoryHeader.getThreddsLink();
+			
+			String title = KmlStyleInfo.formatKmlTitleName(variantTitleName, threddsLink);
+			
+			// The balloon layout is written once in the balloon style
+			String balloonText = null;
+			if (kmlStyleInfo.isBalloonTemplate()){
+				kmzBalloonTemplate = BalloonTemplate.create(kmlStyleInfo, title, threddsLink, trajectoryHeader.getVariableRenderPlanList());
+				balloonText = kmzBalloonTemplate.getText();
+			}
+			
+			balloonRenderer = new PlacemarkBalloonRenderer(title, threddsLink, kmlStyleInfo.getDateFormatPattern(), trajectoryHeader.getVariableRenderPlanList());
+			kmzStreamWriter.startDocument(title, kmlStyleInfo, balloonText);
+			
+			if (null != trajectoryHeader.getDeploymentInfo()){
+				kmzStreamWriter.addPlacemark(createDeploymentPlacemark(coordinateList, title));
+			}
+			
+		}
+		
+		@Override
+		public void addRow(TrajectoryRow trajectoryRow) throws IOException {
+			
+			Placemark placemark = createPlacemark(trajectoryRow.getIndex(), trajectoryRow.getEndTimeMillis(), balloonRenderer, kmzBalloonTemplate);
+			coordinateList.add(((Point) placemark.getGeometry()).getCoordinates().get(0));
+			kmzStreamWriter.addPlacemark(placemark);
+			
+		}
+		
+		@Override
+		public void finishTrajectory() throws IOException {
+			
+			List<Placemark> linePlacemarkList;
+			if (coordinateList.isEmpty()){
+				linePlacemarkList = new ArrayList<Placemark>();
+			} else {
+				linePlacemarkList = createLinePlacemarks(coordinateList);
+			}
+			
+			kmzStreamWriter.finish(linePlacemarkList);
+			
+		}
+		
+	}
+	
+	/**
+	 * Find the time periods with placemarks, the periods of the deployment time and of the good positions.
+	 * 
+	 * @param timePartition the {@link TimePartition}
+	 * @return the start of the periods, in time order
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 */
+	private List<Long> findPlacemarkPeriods(TimePartition timePartition) throws KmlManagerException, IOException {
+		
+		loadTrajectoryCoordinates();
+		
+		SortedSet<Long> periodStartSet = new TreeSet<Long>();
+		
+		if (null != getSubsetDeploymentInfo() && null == previousCheckpoint){
+			Date date = DateUnit.getStandardOrISO(additionalInfo.getDeploymentInfo().getTime());
+			if (null != date){
+				periodStartSet.add(timePartition.getPeriodStart(date.getTime()));
+			}
+		}
+		
+		int[] goodDataRange = getGoodDataRange();
+		for (int i = ancillaryVariablesMananger.findGoodPositionIdx(goodDataRange[0]); -1 != i && i <= goodDataRange[1]; i = ancillaryVariablesMananger.findGoodPositionIdx(i + 1)){
+			if (!trajectoryCoordinates.isNaNPosition(i)){
+				periodStartSet.add(timePartition.getPeriodStart(trajectoryCoordinates.getTimeMillis(i)));
+			}
+		}
+		
+		return new ArrayList<Long>(periodStartSet);
+		
+	}
+	
+	/**
+	 * Read and decode the time, latitude and longitude coordinate data, if not decoded yet.
+	 * 
+	 * @throws KmlManagerException
+	 * @throws IOException
+	 */
+	private void loadTrajectoryCoordinates() throws KmlManagerException, IOException {
+		
+		if (null != trajectoryCoordinates){
+			return;
+		}
+		
+		Variable timeVariable = coordinateVariableMap.get(AxisType.Time);
+		Variable lonVariable = coordinateVariableMap.get(AxisType.Lon);
+		Variable latVariable = coordinateVariableMap.get(AxisType.Lat);
+		Array timeArrayData = readSession.read(timeVariable);
+		
+		// I don't know why but if NetcdfDataset is used to read the 
+		// latitude and longitude variable, then NaN values are read
+		// in  some files. (Socib argo profiles). The raw view is used.
+		Array lonArrayData = readSession.readRaw(lonVariable.getFullName());
+		Array latArrayData = readSession.readRaw(latVariable.getFullName());
+		
+		// Decode the time, latitude and longitude once
+		trajectoryCoordinates = new TrajectoryCoordinates(timeArrayData, timeVariable.getUnitsString(), latArrayData, lonArrayData);
+		
+		// The positions outside the bounding box are skipped like the bad positions
+		if (null != trajectorySubset && trajectorySubset.hasBoundingBox()){
+			int size = trajectoryCoordinates.getSize();
+			BitSet boxPositions = new BitSet(size);
+			for (int i = 0; i < size; i++){
+				if (trajectorySubset.containsPosition(trajectoryCoordinates.getLatitude(i), trajectoryCoordinates.getLongitude(i))){
+					boxPositions.set(i);
+				}
+			}
+			ancillaryVariablesMananger.restrictGoodPositions(boxPositions, size);
+			logger.info(boxPositions.cardinality() + " of " + size + " positions inside the bounding box of " + trajectorySubset);
 		}
+		
 	}
 	
 	/**
-	 * Initialize the map with variable as key and array data as value
+	 * Retrieve the deployment info if the deployment is inside the {@link TrajectorySubset}.
+	 * 
+	 * @return the {@link DeploymentInfo}, null if there isn't deployment info or it is outside the subset.
 	 */
-	private void initializeVariableArrayMap() {
+	private DeploymentInfo getSubsetDeploymentInfo() {
 		
-		variableArrayMap = new HashMap<Variable, Array>();
+		DeploymentInfo deploymentInfo = additionalInfo.getDeploymentInfo();
+		if (null == deploymentInfo || null == trajectorySubset){
+			return deploymentInfo;
+		}
 		
-		for (Variable variable : variableListWithoutAncillaryVariables){
-
+		if (trajectorySubset.hasTimeWindow()){
+			Date date = DateUnit.getStandardOrISO(deploymentInfo.getTime());
+			if (null == date || !trajectorySubset.containsTime(date.getTime())){
+				return null;
+			}
+		}
+		
+		if (trajectorySubset.hasBoundingBox()){
 			try {
-				variableArrayMap.put(variable, variable.read());
-			} catch (IOException e) {
-				logger.error("Impossible read the variable data of " + variable.getFullName());
-				e.printStackTrace();
+				if (!trajectorySubset.containsPosition(Double.parseDouble(deploymentInfo.getLatitude()), Double.parseDouble(deploymentInfo.getLongitude()))){
+					return null;
+				}
+			} catch (NumberFormatException e) {
+				return null;
 			}
-			
 		}
-
+		
+		return deploymentInfo;
 	}
-
+	
 	/**
-	 * Create a {@link Kml} object representation of the NetCDF file of type trajectory or trajectoryProfile.
+	 * Retrieve the first and last good data index. Without quality controls, the first and last index.
 	 * 
-	 * First add the deployment position, if not null.  Loop over the time array to read the variable data, it
-	 * can be of one dimension (time) or two dimensions (time, level). If have two dimensions the value
-	 * displayed the current time index and the level zero, array.get(i,0).
+	 * @return the first and last good data index
+	 * @throws KmlManagerException if no good data were found
+	 */
+	private int[] getGoodDataRange() throws KmlManagerException {
+		
+		// Retrieve the first good data index
+		Integer firstGoodDataIdx = ancillaryVariablesMananger.getFirstGoodDataIdx();
+		// Retrieve the last good data index
+		Integer latestGoodDataIdx = ancillaryVariablesMananger.getLastestGoodDataIdx();
+		
+		// No filter data without quality controls
+		if (null == latestGoodDataIdx || null == firstGoodDataIdx){
+			firstGoodDataIdx = 0;
+			latestGoodDataIdx = trajectoryCoordinates.getSize() - 1;
+		}
+		
+		if (-1 == latestGoodDataIdx || -1 == firstGoodDataIdx){
+			throw new KmlManagerException("createKMLFile() -- No good data were found in the NetCDF " + netcdfDataset.getLocation());
+		}
+		
+		return new int[] {firstGoodDataIdx, latestGoodDataIdx};
+	}
+	
+	/**
+	 * Create the trajectory placemarks and send them to the given {@link PlacemarkSink}, in time order.
+	 * Finally send the line string placemark, that represent the platform trajectory.
 	 * 
-	 * If the latitude and longitude have quality controls applied, the bad positions won't be added to the
-	 * kml.
+	 * The time spent creating the placemarks, in the placemark sink and compressing the kmz, and the row
+	 * counters are reported to the conversion listener.
 	 * 
-	 * @return the {@link Kml} object
+	 * @param placemarkSink the {@link PlacemarkSink}
+	 * @param zipOutputStream the kmz stream written by the placemark sink, null if the sink doesn't write a kmz.
 	 * @throws KmlManagerException
 	 * @throws IOException
 	 */
-	public Kml createKMLFile() throws KmlManagerException, IOException {
+	private void createPlacemarks(PlacemarkSink placemarkSink, MeteredZipOutputStream zipOutputStream) throws KmlManagerException, IOException {
+		
+		boolean success = false;
 		
-		Kml kml = null;
-
 		try {
 			
-			
-//			NetcdfFile netcdfFile = NetcdfFile.open(net);
-			
-			// Create and initialize the kml object
-			kml = new Kml();
-			final Document document = new Document();
-			KmlStyleInfo kmlStyleInfo =  additionalInfo.getKmlStyleInfo();
-			String title = kmlStyleInfo.getKmlTitleName(additionalInfo.getThreddsLink());
-			kml.setFeature(document);
-			document.setName(title);
-			document.setOpen(true);
-			kmlStyleInfo.setKmlDocumentStyle(document);
+			final String title = getTitle();
+			int placemarkCount = 0;
+			int lastPlacemarkIdx = -1;
 			
 			// Retrieve the time, latitude and longitude coordinate data
 			Variable timeVariable = coordinateVariableMap.get(AxisType.Time);
-			Variable lonVariable = coordinateVariableMap.get(AxisType.Lon);
-			Variable latVariable = coordinateVariableMap.get(AxisType.Lat);
-			Array timeArrayData = timeVariable.read();
-			
-			// I don't know why but if NetcdfDataset is used to read the 
-			// latitude and longitude variable, then NaN values are read
-			// in  some files. (Socib argo profiles).
-			NetcdfFile netcdfFile = NetcdfFile.open(netCdfFileLocation);
-			Array lonArrayData = netcdfFile.readSection(lonVariable.getFullName());
-			Array latArrayData = netcdfFile.readSection(latVariable.getFullName());
+			Array timeArrayData = readSession.read(timeVariable);
+			loadTrajectoryCoordinates();
 			
 			// The coordinate list needed to generate the line string. Represent the platform trajectory.
-			List<Coordinate> coordinateList = new ArrayList<Coordinate>();
+			// When an incremental conversion is resumed it already has the coordinates journaled.
+			if (null == previousCheckpoint || null == coordinateList){
+				coordinateList = new ArrayList<Coordinate>();
+			}
+			lastCheckpoint = null;
 			
-			// Retrieve the first good data index
-			Integer firstGoodDataIdx = ancillaryVariablesMananger.getFirstGoodDataIdx();
-			// Retrieve the last good data index
-			Integer latestGoodDataIdx = ancillaryVariablesMananger.getLastestGoodDataIdx();
+			// Retrieve the first and last good data index
+			int[] goodDataRange = getGoodDataRange();
+			int firstGoodDataIdx = goodDataRange[0];
+			int latestGoodDataIdx = goodDataRange[1];
 			
-			// No filter data without quality controls
-			if (null == latestGoodDataIdx || null == firstGoodDataIdx){
-				firstGoodDataIdx = 0;
-				latestGoodDataIdx = (int) timeVariable.getSize() - 1;
-			}
+			// The time spent in the sink and compressing is measured apart from the row loop
+			long loopStart = System.nanoTime();
+			long compressionStart = null == zipOutputStream ? 0 : zipOutputStream.getCompressionNanos();
+			long sinkNanos = 0;
+			long sinkStart;
+			int goodPositionCount = 0;
+			int nanPositionCount = 0;
 			
-			if (-1 == latestGoodDataIdx || -1 == firstGoodDataIdx){
-				throw new KmlManagerException("createKMLFile() -- No good data were found in the NetCDF " + netcdfDataset.getLocation());
+			// Add the deployment info if not null. Already journaled when the incremental conversion is resumed.
+			if (null != getSubsetDeploymentInfo() && null == previousCheckpoint){
+				placemarkSink.addPlacemark(createDeploymentPlacemark(coordinateList, title));
+				placemarkCount++;
 			}
 			
-			// Add the deployment info if not null
-			if (null != additionalInfo.getDeploymentInfo()){
-				addDeploymentPosition(document, coordinateList);
+			// It doesn't add to the kml bad positions, only the good position indexes are visited
+			int placemarkWorkerCount = additionalInfo.getPlacemarkWorkerCount();
+			if (placemarkWorkerCount < 1){
+				placemarkWorkerCount = Runtime.getRuntime().availableProcessors();
 			}
 			
-			Index timeIndex1D = new Index1D(timeVariable.getShape());
-			timeIndex1D.set(firstGoodDataIdx);
-			for (int i = firstGoodDataIdx; i <= latestGoodDataIdx; i++){
-				
-				// It doesn't add to the kml bad positions
-				if (!ancillaryVariablesMananger.isGoodPosition(timeIndex1D)){
-					logger.debug("Bad data");
-					timeIndex1D.incr();
-					continue;
-				}
+			if (placemarkWorkerCount > 1 && latestGoodDataIdx - firstGoodDataIdx >= PLACEMARK_CHUNK_SIZE){
 				
-				String timeString = timeArrayData.getObject(timeIndex1D).toString();
-				String lonString = lonArrayData.getObject(timeIndex1D).toString();
-				String latString = latArrayData.getObject(timeIndex1D).toString();
-				
-				if ("NaN".equals(latString) || "NaN".equals(lonString)){
-					//logger.warn("The latitude or longitude value is NaN");
-					timeIndex1D.incr();
-					continue;
+				// The chunks are created in parallel and sent to the sink in order
+				ExecutorService placemarkExecutor = Executors.newFixedThreadPool(placemarkWorkerCount);
+				try {
+					
+					Deque<Future<PlacemarkChunk>> placemarkChunkQueue = new ArrayDeque<Future<PlacemarkChunk>>();
+					int nextChunkIdx = firstGoodDataIdx;
+					
+					while (nextChunkIdx <= latestGoodDataIdx || !placemarkChunkQueue.isEmpty()){
+						
+						// Bound the placemarks in memory
+						while (nextChunkIdx <= latestGoodDataIdx && placemarkChunkQueue.size() < 2 * placemarkWorkerCount){
+							final int fromIdx = nextChunkIdx;
+							final int toIdx = (int) Math.min((long) fromIdx + PLACEMARK_CHUNK_SIZE - 1, latestGoodDataIdx);
+							final int lastIdx = latestGoodDataIdx;
+							placemarkChunkQueue.add(placemarkExecutor.submit(new Callable<PlacemarkChunk>() {
+								@Override
+								public PlacemarkChunk call() {
+									return createPlacemarkChunk(fromIdx, toIdx, lastIdx, title);
+								}
+							}));
+							nextChunkIdx = toIdx + 1;
+						}
+						
+						PlacemarkChunk placemarkChunk = getPlacemarkChunk(placemarkChunkQueue.poll());
+						goodPositionCount += placemarkChunk.goodPositionCount;
+						nanPositionCount += placemarkChunk.nanPositionCount;
+						coordinateList.addAll(placemarkChunk.coordinateList);
+						
+						sinkStart = System.nanoTime();
+						for (Placemark placemark : placemarkChunk.placemarkList){
+							placemarkSink.addPlacemark(placemark);
+						}
+						sinkNanos += System.nanoTime() - sinkStart;
+						placemarkCount += placemarkChunk.placemarkList.size();
+						
+						if (-1 != placemarkChunk.lastPlacemarkIdx){
+							lastPlacemarkIdx = placemarkChunk.lastPlacemarkIdx;
+						}
+						
+					}
+					
+				} finally {
+					placemarkExecutor.shutdownNow();
 				}
 				
-				BigDecimal timeBigDecimal = new BigDecimal(timeString);
-				Date date = DateUnit.getStandardOrISO(Long.valueOf(timeBigDecimal.longValue()) + " " + timeVariable.getUnitsString());
-				BigDecimal lonBigDecimal = new BigDecimal(lonString);
-				BigDecimal latBigDecimal = new BigDecimal(latString);
-				
-				// Add the header description (Title, time and position)
-				StringBuffer placemarkBalloonDescription = new StringBuffer();
-				placemarkBalloonDescription.append("<h3>" + title + "</h3>");
-				placemarkBalloonDescription.append("<br> <strong>Time: </strong>" + format(date.getTime(), kmlStyleInfo.getDateFormatPattern()));
-				placemarkBalloonDescription.append("<br> <strong>Position: </strong>" + PositionManager.getLatGeoCoordinate(latBigDecimal) + " " + PositionManager.getLonGeoCoordinate(lonBigDecimal));
-				placemarkBalloonDescription.append("<br>");
+			} else {
 				
-				logger.debug("Time: " + format(date.getTime(), kmlStyleInfo.getDateFormatPattern()) + " Lat: " + latBigDecimal.toEngineeringString() + " Lon: " +  lonBigDecimal.toPlainString());
+				PlacemarkBalloonRenderer balloonRenderer = new PlacemarkBalloonRenderer(title, additionalInfo.getThreddsLink(), kmlStyleInfo.getDateFormatPattern(), variableRenderPlanList);
 				
-				// Add the variable name and current value to the description
-				for (Variable variable : variableListWithoutAncillaryVariables){
+				for (int i = ancillaryVariablesMananger.findGoodPositionIdx(firstGoodDataIdx); -1 != i && i <= latestGoodDataIdx; i = ancillaryVariablesMananger.findGoodPositionIdx(i + 1)){
 					
-					String data;
-					try {
-						data = readDataLike1D(variable, timeIndex1D);
-					} catch (NullPointerException e){
-						logger.error("createKMLFile() -- Null pointer exception reading " + variable.getFullName());
-						continue;
-					} catch (IOException e){
-						logger.error(e.getMessage());
+					goodPositionCount++;
+					
+					if (trajectoryCoordinates.isNaNPosition(i)){
+						//logger.warn("The latitude or longitude value is NaN");
+						nanPositionCount++;
 						continue;
 					}
 					
-					placemarkBalloonDescription.append("<br><strong>" + variable.getFullName() + ": </strong>" + data);
+					Placemark placemarkBalloon = createPlacemark(i, getEndTimeMillis(i, latestGoodDataIdx), balloonRenderer, balloonTemplate);
 					
-					logger.debug("Data from " + variable.getFullName()  + " " + data);
+					/*
+					 * Add the coordinate to the coordinate list. Needed to create the line string, that
+					 * represent the platform trajectory
+					 */
+					coordinateList.add(((Point) placemarkBalloon.getGeometry()).getCoordinates().get(0));
+					
+					sinkStart = System.nanoTime();
+					placemarkSink.addPlacemark(placemarkBalloon);
+					sinkNanos += System.nanoTime() - sinkStart;
+					placemarkCount++;
+					
+					lastPlacemarkIdx = i;
 					
 				}
 				
-				// Add the opendap link 
-				if (additionalInfo.hasThreddsLink()){
-					placemarkBalloonDescription.append("<br> <strong>TDS link:</strong> <a href=\"" + additionalInfo.getThreddsLink() + "\" title=\"OPeNDAP link\"> OPeNDAP link</a>");
-				}
-				
-				/*
-				 * Add the deployment placemark ballom to the kml document 
-				 */
-				final Placemark placemarkBalloon = new Placemark();
-				placemarkBalloon.setDescription(placemarkBalloonDescription.toString());
-				placemarkBalloon.setStyleUrl("#styleForRegularIcon");
-				final Point point = new Point();
-				placemarkBalloon.setGeometry(point);
-				final List<Coordinate> coord = new ArrayList<Coordinate>();
-				point.setCoordinates(coord);
-				coord.add(new Coordinate(lonBigDecimal.floatValue(), latBigDecimal.floatValue()));
-				
-				/*
-				 * Add the coordinate to the coordinate list. Needed to create the line string, that
-				 * represent the platform trajectory
-				 */
-				coordinateList.add(new Coordinate(lonBigDecimal.floatValue(), latBigDecimal.floatValue()));
-				
-				/*
-				 * 
-				 */
-				TimeSpan ts = new TimeSpan();
-				String beginTimeString = format(date.getTime(), "yyyy-MM-dd HH:mm:ss").replace(" ", "T");
-				ts.setBegin(beginTimeString);
-				
-				//Seeking for the next good data index
-				int nextGoodDataIdx = ancillaryVariablesMananger.nextGoodDataPositionIdx(i);
-				
-				logger.debug("Next good data " + nextGoodDataIdx);
-				
-				if (i < latestGoodDataIdx){
-					BigDecimal endTimeBigDecimal = new BigDecimal(timeArrayData.getObject(nextGoodDataIdx).toString());
-					Date endDate = DateUnit.getStandardOrISO(Long.valueOf(endTimeBigDecimal.longValue()) + " " + timeVariable.getUnitsString());
-					String endTimeString = format(endDate.getTime(), "yyyy-MM-dd HH:mm:ss").replace(" ", "T"); 
-					ts.setEnd(endTimeString);
-				}
-				
-				ts.setId("timespanId");
-				
-				placemarkBalloon.withTimePrimitive((TimePrimitive) ts);
-				
-				document.getFeature().add(placemarkBalloon);
-				
-				timeIndex1D.incr();
-				logger.debug("i = " + i + " index = " + timeIndex1D);
-				
 			}
 			
 			
-			if (document.getFeature().size() > 0){
+			// The incremental conversion resumes from the last placemark
+			if (-1 != lastPlacemarkIdx){
+				lastCheckpoint = new IncrementalCheckpoint(netCdfFileLocation, outputFingerprint, recordOrigin + lastPlacemarkIdx, timeArrayData.getDouble(lastPlacemarkIdx),
+						trajectoryCoordinates.getLatitude(lastPlacemarkIdx), trajectoryCoordinates.getLongitude(lastPlacemarkIdx));
+			}
 			
-				/*
-				 * Set first and last posistion icon style
-				 */
-				List<Feature> featureList = document.getFeature();
-				featureList.get(0).setStyleUrl("#styleForHomeIcon");
-				featureList.get(featureList.size() - 1).setStyleUrl("#styleForFinalIcon");
+			List<Placemark> linePlacemarkList;
+			if (placemarkCount > 0){
 				
 				/*
-				 * Create the line string 
+				 * Create the line strings 
 				 */
-				final Placemark placemarkLine = new Placemark();
-				document.getFeature().add(placemarkLine);
-				final LineString linestring = new LineString();
-				placemarkLine.setGeometry(linestring);
-				linestring.setExtrude(false);
-				linestring.setTessellate(true);
-				linestring.setCoordinates(coordinateList);
-				placemarkLine.setStyleUrl("#lineStyleId");
+				linePlacemarkList = createLinePlacemarks(coordinateList);
 				
 			} else {
 				
 				logger.error("createKMLFile() -- The kml documents doesm't have features");
+				linePlacemarkList = new ArrayList<Placemark>();
 				
 			}
+			
+			sinkStart = System.nanoTime();
+			placemarkSink.finish(linePlacemarkList);
+			sinkNanos += System.nanoTime() - sinkStart;
+			
+			// Report the conversion metrics
+			String location = netCdfFileLocation;
+			long loopCompressionNanos = 0;
+			if (null != zipOutputStream){
+				loopCompressionNanos = zipOutputStream.getCompressionNanos() - compressionStart;
+				conversionListener.phaseFinished(location, ConversionPhase.COMPRESSION, zipOutputStream.getCompressionNanos());
+				conversionListener.counted(location, ConversionCounter.KML_BYTES, zipOutputStream.getUncompressedBytes());
+				conversionListener.counted(location, ConversionCounter.KMZ_BYTES, zipOutputStream.getCompressedBytes());
+			}
+			conversionListener.phaseFinished(location, ConversionPhase.ROW_LOOP, System.nanoTime() - loopStart - sinkNanos);
+			conversionListener.phaseFinished(location, ConversionPhase.MARSHALLING, Math.max(0, sinkNanos - loopCompressionNanos));
+			
+			int rowCount = latestGoodDataIdx - firstGoodDataIdx + 1;
+			conversionListener.counted(location, ConversionCounter.ROWS, rowCount);
+			conversionListener.counted(location, ConversionCounter.ROWS_SKIPPED_BAD_QC, rowCount - goodPositionCount);
+			conversionListener.counted(location, ConversionCounter.ROWS_SKIPPED_NAN, nanPositionCount);
+			conversionListener.counted(location, ConversionCounter.PLACEMARKS, placemarkCount);
+			
+			success = true;
 		
-		} catch (InvalidRangeException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		} finally {
 			
-			netcdfDataset.close();
+			readSession.close();
+			fireConversionFinished(success);
 			
 		}
 		
-		logger.info("Kml object created from the NetCDF file " + netCdfFileLocation);
+	}
+
+	/**
+	 * Retrieve the time of the next good position, the end of the placemark time span.
+	 * 
+	 * @param i the good position index
+	 * @param latestGoodDataIdx the latest good data index
+	 * @return the time expressed in milliseconds, -1 if the given index is the latest good data index.
+	 */
+	private long getEndTimeMillis(int i, int latestGoodDataIdx) {
 		
-		return kml;
+		if (i >= latestGoodDataIdx){
+			return -1;
+		}
+		
+		//Seeking for the next good data index
+		int nextGoodDataIdx = ancillaryVariablesMananger.nextGoodDataPositionIdx(i);
+		
+		if (logger.isDebugEnabled()){
+			logger.debug("Next good data " + nextGoodDataIdx);
+		}
+		
+		return trajectoryCoordinates.getTimeMillis(nextGoodDataIdx);
+	}
+	
+	/**
+	 * Create the placemark of the given good position index. It depends only on the index and the next good
+	 * position index, so the placemarks can be created in any order and by several threads, each one with
+	 * its own {@link PlacemarkBalloonRenderer}.
+	 * 
+	 * @param i the good position index, not a NaN position.
+	 * @param endTimeMillis the time of the next good position, -1 if it is the latest good data index.
+	 * @param balloonRenderer the {@link PlacemarkBalloonRenderer}
+	 * @param balloonTemplate the {@link BalloonTemplate} of the style, null if each placemark has its own description.
+	 * @return the {@link Placemark}
+	 */
+	private Placemark createPlacemark(int i, long endTimeMillis, PlacemarkBalloonRenderer balloonRenderer, BalloonTemplate balloonTemplate) {
+		
+		boolean debug = logger.isDebugEnabled();
+		long timeMillis = trajectoryCoordinates.getTimeMillis(i);
+		double lon = trajectoryCoordinates.getLongitude(i);
+		double lat = trajectoryCoordinates.getLatitude(i);
+		boolean singlePrecision = trajectoryCoordinates.isSinglePrecisionPosition();
+		
+		if (debug){
+			logger.debug("Time: " + balloonRenderer.formatDate(timeMillis) + " Lat: " + lat + " Lon: " +  lon);
+		}
+		
+		final Placemark placemarkBalloon = new Placemark();
+		
+		if (null != balloonTemplate){
+			
+			// Only the values, the layout is in the balloon style
+			placemarkBalloon.setExtendedData(balloonTemplate.createExtendedData(i));
+			
+		} else {
+			
+			// The title, time, position, variables data and opendap link
+			placemarkBalloon.setDescription(balloonRenderer.renderDescription(i, timeMillis, lat, lon, singlePrecision));
+			
+		}
+		
+		placemarkBalloon.setStyleUrl(KmlStyleInfo.REGULAR_ICON_STYLE_URL);
+		final Point point = new Point();
+		placemarkBalloon.setGeometry(point);
+		final List<Coordinate> coord = new ArrayList<Coordinate>();
+		point.setCoordinates(coord);
+		coord.add(new Coordinate((float) lon, (float) lat));
+		
+		TimeSpan ts = new TimeSpan();
+		ts.setBegin(balloonRenderer.formatKmlTime(timeMillis));
+		
+		if (-1 != endTimeMillis){
+			ts.setEnd(balloonRenderer.formatKmlTime(endTimeMillis));
+		}
+		
+		ts.setId("timespanId");
+		
+		placemarkBalloon.withTimePrimitive((TimePrimitive) ts);
+		
+		if (debug){
+			logger.debug("i = " + i);
+		}
+		
+		return placemarkBalloon;
+	}
+	
+	/**
+	 * The placemarks and coordinates of a chunk of the time index range, created by a placemark worker.
+	 */
+	private static class PlacemarkChunk {
+		
+		private List<Placemark> placemarkList = new ArrayList<Placemark>();
+		
+		private List<Coordinate> coordinateList = new ArrayList<Coordinate>();
+		
+		private int goodPositionCount;
+		
+		private int nanPositionCount;
+		
+		private int lastPlacemarkIdx = -1;
+		
+	}
+	
+	/**
+	 * Create the placemarks of the good positions between the given indexes, inclusive.
+	 * 
+	 * @param fromIdx the first index of the chunk
+	 * @param toIdx the last index of the chunk
+	 * @param latestGoodDataIdx the latest good data index
+	 * @param title the balloon title
+	 * @return the {@link PlacemarkChunk}
+	 */
+	private PlacemarkChunk createPlacemarkChunk(int fromIdx, int toIdx, int latestGoodDataIdx, String title) {
+		
+		PlacemarkBalloonRenderer balloonRenderer = new PlacemarkBalloonRenderer(title, additionalInfo.getThreddsLink(),
+				kmlStyleInfo.getDateFormatPattern(), variableRenderPlanList);
+		PlacemarkChunk placemarkChunk = new PlacemarkChunk();
+		
+		for (int i = ancillaryVariablesMananger.findGoodPositionIdx(fromIdx); -1 != i && i <= toIdx; i = ancillaryVariablesMananger.findGoodPositionIdx(i + 1)){
+			
+			placemarkChunk.goodPositionCount++;
+			
+			if (trajectoryCoordinates.isNaNPosition(i)){
+				placemarkChunk.nanPositionCount++;
+				continue;
+			}
+			
+			Placemark placemark = createPlacemark(i, getEndTimeMillis(i, latestGoodDataIdx), balloonRenderer, balloonTemplate);
+			placemarkChunk.placemarkList.add(placemark);
+			placemarkChunk.coordinateList.add(((Point) placemark.getGeometry()).getCoordinates().get(0));
+			placemarkChunk.lastPlacemarkIdx = i;
+			
+		}
+		
+		return placemarkChunk;
+	}
+	
+	/**
+	 * Wait for the given placemark chunk.
+	 * 
+	 * @param placemarkChunkFuture the {@link Future} of the {@link PlacemarkChunk}
+	 * @return the {@link PlacemarkChunk}
+	 * @throws IOException if the conversion thread is interrupted
+	 */
+	private static PlacemarkChunk getPlacemarkChunk(Future<PlacemarkChunk> placemarkChunkFuture) throws IOException {
+		
+		try {
+			return placemarkChunkFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while creating the placemarks");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error){
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		
+	}
+	
+	/**
+	 * Create the line string placemarks that represent the platform trajectory.
+	 * 
+	 * Without level of detail tiers a single line string is created, simplified with the line simplification
+	 * tolerance. With N tiers, a line string with a {@link Region} of the trajectory bounding box is created
+	 * for each tier. The last tier has the full resolution and the tolerance of the others is multiplied by
+	 * four from one tier to the previous one. The tier i is shown when the region is between 256 * 4^(i - 1)
+	 * and 256 * 4^i pixels, so the coarse line strings are shown when the trajectory is seen from far.
+	 * 
+	 * @param coordinateList the trajectory coordinates
+	 * @return the line string {@link Placemark} list
+	 */
+	private List<Placemark> createLinePlacemarks(List<Coordinate> coordinateList) {
+		
+		List<Placemark> linePlacemarkList = new ArrayList<Placemark>();
+		double tolerance = additionalInfo.getLineSimplificationTolerance();
+		int tierCount = additionalInfo.getLevelOfDetailTierCount();
+		
+		if (tierCount > 1 && tolerance <= 0){
+			logger.warn("The level of detail tiers need a line simplification tolerance, writing a single line string");
+			tierCount = 1;
+		}
+		
+		if (tierCount < 2 || coordinateList.size() < 2){
+			List<Coordinate> simplifiedCoordinateList = TrajectorySimplifier.simplify(coordinateList, tolerance);
+			logger.info("Line string with " + simplifiedCoordinateList.size() + " of " + coordinateList.size() + " coordinates");
+			linePlacemarkList.add(createLinePlacemark(simplifiedCoordinateList, null));
+			return linePlacemarkList;
+		}
+		
+		double[] boundingBox = TrajectorySimplifier.getBoundingBox(coordinateList);
+		
+		for (int tier = 0; tier < tierCount; tier++){
+			
+			double tierTolerance = 0;
+			if (tier < tierCount - 1){
+				tierTolerance = tolerance * Math.pow(4, tierCount - 2 - tier);
+			}
+			
+			List<Coordinate> simplifiedCoordinateList = TrajectorySimplifier.simplify(coordinateList, tierTolerance);
+			logger.info("Line string tier " + tier + " with " + simplifiedCoordinateList.size() + " of " + coordinateList.size() + " coordinates");
+			
+			Lod lod = new Lod();
+			lod.setMinLodPixels(0 == tier ? 0 : 256 * Math.pow(4, tier - 1));
+			lod.setMaxLodPixels(tierCount - 1 == tier ? -1 : 256 * Math.pow(4, tier));
+			
+			LatLonAltBox latLonAltBox = new LatLonAltBox();
+			latLonAltBox.setNorth(boundingBox[0]);
+			latLonAltBox.setSouth(boundingBox[1]);
+			latLonAltBox.setEast(boundingBox[2]);
+			latLonAltBox.setWest(boundingBox[3]);
+			
+			Region region = new Region();
+			region.setLatLonAltBox(latLonAltBox);
+			region.setLod(lod);
+			
+			linePlacemarkList.add(createLinePlacemark(simplifiedCoordinateList, region));
+			
+		}
+		
+		return linePlacemarkList;
+		
+	}
+	
+	/**
+	 * Create a line string placemark
+	 * 
+	 * @param coordinateList the line string coordinates
+	 * @param region the {@link Region}, can be null
+	 * @return the line string {@link Placemark}
+	 */
+	private static Placemark createLinePlacemark(List<Coordinate> coordinateList, Region region) {
+		
+		final Placemark placemarkLine = new Placemark();
+		final LineString linestring = new LineString();
+		placemarkLine.setGeometry(linestring);
+		linestring.setExtrude(false);
+		linestring.setTessellate(true);
+		linestring.setCoordinates(coordinateList);
+		placemarkLine.setStyleUrl(KmlStyleInfo.LINE_STYLE_URL);
+		placemarkLine.setRegion(region);
+		
+		return placemarkLine;
 	}
 
 	/**
-	 * Add the deployment position and time to the kml document. Also add the position
+	 * Create the deployment position and time placemark. Also add the position
 	 * to the coordinate list, needed to the kml line string
 	 * 
-	 * @param document the kml document
 	 * @param coordinateList the coordinate list
+	 * @param title the balloon title
+	 * @return the deployment {@link Placemark}
 	 * @throws IOException
 	 */
-	private void addDeploymentPosition(Document document, List<Coordinate> coordinateList) throws IOException {
+	private Placemark createDeploymentPlacemark(List<Coordinate> coordinateList, String title) throws IOException {
 		
 		logger.info("Adding deployment position");
 		
-		Variable timeVariable = coordinateVariableMap.get(AxisType.Time);
-		
 		String time = additionalInfo.getDeploymentInfo().getTime();
 		BigDecimal lonBigDecimal = new BigDecimal(additionalInfo.getDeploymentInfo().getLongitude());
 		BigDecimal latBigDecimal = new BigDecimal(additionalInfo.getDeploymentInfo().getLatitude());
 		
 		Date date = DateUnit.getStandardOrISO(time);
 		
-		StringBuffer placemarkBalloonDescription = new StringBuffer();
-		placemarkBalloonDescription.append("<h3>" + additionalInfo.getKmlStyleInfo().getKmlTitleName(additionalInfo.getThreddsLink()) + "</h3>");
-		placemarkBalloonDescription.append("<br> <strong>Position: </strong>" + PositionManager.getLatGeoCoordinate(latBigDecimal) + " " + PositionManager.getLonGeoCoordinate(lonBigDecimal));
-		placemarkBalloonDescription.append("<br>");
+		String positionString = PositionManager.getLatGeoCoordinate(latBigDecimal) + " " + PositionManager.getLonGeoCoordinate(lonBigDecimal);
 		
 		/*
 		 * Add the deployment placemark ballom to the kml document 
 		 */
 		final Placemark placemarkBalloon = new Placemark();
+		
+		StringBuffer placemarkBalloonDescription = new StringBuffer();
+		placemarkBalloonDescription.append("<h3>" + title + "</h3>");
+		placemarkBalloonDescription.append("<br> <strong>Position: </strong>" + positionString);
+		placemarkBalloonDescription.append("<br>");
 		placemarkBalloon.setDescription(placemarkBalloonDescription.toString());
 //		placemarkBalloon.setStyleUrl("#styleForHomeIcon");
 		final Point point = new Point();
@@ -455,130 +1613,36 @@ public class KmlManager implements Runnable {
 		logger.debug("Next good data " + nextGoodDataIdx);
 		
 		if (1 >= nextGoodDataIdx){
-			BigDecimal endTimeBigDecimal = new BigDecimal(timeVariable.read().getObject(nextGoodDataIdx).toString());
-			Date endDate = DateUnit.getStandardOrISO(Long.valueOf(endTimeBigDecimal.longValue()) + " " + timeVariable.getUnitsString());
-			String endTimeString = format(endDate.getTime(), "yyyy-MM-dd HH:mm:ss").replace(" ", "T"); 
+			String endTimeString = format(trajectoryCoordinates.getTimeMillis(nextGoodDataIdx), "yyyy-MM-dd HH:mm:ss").replace(" ", "T"); 
 			ts.setEnd(endTimeString);
 			ts.setId("timespanId");
 			placemarkBalloon.withTimePrimitive((TimePrimitive) ts);
 		}
 		
-		document.getFeature().add(placemarkBalloon);
-		
 		logger.info("Deployment position added");
 		
+		return placemarkBalloon;
+		
 	}
 
 	/**
-	 * Read the variable data at the specified index. The variable can be of one dimension (time) or 
-	 * two dimensions (time, level). If have two dimensions, read the value
-	 * from the current time index and the level zero, array.get(i,0).The specified index must be of 
-	 * one dimension and must represent the time index.
+	 * Retrieve the kml document name, linked to the opendap if the {@link AdditionalInfo} has thredds link.
 	 * 
-	 * The value returned is N/A if the value is bad data (from the quality controls, if exists) or
-	 * the value is missing value.
-	 * 
-	 * @param variable the {@link Variable}
-	 * @param timeIndex1D the {@link Index1D}
-	 * @throws IOException
+	 * @return the title
 	 */
-	private String readDataLike1D(Variable variable, Index timeIndex1D) throws IOException {
-		
-		Array dataVariable = variableArrayMap.get(variable);
-		Index variableIndex;
-		String stringDataWithUnits;
-		
-		List<CoordinateSystem> coordinateSystemsList = new ArrayList<CoordinateSystem>();
-		CoordinateAxis coordinateAxis;
-
-		int currentIndex0 = timeIndex1D.getCurrentCounter()[0];
-
-		if (1 == dataVariable.getShape().length){
-			
-			variableIndex = new Index1D(dataVariable.getShape());
-			int[] stride = {currentIndex0};
-			variableIndex.set(stride);
-			
-			stringDataWithUnits = dataVariable.getObject(variableIndex).toString() + formatUnits(variable);
-			
-		} else if (2 == dataVariable.getShape().length){
-			
-			coordinateSystemsList = ((VariableDS) variable).getCoordinateSystems();
-			if (coordinateSystemsList.size() == 0 || null == coordinateSystemsList){
-				throw new NullPointerException("Coordinate systems of variable " + variable.getFullName() + " is null or 0");
-			}
-			
-			coordinateAxis = coordinateSystemsList.get(0).findAxis(AxisType.Height);
-			if (null == coordinateAxis){
-				throw new NullPointerException("The variable " + variable.getFullName() + " doesn't have a coordinate axis of type height");
-			}
-			
-			variableIndex = new Index2D(dataVariable.getShape());
-			int[] stride = {currentIndex0, 0};
-			variableIndex.set(stride);
-			
-			if (1 == coordinateAxis.getShape().length){
-				
-				Index coorinateIndex = new Index1D(dataVariable.getShape());
-				int[] coordinateStride = {currentIndex0};
-				coorinateIndex.set(coordinateStride);
-				
-				stringDataWithUnits = dataVariable.getObject(variableIndex).toString() + formatUnits(variable) + " at " + coordinateAxis.read().getObject(coorinateIndex).toString() + coordinateAxis.getUnitsString();
-				
-			} else if (2 == coordinateAxis.getShape().length) {
-				
-				stringDataWithUnits = dataVariable.getObject(variableIndex).toString() + formatUnits(variable) + " at " + coordinateAxis.read().getObject(variableIndex).toString() + coordinateAxis.getUnitsString();
-				
-			} else {
-				
-				throw new NullPointerException("The coordinate "  + coordinateAxis.getFullName() +  " must be 1 or 2 dimensional");
-				
-			}
-			
-		} else {
-			
-			throw new NullPointerException("The variable "  + variable.getFullName() +  " must be 1 or 2 dimensional");
-		
-		}
-		
-		String fillValue = "";
-		if (null != variable.findAttribute(AttributesNamesAndValues.FILL_VALUE)){
-			fillValue = variable.findAttribute(AttributesNamesAndValues.FILL_VALUE).getNumericValue().toString().trim();
-		}
-		
-		String stringData = dataVariable.getObject(variableIndex).toString().trim();
-		if (ancillaryVariablesMananger.isGoodDataVariable(variable, variableIndex) && !stringData.toLowerCase().equals("nan") && !stringData.toLowerCase().equals(fillValue)){
-			return stringDataWithUnits;
-		} else {
-			return "N/A";
-		}
-
+	private String getTitle() {
+		return KmlStyleInfo.formatKmlTitleName(kmlTitleName, additionalInfo.getThreddsLink());
 	}
 	
 	/**
-	 * Format units.
-	 * 
-	 * If the units are "1" or "" return "". Otherwise return " " + the untis.
+	 * Retrieve the balloon style text.
 	 * 
-	 * @param units the units
-	 * @return the units formatted
+	 * @return the balloon text of the {@link BalloonTemplate}, null if each placemark has its own description.
 	 */
-	private String formatUnits(Variable variable){
-		
-		String units = variable.getUnitsString();
-		
-		if (null == units){
-			return "";
-		}
-		
-		if ("1".equals(units.trim()) || "".equals(units.trim())){
-			return "";
-		} else {
-			return " " + units.trim(); 
-		}
-		
+	private String getBalloonText() {
+		return null == balloonTemplate ? null : balloonTemplate.getText();
 	}
-
+	
 	/**
 	 * Retrieve the cf role variable from the {@link Variable} list
 	 * 
@@ -664,14 +1728,22 @@ public class KmlManager implements Runnable {
 	 * @return the formatted date
 	 */
 	public static String format(long time, String pattern ){
-		return DateFormatUtils.format(time, pattern, TimeZone.getTimeZone("GMT0"));
+		return PlacemarkBalloonRenderer.getDateFormat(pattern).format(time);
 		
 	}
 
+	/**
+	 * Close the NetCDF source. Closing an already closed manager has no effect.
+	 */
+	@Override
+	public void close() throws IOException {
+		readSession.close();
+	}
+
 	@Override
 	public void run() {
 		try {
-			this.createKMLFile().marshalAsKmz(outputFileName);
+			this.writeKmz(outputFileName);
 		} catch (IOException e) {
 			logger.error(e.getMessage());
 			e.printStackTrace();
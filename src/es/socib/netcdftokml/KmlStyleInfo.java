@@ -24,6 +24,22 @@ public class KmlStyleInfo {
 	private static final String DEFAULT_REGULAR_ICON_URL = "http://www.socib.es/images/gl-forward-128x128.png";
 
 	private static final String DEFAULT_END_ICON_URL = "http://www.socib.es/images/gl-down-128x128.png";
+	
+	public static final String HOME_ICON_STYLE_ID = "styleForHomeIcon";
+	
+	public static final String REGULAR_ICON_STYLE_ID = "styleForRegularIcon";
+	
+	public static final String FINAL_ICON_STYLE_ID = "styleForFinalIcon";
+	
+	public static final String LINE_STYLE_ID = "lineStyleId";
+	
+	public static final String HOME_ICON_STYLE_URL = "#" + HOME_ICON_STYLE_ID;
+	
+	public static final String REGULAR_ICON_STYLE_URL = "#" + REGULAR_ICON_STYLE_ID;
+	
+	public static final String FINAL_ICON_STYLE_URL = "#" + FINAL_ICON_STYLE_ID;
+	
+	public static final String LINE_STYLE_URL = "#" + LINE_STYLE_ID;
 
 	/**
 	 * kmlTitleName the kml and placemark description title name.
@@ -45,6 +61,12 @@ public class KmlStyleInfo {
 	 */
 	private String templatePath;
 	
+	/**
+	 * balloonTemplate indicates if the placemark balloons are formatted with a {@link BalloonTemplate}, the
+	 * placemarks only carry the values as extended data. Always true if the template path is set.
+	 */
+	private boolean balloonTemplate;
+	
 	/**
 	 * homeIconUrl the home icon server url or local file. The home icon is set to the first
 	 * kml placemark. If null then the default value is http://www.socib.es/images/gl-gohome-128x128.png.
@@ -112,6 +134,18 @@ public class KmlStyleInfo {
 	 * @return the KML title name
 	 */
 	public String getKmlTitleName(String threddsLink) {
+		return formatKmlTitleName(kmlTitleName, threddsLink);
+	}
+	
+	/**
+	 * Get the given KML title name. If thredds link isn't null or empty return
+	 * the KML title name linked to the opendap.
+	 * 
+	 * @param kmlTitleName the KML title name
+	 * @param threddsLink the opendap link to the NetCDF data
+	 * @return the KML title name
+	 */
+	public static String formatKmlTitleName(String kmlTitleName, String threddsLink) {
 		
 		if (null != threddsLink && !"".equals(threddsLink)){
 			
@@ -138,6 +172,14 @@ public class KmlStyleInfo {
 		return templatePath;
 	}
 
+	public boolean isBalloonTemplate() {
+		return balloonTemplate || null != templatePath;
+	}
+
+	public void setBalloonTemplate(boolean balloonTemplate) {
+		this.balloonTemplate = balloonTemplate;
+	}
+
 	public String getHomeIconUrl() {
 		return homeIconUrl;
 	}
@@ -151,30 +193,43 @@ public class KmlStyleInfo {
 	}
 	
 	public void setKmlDocumentStyle(Document document) {
+		setKmlDocumentStyle(document, null);
+	}
+	
+	/**
+	 * Add the document styles to the given {@link Document}.
+	 * 
+	 * @param document the {@link Document}
+	 * @param balloonText the balloon style text, null to display the placemark description.
+	 */
+	public void setKmlDocumentStyle(Document document, String balloonText) {
 		
 		//Setting up balloon style
 		final BalloonStyle balloonstyle = new BalloonStyle();
 		balloonstyle.setId("ID");
 		balloonstyle.setBgColor("ffffffff");
 		balloonstyle.setTextColor("ff000000");
+		if (null != balloonText){
+			balloonstyle.setText(balloonText);
+		}
 		
 		final Style styleForHomeIcon = new Style();
 		document.getStyleSelector().add(styleForHomeIcon);
-		styleForHomeIcon.setId("styleForHomeIcon");
+		styleForHomeIcon.setId(HOME_ICON_STYLE_ID);
 		styleForHomeIcon.setBalloonStyle(balloonstyle);
 		
 		final Style styleForRegularIcon = new Style();
 		document.getStyleSelector().add(styleForRegularIcon);
-		styleForRegularIcon.setId("styleForRegularIcon");
+		styleForRegularIcon.setId(REGULAR_ICON_STYLE_ID);
 		styleForRegularIcon.setBalloonStyle(balloonstyle);
 		
 		final Style styleForFinalIcon = new Style();
 		document.getStyleSelector().add(styleForFinalIcon);
-		styleForFinalIcon.setId("styleForFinalIcon");
+		styleForFinalIcon.setId(FINAL_ICON_STYLE_ID);
 		styleForFinalIcon.setBalloonStyle(balloonstyle);
 
 		// Line style 
-		final Style lineStyle = document.createAndAddStyle().withId("lineStyleId");
+		final Style lineStyle = document.createAndAddStyle().withId(LINE_STYLE_ID);
 		lineStyle.createAndSetLineStyle().withColor(lineStyleColor).withWidth(4.0d);
 		
 		//Setting up Home icon style
@@ -239,7 +294,8 @@ public class KmlStyleInfo {
 		return "KmlStyleInfo [kmlTitleName=" + kmlTitleName
 				+ ", dateFormatPattern=" + dateFormatPattern
 				+ ", lineStyleColor=" + lineStyleColor + ", templatePath="
-				+ templatePath + ", homeIconUrl=" + homeIconUrl
+				+ templatePath + ", balloonTemplate=" + balloonTemplate
+				+ ", homeIconUrl=" + homeIconUrl
 				+ ", regularIconUrl=" + regularIconUrl + ", endIconUrl="
 				+ endIconUrl + "]";
 	}
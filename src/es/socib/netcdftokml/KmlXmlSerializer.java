@@ -0,0 +1,239 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+
+import de.micromata.opengis.kml.v_2_2_0.BalloonStyle;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Data;
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.IconStyle;
+import de.micromata.opengis.kml.v_2_2_0.LatLonAltBox;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LineStyle;
+import de.micromata.opengis.kml.v_2_2_0.Lod;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.Region;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.TimePrimitive;
+import de.micromata.opengis.kml.v_2_2_0.TimeSpan;
+
+/**
+ * Serializes the kml objects created by the {@link KmlManager} with a {@link XMLStreamWriter}, without
+ * the JAXB marshaller of the {@link de.micromata.opengis.kml.v_2_2_0.Kml}. Only the elements set by the
+ * {@link KmlManager} and the {@link KmlStyleInfo} are written, in the kml 2.2 schema order.
+ *
+ */
+public class KmlXmlSerializer {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(KmlXmlSerializer.class.getSimpleName());
+
+	public static final String KML_NAMESPACE = "http://www.opengis.net/kml/2.2";
+
+	private KmlXmlSerializer() {
+	}
+
+	/**
+	 * Write the given {@link Placemark}. Supported geometries are {@link Point} and {@link LineString}.
+	 *
+	 * @param xml the {@link XMLStreamWriter}
+	 * @param placemark the {@link Placemark}
+	 * @throws XMLStreamException
+	 */
+	public static void writePlacemark(XMLStreamWriter xml, Placemark placemark) throws XMLStreamException {
+
+		xml.writeStartElement("Placemark");
+		writeId(xml, placemark.getId());
+		writeElement(xml, "name", placemark.getName());
+		writeElement(xml, "description", placemark.getDescription());
+		writeTimePrimitive(xml, placemark.getTimePrimitive());
+		writeElement(xml, "styleUrl", placemark.getStyleUrl());
+		writeRegion(xml, placemark.getRegion());
+		writeExtendedData(xml, placemark.getExtendedData());
+		writeGeometry(xml, placemark.getGeometry());
+		xml.writeEndElement();
+
+	}
+
+	/**
+	 * Write the given {@link Style}.
+	 *
+	 * @param xml the {@link XMLStreamWriter}
+	 * @param style the {@link Style}
+	 * @throws XMLStreamException
+	 */
+	public static void writeStyle(XMLStreamWriter xml, Style style) throws XMLStreamException {
+
+		xml.writeStartElement("Style");
+		writeId(xml, style.getId());
+
+		IconStyle iconStyle = style.getIconStyle();
+		if (null != iconStyle){
+			xml.writeStartElement("IconStyle");
+			writeElement(xml, "color", iconStyle.getColor());
+			writeElement(xml, "scale", Double.toString(iconStyle.getScale()));
+			if (null != iconStyle.getIcon()){
+				xml.writeStartElement("Icon");
+				writeElement(xml, "href", iconStyle.getIcon().getHref());
+				xml.writeEndElement();
+			}
+			xml.writeEndElement();
+		}
+
+		LineStyle lineStyle = style.getLineStyle();
+		if (null != lineStyle){
+			xml.writeStartElement("LineStyle");
+			writeElement(xml, "color", lineStyle.getColor());
+			writeElement(xml, "width", Double.toString(lineStyle.getWidth()));
+			xml.writeEndElement();
+		}
+
+		BalloonStyle balloonStyle = style.getBalloonStyle();
+		if (null != balloonStyle){
+			xml.writeStartElement("BalloonStyle");
+			writeId(xml, balloonStyle.getId());
+			writeElement(xml, "bgColor", balloonStyle.getBgColor());
+			writeElement(xml, "textColor", balloonStyle.getTextColor());
+			writeElement(xml, "text", balloonStyle.getText());
+			xml.writeEndElement();
+		}
+
+		xml.writeEndElement();
+
+	}
+
+	private static void writeTimePrimitive(XMLStreamWriter xml, TimePrimitive timePrimitive) throws XMLStreamException {
+
+		if (!(timePrimitive instanceof TimeSpan)){
+			return;
+		}
+
+		TimeSpan timeSpan = (TimeSpan) timePrimitive;
+		xml.writeStartElement("TimeSpan");
+		writeId(xml, timeSpan.getId());
+		writeElement(xml, "begin", timeSpan.getBegin());
+		writeElement(xml, "end", timeSpan.getEnd());
+		xml.writeEndElement();
+
+	}
+
+	private static void writeRegion(XMLStreamWriter xml, Region region) throws XMLStreamException {
+
+		if (null == region){
+			return;
+		}
+
+		xml.writeStartElement("Region");
+
+		LatLonAltBox box = region.getLatLonAltBox();
+		if (null != box){
+			xml.writeStartElement("LatLonAltBox");
+			writeElement(xml, "north", Double.toString(box.getNorth()));
+			writeElement(xml, "south", Double.toString(box.getSouth()));
+			writeElement(xml, "east", Double.toString(box.getEast()));
+			writeElement(xml, "west", Double.toString(box.getWest()));
+			xml.writeEndElement();
+		}
+
+		Lod lod = region.getLod();
+		if (null != lod){
+			xml.writeStartElement("Lod");
+			writeElement(xml, "minLodPixels", Double.toString(lod.getMinLodPixels()));
+			writeElement(xml, "maxLodPixels", Double.toString(lod.getMaxLodPixels()));
+			xml.writeEndElement();
+		}
+
+		xml.writeEndElement();
+
+	}
+
+	private static void writeExtendedData(XMLStreamWriter xml, ExtendedData extendedData) throws XMLStreamException {
+
+		if (null == extendedData){
+			return;
+		}
+
+		xml.writeStartElement("ExtendedData");
+		for (Data data : extendedData.getData()){
+			xml.writeStartElement("Data");
+			if (null != data.getName()){
+				xml.writeAttribute("name", data.getName());
+			}
+			writeElement(xml, "value", data.getValue());
+			xml.writeEndElement();
+		}
+		xml.writeEndElement();
+
+	}
+
+	private static void writeGeometry(XMLStreamWriter xml, Geometry geometry) throws XMLStreamException {
+
+		if (geometry instanceof Point){
+
+			xml.writeStartElement("Point");
+			writeCoordinates(xml, ((Point) geometry).getCoordinates());
+			xml.writeEndElement();
+
+		} else if (geometry instanceof LineString){
+
+			LineString lineString = (LineString) geometry;
+			xml.writeStartElement("LineString");
+			writeElement(xml, "extrude", lineString.isExtrude());
+			writeElement(xml, "tessellate", lineString.isTessellate());
+			writeCoordinates(xml, lineString.getCoordinates());
+			xml.writeEndElement();
+
+		} else if (null != geometry){
+
+			logger.warn("Geometry " + geometry.getClass().getSimpleName() + " not supported by the kml serializer");
+
+		}
+
+	}
+
+	private static void writeCoordinates(XMLStreamWriter xml, List<Coordinate> coordinateList) throws XMLStreamException {
+
+		xml.writeStartElement("coordinates");
+		for (int i = 0; i < coordinateList.size(); i++){
+			if (i > 0){
+				xml.writeCharacters(" ");
+			}
+			xml.writeCharacters(coordinateList.get(i).toString());
+		}
+		xml.writeEndElement();
+
+	}
+
+	public static void writeId(XMLStreamWriter xml, String id) throws XMLStreamException {
+		if (null != id){
+			xml.writeAttribute("id", id);
+		}
+	}
+
+	public static void writeElement(XMLStreamWriter xml, String name, Boolean value) throws XMLStreamException {
+		if (null != value){
+			writeElement(xml, name, value ? "1" : "0");
+		}
+	}
+
+	public static void writeElement(XMLStreamWriter xml, String name, String value) throws XMLStreamException {
+		if (null != value){
+			xml.writeStartElement(name);
+			xml.writeCharacters(value);
+			xml.writeEndElement();
+		}
+	}
+
+}
@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.zip.Deflater;
+
+/**
+ * The compression of the kmz entries: the deflate level and the number of blocks deflated in parallel.
+ *
+ * With one worker, the default, the entries are deflated by {@link java.util.zip.ZipOutputStream}. With more
+ * workers the kml is split in independent blocks deflated on a shared worker pool, like pigz, and concatenated
+ * into a standard zip entry (see {@link ParallelDeflateZipWriter}).
+ *
+ * The stored mode is the level {@link Deflater#NO_COMPRESSION}: the kml is written in stored deflate blocks,
+ * so the entries are still streamed without knowing their size in advance.
+ *
+ */
+public class KmzCompression {
+
+	/**
+	 * DEFAULT_BLOCK_SIZE the uncompressed bytes of each block deflated in parallel, as pigz.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+	/**
+	 * MIN_BLOCK_SIZE the minimum block size, the dictionary of each block is the last 32 kilobytes of the previous one.
+	 */
+	public static final int MIN_BLOCK_SIZE = 32 * 1024;
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * workerCount the number of blocks deflated in parallel. If less than one, the number of available processors.
+	 */
+	private int workerCount = 1;
+
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	/**
+	 * Construct a new {@link KmzCompression} with the default level and a single worker.
+	 */
+	public KmzCompression() {
+	}
+
+	/**
+	 * Construct a new {@link KmzCompression}.
+	 *
+	 * @param level the deflate level, from 0 (stored) to 9, or -1 for the default level
+	 * @param workerCount the number of blocks deflated in parallel. If less than one, the number of available processors.
+	 */
+	public KmzCompression(int level, int workerCount) {
+		setLevel(level);
+		setWorkerCount(workerCount);
+	}
+
+	/**
+	 * Create the stored mode compression, without compression.
+	 *
+	 * @return the {@link KmzCompression}
+	 */
+	public static KmzCompression createStoredCompression() {
+		return new KmzCompression(Deflater.NO_COMPRESSION, 1);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Set the deflate level.
+	 *
+	 * @param level the deflate level, from 0 (stored) to 9, or -1 for the default level
+	 */
+	public void setLevel(int level) {
+
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION){
+			throw new IllegalArgumentException("The compression level " + level + " must be between -1 and 9");
+		}
+
+		this.level = level;
+	}
+
+	public boolean isStored() {
+		return Deflater.NO_COMPRESSION == level;
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	public void setWorkerCount(int workerCount) {
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * Retrieve the number of blocks deflated in parallel, resolving the available processors.
+	 *
+	 * @return the number of workers, at least one.
+	 */
+	public int getEffectiveWorkerCount() {
+		return workerCount < 1 ? Runtime.getRuntime().availableProcessors() : workerCount;
+	}
+
+	/**
+	 * If the blocks are deflated in parallel.
+	 *
+	 * @return true if more than one worker is used
+	 */
+	public boolean isParallel() {
+		return getEffectiveWorkerCount() > 1;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Set the uncompressed bytes of each block deflated in parallel.
+	 *
+	 * @param blockSize the block size, at least {@value #MIN_BLOCK_SIZE}
+	 */
+	public void setBlockSize(int blockSize) {
+
+		if (blockSize < MIN_BLOCK_SIZE){
+			throw new IllegalArgumentException("The compression block size " + blockSize + " must be at least " + MIN_BLOCK_SIZE);
+		}
+
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public String toString() {
+		return "KmzCompression [level=" + level + ", workerCount=" + workerCount + ", blockSize=" + blockSize + "]";
+	}
+
+}
@@ -0,0 +1,260 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.apache.log4j.Logger;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.nc2.dataset.CoordinateAxis;
+
+/**
+ * Persistent content addressed cache of the kmz outputs, so the NetCDF files that didn't change aren't converted
+ * again.
+ *
+ * The cache key is a hash of the input fingerprint and of the {@link AdditionalInfo#getOutputFingerprint()}. The input
+ * fingerprint of a local file is its path, size and last modification time. Optionally the content hash of the header
+ * and the coordinate arrays replaces the size and modification time, then a file touched without changes is still a
+ * hit, but a change of the data variables alone isn't detected. The remote sources don't have size nor modification
+ * time, so they are only cacheable with the content hash.
+ *
+ * The kmz of each key is stored as key.kmz in the cache directory. The cache is bounded by the total size of the
+ * entries, the least recently used are evicted (a hit touches the entry). The entries are kept in a {@link DiskLruCache},
+ * so the cache can be shared by concurrent workers and processes. The workers of a process must share the same
+ * {@link KmzOutputCache} instance.
+ *
+ */
+public class KmzOutputCache {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(KmzOutputCache.class.getSimpleName());
+
+	/**
+	 * CACHE_VERSION part of the cache key, must change when the kmz output of the same input changes.
+	 */
+	private static final String CACHE_VERSION = "2";
+
+	private static final String KMZ_EXTENSION = ".kmz";
+
+	private static final int COPY_BUFFER_SIZE = 65536;
+
+	private static final int HASH_BUFFER_SIZE = 8192;
+
+	private DiskLruCache diskLruCache;
+
+	private boolean contentHash;
+
+	/**
+	 * Construct a new {@link KmzOutputCache}.
+	 *
+	 * @param directory the cache directory, created if it doesn't exist
+	 * @param maxBytes the maximum total size of the entries
+	 * @param contentHash true to fingerprint the inputs by the content hash of the header and coordinate arrays
+	 * @throws IOException if the directory can't be created
+	 */
+	public KmzOutputCache(File directory, long maxBytes, boolean contentHash) throws IOException {
+
+		this.contentHash = contentHash;
+		diskLruCache = new DiskLruCache(directory, maxBytes, KMZ_EXTENSION);
+
+	}
+
+	/**
+	 * Compute the cache key of the conversion of the given NetCDF file with the given {@link AdditionalInfo}.
+	 *
+	 * @param netCdfFileLocation the NetCDF file location, can be a local file or opendap link
+	 * @param additionalInfo the {@link AdditionalInfo}, can be null
+	 * @return the cache key, null if the conversion isn't cacheable
+	 * @throws IOException if the NetCDF file can't be read
+	 */
+	public String getCacheKey(String netCdfFileLocation, AdditionalInfo additionalInfo) throws IOException {
+
+		// The incremental output depends on the previous conversions
+		if (null != additionalInfo && additionalInfo.isIncremental()){
+			return null;
+		}
+
+		boolean remote = netCdfFileLocation.contains("://");
+		if (remote && !contentHash){
+			return null;
+		}
+
+		MessageDigest digest = DiskLruCache.createDigest();
+		DiskLruCache.update(digest, CACHE_VERSION);
+		DiskLruCache.update(digest, null == additionalInfo ? "default" : additionalInfo.getOutputFingerprint());
+
+		if (remote){
+			DiskLruCache.update(digest, netCdfFileLocation);
+		} else if (contentHash){
+			DiskLruCache.update(digest, new File(netCdfFileLocation).getAbsolutePath());
+		} else {
+			File file = new File(netCdfFileLocation);
+			DiskLruCache.update(digest, file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length());
+		}
+
+		// The content hash replaces the modification time, so a touched file is still a hit
+		if (contentHash){
+			updateContentHash(digest, netCdfFileLocation);
+		}
+
+		return DiskLruCache.toHex(digest.digest());
+	}
+
+	/**
+	 * Hash the header and the coordinate arrays of the NetCDF file.
+	 */
+	private static void updateContentHash(MessageDigest digest, String netCdfFileLocation) throws IOException {
+
+		NetcdfReadSession readSession = NetcdfReadSession.open(netCdfFileLocation);
+		try {
+
+			DiskLruCache.update(digest, readSession.getRawFile().toString());
+
+			ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+			for (CoordinateAxis coordinateAxis : readSession.getDataset().getCoordinateAxes()){
+
+				DiskLruCache.update(digest, coordinateAxis.getFullName());
+				Array array = readSession.readRaw(coordinateAxis.getFullName());
+				if (null == array){
+					continue;
+				}
+
+				if (!DataType.getType(array.getElementType()).isNumeric()){
+					for (int i = 0; i < array.getSize(); i++){
+						DiskLruCache.update(digest, String.valueOf(array.getObject(i)));
+					}
+					continue;
+				}
+
+				for (int i = 0; i < array.getSize(); i++){
+					if (buffer.remaining() < 8){
+						digest.update(buffer.array(), 0, buffer.position());
+						buffer.clear();
+					}
+					buffer.putDouble(array.getDouble(i));
+				}
+				digest.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+
+			}
+
+		} finally {
+			readSession.close();
+		}
+
+	}
+
+	/**
+	 * Copy the cached kmz of the given key to the output file.
+	 *
+	 * @param cacheKey the cache key
+	 * @param outputFile the output kmz file
+	 * @return true if the kmz was cached and copied, otherwise false
+	 */
+	public boolean get(String cacheKey, File outputFile) {
+
+		File entryFile = diskLruCache.getEntryFile(cacheKey);
+		if (null == entryFile){
+			return false;
+		}
+
+		File tmpOutputFile = new File(outputFile.getPath() + ".tmp");
+		try {
+
+			copy(entryFile, tmpOutputFile);
+			replaceFile(tmpOutputFile, outputFile);
+
+		} catch (IOException e) {
+
+			// Evicted meanwhile or the output can't be written
+			logger.warn("Impossible copy the cached kmz " + entryFile + " to " + outputFile + ": " + e.getMessage());
+			tmpOutputFile.delete();
+			return false;
+
+		}
+
+		// The least recently used entries are evicted first
+		diskLruCache.touch(entryFile);
+
+		return true;
+	}
+
+	/**
+	 * Cache the given kmz file with the given key, and evict the least recently used entries if the cache exceeds
+	 * its size.
+	 *
+	 * @param cacheKey the cache key
+	 * @param kmzFile the kmz file, copied
+	 * @throws IOException if the kmz can't be cached
+	 */
+	public void put(String cacheKey, File kmzFile) throws IOException {
+
+		if (kmzFile.length() > diskLruCache.getMaxBytes()){
+			return;
+		}
+
+		File tmpEntryFile = diskLruCache.createTempFile();
+
+		try {
+			copy(kmzFile, tmpEntryFile);
+			diskLruCache.commit(tmpEntryFile, cacheKey);
+		} finally {
+			tmpEntryFile.delete();
+		}
+
+	}
+
+	private static void copy(File source, File target) throws IOException {
+
+		InputStream inputStream = new FileInputStream(source);
+		try {
+			OutputStream outputStream = new FileOutputStream(target);
+			try {
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				int read;
+				while (-1 != (read = inputStream.read(buffer))){
+					outputStream.write(buffer, 0, read);
+				}
+			} finally {
+				outputStream.close();
+			}
+		} finally {
+			inputStream.close();
+		}
+
+	}
+
+	/**
+	 * Replace the target file with the given source file.
+	 */
+	private static void replaceFile(File source, File target) throws IOException {
+
+		if (source.renameTo(target)){
+			return;
+		}
+
+		// Some platforms can't rename over an existing file
+		if (!target.delete() || !source.renameTo(target)){
+			throw new IOException("Impossible rename " + source + " to " + target);
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return "KmzOutputCache [diskLruCache=" + diskLruCache + ", contentHash=" + contentHash + "]";
+	}
+
+}
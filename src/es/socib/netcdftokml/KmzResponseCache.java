@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded LRU cache of the kmz responses of the {@link ConversionServer}, keyed on the {@link ConversionRequest#getCacheKey(java.io.File)}.
+ *
+ * The cache is bounded by the number of entries and by the total bytes, the least recently used entries are evicted
+ * first. The entries of remote sources expire after a time to live, because their content can't be checked.
+ *
+ */
+public class KmzResponseCache {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(KmzResponseCache.class.getSimpleName());
+
+	private int maxEntries;
+
+	private long maxBytes;
+
+	private long remoteTimeToLiveMillis;
+
+	private long totalBytes;
+
+	private long hitCount;
+
+	private long missCount;
+
+	/**
+	 * entryMap Map with the cache key as key and the cached kmz as value, in access order.
+	 */
+	private LinkedHashMap<String, Entry> entryMap = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * A cached kmz.
+	 */
+	private static class Entry {
+
+		private byte[] kmz;
+
+		/**
+		 * expiration the expiration time in milliseconds, Long.MAX_VALUE if it doesn't expire.
+		 */
+		private long expiration;
+
+		public Entry(byte[] kmz, long expiration) {
+			this.kmz = kmz;
+			this.expiration = expiration;
+		}
+
+	}
+
+	/**
+	 * Construct a new {@link KmzResponseCache}.
+	 *
+	 * @param maxEntries the maximum number of entries
+	 * @param maxBytes the maximum total bytes of the entries
+	 * @param remoteTimeToLiveMillis the time to live of the entries of remote sources, in milliseconds
+	 */
+	public KmzResponseCache(int maxEntries, long maxBytes, long remoteTimeToLiveMillis) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.remoteTimeToLiveMillis = remoteTimeToLiveMillis;
+	}
+
+	/**
+	 * Retrieve the cached kmz of the given key.
+	 *
+	 * @param cacheKey the cache key
+	 * @return the kmz, null if not cached or expired
+	 */
+	public synchronized byte[] get(String cacheKey) {
+
+		Entry entry = entryMap.get(cacheKey);
+
+		if (null != entry && entry.expiration < System.currentTimeMillis()){
+			remove(cacheKey);
+			entry = null;
+		}
+
+		if (null == entry){
+			missCount++;
+			return null;
+		}
+
+		hitCount++;
+		return entry.kmz;
+	}
+
+	/**
+	 * Cache the kmz of the given key, evicting the least recently used entries if needed. The kmz bigger than the
+	 * maximum total bytes isn't cached.
+	 *
+	 * @param cacheKey the cache key
+	 * @param kmz the kmz
+	 * @param remoteSource true if the kmz was converted from a remote source, then the entry expires.
+	 */
+	public synchronized void put(String cacheKey, byte[] kmz, boolean remoteSource) {
+
+		if (kmz.length > maxBytes || maxEntries < 1){
+			return;
+		}
+
+		remove(cacheKey);
+
+		long expiration = remoteSource ? System.currentTimeMillis() + remoteTimeToLiveMillis : Long.MAX_VALUE;
+		entryMap.put(cacheKey, new Entry(kmz, expiration));
+		totalBytes += kmz.length;
+
+		Iterator<Map.Entry<String, Entry>> entryIterator = entryMap.entrySet().iterator();
+		while (entryIterator.hasNext() && (entryMap.size() > maxEntries || totalBytes > maxBytes)){
+			Map.Entry<String, Entry> eldest = entryIterator.next();
+			totalBytes -= eldest.getValue().kmz.length;
+			entryIterator.remove();
+			logger.debug("Evicted " + eldest.getKey());
+		}
+
+	}
+
+	private void remove(String cacheKey) {
+		Entry entry = entryMap.remove(cacheKey);
+		if (null != entry){
+			totalBytes -= entry.kmz.length;
+		}
+	}
+
+	/**
+	 * Retrieve the maximum size of a kmz to be cached.
+	 *
+	 * @return the maximum total bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entryMap.size();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "KmzResponseCache [entries=" + entryMap.size() + "/" + maxEntries + ", bytes=" + totalBytes + "/" + maxBytes
+				+ ", hits=" + hitCount + ", misses=" + missCount + "]";
+	}
+
+}
@@ -0,0 +1,342 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+
+/**
+ * {@link PlacemarkSink} that serializes each placemark straight into the doc.kml entry of a
+ * kmz stream, without keeping the kml object tree in memory.
+ *
+ * Only the last received placemark is retained, because the end icon style must be set to the
+ * last placemark of the trajectory.
+ *
+ * Optionally the placemarks written, except the last one and the line string, are also copied to a
+ * placemark journal, used by the incremental conversion (see {@link IncrementalCheckpoint}).
+ *
+ */
+public class KmzStreamWriter implements PlacemarkSink {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(KmzStreamWriter.class.getSimpleName());
+
+	public static final String KML_ENTRY_NAME = "doc.kml";
+
+	private static final String ENCODING = "UTF-8";
+
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private MeteredZipOutputStream zipOutputStream;
+
+	private Writer writer;
+
+	private XMLStreamWriter xmlStreamWriter;
+
+	/**
+	 * pendingPlacemark the last received placemark, not yet written.
+	 */
+	private Placemark pendingPlacemark;
+
+	/**
+	 * homePlacemarkWritten true if the first placemark of the trajectory was already written.
+	 */
+	private boolean homePlacemarkWritten;
+
+	private int placemarkCount;
+
+	/**
+	 * placemarkJournal the placemark journal, null if not used.
+	 */
+	private Writer placemarkJournal;
+
+	/**
+	 * fragmentWriter the buffer where the placemarks are serialized when the journal is used.
+	 */
+	private StringWriter fragmentWriter;
+
+	private XMLStreamWriter fragmentXmlStreamWriter;
+
+	/**
+	 * Construct a new {@link KmzStreamWriter}. The given {@link OutputStream} isn't closed by the writer.
+	 *
+	 * @param outputStream the {@link OutputStream} where the kmz is written.
+	 */
+	public KmzStreamWriter(OutputStream outputStream) {
+		this(outputStream, new KmzCompression());
+	}
+
+	/**
+	 * Construct a new {@link KmzStreamWriter} that compresses the kmz with the given {@link KmzCompression}.
+	 * The given {@link OutputStream} isn't closed by the writer.
+	 *
+	 * @param outputStream the {@link OutputStream} where the kmz is written.
+	 * @param kmzCompression the {@link KmzCompression}
+	 */
+	public KmzStreamWriter(OutputStream outputStream, KmzCompression kmzCompression) {
+		this.zipOutputStream = new MeteredZipOutputStream(outputStream, kmzCompression);
+	}
+
+	/**
+	 * Construct a new {@link KmzStreamWriter}. The given {@link WritableByteChannel} isn't closed by the writer.
+	 *
+	 * @param channel the {@link WritableByteChannel} where the kmz is written.
+	 */
+	public KmzStreamWriter(WritableByteChannel channel) {
+		this(Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Start the kml document. Write the document name and the document styles.
+	 *
+	 * @param documentName the kml document name
+	 * @param kmlStyleInfo the {@link KmlStyleInfo} with the document styles.
+	 * @throws IOException
+	 */
+	public void startDocument(String documentName, KmlStyleInfo kmlStyleInfo) throws IOException {
+		startDocument(documentName, kmlStyleInfo, null);
+	}
+
+	/**
+	 * Start the kml document. Write the document name and the document styles, with the given balloon text.
+	 *
+	 * @param documentName the kml document name
+	 * @param kmlStyleInfo the {@link KmlStyleInfo} with the document styles.
+	 * @param balloonText the balloon style text, null to display the placemark description.
+	 * @throws IOException
+	 */
+	public void startDocument(String documentName, KmlStyleInfo kmlStyleInfo, String balloonText) throws IOException {
+
+		zipOutputStream.putNextEntry(new ZipEntry(KML_ENTRY_NAME));
+		writer = new BufferedWriter(new OutputStreamWriter(zipOutputStream, ENCODING));
+
+		try {
+
+			xmlStreamWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+			xmlStreamWriter.writeStartDocument(ENCODING, "1.0");
+			xmlStreamWriter.setDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+			xmlStreamWriter.writeStartElement("kml");
+			xmlStreamWriter.writeDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+			xmlStreamWriter.writeStartElement("Document");
+			KmlXmlSerializer.writeElement(xmlStreamWriter, "name", documentName);
+			KmlXmlSerializer.writeElement(xmlStreamWriter, "open", Boolean.TRUE);
+
+			// The styles are defined once in the KmlStyleInfo
+			Document styleDocument = new Document();
+			kmlStyleInfo.setKmlDocumentStyle(styleDocument, balloonText);
+			for (StyleSelector styleSelector : styleDocument.getStyleSelector()){
+				KmlXmlSerializer.writeStyle(xmlStreamWriter, (Style) styleSelector);
+			}
+
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	/**
+	 * Copy the placemarks written to the journal of a previous conversion to the kml document
+	 * and, if set, to the current journal. Must be called after {@link #startDocument(String, KmlStyleInfo)}
+	 * and before the first {@link #addPlacemark(Placemark)}.
+	 *
+	 * @param previousPlacemarkJournal the previous placemark journal
+	 * @throws IOException
+	 */
+	public void appendJournaledPlacemarks(Reader previousPlacemarkJournal) throws IOException {
+
+		try {
+			xmlStreamWriter.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		char[] buffer = new char[COPY_BUFFER_SIZE];
+		int read;
+		boolean empty = true;
+		while (-1 != (read = previousPlacemarkJournal.read(buffer))){
+			writer.write(buffer, 0, read);
+			if (null != placemarkJournal){
+				placemarkJournal.write(buffer, 0, read);
+			}
+			if (read > 0){
+				empty = false;
+			}
+		}
+
+		if (!empty){
+			homePlacemarkWritten = true;
+		}
+
+	}
+
+	/**
+	 * Set the placemark journal. The placemarks written from now on, except the last one and the line
+	 * string, are also written to the journal.
+	 *
+	 * @param placemarkJournal the placemark journal {@link Writer}, not closed by the writer
+	 * @throws IOException
+	 */
+	public void setPlacemarkJournal(Writer placemarkJournal) throws IOException {
+
+		this.placemarkJournal = placemarkJournal;
+		this.fragmentWriter = new StringWriter();
+
+		try {
+			fragmentXmlStreamWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(fragmentWriter);
+			fragmentXmlStreamWriter.setDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	@Override
+	public void addPlacemark(Placemark placemark) throws IOException {
+
+		if (null != pendingPlacemark){
+			writePlacemark(pendingPlacemark, true);
+		} else if (!homePlacemarkWritten){
+			placemark.setStyleUrl(KmlStyleInfo.HOME_ICON_STYLE_URL);
+		}
+
+		pendingPlacemark = placemark;
+		homePlacemarkWritten = true;
+
+	}
+
+	@Override
+	public void finish(List<Placemark> linePlacemarkList) throws IOException {
+
+		if (null != pendingPlacemark){
+			pendingPlacemark.setStyleUrl(KmlStyleInfo.FINAL_ICON_STYLE_URL);
+			writePlacemark(pendingPlacemark, false);
+			pendingPlacemark = null;
+		}
+
+		for (Placemark linePlacemark : linePlacemarkList){
+			writePlacemark(linePlacemark, false);
+		}
+
+		try {
+			// Document and kml
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndDocument();
+			xmlStreamWriter.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		writer.flush();
+		zipOutputStream.closeEntry();
+		zipOutputStream.finish();
+
+		if (null != placemarkJournal){
+			placemarkJournal.flush();
+		}
+
+		logger.info(placemarkCount + " placemarks written to the kmz stream");
+
+	}
+
+	/**
+	 * Write the given {@link Placemark} to the kml document and, if the journal is set and the
+	 * placemark must be journaled, to the journal.
+	 *
+	 * @param placemark the {@link Placemark}
+	 * @param journal true if the placemark must be written to the journal.
+	 * @throws IOException
+	 */
+	private void writePlacemark(Placemark placemark, boolean journal) throws IOException {
+
+		try {
+
+			if (journal && null != placemarkJournal){
+
+				fragmentWriter.getBuffer().setLength(0);
+				KmlXmlSerializer.writePlacemark(fragmentXmlStreamWriter, placemark);
+				fragmentXmlStreamWriter.flush();
+				String fragment = fragmentWriter.toString();
+
+				xmlStreamWriter.flush();
+				writer.write(fragment);
+				placemarkJournal.write(fragment);
+
+			} else {
+
+				KmlXmlSerializer.writePlacemark(xmlStreamWriter, placemark);
+
+			}
+
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		placemarkCount++;
+
+	}
+
+	/**
+	 * Marshal the given in memory {@link Kml} as the doc.kml entry of a kmz written to the given
+	 * {@link OutputStream}, compressed with the given {@link KmzCompression}. The given {@link OutputStream}
+	 * isn't closed.
+	 *
+	 * @param kml the {@link Kml}, for example created by {@link KmlManager#createKMLFile()}
+	 * @param outputStream the {@link OutputStream} where the kmz is written.
+	 * @param kmzCompression the {@link KmzCompression}
+	 * @throws IOException
+	 */
+	public static void marshalAsKmz(Kml kml, OutputStream outputStream, KmzCompression kmzCompression) throws IOException {
+
+		MeteredZipOutputStream kmzOutputStream = new MeteredZipOutputStream(outputStream, kmzCompression);
+		kmzOutputStream.putNextEntry(new ZipEntry(KML_ENTRY_NAME));
+
+		Writer kmlWriter = new BufferedWriter(new OutputStreamWriter(kmzOutputStream, ENCODING));
+		if (!kml.marshal(kmlWriter)){
+			throw new IOException("Impossible marshal the kml document");
+		}
+		kmlWriter.flush();
+
+		kmzOutputStream.closeEntry();
+		kmzOutputStream.finish();
+
+	}
+
+	public int getPlacemarkCount() {
+		return placemarkCount;
+	}
+
+	/**
+	 * Retrieve the kmz stream, metered to report the compression.
+	 *
+	 * @return the {@link MeteredZipOutputStream}
+	 */
+	public MeteredZipOutputStream getZipOutputStream() {
+		return zipOutputStream;
+	}
+
+}
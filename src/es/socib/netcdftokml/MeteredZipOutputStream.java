@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * {@link ZipOutputStream} that meters the compression: the bytes written before and after the compression
+ * and the time spent compressing, including the write of the compressed bytes to the underlying stream.
+ *
+ * The entries are deflated with the level of the given {@link KmzCompression}. If it is parallel, the entries
+ * are written by a {@link ParallelDeflateZipWriter} instead of the {@link ZipOutputStream} implementation.
+ *
+ */
+public class MeteredZipOutputStream extends ZipOutputStream {
+
+	private ByteCountingOutputStream compressedOutputStream;
+
+	private long uncompressedBytes;
+
+	private long compressionNanos;
+
+	private int meteringDepth;
+
+	private long meteringStart;
+
+	/**
+	 * parallelDeflateZipWriter the writer of the entries deflated in parallel, null if the entries are written
+	 * by the {@link ZipOutputStream}.
+	 */
+	private ParallelDeflateZipWriter parallelDeflateZipWriter;
+
+	/**
+	 * Construct a new {@link MeteredZipOutputStream} with the default compression.
+	 *
+	 * @param outputStream the underlying {@link OutputStream}
+	 */
+	public MeteredZipOutputStream(OutputStream outputStream) {
+		this(outputStream, new KmzCompression());
+	}
+
+	/**
+	 * Construct a new {@link MeteredZipOutputStream}.
+	 *
+	 * @param outputStream the underlying {@link OutputStream}
+	 * @param kmzCompression the {@link KmzCompression}
+	 */
+	public MeteredZipOutputStream(OutputStream outputStream, KmzCompression kmzCompression) {
+		this(new ByteCountingOutputStream(outputStream), kmzCompression);
+	}
+
+	private MeteredZipOutputStream(ByteCountingOutputStream compressedOutputStream, KmzCompression kmzCompression) {
+		super(compressedOutputStream);
+		this.compressedOutputStream = compressedOutputStream;
+		if (kmzCompression.isParallel()){
+			parallelDeflateZipWriter = new ParallelDeflateZipWriter(compressedOutputStream, kmzCompression);
+		} else {
+			setLevel(kmzCompression.getLevel());
+		}
+	}
+
+	@Override
+	public void putNextEntry(ZipEntry zipEntry) throws IOException {
+		startMetering();
+		try {
+			if (null == parallelDeflateZipWriter){
+				super.putNextEntry(zipEntry);
+			} else {
+				parallelDeflateZipWriter.putNextEntry(zipEntry);
+			}
+		} finally {
+			stopMetering();
+		}
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		startMetering();
+		try {
+			if (null == parallelDeflateZipWriter){
+				super.write(b, off, len);
+			} else {
+				parallelDeflateZipWriter.write(b, off, len);
+			}
+			uncompressedBytes += len;
+		} finally {
+			stopMetering();
+		}
+	}
+
+	@Override
+	public void closeEntry() throws IOException {
+		startMetering();
+		try {
+			if (null == parallelDeflateZipWriter){
+				super.closeEntry();
+			} else {
+				parallelDeflateZipWriter.closeEntry();
+			}
+		} finally {
+			stopMetering();
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		startMetering();
+		try {
+			if (null == parallelDeflateZipWriter){
+				super.finish();
+			} else {
+				parallelDeflateZipWriter.finish();
+			}
+		} finally {
+			stopMetering();
+		}
+	}
+
+	/**
+	 * Start metering the compression time. The nested calls, like the entry closed by {@link #finish()},
+	 * are metered once.
+	 */
+	private void startMetering() {
+		if (0 == meteringDepth++){
+			meteringStart = System.nanoTime();
+		}
+	}
+
+	private void stopMetering() {
+		if (0 == --meteringDepth){
+			compressionNanos += System.nanoTime() - meteringStart;
+		}
+	}
+
+	/**
+	 * Retrieve the bytes written to the zip entries, before the compression.
+	 *
+	 * @return the uncompressed bytes
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes;
+	}
+
+	/**
+	 * Retrieve the bytes written to the underlying stream, the compressed entries and the zip headers.
+	 *
+	 * @return the compressed bytes
+	 */
+	public long getCompressedBytes() {
+		return compressedOutputStream.byteCount;
+	}
+
+	/**
+	 * Retrieve the time spent compressing.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public long getCompressionNanos() {
+		return compressionNanos;
+	}
+
+	/**
+	 * {@link FilterOutputStream} that counts the bytes written.
+	 */
+	private static class ByteCountingOutputStream extends FilterOutputStream {
+
+		private long byteCount;
+
+		public ByteCountingOutputStream(OutputStream outputStream) {
+			super(outputStream);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			byteCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			byteCount += len;
+		}
+
+	}
+
+}
@@ -0,0 +1,835 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.ma2.Section;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+
+/**
+ * Read session over one NetCDF source. The source is opened once and exposes the enhanced
+ * {@link NetcdfDataset} view and the raw {@link NetcdfFile} view of the same handle.
+ *
+ * Every variable is read at most once per view, the data arrays are memoized by the session.
+ *
+ * A record range can be set over the record (time) dimension. Then only the records of the range are
+ * read from the variables whose first dimension is the record dimension, and the data arrays returned
+ * are indexed from the first record of the range.
+ *
+ * The variables needed can be planned up front with {@link #prefetch(Collection)}: the variables, restricted to the
+ * record range and the display level, are fetched with a single bulk read, one DAP request for opendap sources, and
+ * optionally kept in a {@link RemoteArrayCache}.
+ *
+ */
+public class NetcdfReadSession implements Closeable {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(NetcdfReadSession.class.getSimpleName());
+
+	private NetcdfDataset netcdfDataset;
+
+	/**
+	 * arrayMap Map with the variable full name as key and the enhanced variable data as value.
+	 */
+	private Map<String, Array> arrayMap;
+
+	/**
+	 * rawArrayMap Map with the variable full name as key and the raw variable data as value.
+	 */
+	private Map<String, Array> rawArrayMap;
+
+	/**
+	 * prefetchedArrayMap Map with the raw variable full name as key and the raw data fetched by {@link #prefetch(Collection)}
+	 * as value. The data is moved to the other maps when the variable is read.
+	 */
+	private Map<String, Array> prefetchedArrayMap;
+
+	/**
+	 * remoteArrayCache the cache of the arrays read from remote sources, null if not used.
+	 */
+	private RemoteArrayCache remoteArrayCache;
+
+	private boolean closed;
+
+	/**
+	 * recordDimensionName the name of the record dimension, null if the variables are read entirely.
+	 */
+	private String recordDimensionName;
+
+	/**
+	 * recordOrigin the first record read.
+	 */
+	private int recordOrigin;
+
+	/**
+	 * recordLength the number of records read, -1 to read until the last record.
+	 */
+	private int recordLength = -1;
+
+	/**
+	 * prefetchLevel the level fetched from the two dimensional (time, level) variables, -1 to fetch all the levels.
+	 */
+	private int prefetchLevel = -1;
+
+	/**
+	 * openNanos the time spent opening the source, 0 if the session was constructed over an already opened dataset.
+	 */
+	private long openNanos;
+
+	/**
+	 * conversionListener the listener of the variable reads, null if not set.
+	 */
+	private ConversionListener conversionListener;
+
+	/**
+	 * Construct a new {@link NetcdfReadSession} over an already opened {@link NetcdfDataset}.
+	 * The session becomes the owner of the dataset.
+	 *
+	 * @param netcdfDataset the {@link NetcdfDataset}
+	 */
+	public NetcdfReadSession(NetcdfDataset netcdfDataset) {
+		this.netcdfDataset = netcdfDataset;
+		this.arrayMap = new HashMap<String, Array>();
+		this.rawArrayMap = new HashMap<String, Array>();
+		this.prefetchedArrayMap = new HashMap<String, Array>();
+	}
+
+	/**
+	 * Open a new {@link NetcdfReadSession}.
+	 *
+	 * @param location the NetCDF file location, can be a local file or opendap link
+	 * @return the {@link NetcdfReadSession}
+	 * @throws IOException
+	 */
+	public static NetcdfReadSession open(String location) throws IOException {
+
+		long start = System.nanoTime();
+		NetcdfReadSession readSession = new NetcdfReadSession(NetcdfDataset.openDataset(location));
+		readSession.openNanos = System.nanoTime() - start;
+
+		return readSession;
+	}
+
+	/**
+	 * Set the record range. Only the records of the range are read from the variables whose first dimension
+	 * is the given record dimension. The data memoized until now is released.
+	 *
+	 * @param recordDimensionName the name of the record dimension, usually the time dimension
+	 * @param recordOrigin the first record read
+	 * @param recordLength the number of records read, -1 to read until the last record
+	 */
+	public void setRecordRange(String recordDimensionName, int recordOrigin, int recordLength) {
+		this.recordDimensionName = recordDimensionName;
+		this.recordOrigin = recordOrigin;
+		this.recordLength = recordLength;
+		arrayMap.clear();
+		rawArrayMap.clear();
+		prefetchedArrayMap.clear();
+	}
+
+	/**
+	 * Set the level fetched from the two dimensional (time, level) variables by {@link #prefetch(Collection)}.
+	 * The data prefetched is released.
+	 *
+	 * @param prefetchLevel the level index, -1 to fetch all the levels
+	 */
+	public void setPrefetchLevel(int prefetchLevel) {
+		this.prefetchLevel = prefetchLevel;
+		prefetchedArrayMap.clear();
+	}
+
+	public int getPrefetchLevel() {
+		return prefetchLevel;
+	}
+
+	/**
+	 * Fetch the raw data of the given variables before they are read, with a single bulk read of the raw file,
+	 * one DAP request for opendap sources. Only the records of the record range and, of the two dimensional
+	 * (time, level) variables, the prefetch level are fetched (see {@link #setPrefetchLevel(int)}). The variables
+	 * already read or fetched are skipped.
+	 *
+	 * The remote arrays are looked up first in the {@link RemoteArrayCache}, if set, and the arrays fetched are
+	 * cached. The remote sources without a modification stamp aren't cached, a rewritten dataset couldn't be told
+	 * apart. The scale, offset and missing values of the enhanced variables are applied to the raw data fetched
+	 * when the variable is read. The variables with other enhancements aren't fetched, they are read when needed.
+	 *
+	 * @param variableList the variables of the dataset that will be read
+	 * @throws IOException
+	 */
+	public void prefetch(Collection<? extends Variable> variableList) throws IOException {
+
+		String modificationStamp = isRemote() && null != remoteArrayCache ? getModificationStamp() : null;
+		if (null != modificationStamp && 0 == modificationStamp.length()){
+			logger.debug("The modification stamp of " + getLocation() + " is unknown, the arrays aren't cached");
+			modificationStamp = null;
+		}
+
+		Map<String, Variable> fetchVariableMap = new LinkedHashMap<String, Variable>();
+		Map<String, Section> sectionMap = new HashMap<String, Section>();
+		Set<String> levelKeySet = new HashSet<String>();
+		Map<String, String> cacheKeyMap = new HashMap<String, String>();
+		int cacheHitCount = 0;
+
+		for (Variable variable : variableList){
+
+			if (null == variable || arrayMap.containsKey(variable.getFullName())){
+				continue;
+			}
+
+			Variable rawVariable = getRawVariable(variable);
+			if (null == rawVariable || !isPrefetchable(variable)){
+				continue;
+			}
+
+			int level = getPrefetchLevel(rawVariable);
+			String prefetchKey = getPrefetchKey(rawVariable.getFullName(), level);
+			if (rawArrayMap.containsKey(rawVariable.getFullName()) || prefetchedArrayMap.containsKey(prefetchKey)
+					|| fetchVariableMap.containsKey(prefetchKey)){
+				continue;
+			}
+
+			Section section;
+			try {
+				section = getPrefetchSection(rawVariable, level);
+			} catch (InvalidRangeException e) {
+				// Reported when the variable is read
+				continue;
+			}
+
+			if (null != modificationStamp){
+
+				String cacheKey = RemoteArrayCache.getCacheKey(getLocation(), modificationStamp, getConstraint(rawVariable, section));
+				long start = System.nanoTime();
+				Array array = remoteArrayCache.get(cacheKey);
+
+				if (null != array){
+					reportRead(prefetchKey, array, start);
+					prefetchedArrayMap.put(prefetchKey, array);
+					cacheHitCount++;
+					continue;
+				}
+
+				cacheKeyMap.put(prefetchKey, cacheKey);
+
+			}
+
+			try {
+				fetchVariableMap.put(prefetchKey, isWholeSection(rawVariable, section) ? rawVariable : rawVariable.section(section));
+			} catch (InvalidRangeException e) {
+				continue;
+			}
+			sectionMap.put(prefetchKey, section);
+			if (-1 != level){
+				levelKeySet.add(prefetchKey);
+			}
+
+		}
+
+		if (!fetchVariableMap.isEmpty()){
+
+			List<String> prefetchKeyList = new ArrayList<String>(fetchVariableMap.keySet());
+			long start = System.nanoTime();
+			List<Array> arrayList = getRawFile().readArrays(new ArrayList<Variable>(fetchVariableMap.values()));
+			long elapsedNanos = System.nanoTime() - start;
+
+			long totalBytes = 0;
+			for (Array array : arrayList){
+				totalBytes += array.getSizeBytes();
+			}
+
+			// The time of the bulk read is shared by the variables in proportion to their size
+			for (int i = 0; i < prefetchKeyList.size(); i++){
+				String prefetchKey = prefetchKeyList.get(i);
+				Array array = arrayList.get(i);
+				if (null != conversionListener){
+					long variableNanos = 0 == totalBytes ? 0 : elapsedNanos * array.getSizeBytes() / totalBytes;
+					conversionListener.variableRead(getLocation(), prefetchKey, array.getSizeBytes(), variableNanos);
+				}
+				try {
+					array = restrictToSection(array, sectionMap.get(prefetchKey), levelKeySet.contains(prefetchKey));
+				} catch (InvalidRangeException e) {
+					throw new IOException("Section " + sectionMap.get(prefetchKey) + " out of range in " + prefetchKey + ": " + e.getMessage());
+				}
+				prefetchedArrayMap.put(prefetchKey, array);
+				cacheArray(cacheKeyMap.get(prefetchKey), array);
+			}
+
+		}
+
+		logger.debug("Prefetched " + fetchVariableMap.size() + " variables in " + (fetchVariableMap.isEmpty() ? 0 : 1) + " reads and "
+				+ cacheHitCount + " from the array cache");
+
+		if (null != conversionListener){
+			conversionListener.counted(getLocation(), ConversionCounter.READ_REQUESTS, fetchVariableMap.isEmpty() ? 0 : 1);
+			conversionListener.counted(getLocation(), ConversionCounter.ARRAY_CACHE_HITS, cacheHitCount);
+		}
+
+	}
+
+	/**
+	 * Retrieve the variable of the raw file behind the given variable.
+	 *
+	 * @param variable the {@link Variable}
+	 * @return the raw {@link Variable}, null if the variable doesn't have an original variable.
+	 */
+	private static Variable getRawVariable(Variable variable) {
+
+		if (variable instanceof VariableDS){
+			return ((VariableDS) variable).getOriginalVariable();
+		}
+
+		return variable;
+	}
+
+	/**
+	 * Check if the enhanced data of the given variable can be computed from its raw data: the variable isn't
+	 * enhanced or only its scale, offset and missing values are applied.
+	 *
+	 * @param variable the {@link Variable}
+	 * @return true if the variable can be prefetched, otherwise false.
+	 */
+	private static boolean isPrefetchable(Variable variable) {
+
+		if (!(variable instanceof VariableDS)){
+			return true;
+		}
+
+		VariableDS variableDS = (VariableDS) variable;
+
+		return variableDS.hasScaleOffset() || variableDS.getDataType() == variableDS.getOriginalDataType();
+	}
+
+	/**
+	 * Retrieve the level fetched from the given raw variable.
+	 *
+	 * @param rawVariable the raw {@link Variable}
+	 * @return the prefetch level if the variable is a two dimensional numeric variable, otherwise -1.
+	 */
+	private int getPrefetchLevel(Variable rawVariable) {
+
+		if (-1 == prefetchLevel || 2 != rawVariable.getRank() || !rawVariable.getDataType().isNumeric()){
+			return -1;
+		}
+
+		return prefetchLevel;
+	}
+
+	private static String getPrefetchKey(String rawName, int level) {
+		return -1 == level ? rawName : rawName + "(:," + level + ")";
+	}
+
+	/**
+	 * Retrieve the section of the given raw variable fetched: the records of the record range and the given level.
+	 *
+	 * @param rawVariable the raw {@link Variable}
+	 * @param level the level index, -1 for all the levels
+	 * @return the {@link Section}
+	 * @throws InvalidRangeException if the level is out of range
+	 */
+	private Section getPrefetchSection(Variable rawVariable, int level) throws InvalidRangeException {
+
+		int[] origin = new int[rawVariable.getRank()];
+		int[] shape = rawVariable.getShape();
+
+		if (isRecordVariable(rawVariable)){
+			origin[0] = recordOrigin;
+			shape[0] = getRecordLength(rawVariable);
+		}
+
+		if (-1 != level){
+			if (level >= shape[1]){
+				throw new InvalidRangeException("Level " + level + " out of range");
+			}
+			origin[1] = level;
+			shape[1] = 1;
+		}
+
+		return new Section(origin, shape);
+	}
+
+	private static boolean isWholeSection(Variable rawVariable, Section section) {
+
+		int[] origin = section.getOrigin();
+		int[] shape = section.getShape();
+
+		for (int i = 0; i < origin.length; i++){
+			if (0 != origin[i] || shape[i] != rawVariable.getShape()[i]){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Restrict the given fetched array to the given section, in case the whole variable was returned, and reduce
+	 * the level arrays to one dimension.
+	 *
+	 * @param array the {@link Array} fetched
+	 * @param section the {@link Section} requested
+	 * @param level true if the section is a level of a two dimensional variable
+	 * @return the {@link Array} of the section, readable by index
+	 * @throws InvalidRangeException
+	 */
+	private static Array restrictToSection(Array array, Section section, boolean level) throws InvalidRangeException {
+
+		if (!Arrays.equals(array.getShape(), section.getShape())){
+			array = array.section(section.getOrigin(), section.getShape()).copy();
+		}
+
+		return level ? array.reduce(1) : array;
+	}
+
+	/**
+	 * Take the data of the given variable fetched by {@link #prefetch(Collection)}. The scale, offset and missing
+	 * values of the enhanced variables are applied to the raw data.
+	 *
+	 * @param variable the {@link Variable}
+	 * @param level the level index of the two dimensional (time, level) variables, -1 for the whole variable
+	 * @return the {@link Array} data, null if the variable wasn't fetched.
+	 * @throws IOException if the level is out of range
+	 */
+	private Array takePrefetched(Variable variable, int level) throws IOException {
+
+		Variable rawVariable = getRawVariable(variable);
+		if (null == rawVariable || !isPrefetchable(variable)){
+			return null;
+		}
+
+		String rawName = rawVariable.getFullName();
+		Array rawArray = null;
+
+		if (-1 != level){
+			rawArray = prefetchedArrayMap.remove(getPrefetchKey(rawName, level));
+		}
+
+		if (null == rawArray){
+
+			rawArray = prefetchedArrayMap.remove(rawName);
+			if (null == rawArray){
+				return null;
+			}
+
+			// The fetched data is already restricted to the record range. The section is a strided view of the
+			// fetched data, copied so it can be read by index
+			if (-1 != level){
+				try {
+					rawArray = rawArray.section(new int[] {0, level}, new int[] {rawArray.getShape()[0], 1}).reduce(1).copy();
+				} catch (InvalidRangeException e) {
+					throw new IOException("Level " + level + " out of range in " + variable.getFullName() + ": " + e.getMessage());
+				}
+			}
+
+		}
+
+		if (rawVariable == variable){
+			return rawArray;
+		}
+
+		VariableDS variableDS = (VariableDS) variable;
+		if (variableDS.hasScaleOffset() || variableDS.hasMissing()){
+			return variableDS.convertScaleOffsetMissing(rawArray);
+		}
+
+		return rawArray;
+	}
+
+	/**
+	 * Retrieve the DAP constraint of the read of the given section, like temperature[0:1023][0:3].
+	 *
+	 * @param variable the raw {@link Variable}
+	 * @param section the {@link Section} read
+	 * @return the constraint
+	 */
+	private static String getConstraint(Variable variable, Section section) {
+
+		StringBuilder constraint = new StringBuilder(variable.getFullName());
+		int[] origin = section.getOrigin();
+		int[] shape = section.getShape();
+
+		for (int i = 0; i < origin.length; i++){
+			constraint.append('[').append(origin[i]).append(':').append(origin[i] + shape[i] - 1).append(']');
+		}
+
+		return constraint.toString();
+	}
+
+	/**
+	 * Retrieve the modification stamp of the source, part of the {@link RemoteArrayCache} key: the last modification
+	 * time, if known, and the date_modified global attribute.
+	 *
+	 * @return the modification stamp, empty if unknown
+	 */
+	private String getModificationStamp() {
+
+		StringBuilder modificationStamp = new StringBuilder();
+
+		long lastModified = getRawFile().getLastModified();
+		if (lastModified > 0){
+			modificationStamp.append(lastModified);
+		}
+
+		Attribute dateModified = netcdfDataset.findGlobalAttribute("date_modified");
+		if (null != dateModified && null != dateModified.getStringValue()){
+			modificationStamp.append('@').append(dateModified.getStringValue());
+		}
+
+		return modificationStamp.toString();
+	}
+
+	/**
+	 * Cache the given array fetched. The read doesn't fail if the array can't be cached.
+	 */
+	private void cacheArray(String cacheKey, Array array) {
+
+		if (null == cacheKey){
+			return;
+		}
+
+		try {
+			remoteArrayCache.put(cacheKey, array);
+		} catch (IOException e) {
+			logger.warn("Impossible cache the array of " + cacheKey + ": " + e.getMessage());
+		}
+
+	}
+
+	/**
+	 * Read the enhanced data of the given variable of the dataset.
+	 *
+	 * @param variable the {@link Variable}
+	 * @return the {@link Array} data
+	 * @throws IOException
+	 */
+	public Array read(Variable variable) throws IOException {
+
+		Array array = arrayMap.get(variable.getFullName());
+
+		if (null == array){
+			array = takePrefetched(variable, -1);
+			if (null == array){
+				logger.debug("Reading " + variable.getFullName());
+				long start = System.nanoTime();
+				array = readRecords(variable);
+				reportRead(variable.getFullName(), array, start);
+			}
+			arrayMap.put(variable.getFullName(), array);
+		}
+
+		return array;
+	}
+
+	/**
+	 * Read the enhanced data of the variable with the given name.
+	 *
+	 * @param variableName the variable full name
+	 * @return the {@link Array} data, null if the variable isn't in the dataset
+	 * @throws IOException
+	 */
+	public Array read(String variableName) throws IOException {
+
+		Variable variable = netcdfDataset.findVariable(variableName);
+
+		if (null == variable){
+			return null;
+		}
+
+		return read(variable);
+	}
+
+	/**
+	 * Read the enhanced data of the given variable at the given level. The two dimensional (time, level)
+	 * variables are read with a section read of the level, [:, level], and returned as a one dimensional
+	 * {@link Array} of time. The one dimensional variables are read entirely.
+	 *
+	 * @param variable the {@link Variable}
+	 * @param level the level index
+	 * @return the one dimensional {@link Array} data
+	 * @throws IOException if the variable can't be read or the level is out of range
+	 */
+	public Array readLevel(Variable variable, int level) throws IOException {
+
+		if (2 != variable.getRank()){
+			return read(variable);
+		}
+
+		String key = variable.getFullName() + "(:," + level + ")";
+		Array array = arrayMap.get(key);
+
+		if (null == array){
+			array = takePrefetched(variable, level);
+			if (null != array){
+				arrayMap.put(key, array);
+			}
+		}
+
+		if (null == array){
+
+			logger.debug("Reading " + key);
+			int[] origin = {0, level};
+			int[] shape = {variable.getShape()[0], 1};
+			if (isRecordVariable(variable)){
+				origin[0] = recordOrigin;
+				shape[0] = getRecordLength(variable);
+			}
+			long start = System.nanoTime();
+			try {
+				array = variable.read(origin, shape).reduce(1);
+			} catch (InvalidRangeException e) {
+				throw new IOException("Level " + level + " out of range in " + variable.getFullName() + ": " + e.getMessage());
+			}
+			reportRead(key, array, start);
+			arrayMap.put(key, array);
+
+		}
+
+		return array;
+	}
+
+	/**
+	 * Read the raw data, without the enhancement of the {@link NetcdfDataset}, of the variable with
+	 * the given name.
+	 *
+	 * @param variableName the variable full name
+	 * @return the {@link Array} data, null if the variable isn't in the file
+	 * @throws IOException
+	 */
+	public Array readRaw(String variableName) throws IOException {
+
+		Array array = rawArrayMap.get(variableName);
+
+		if (null == array){
+			array = prefetchedArrayMap.remove(variableName);
+			if (null != array){
+				rawArrayMap.put(variableName, array);
+			}
+		}
+
+		if (null == array){
+
+			Variable variable = getRawFile().findVariable(variableName);
+			if (null == variable){
+				return null;
+			}
+
+			logger.debug("Reading raw " + variableName);
+			long start = System.nanoTime();
+			array = readRecords(variable);
+			reportRead(variableName, array, start);
+			rawArrayMap.put(variableName, array);
+
+		}
+
+		return array;
+	}
+
+	/**
+	 * Read the given variable entirely or, if it is a record variable, only the records of the record range.
+	 *
+	 * @param variable the {@link Variable}
+	 * @return the {@link Array} data
+	 * @throws IOException
+	 */
+	private Array readRecords(Variable variable) throws IOException {
+
+		if (!isRecordVariable(variable)){
+			return variable.read();
+		}
+
+		int[] origin = new int[variable.getRank()];
+		int[] shape = variable.getShape();
+		origin[0] = recordOrigin;
+		shape[0] = getRecordLength(variable);
+
+		try {
+			return variable.read(origin, shape);
+		} catch (InvalidRangeException e) {
+			throw new IOException("Records " + recordOrigin + ":" + (recordOrigin + shape[0]) + " out of range in " + variable.getFullName() + ": " + e.getMessage());
+		}
+
+	}
+
+	/**
+	 * Report the read of the given data, started at the given time, to the conversion listener.
+	 */
+	private void reportRead(String name, Array array, long start) {
+		if (null != conversionListener){
+			conversionListener.variableRead(getLocation(), name, array.getSizeBytes(), System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * If the record range is set and the first dimension of the given variable is the record dimension.
+	 *
+	 * @param variable the {@link Variable}
+	 * @return true if the variable is a record variable, otherwise false
+	 */
+	private boolean isRecordVariable(Variable variable) {
+
+		if (null == recordDimensionName || 0 == variable.getRank()){
+			return false;
+		}
+
+		return recordDimensionName.equals(variable.getDimensions().get(0).getShortName());
+	}
+
+	private int getRecordLength(Variable variable) {
+
+		if (recordLength < 0){
+			return variable.getShape()[0] - recordOrigin;
+		}
+
+		return recordLength;
+	}
+
+	/**
+	 * Release the memoized data of the given variable, the whole variable and its levels. Used when the
+	 * data isn't needed any more, for example the quality controls once compiled (see {@link QcFlagPolicy}).
+	 *
+	 * @param variable the {@link Variable}
+	 */
+	public void release(Variable variable) {
+
+		String levelKeyPrefix = variable.getFullName() + "(:,";
+
+		Iterator<String> keyIterator = arrayMap.keySet().iterator();
+		while (keyIterator.hasNext()){
+			String key = keyIterator.next();
+			if (key.equals(variable.getFullName()) || key.startsWith(levelKeyPrefix)){
+				keyIterator.remove();
+			}
+		}
+
+		Variable rawVariable = getRawVariable(variable);
+		if (null != rawVariable){
+			String rawLevelKeyPrefix = rawVariable.getFullName() + "(:,";
+			keyIterator = prefetchedArrayMap.keySet().iterator();
+			while (keyIterator.hasNext()){
+				String key = keyIterator.next();
+				if (key.equals(rawVariable.getFullName()) || key.startsWith(rawLevelKeyPrefix)){
+					keyIterator.remove();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Set the listener of the variable reads, also used by the {@link AncillaryVariablesManager} to report the
+	 * ancillary discovery.
+	 *
+	 * @param conversionListener the {@link ConversionListener}, null to remove it
+	 */
+	public void setConversionListener(ConversionListener conversionListener) {
+		this.conversionListener = conversionListener;
+	}
+
+	public ConversionListener getConversionListener() {
+		return conversionListener;
+	}
+
+	public RemoteArrayCache getRemoteArrayCache() {
+		return remoteArrayCache;
+	}
+
+	/**
+	 * Set the cache of the arrays fetched from remote sources by {@link #prefetch(Collection)}.
+	 *
+	 * @param remoteArrayCache the {@link RemoteArrayCache}, null to fetch all the variables from the source.
+	 */
+	public void setRemoteArrayCache(RemoteArrayCache remoteArrayCache) {
+		this.remoteArrayCache = remoteArrayCache;
+	}
+
+	/**
+	 * Retrieve the time spent opening the source.
+	 *
+	 * @return the time in nanoseconds, 0 if the session was constructed over an already opened dataset.
+	 */
+	public long getOpenNanos() {
+		return openNanos;
+	}
+
+	public int getRecordOrigin() {
+		return recordOrigin;
+	}
+
+	/**
+	 * Retrieve the raw view of the source.
+	 *
+	 * @return the {@link NetcdfFile} referenced by the dataset, or the dataset itself if it doesn't wrap other file.
+	 */
+	public NetcdfFile getRawFile() {
+
+		NetcdfFile netcdfFile = netcdfDataset.getReferencedFile();
+
+		if (null == netcdfFile){
+			return netcdfDataset;
+		}
+
+		return netcdfFile;
+	}
+
+	public NetcdfDataset getDataset() {
+		return netcdfDataset;
+	}
+
+	public String getLocation() {
+		return netcdfDataset.getLocation();
+	}
+
+	/**
+	 * If the source is remote, like an opendap link.
+	 *
+	 * @return true if the source location is an url, otherwise false.
+	 */
+	public boolean isRemote() {
+		return null != getLocation() && getLocation().contains("://");
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close the source and release the memoized data. Closing an already closed session has no effect.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed){
+			return;
+		}
+
+		closed = true;
+		arrayMap.clear();
+		rawArrayMap.clear();
+		prefetchedArrayMap.clear();
+		netcdfDataset.close();
+
+	}
+
+}
@@ -0,0 +1,442 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Zip writer that deflates the entries in independent blocks on a worker pool, like pigz, and concatenates them
+ * into a standard deflated zip entry.
+ *
+ * Each block is deflated with the last 32 kilobytes of the previous block as dictionary, so the compression
+ * ratio is close to the single threaded one, and ends with a sync flush, so the blocks are byte aligned. The
+ * last block of the entry finishes the deflate stream. The crc is computed by the writing thread.
+ *
+ * The entries are written with a data descriptor, so they are streamed without knowing their size in advance.
+ * The zip64 extensions aren't supported, the entries and the whole zip must be smaller than 4 gigabytes.
+ *
+ * The pool is shared by all the writers of the virtual machine, the number of workers of a writer is the
+ * number of blocks deflated concurrently.
+ *
+ */
+public class ParallelDeflateZipWriter {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	private static final int VERSION = 20;
+
+	/**
+	 * FLAGS the data descriptor and utf-8 name flags.
+	 */
+	private static final int FLAGS = 0x0808;
+
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+	private static ExecutorService executor;
+
+	private OutputStream outputStream;
+
+	private int level;
+
+	private int workerCount;
+
+	private int blockSize;
+
+	/**
+	 * written the bytes written to the output stream.
+	 */
+	private long written;
+
+	private List<Entry> entryList = new ArrayList<Entry>();
+
+	/**
+	 * currentEntry the entry being written, null if none.
+	 */
+	private Entry currentEntry;
+
+	private CRC32 crc = new CRC32();
+
+	private byte[] block;
+
+	private int blockLength;
+
+	/**
+	 * previousBlock the last block submitted of the current entry, the dictionary of the next one.
+	 */
+	private byte[] previousBlock;
+
+	private int previousBlockLength;
+
+	/**
+	 * pendingBlockQueue the blocks being deflated, in order.
+	 */
+	private Deque<Future<byte[]>> pendingBlockQueue = new ArrayDeque<Future<byte[]>>();
+
+	private boolean finished;
+
+	/**
+	 * A zip entry written.
+	 */
+	private static class Entry {
+
+		private byte[] name;
+
+		private int dosTime;
+
+		private long crc;
+
+		private long compressedSize;
+
+		private long size;
+
+		private long offset;
+
+	}
+
+	/**
+	 * Construct a new {@link ParallelDeflateZipWriter}. The given {@link OutputStream} isn't closed by the writer.
+	 *
+	 * @param outputStream the {@link OutputStream} where the zip is written
+	 * @param kmzCompression the {@link KmzCompression}
+	 */
+	public ParallelDeflateZipWriter(OutputStream outputStream, KmzCompression kmzCompression) {
+		this.outputStream = outputStream;
+		this.level = kmzCompression.getLevel();
+		this.workerCount = kmzCompression.getEffectiveWorkerCount();
+		this.blockSize = kmzCompression.getBlockSize();
+	}
+
+	/**
+	 * Retrieve the shared pool of the deflate workers, with a daemon thread per available processor.
+	 */
+	private static synchronized ExecutorService getExecutor() {
+
+		if (null == executor){
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "kmz-deflate");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Begin writing a new entry, closing the current one.
+	 *
+	 * @param zipEntry the {@link ZipEntry}, only the name and time are used
+	 * @throws IOException
+	 */
+	public void putNextEntry(ZipEntry zipEntry) throws IOException {
+
+		ensureOpen();
+		if (null != currentEntry){
+			closeEntry();
+		}
+
+		Entry entry = new Entry();
+		entry.name = zipEntry.getName().getBytes("UTF-8");
+		entry.dosTime = toDosTime(-1 == zipEntry.getTime() ? System.currentTimeMillis() : zipEntry.getTime());
+		entry.offset = written;
+
+		writeInt(LOCAL_HEADER_SIGNATURE);
+		writeShort(VERSION);
+		writeShort(FLAGS);
+		writeShort(ZipEntry.DEFLATED);
+		writeInt(entry.dosTime);
+		// The crc and sizes are in the data descriptor
+		writeInt(0);
+		writeInt(0);
+		writeInt(0);
+		writeShort(entry.name.length);
+		writeShort(0);
+		writeBytes(entry.name, 0, entry.name.length);
+
+		currentEntry = entry;
+		crc.reset();
+		block = new byte[blockSize];
+		blockLength = 0;
+		previousBlock = null;
+		previousBlockLength = 0;
+
+	}
+
+	/**
+	 * Write the given bytes to the current entry.
+	 *
+	 * @param b the data
+	 * @param off the start offset in the data
+	 * @param len the number of bytes to write
+	 * @throws IOException
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (null == currentEntry){
+			throw new IOException("No current zip entry");
+		}
+
+		crc.update(b, off, len);
+		currentEntry.size += len;
+
+		while (len > 0){
+
+			int copied = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, copied);
+			blockLength += copied;
+			off += copied;
+			len -= copied;
+
+			if (blockLength == blockSize){
+				submitBlock(false);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Submit the current block to the workers, and write the deflated blocks already done. At most a block per
+	 * worker is pending.
+	 */
+	private void submitBlock(boolean last) throws IOException {
+
+		final byte[] input = block;
+		final int inputLength = blockLength;
+		final byte[] dictionary = previousBlock;
+		final int dictionaryLength = previousBlockLength;
+		final boolean finish = last;
+
+		pendingBlockQueue.add(getExecutor().submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return deflate(input, inputLength, dictionary, dictionaryLength, finish);
+			}
+		}));
+
+		previousBlock = input;
+		previousBlockLength = inputLength;
+		block = last ? null : new byte[blockSize];
+		blockLength = 0;
+
+		while (pendingBlockQueue.size() >= workerCount || (last && !pendingBlockQueue.isEmpty())){
+			writeDeflatedBlock(pendingBlockQueue.poll());
+		}
+
+	}
+
+	/**
+	 * Deflate a block. The block ends with a sync flush, or finishes the deflate stream if it is the last one.
+	 */
+	private byte[] deflate(byte[] input, int inputLength, byte[] dictionary, int dictionaryLength, boolean finish) {
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+
+			if (null != dictionary && Deflater.NO_COMPRESSION != level){
+				int dictionaryOffset = Math.max(0, dictionaryLength - DICTIONARY_SIZE);
+				deflater.setDictionary(dictionary, dictionaryOffset, dictionaryLength - dictionaryOffset);
+			}
+
+			deflater.setInput(input, 0, inputLength);
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream(Math.max(64, inputLength / 2));
+			byte[] buffer = new byte[8192];
+
+			if (finish){
+				deflater.finish();
+				while (!deflater.finished()){
+					deflated.write(buffer, 0, deflater.deflate(buffer));
+				}
+			} else {
+				int count;
+				do {
+					count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					deflated.write(buffer, 0, count);
+				} while (count == buffer.length);
+			}
+
+			return deflated.toByteArray();
+
+		} finally {
+			deflater.end();
+		}
+
+	}
+
+	private void writeDeflatedBlock(Future<byte[]> deflatedBlockFuture) throws IOException {
+
+		byte[] deflatedBlock;
+		try {
+			deflatedBlock = deflatedBlockFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while deflating the zip entry");
+		} catch (ExecutionException e) {
+			throw new IOException("Impossible deflate the zip entry", e.getCause());
+		}
+
+		writeBytes(deflatedBlock, 0, deflatedBlock.length);
+		currentEntry.compressedSize += deflatedBlock.length;
+
+	}
+
+	/**
+	 * Finish the current entry and write its data descriptor.
+	 *
+	 * @throws IOException
+	 */
+	public void closeEntry() throws IOException {
+
+		if (null == currentEntry){
+			return;
+		}
+
+		try {
+			submitBlock(true);
+		} finally {
+			// The pending blocks are discarded if failed
+			for (Future<byte[]> pendingBlock : pendingBlockQueue){
+				pendingBlock.cancel(true);
+			}
+			pendingBlockQueue.clear();
+		}
+
+		currentEntry.crc = crc.getValue();
+		if (currentEntry.size > MAX_SIZE || currentEntry.compressedSize > MAX_SIZE || written > MAX_SIZE){
+			throw new IOException("The zip entry " + new String(currentEntry.name, "UTF-8") + " exceeds 4 gigabytes, zip64 isn't supported");
+		}
+
+		writeInt(DATA_DESCRIPTOR_SIGNATURE);
+		writeInt((int) currentEntry.crc);
+		writeInt((int) currentEntry.compressedSize);
+		writeInt((int) currentEntry.size);
+
+		entryList.add(currentEntry);
+		currentEntry = null;
+		previousBlock = null;
+
+	}
+
+	/**
+	 * Finish the zip, closing the current entry and writing the central directory. The output stream isn't closed.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+
+		if (finished){
+			return;
+		}
+
+		closeEntry();
+
+		long centralDirectoryOffset = written;
+		for (Entry entry : entryList){
+			writeInt(CENTRAL_HEADER_SIGNATURE);
+			writeShort(VERSION);
+			writeShort(VERSION);
+			writeShort(FLAGS);
+			writeShort(ZipEntry.DEFLATED);
+			writeInt(entry.dosTime);
+			writeInt((int) entry.crc);
+			writeInt((int) entry.compressedSize);
+			writeInt((int) entry.size);
+			writeShort(entry.name.length);
+			// Extra field, comment, disk number, internal and external attributes
+			writeShort(0);
+			writeShort(0);
+			writeShort(0);
+			writeShort(0);
+			writeInt(0);
+			writeInt((int) entry.offset);
+			writeBytes(entry.name, 0, entry.name.length);
+		}
+		long centralDirectorySize = written - centralDirectoryOffset;
+
+		if (entryList.size() > 0xFFFF || written > MAX_SIZE){
+			throw new IOException("The zip exceeds the zip limits, zip64 isn't supported");
+		}
+
+		writeInt(END_SIGNATURE);
+		writeShort(0);
+		writeShort(0);
+		writeShort(entryList.size());
+		writeShort(entryList.size());
+		writeInt((int) centralDirectorySize);
+		writeInt((int) centralDirectoryOffset);
+		writeShort(0);
+
+		outputStream.flush();
+		finished = true;
+
+	}
+
+	private void ensureOpen() throws IOException {
+		if (finished){
+			throw new IOException("The zip is already finished");
+		}
+	}
+
+	/**
+	 * Convert the given time to the MS-DOS date and time format.
+	 */
+	private static int toDosTime(long timeMillis) {
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(timeMillis);
+
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980){
+			return (1 << 21) | (1 << 16);
+		}
+
+		return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+				| calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+	}
+
+	private void writeShort(int value) throws IOException {
+		outputStream.write(value & 0xFF);
+		outputStream.write((value >>> 8) & 0xFF);
+		written += 2;
+	}
+
+	private void writeInt(int value) throws IOException {
+		writeShort(value & 0xFFFF);
+		writeShort((value >>> 16) & 0xFFFF);
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		outputStream.write(b, off, len);
+		written += len;
+	}
+
+}
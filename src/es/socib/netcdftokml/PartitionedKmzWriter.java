@@ -0,0 +1,436 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+
+import ucar.nc2.units.DateUnit;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import de.micromata.opengis.kml.v_2_2_0.TimeSpan;
+
+/**
+ * {@link PlacemarkSink} that writes a kmz partitioned by time periods (see {@link TimePartition}).
+ *
+ * The root doc.kml only has a network link, with the period time span, to each partition. Each partition is a
+ * kml file inside the kmz, in the partitions directory, with the document styles, the placemarks that begin in
+ * the period and the line string of the period. The line string of a partition starts at the last position of
+ * the previous one, so the trajectory is continuous. Only one partition is open at a time.
+ *
+ * The root document must be written first, so the periods with placemarks are given when the document is started.
+ *
+ */
+public class PartitionedKmzWriter implements PlacemarkSink {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(PartitionedKmzWriter.class.getSimpleName());
+
+	public static final String PARTITION_DIRECTORY = "partitions/";
+
+	private static final String ENCODING = "UTF-8";
+
+	private MeteredZipOutputStream zipOutputStream;
+
+	private XMLOutputFactory xmlOutputFactory;
+
+	private Writer writer;
+
+	private XMLStreamWriter xmlStreamWriter;
+
+	private TimePartition timePartition;
+
+	/**
+	 * lineSimplificationTolerance the tolerance used to simplify the line string of each partition.
+	 */
+	private double lineSimplificationTolerance;
+
+	private String documentName;
+
+	private KmlStyleInfo kmlStyleInfo;
+
+	/**
+	 * balloonText the balloon style text written in each partition, null to display the placemark description.
+	 */
+	private String balloonText;
+
+	/**
+	 * periodStartList the start of the periods linked from the root document, in time order.
+	 */
+	private List<Long> periodStartList;
+
+	/**
+	 * nextPeriodIdx the index of the next period of the periodStartList to write.
+	 */
+	private int nextPeriodIdx;
+
+	/**
+	 * currentPeriodStart the start of the partition open, null if no partition is open.
+	 */
+	private Long currentPeriodStart;
+
+	/**
+	 * partitionCoordinateList the line string coordinates of the partition open.
+	 */
+	private List<Coordinate> partitionCoordinateList;
+
+	/**
+	 * lastCoordinate the last position written, the first position of the next partition line string.
+	 */
+	private Coordinate lastCoordinate;
+
+	/**
+	 * pendingPlacemark the last received placemark, not yet written.
+	 */
+	private Placemark pendingPlacemark;
+
+	private boolean homePlacemarkWritten;
+
+	private int placemarkCount;
+
+	/**
+	 * Construct a new {@link PartitionedKmzWriter}. The given {@link OutputStream} isn't closed by the writer.
+	 *
+	 * @param outputStream the {@link OutputStream} where the kmz is written.
+	 * @param timePartition the {@link TimePartition}
+	 * @param lineSimplificationTolerance the tolerance used to simplify the line string of each partition, see {@link TrajectorySimplifier}.
+	 */
+	public PartitionedKmzWriter(OutputStream outputStream, TimePartition timePartition, double lineSimplificationTolerance) {
+		this(outputStream, timePartition, lineSimplificationTolerance, new KmzCompression());
+	}
+
+	/**
+	 * Construct a new {@link PartitionedKmzWriter} that compresses the kmz with the given {@link KmzCompression}.
+	 * The given {@link OutputStream} isn't closed by the writer.
+	 *
+	 * @param outputStream the {@link OutputStream} where the kmz is written.
+	 * @param timePartition the {@link TimePartition}
+	 * @param lineSimplificationTolerance the tolerance used to simplify the line string of each partition, see {@link TrajectorySimplifier}.
+	 * @param kmzCompression the {@link KmzCompression}
+	 */
+	public PartitionedKmzWriter(OutputStream outputStream, TimePartition timePartition, double lineSimplificationTolerance, KmzCompression kmzCompression) {
+		this.zipOutputStream = new MeteredZipOutputStream(outputStream, kmzCompression);
+		this.xmlOutputFactory = XMLOutputFactory.newInstance();
+		this.timePartition = timePartition;
+		this.lineSimplificationTolerance = lineSimplificationTolerance;
+	}
+
+	/**
+	 * Write the root document, with a network link to the partition of each given period.
+	 *
+	 * @param documentName the kml document name
+	 * @param kmlStyleInfo the {@link KmlStyleInfo} with the document styles, written in each partition.
+	 * @param balloonText the balloon style text, null to display the placemark description.
+	 * @param periodStartList the start of the periods with placemarks, in time order.
+	 * @throws IOException
+	 */
+	public void startDocument(String documentName, KmlStyleInfo kmlStyleInfo, String balloonText, List<Long> periodStartList) throws IOException {
+
+		this.documentName = documentName;
+		this.kmlStyleInfo = kmlStyleInfo;
+		this.balloonText = balloonText;
+		this.periodStartList = periodStartList;
+
+		startEntry(KmzStreamWriter.KML_ENTRY_NAME, documentName);
+
+		try {
+			for (Long periodStart : periodStartList){
+				String periodName = timePartition.getPeriodName(periodStart);
+				xmlStreamWriter.writeStartElement("NetworkLink");
+				KmlXmlSerializer.writeElement(xmlStreamWriter, "name", periodName);
+				xmlStreamWriter.writeStartElement("TimeSpan");
+				KmlXmlSerializer.writeElement(xmlStreamWriter, "begin", formatTime(periodStart));
+				KmlXmlSerializer.writeElement(xmlStreamWriter, "end", formatTime(timePartition.getNextPeriodStart(periodStart)));
+				xmlStreamWriter.writeEndElement();
+				xmlStreamWriter.writeStartElement("Link");
+				KmlXmlSerializer.writeElement(xmlStreamWriter, "href", getPartitionEntryName(periodStart));
+				xmlStreamWriter.writeEndElement();
+				xmlStreamWriter.writeEndElement();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		endEntry();
+
+		logger.info(periodStartList.size() + " " + timePartition + " partitions linked from the root document");
+
+	}
+
+	@Override
+	public void addPlacemark(Placemark placemark) throws IOException {
+
+		if (null != pendingPlacemark){
+			writePlacemark(pendingPlacemark);
+		} else if (!homePlacemarkWritten){
+			placemark.setStyleUrl(KmlStyleInfo.HOME_ICON_STYLE_URL);
+		}
+
+		pendingPlacemark = placemark;
+		homePlacemarkWritten = true;
+
+	}
+
+	/**
+	 * Finish the trajectory. The given line string placemarks aren't written, because the line string is split
+	 * at the partition boundaries.
+	 */
+	@Override
+	public void finish(List<Placemark> linePlacemarkList) throws IOException {
+
+		if (null != pendingPlacemark){
+			pendingPlacemark.setStyleUrl(KmlStyleInfo.FINAL_ICON_STYLE_URL);
+			writePlacemark(pendingPlacemark);
+			pendingPlacemark = null;
+		}
+
+		closePartition();
+
+		// The periods linked without placemarks
+		while (nextPeriodIdx < periodStartList.size()){
+			openPartition(periodStartList.get(nextPeriodIdx));
+			closePartition();
+		}
+
+		zipOutputStream.finish();
+
+		logger.info(placemarkCount + " placemarks written to the partitioned kmz stream");
+
+	}
+
+	/**
+	 * Write the given placemark to the partition of its begin time. The placemarks without time are written
+	 * to the partition open.
+	 *
+	 * @param placemark the {@link Placemark}
+	 * @throws IOException
+	 */
+	private void writePlacemark(Placemark placemark) throws IOException {
+
+		Long periodStart = getPeriodStart(placemark);
+
+		if (null != periodStart && !periodStart.equals(currentPeriodStart)){
+			openPartition(periodStart);
+		} else if (null == currentPeriodStart){
+			if (nextPeriodIdx >= periodStartList.size()){
+				throw new IOException("No partition for the placemark " + placemark.getName());
+			}
+			openPartition(periodStartList.get(nextPeriodIdx));
+		}
+
+		try {
+			KmlXmlSerializer.writePlacemark(xmlStreamWriter, placemark);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		if (placemark.getGeometry() instanceof Point){
+			List<Coordinate> coordinateList = ((Point) placemark.getGeometry()).getCoordinates();
+			if (!coordinateList.isEmpty()){
+				lastCoordinate = coordinateList.get(0);
+				partitionCoordinateList.add(lastCoordinate);
+			}
+		}
+
+		placemarkCount++;
+
+	}
+
+	/**
+	 * Close the partition open and open the partition of the given period. The periods linked before the given
+	 * one are written empty.
+	 *
+	 * @param periodStart the period start
+	 * @throws IOException
+	 */
+	private void openPartition(long periodStart) throws IOException {
+
+		closePartition();
+
+		while (nextPeriodIdx < periodStartList.size() && periodStartList.get(nextPeriodIdx) < periodStart){
+			long emptyPeriodStart = periodStartList.get(nextPeriodIdx);
+			startPartition(emptyPeriodStart);
+			closePartition();
+		}
+
+		if (nextPeriodIdx >= periodStartList.size() || periodStartList.get(nextPeriodIdx) != periodStart){
+			logger.warn("The partition " + timePartition.getPeriodName(periodStart) + " isn't linked from the root document");
+		}
+
+		startPartition(periodStart);
+
+	}
+
+	private void startPartition(long periodStart) throws IOException {
+
+		if (nextPeriodIdx < periodStartList.size() && periodStartList.get(nextPeriodIdx) == periodStart){
+			nextPeriodIdx++;
+		}
+
+		startEntry(getPartitionEntryName(periodStart), documentName + " " + timePartition.getPeriodName(periodStart));
+
+		try {
+			// The styles are defined in each partition, the style urls are local to the document
+			Document styleDocument = new Document();
+			kmlStyleInfo.setKmlDocumentStyle(styleDocument, balloonText);
+			for (StyleSelector styleSelector : styleDocument.getStyleSelector()){
+				KmlXmlSerializer.writeStyle(xmlStreamWriter, (Style) styleSelector);
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		currentPeriodStart = periodStart;
+		partitionCoordinateList = new ArrayList<Coordinate>();
+		if (null != lastCoordinate){
+			partitionCoordinateList.add(lastCoordinate);
+		}
+
+	}
+
+	/**
+	 * Write the line string of the partition open and close it.
+	 *
+	 * @throws IOException
+	 */
+	private void closePartition() throws IOException {
+
+		if (null == currentPeriodStart){
+			return;
+		}
+
+		if (partitionCoordinateList.size() > 1){
+
+			final Placemark placemarkLine = new Placemark();
+			final LineString linestring = new LineString();
+			placemarkLine.setGeometry(linestring);
+			linestring.setExtrude(false);
+			linestring.setTessellate(true);
+			linestring.setCoordinates(TrajectorySimplifier.simplify(partitionCoordinateList, lineSimplificationTolerance));
+			placemarkLine.setStyleUrl(KmlStyleInfo.LINE_STYLE_URL);
+
+			try {
+				KmlXmlSerializer.writePlacemark(xmlStreamWriter, placemarkLine);
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+
+		}
+
+		endEntry();
+
+		currentPeriodStart = null;
+		partitionCoordinateList = null;
+
+	}
+
+	/**
+	 * Start a kml entry of the kmz, write the kml document start and name.
+	 */
+	private void startEntry(String entryName, String name) throws IOException {
+
+		zipOutputStream.putNextEntry(new ZipEntry(entryName));
+		writer = new BufferedWriter(new OutputStreamWriter(zipOutputStream, ENCODING));
+
+		try {
+			xmlStreamWriter = xmlOutputFactory.createXMLStreamWriter(writer);
+			xmlStreamWriter.writeStartDocument(ENCODING, "1.0");
+			xmlStreamWriter.setDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+			xmlStreamWriter.writeStartElement("kml");
+			xmlStreamWriter.writeDefaultNamespace(KmlXmlSerializer.KML_NAMESPACE);
+			xmlStreamWriter.writeStartElement("Document");
+			KmlXmlSerializer.writeElement(xmlStreamWriter, "name", name);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	/**
+	 * Write the kml document end and close the kml entry of the kmz.
+	 */
+	private void endEntry() throws IOException {
+
+		try {
+			// Document and kml
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndElement();
+			xmlStreamWriter.writeEndDocument();
+			xmlStreamWriter.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		writer.flush();
+		zipOutputStream.closeEntry();
+
+	}
+
+	/**
+	 * Retrieve the start of the period of the given placemark begin time.
+	 *
+	 * @param placemark the {@link Placemark}
+	 * @return the period start, null if the placemark doesn't have begin time.
+	 */
+	private Long getPeriodStart(Placemark placemark) {
+
+		if (!(placemark.getTimePrimitive() instanceof TimeSpan)){
+			return null;
+		}
+
+		String begin = ((TimeSpan) placemark.getTimePrimitive()).getBegin();
+		if (null == begin){
+			return null;
+		}
+
+		Date date = DateUnit.getStandardOrISO(begin);
+		if (null == date){
+			return null;
+		}
+
+		return timePartition.getPeriodStart(date.getTime());
+	}
+
+	private String getPartitionEntryName(long periodStart) {
+		return PARTITION_DIRECTORY + timePartition.getPeriodName(periodStart) + ".kml";
+	}
+
+	private static String formatTime(long time) {
+		return KmlManager.format(time, "yyyy-MM-dd HH:mm:ss").replace(" ", "T");
+	}
+
+	public int getPlacemarkCount() {
+		return placemarkCount;
+	}
+
+	/**
+	 * Retrieve the kmz stream, metered to report the compression.
+	 *
+	 * @return the {@link MeteredZipOutputStream}
+	 */
+	public MeteredZipOutputStream getZipOutputStream() {
+		return zipOutputStream;
+	}
+
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+/**
+ * Renders the placemark balloon descriptions and the placemark times.
+ *
+ * The constant fragments of the description (title header, variable labels and opendap link) are built once,
+ * the description is appended to a reused {@link StringBuilder} and the dates are formatted with
+ * {@link FastDateFormat} instances resolved once. So the only allocation per placemark is the description
+ * string itself.
+ *
+ * A renderer isn't thread safe, each conversion must use its own renderer.
+ *
+ */
+public class PlacemarkBalloonRenderer {
+
+	public static final TimeZone GMT = TimeZone.getTimeZone("GMT0");
+
+	/**
+	 * KML_TIME_PATTERN the pattern of the kml time span begin and end.
+	 */
+	public static final String KML_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+
+	private static final String TIME_PREFIX = "<br> <strong>Time: </strong>";
+
+	private static final String POSITION_PREFIX = "<br> <strong>Position: </strong>";
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+
+	/**
+	 * header the title header, followed by the time label.
+	 */
+	private String header;
+
+	/**
+	 * variableLabels the label of each variable displayed.
+	 */
+	private String[] variableLabels;
+
+	/**
+	 * footer the opendap link, empty if there isn't opendap link.
+	 */
+	private String footer;
+
+	private VariableRenderPlan[] variableRenderPlans;
+
+	private FastDateFormat dateFormat;
+
+	private FastDateFormat kmlTimeFormat;
+
+	/**
+	 * Construct a new {@link PlacemarkBalloonRenderer}.
+	 *
+	 * @param title the balloon title
+	 * @param threddsLink the opendap link of the kml data, can be null.
+	 * @param dateFormatPattern the pattern of the time displayed
+	 * @param variableRenderPlanList the variables displayed
+	 */
+	public PlacemarkBalloonRenderer(String title, String threddsLink, String dateFormatPattern, List<VariableRenderPlan> variableRenderPlanList) {
+
+		this.header = "<h3>" + title + "</h3>" + TIME_PREFIX;
+
+		this.variableRenderPlans = variableRenderPlanList.toArray(new VariableRenderPlan[variableRenderPlanList.size()]);
+		this.variableLabels = new String[variableRenderPlans.length];
+		for (int i = 0; i < variableRenderPlans.length; i++){
+			variableLabels[i] = "<br><strong>" + variableRenderPlans[i].getName() + ": </strong>";
+		}
+
+		if (null != threddsLink && !"".equals(threddsLink)){
+			this.footer = "<br> <strong>TDS link:</strong> <a href=\"" + threddsLink + "\" title=\"OPeNDAP link\"> OPeNDAP link</a>";
+		} else {
+			this.footer = "";
+		}
+
+		this.dateFormat = getDateFormat(dateFormatPattern);
+		this.kmlTimeFormat = getDateFormat(KML_TIME_PATTERN);
+
+	}
+
+	/**
+	 * Render the placemark description: title, time, position, the value of each variable and the opendap link.
+	 *
+	 * @param timeIdx the time index
+	 * @param timeMillis the time expressed in milliseconds
+	 * @param lat the latitude
+	 * @param lon the longitude
+	 * @param singlePrecision true if the NetCDF position values are float
+	 * @return the description
+	 */
+	public String renderDescription(int timeIdx, long timeMillis, double lat, double lon, boolean singlePrecision) {
+
+		builder.setLength(0);
+		builder.append(header);
+		builder.append(dateFormat.format(timeMillis));
+		builder.append(POSITION_PREFIX);
+		appendPosition(lat, lon, singlePrecision);
+		builder.append("<br>");
+
+		for (int i = 0; i < variableRenderPlans.length; i++){
+			builder.append(variableLabels[i]);
+			variableRenderPlans[i].appendDataLike1D(builder, timeIdx);
+		}
+
+		builder.append(footer);
+
+		return builder.toString();
+	}
+
+	/**
+	 * Render the position, like the description.
+	 *
+	 * @param lat the latitude
+	 * @param lon the longitude
+	 * @param singlePrecision true if the NetCDF position values are float
+	 * @return the position
+	 */
+	public String renderPosition(double lat, double lon, boolean singlePrecision) {
+
+		builder.setLength(0);
+		appendPosition(lat, lon, singlePrecision);
+
+		return builder.toString();
+	}
+
+	private void appendPosition(double lat, double lon, boolean singlePrecision) {
+		PositionManager.appendLatGeoCoordinate(builder, lat, singlePrecision);
+		builder.append(' ');
+		PositionManager.appendLonGeoCoordinate(builder, lon, singlePrecision);
+	}
+
+	/**
+	 * Format the time with the date format pattern.
+	 *
+	 * @param timeMillis the time expressed in milliseconds
+	 * @return the formatted time
+	 */
+	public String formatDate(long timeMillis) {
+		return dateFormat.format(timeMillis);
+	}
+
+	/**
+	 * Format the time like the kml time span begin and end.
+	 *
+	 * @param timeMillis the time expressed in milliseconds
+	 * @return the formatted time
+	 */
+	public String formatKmlTime(long timeMillis) {
+		return kmlTimeFormat.format(timeMillis);
+	}
+
+	/**
+	 * Retrieve the thread safe formatter of the given pattern in time zone GMT0. The formatters are cached
+	 * by {@link FastDateFormat}.
+	 *
+	 * @param pattern the pattern
+	 * @return the {@link FastDateFormat}
+	 */
+	public static FastDateFormat getDateFormat(String pattern) {
+		return FastDateFormat.getInstance(pattern, GMT);
+	}
+
+}
@@ -0,0 +1,35 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+
+/**
+ * Destination of the kml placemarks generated by the {@link KmlManager}. The placemarks
+ * are received in time order, the first one is the home position and the last one the end position.
+ *
+ */
+public interface PlacemarkSink {
+
+	/**
+	 * Add the next placemark of the trajectory.
+	 *
+	 * @param placemark the {@link Placemark}
+	 * @throws IOException
+	 */
+	public void addPlacemark(Placemark placemark) throws IOException;
+
+	/**
+	 * Finish the trajectory. Set the home and end icon style and add the line string placemarks,
+	 * that represent the platform trajectory. There is one line string placemark for each level of detail tier.
+	 *
+	 * @param linePlacemarkList the line string {@link Placemark} list, empty if the trajectory doesn't have placemarks.
+	 * @throws IOException
+	 */
+	public void finish(List<Placemark> linePlacemarkList) throws IOException;
+
+}
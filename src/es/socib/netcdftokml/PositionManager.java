@@ -38,5 +38,122 @@ public class PositionManager {
 		return E + lon.toPlainString();
 		
 	}
+	
+	/**
+	 * Get the latitude geo coordinate, formatted like the NetCDF value.
+	 * 
+	 * @param lat the latitude
+	 * @param singlePrecision true if the NetCDF value is float
+	 * @return the latitude geo coordinate
+	 */
+	public static String getLatGeoCoordinate(double lat, boolean singlePrecision){
+		
+		if (lat < 0.0){
+			return S + toPlainString(-lat, singlePrecision);
+		}
+		
+		return N + toPlainString(lat, singlePrecision);
+		
+	}
+	
+	/**
+	 * Get the longitude geo coordinate, formatted like the NetCDF value.
+	 * 
+	 * @param lon the longitude
+	 * @param singlePrecision true if the NetCDF value is float
+	 * @return the longitude geo coordinate
+	 */
+	public static String getLonGeoCoordinate(double lon, boolean singlePrecision){
+		
+		if (lon < 0.0){
+			return W + toPlainString(-lon, singlePrecision);
+		}
+		
+		return E + toPlainString(lon, singlePrecision);
+		
+	}
+	
+	/**
+	 * Append the latitude geo coordinate to the given builder, like {@link #getLatGeoCoordinate(double, boolean)}.
+	 * 
+	 * @param builder the {@link StringBuilder}
+	 * @param lat the latitude
+	 * @param singlePrecision true if the NetCDF value is float
+	 */
+	public static void appendLatGeoCoordinate(StringBuilder builder, double lat, boolean singlePrecision){
+		
+		if (lat < 0.0){
+			builder.append(S);
+			appendPlainString(builder, -lat, singlePrecision);
+		} else {
+			builder.append(N);
+			appendPlainString(builder, lat, singlePrecision);
+		}
+		
+	}
+	
+	/**
+	 * Append the longitude geo coordinate to the given builder, like {@link #getLonGeoCoordinate(double, boolean)}.
+	 * 
+	 * @param builder the {@link StringBuilder}
+	 * @param lon the longitude
+	 * @param singlePrecision true if the NetCDF value is float
+	 */
+	public static void appendLonGeoCoordinate(StringBuilder builder, double lon, boolean singlePrecision){
+		
+		if (lon < 0.0){
+			builder.append(W);
+			appendPlainString(builder, -lon, singlePrecision);
+		} else {
+			builder.append(E);
+			appendPlainString(builder, lon, singlePrecision);
+		}
+		
+	}
+	
+	/**
+	 * Append the plain string of the value. The values between 10^-3 and 10^7, all the usual positions, don't
+	 * use the computerized scientific notation, so they are appended directly.
+	 */
+	private static void appendPlainString(StringBuilder builder, double value, boolean singlePrecision){
+		
+		// Avoid the negative zero
+		value = value + 0.0;
+		
+		if (singlePrecision){
+			float floatValue = (float) value;
+			if (0.0f == floatValue || (floatValue >= 1e-3f && floatValue < 1e7f)){
+				builder.append(floatValue);
+				return;
+			}
+		} else if (0.0 == value || (value >= 1e-3 && value < 1e7)){
+			builder.append(value);
+			return;
+		}
+		
+		builder.append(toPlainString(value, singlePrecision));
+		
+	}
+	
+	/**
+	 * Same representation as {@link BigDecimal#toPlainString()} of the value read from the NetCDF file.
+	 * 
+	 * @param value the value, not negative
+	 * @param singlePrecision true if the NetCDF value is float
+	 * @return the plain string
+	 */
+	private static String toPlainString(double value, boolean singlePrecision){
+		
+		// Avoid the negative zero
+		value = value + 0.0;
+		
+		String valueString = singlePrecision ? Float.toString((float) value) : Double.toString(value);
+		if (valueString.indexOf('E') < 0){
+			return valueString;
+		}
+		
+		return new BigDecimal(valueString).toPlainString();
+		
+	}
 
 }
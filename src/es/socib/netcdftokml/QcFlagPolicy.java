@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.BitSet;
+
+import ucar.ma2.Array;
+
+/**
+ * The quality control flags accepted as good data. By default the flags lower than the probably good
+ * data flag (2) are accepted, other flags can be accepted also, like the interpolated data flag (8).
+ *
+ * The quality control arrays are compiled into a {@link BitSet} of good data indexes, so the quality
+ * control data doesn't need to be kept once compiled.
+ *
+ */
+public class QcFlagPolicy {
+
+	public static final int PROBABLY_GOOD_DATA = 2;
+
+	public static final int INTERPOLATED_DATA = 8;
+
+	private static final int WORD_SIZE = 64;
+
+	/**
+	 * goodDataThreshold the flags lower than the threshold are accepted.
+	 */
+	private int goodDataThreshold = PROBABLY_GOOD_DATA;
+
+	/**
+	 * acceptedFlags the flags, from 0 to 255, accepted besides the flags lower than the threshold.
+	 */
+	private boolean[] acceptedFlags = new boolean[256];
+
+	/**
+	 * byteTable if each byte value is accepted, indexed by the unsigned byte value.
+	 */
+	private boolean[] byteTable = new boolean[256];
+
+	/**
+	 * Construct a new {@link QcFlagPolicy} that accepts the flags lower than the probably good data flag.
+	 */
+	public QcFlagPolicy() {
+		updateByteTable();
+	}
+
+	/**
+	 * Accept the given flag as good data.
+	 *
+	 * @param flag the flag, from 0 to 255
+	 */
+	public void acceptFlag(int flag) {
+
+		if (flag < 0 || flag >= acceptedFlags.length){
+			throw new IllegalArgumentException("The quality control flag " + flag + " must be between 0 and 255");
+		}
+
+		acceptedFlags[flag] = true;
+		updateByteTable();
+
+	}
+
+	/**
+	 * If the given quality control flag is accepted as good data.
+	 *
+	 * @param flag the quality control flag
+	 * @return true if is good data, otherwise false.
+	 */
+	public boolean isAccepted(int flag) {
+		return flag < goodDataThreshold || (flag >= 0 && flag < acceptedFlags.length && acceptedFlags[flag]);
+	}
+
+	/**
+	 * Compile the given quality control array into the set of good data indexes. The bits are packed a word
+	 * of 64 indexes at a time.
+	 *
+	 * @param qcArray the one dimensional quality control {@link Array}
+	 * @return the {@link BitSet} of good data indexes
+	 */
+	public BitSet compile(Array qcArray) {
+
+		int size = (int) qcArray.getSize();
+		long[] words = new long[(size + WORD_SIZE - 1) / WORD_SIZE];
+		boolean byteFlags = byte.class == qcArray.getElementType();
+
+		for (int w = 0; w < words.length; w++){
+
+			int first = w * WORD_SIZE;
+			int last = Math.min(first + WORD_SIZE, size);
+			long word = 0L;
+
+			if (byteFlags){
+				for (int i = first; i < last; i++){
+					if (byteTable[qcArray.getByte(i) & 0xFF]){
+						word |= 1L << (i - first);
+					}
+				}
+			} else {
+				for (int i = first; i < last; i++){
+					if (isAccepted(qcArray.getInt(i))){
+						word |= 1L << (i - first);
+					}
+				}
+			}
+
+			words[w] = word;
+
+		}
+
+		return BitSet.valueOf(words);
+	}
+
+	private void updateByteTable() {
+		for (int b = 0; b < byteTable.length; b++){
+			byteTable[b] = isAccepted((byte) b);
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuffer flags = new StringBuffer();
+		for (int flag = goodDataThreshold; flag < acceptedFlags.length; flag++){
+			if (acceptedFlags[flag]){
+				flags.append(" ").append(flag);
+			}
+		}
+
+		return "QcFlagPolicy [goodDataThreshold=" + goodDataThreshold + ", acceptedFlags=" + flags.toString().trim() + "]";
+	}
+
+}
@@ -0,0 +1,309 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.apache.log4j.Logger;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+
+/**
+ * Persistent cache of the raw data arrays read from remote sources, so the opendap variables already fetched
+ * aren't requested again to the server (see {@link NetcdfReadSession#prefetch(java.util.Collection)}).
+ *
+ * The cache key is a hash of the source location, its modification stamp and the DAP constraint of the read, like
+ * temperature[0:1023][0:3]. The records appended to a near real time dataset change the constraint of the
+ * whole variable reads, so they are a miss. A dataset rewritten without changing its shape nor its modification
+ * stamp is served from the cache until the entries are evicted.
+ *
+ * The array of each key is stored as key.array in the cache directory. The cache is bounded by the total size of the
+ * entries, the least recently used are evicted (a hit touches the entry). Like the {@link KmzOutputCache}, the entries
+ * are kept in a {@link DiskLruCache}, so the cache can be shared by concurrent workers and processes.
+ *
+ * Only the numeric, char and string arrays are cached.
+ *
+ */
+public class RemoteArrayCache {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(RemoteArrayCache.class.getSimpleName());
+
+	/**
+	 * CACHE_VERSION part of the cache key, must change when the entry format changes.
+	 */
+	private static final String CACHE_VERSION = "1";
+
+	private static final String ARRAY_EXTENSION = ".array";
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private DiskLruCache diskLruCache;
+
+	/**
+	 * Construct a new {@link RemoteArrayCache}.
+	 *
+	 * @param directory the cache directory, created if it doesn't exist
+	 * @param maxBytes the maximum total size of the entries
+	 * @throws IOException if the directory can't be created
+	 */
+	public RemoteArrayCache(File directory, long maxBytes) throws IOException {
+
+		diskLruCache = new DiskLruCache(directory, maxBytes, ARRAY_EXTENSION);
+
+	}
+
+	/**
+	 * Compute the cache key of the read of the given constraint.
+	 *
+	 * @param location the source location
+	 * @param modificationStamp the modification stamp of the source, empty if unknown
+	 * @param constraint the DAP constraint of the read
+	 * @return the cache key
+	 */
+	public static String getCacheKey(String location, String modificationStamp, String constraint) {
+
+		MessageDigest digest = DiskLruCache.createDigest();
+		DiskLruCache.update(digest, CACHE_VERSION);
+		DiskLruCache.update(digest, location);
+		DiskLruCache.update(digest, modificationStamp);
+		DiskLruCache.update(digest, constraint);
+
+		return DiskLruCache.toHex(digest.digest());
+	}
+
+	/**
+	 * Read the cached array of the given key.
+	 *
+	 * @param cacheKey the cache key
+	 * @return the {@link Array}, null if it isn't cached or can't be read.
+	 */
+	public Array get(String cacheKey) {
+
+		File entryFile = diskLruCache.getEntryFile(cacheKey);
+		if (null == entryFile){
+			return null;
+		}
+
+		Array array;
+		try {
+			array = readArray(entryFile);
+		} catch (IOException e) {
+			// Evicted meanwhile or corrupted
+			logger.warn("Impossible read the cached array " + entryFile + ": " + e.getMessage());
+			return null;
+		}
+
+		// The least recently used entries are evicted first
+		diskLruCache.touch(entryFile);
+
+		return array;
+	}
+
+	/**
+	 * Cache the given array with the given key, and evict the least recently used entries if the cache exceeds
+	 * its size. The arrays of other data types aren't cached.
+	 *
+	 * @param cacheKey the cache key
+	 * @param array the {@link Array}
+	 * @throws IOException if the array can't be cached
+	 */
+	public void put(String cacheKey, Array array) throws IOException {
+
+		if (!isCacheable(DataType.getType(array.getElementType())) || array.getSizeBytes() > diskLruCache.getMaxBytes()){
+			return;
+		}
+
+		File tmpEntryFile = diskLruCache.createTempFile();
+
+		try {
+			writeArray(array, tmpEntryFile);
+			diskLruCache.commit(tmpEntryFile, cacheKey);
+		} finally {
+			tmpEntryFile.delete();
+		}
+
+	}
+
+	private static boolean isCacheable(DataType dataType) {
+		switch (dataType) {
+		case BYTE:
+		case SHORT:
+		case INT:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+		case CHAR:
+		case STRING:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Write the data type, the shape and the values of the array.
+	 */
+	private static void writeArray(Array array, File file) throws IOException {
+
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+
+			DataType dataType = DataType.getType(array.getElementType());
+			int[] shape = array.getShape();
+			output.writeUTF(dataType.name());
+			output.writeInt(shape.length);
+			for (int dimLength : shape){
+				output.writeInt(dimLength);
+			}
+
+			Object storage = array.copyTo1DJavaArray();
+			switch (dataType) {
+			case BYTE:
+				output.write((byte[]) storage);
+				break;
+			case SHORT:
+				for (short value : (short[]) storage){
+					output.writeShort(value);
+				}
+				break;
+			case INT:
+				for (int value : (int[]) storage){
+					output.writeInt(value);
+				}
+				break;
+			case LONG:
+				for (long value : (long[]) storage){
+					output.writeLong(value);
+				}
+				break;
+			case FLOAT:
+				for (float value : (float[]) storage){
+					output.writeFloat(value);
+				}
+				break;
+			case DOUBLE:
+				for (double value : (double[]) storage){
+					output.writeDouble(value);
+				}
+				break;
+			case CHAR:
+				for (char value : (char[]) storage){
+					output.writeChar(value);
+				}
+				break;
+			default:
+				for (Object value : (Object[]) storage){
+					output.writeUTF(String.valueOf(value));
+				}
+				break;
+			}
+
+		} finally {
+			output.close();
+		}
+
+	}
+
+	/**
+	 * Read the array written by {@link #writeArray(Array, File)}.
+	 */
+	private static Array readArray(File file) throws IOException {
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try {
+
+			DataType dataType = DataType.valueOf(input.readUTF());
+			int[] shape = new int[input.readInt()];
+			int size = 1;
+			for (int i = 0; i < shape.length; i++){
+				shape[i] = input.readInt();
+				size *= shape[i];
+			}
+
+			Object storage;
+			switch (dataType) {
+			case BYTE:
+				byte[] bytes = new byte[size];
+				input.readFully(bytes);
+				storage = bytes;
+				break;
+			case SHORT:
+				short[] shorts = new short[size];
+				for (int i = 0; i < size; i++){
+					shorts[i] = input.readShort();
+				}
+				storage = shorts;
+				break;
+			case INT:
+				int[] ints = new int[size];
+				for (int i = 0; i < size; i++){
+					ints[i] = input.readInt();
+				}
+				storage = ints;
+				break;
+			case LONG:
+				long[] longs = new long[size];
+				for (int i = 0; i < size; i++){
+					longs[i] = input.readLong();
+				}
+				storage = longs;
+				break;
+			case FLOAT:
+				float[] floats = new float[size];
+				for (int i = 0; i < size; i++){
+					floats[i] = input.readFloat();
+				}
+				storage = floats;
+				break;
+			case DOUBLE:
+				double[] doubles = new double[size];
+				for (int i = 0; i < size; i++){
+					doubles[i] = input.readDouble();
+				}
+				storage = doubles;
+				break;
+			case CHAR:
+				char[] chars = new char[size];
+				for (int i = 0; i < size; i++){
+					chars[i] = input.readChar();
+				}
+				storage = chars;
+				break;
+			default:
+				String[] strings = new String[size];
+				for (int i = 0; i < size; i++){
+					strings[i] = input.readUTF();
+				}
+				storage = strings;
+				break;
+			}
+
+			return Array.factory(dataType, shape, storage);
+
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown data type in " + file);
+		} finally {
+			input.close();
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteArrayCache [diskLruCache=" + diskLruCache + "]";
+	}
+
+}
@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Variable;
+import ucar.nc2.units.DateUnit;
+
+/**
+ * Binary search of the time indexes of a time window on the monotone time coordinate, decoded like the
+ * {@link TrajectoryCoordinates}.
+ *
+ * Without the time data, each probe reads a single time value, so the cost is logarithmic in the number of records.
+ * The remote sources are better searched on the time data read in one request.
+ *
+ */
+public class TimeIndexSearch {
+
+	private Variable timeVariable;
+
+	/**
+	 * timeArray the time data, null to probe the time variable.
+	 */
+	private Array timeArray;
+
+	private long originMillis;
+
+	private double unitMillis;
+
+	private int size;
+
+	/**
+	 * probeMap Map with the time index as key and the decoded time as value, the time values already probed.
+	 */
+	private Map<Integer, Long> probeMap = new HashMap<Integer, Long>();
+
+	/**
+	 * Construct a new {@link TimeIndexSearch}.
+	 *
+	 * @param timeVariable the one dimensional time {@link Variable}
+	 * @param timeArray the time data, null to read only the time values probed.
+	 * @throws KmlManagerException if the time units can't be parsed
+	 */
+	public TimeIndexSearch(Variable timeVariable, Array timeArray) throws KmlManagerException {
+
+		this.timeVariable = timeVariable;
+		this.timeArray = timeArray;
+		this.size = timeVariable.getShape()[0];
+
+		DateUnit dateUnit = TrajectoryCoordinates.parseTimeUnits(timeVariable.getUnitsString());
+		this.originMillis = dateUnit.getDateOrigin().getTime();
+		this.unitMillis = TrajectoryCoordinates.getUnitMillis(dateUnit);
+
+	}
+
+	/**
+	 * Find the first time index at or after the given time.
+	 *
+	 * @param timeMillis the time expressed in milliseconds
+	 * @return the time index, the number of records if all the records are before the given time.
+	 * @throws IOException
+	 */
+	public int findFirstIndex(long timeMillis) throws IOException {
+
+		int low = 0;
+		int high = size;
+
+		while (low < high){
+			int middle = (low + high) >>> 1;
+			if (getTimeMillis(middle) < timeMillis){
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Find the last time index at or before the given time.
+	 *
+	 * @param timeMillis the time expressed in milliseconds
+	 * @return the time index, -1 if all the records are after the given time.
+	 * @throws IOException
+	 */
+	public int findLastIndex(long timeMillis) throws IOException {
+
+		int low = 0;
+		int high = size;
+
+		while (low < high){
+			int middle = (low + high) >>> 1;
+			if (getTimeMillis(middle) <= timeMillis){
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low - 1;
+	}
+
+	/**
+	 * Retrieve the decoded time at the given index, reading the time value if there isn't time data.
+	 *
+	 * @param idx the time index
+	 * @return the time expressed in milliseconds
+	 * @throws IOException
+	 */
+	private long getTimeMillis(int idx) throws IOException {
+
+		if (null != timeArray){
+			return TrajectoryCoordinates.toMillis(timeArray.getDouble(idx), originMillis, unitMillis);
+		}
+
+		Long timeMillis = probeMap.get(idx);
+
+		if (null == timeMillis){
+			try {
+				timeMillis = TrajectoryCoordinates.toMillis(timeVariable.read(new int[] {idx}, new int[] {1}).getDouble(0), originMillis, unitMillis);
+			} catch (InvalidRangeException e) {
+				throw new IOException(e.getMessage());
+			}
+			probeMap.put(idx, timeMillis);
+		}
+
+		return timeMillis;
+	}
+
+	/**
+	 * Retrieve the number of time values read by the probes.
+	 *
+	 * @return the number of probes, 0 if the search uses the time data.
+	 */
+	public int getProbeCount() {
+		return probeMap.size();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "TimeIndexSearch [timeVariable=" + timeVariable.getFullName() + ", size=" + size + ", probes=" + probeMap.size() + "]";
+	}
+
+}
@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The time periods used to partition the kmz placemarks. The periods are computed in time zone GMT0,
+ * the weeks start on monday.
+ *
+ */
+public enum TimePartition {
+
+	DAY("yyyy-MM-dd"),
+
+	WEEK("yyyy-MM-dd"),
+
+	MONTH("yyyy-MM");
+
+	private static final TimeZone GMT = TimeZone.getTimeZone("GMT0");
+
+	/**
+	 * periodNamePattern the pattern used to format the period start as the period name.
+	 */
+	private String periodNamePattern;
+
+	private TimePartition(String periodNamePattern) {
+		this.periodNamePattern = periodNamePattern;
+	}
+
+	/**
+	 * Retrieve the start of the period that contains the given time.
+	 *
+	 * @param time the time expressed in milliseconds
+	 * @return the period start expressed in milliseconds
+	 */
+	public long getPeriodStart(long time) {
+
+		Calendar calendar = Calendar.getInstance(GMT);
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+
+		if (WEEK == this){
+			int daysFromMonday = (calendar.get(Calendar.DAY_OF_WEEK) - Calendar.MONDAY + 7) % 7;
+			calendar.add(Calendar.DAY_OF_MONTH, -daysFromMonday);
+		} else if (MONTH == this){
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		}
+
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Retrieve the start of the period following the given one.
+	 *
+	 * @param periodStart the period start expressed in milliseconds
+	 * @return the next period start expressed in milliseconds
+	 */
+	public long getNextPeriodStart(long periodStart) {
+
+		Calendar calendar = Calendar.getInstance(GMT);
+		calendar.setTimeInMillis(periodStart);
+
+		if (DAY == this){
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+		} else if (WEEK == this){
+			calendar.add(Calendar.DAY_OF_MONTH, 7);
+		} else {
+			calendar.add(Calendar.MONTH, 1);
+		}
+
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Retrieve the name of the given period, used as the partition file name.
+	 *
+	 * @param periodStart the period start expressed in milliseconds
+	 * @return the period name
+	 */
+	public String getPeriodName(long periodStart) {
+		return KmlManager.format(periodStart, periodNamePattern);
+	}
+
+}
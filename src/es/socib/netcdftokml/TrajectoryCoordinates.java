@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import ucar.ma2.Array;
+import ucar.nc2.units.DateUnit;
+
+/**
+ * Time, latitude and longitude coordinate data of a trajectory, decoded once to primitive arrays.
+ *
+ * The time is decoded to epoch milliseconds with a single parsed {@link DateUnit}. As in the previous
+ * decoding, the time value is truncated to an integer number of units before the conversion.
+ *
+ */
+public class TrajectoryCoordinates {
+
+	private long[] timeMillis;
+
+	private double[] latitude;
+
+	private double[] longitude;
+
+	/**
+	 * singlePrecisionPosition true if the latitude and longitude are stored as float in the NetCDF file.
+	 * Used to format the position like the original data.
+	 */
+	private boolean singlePrecisionPosition;
+
+	/**
+	 * Construct a new {@link TrajectoryCoordinates}.
+	 *
+	 * @param timeArray the time coordinate {@link Array}
+	 * @param timeUnits the time units, in UDUNITS format "n seconds since YYYY-MM-DD HH:MM:SS".
+	 * @param latArray the latitude coordinate {@link Array}
+	 * @param lonArray the longitude coordinate {@link Array}
+	 * @throws KmlManagerException if the time units can't be parsed
+	 */
+	public TrajectoryCoordinates(Array timeArray, String timeUnits, Array latArray, Array lonArray) throws KmlManagerException {
+
+		DateUnit dateUnit = parseTimeUnits(timeUnits);
+		long originMillis = dateUnit.getDateOrigin().getTime();
+		double unitMillis = getUnitMillis(dateUnit);
+
+		int size = (int) timeArray.getSize();
+		timeMillis = new long[size];
+		for (int i = 0; i < size; i++){
+			timeMillis[i] = toMillis(timeArray.getDouble(i), originMillis, unitMillis);
+		}
+
+		latitude = new double[size];
+		longitude = new double[size];
+		for (int i = 0; i < size; i++){
+			latitude[i] = latArray.getDouble(i);
+			longitude[i] = lonArray.getDouble(i);
+		}
+		singlePrecisionPosition = float.class.equals(latArray.getElementType()) && float.class.equals(lonArray.getElementType());
+
+	}
+
+	/**
+	 * Parse the time units.
+	 *
+	 * @param timeUnits the time units, in UDUNITS format "n seconds since YYYY-MM-DD HH:MM:SS".
+	 * @return the {@link DateUnit}
+	 * @throws KmlManagerException if the time units can't be parsed
+	 */
+	public static DateUnit parseTimeUnits(String timeUnits) throws KmlManagerException {
+		try {
+			return new DateUnit(timeUnits);
+		} catch (Exception e) {
+			throw new KmlManagerException("The time units " + timeUnits + " can't be parsed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Retrieve the milliseconds of the time unit.
+	 *
+	 * @param dateUnit the {@link DateUnit}
+	 * @return the milliseconds of the unit
+	 */
+	public static double getUnitMillis(DateUnit dateUnit) {
+		return dateUnit.getTimeUnit().getValueInSeconds() * 1000.0;
+	}
+
+	/**
+	 * Decode a time value, truncated to an integer number of units.
+	 *
+	 * @param timeValue the time value
+	 * @param originMillis the time origin expressed in milliseconds
+	 * @param unitMillis the milliseconds of the time unit
+	 * @return the time expressed in milliseconds
+	 */
+	public static long toMillis(double timeValue, long originMillis, double unitMillis) {
+		return originMillis + (long) ((long) timeValue * unitMillis);
+	}
+
+	/**
+	 * If the latitude or longitude at the given index is NaN.
+	 *
+	 * @param i the time index
+	 * @return true if the latitude or longitude is NaN, otherwise false.
+	 */
+	public boolean isNaNPosition(int i){
+		return Double.isNaN(latitude[i]) || Double.isNaN(longitude[i]);
+	}
+
+	public long getTimeMillis(int i) {
+		return timeMillis[i];
+	}
+
+	public double getLatitude(int i) {
+		return latitude[i];
+	}
+
+	public double getLongitude(int i) {
+		return longitude[i];
+	}
+
+	public boolean isSinglePrecisionPosition() {
+		return singlePrecisionPosition;
+	}
+
+	public int getSize() {
+		return timeMillis.length;
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.Date;
+import java.util.List;
+
+import ucar.nc2.units.DateUnit;
+
+/**
+ * The description of the trajectory sent to the {@link TrajectoryWriter} before the rows.
+ *
+ */
+public class TrajectoryHeader {
+
+	private String location;
+
+	private String title;
+
+	private String threddsLink;
+
+	private DeploymentInfo deploymentInfo;
+
+	private List<VariableRenderPlan> variableRenderPlanList;
+
+	/**
+	 * Construct a new {@link TrajectoryHeader}.
+	 *
+	 * @param location the NetCDF file location
+	 * @param title the trajectory title
+	 * @param threddsLink the opendap link of the data, can be null.
+	 * @param deploymentInfo the {@link DeploymentInfo}, can be null.
+	 * @param variableRenderPlanList the variables displayed, in the order of the row values
+	 */
+	public TrajectoryHeader(String location, String title, String threddsLink, DeploymentInfo deploymentInfo, List<VariableRenderPlan> variableRenderPlanList) {
+		this.location = location;
+		this.title = title;
+		this.threddsLink = threddsLink;
+		this.deploymentInfo = deploymentInfo;
+		this.variableRenderPlanList = variableRenderPlanList;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getThreddsLink() {
+		return threddsLink;
+	}
+
+	public DeploymentInfo getDeploymentInfo() {
+		return deploymentInfo;
+	}
+
+	/**
+	 * Retrieve the deployment time.
+	 *
+	 * @return the deployment time expressed in milliseconds, -1 without deployment info or if the time can't be parsed.
+	 */
+	public long getDeploymentTimeMillis() {
+
+		if (null == deploymentInfo){
+			return -1;
+		}
+
+		Date date = DateUnit.getStandardOrISO(deploymentInfo.getTime());
+		return null == date ? -1 : date.getTime();
+	}
+
+	public List<VariableRenderPlan> getVariableRenderPlanList() {
+		return variableRenderPlanList;
+	}
+
+	@Override
+	public String toString() {
+		return "TrajectoryHeader [location=" + location + ", title=" + title + ", variables=" + variableRenderPlanList.size() + "]";
+	}
+
+}
@@ -0,0 +1,119 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.List;
+
+/**
+ * A decoded row of the trajectory sent to the {@link TrajectoryWriter}: the time, the position and the
+ * quality control filtered values of the variables displayed, at a good position index.
+ *
+ * The same instance is reused for all the rows of a conversion, the writers must copy the values they retain.
+ *
+ */
+public class TrajectoryRow {
+
+	private List<VariableRenderPlan> variableRenderPlanList;
+
+	private int index;
+
+	private long timeMillis;
+
+	/**
+	 * endTimeMillis the time of the next good position, -1 if it is the last row.
+	 */
+	private long endTimeMillis;
+
+	private double latitude;
+
+	private double longitude;
+
+	private boolean singlePrecision;
+
+	/**
+	 * Construct a new {@link TrajectoryRow}.
+	 *
+	 * @param variableRenderPlanList the variables displayed
+	 */
+	public TrajectoryRow(List<VariableRenderPlan> variableRenderPlanList) {
+		this.variableRenderPlanList = variableRenderPlanList;
+	}
+
+	/**
+	 * Set the row values.
+	 *
+	 * @param index the time index
+	 * @param timeMillis the time expressed in milliseconds
+	 * @param endTimeMillis the time of the next good position, -1 if it is the last row
+	 * @param latitude the latitude
+	 * @param longitude the longitude
+	 * @param singlePrecision true if the NetCDF position values are float
+	 */
+	public void set(int index, long timeMillis, long endTimeMillis, double latitude, double longitude, boolean singlePrecision) {
+		this.index = index;
+		this.timeMillis = timeMillis;
+		this.endTimeMillis = endTimeMillis;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.singlePrecision = singlePrecision;
+	}
+
+	/**
+	 * Retrieve the value of the given variable at this row.
+	 *
+	 * @param variableIdx the index of the variable in the variable list
+	 * @return the value, null if bad data or missing value (see {@link VariableRenderPlan#getValue(int)})
+	 */
+	public Object getValue(int variableIdx) {
+		return variableRenderPlanList.get(variableIdx).getValue(index);
+	}
+
+	/**
+	 * Retrieve the value of the given variable at this row, like displayed in the balloons.
+	 *
+	 * @param variableIdx the index of the variable in the variable list
+	 * @return the value with units, N/A if bad data or missing value (see {@link VariableRenderPlan#readDataLike1D(int)})
+	 */
+	public String getDisplayValue(int variableIdx) {
+		return variableRenderPlanList.get(variableIdx).readDataLike1D(index);
+	}
+
+	public List<VariableRenderPlan> getVariableRenderPlanList() {
+		return variableRenderPlanList;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	public long getEndTimeMillis() {
+		return endTimeMillis;
+	}
+
+	public boolean isLast() {
+		return -1 == endTimeMillis;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+
+	@Override
+	public String toString() {
+		return "TrajectoryRow [index=" + index + ", timeMillis=" + timeMillis + ", latitude=" + latitude + ", longitude=" + longitude + "]";
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+
+/**
+ * Simplifies the trajectory line string with the Douglas-Peucker algorithm.
+ *
+ * The distances are measured on an equirectangular projection of the trajectory: the longitude is
+ * scaled by the cosine of the mean latitude, so the tolerance is expressed in degrees of latitude
+ * (one degree is about 111 km) in any direction.
+ *
+ */
+public class TrajectorySimplifier {
+
+	private TrajectorySimplifier() {
+	}
+
+	/**
+	 * Simplify the given coordinates. The first and last coordinates are always kept, and no kept
+	 * coordinate is farther than the tolerance from the simplified line.
+	 *
+	 * @param coordinateList the trajectory coordinates, in time order.
+	 * @param tolerance the maximum distance allowed, in degrees of latitude. If zero or negative the coordinates aren't simplified.
+	 * @return the simplified coordinates, the same {@link Coordinate} instances in the same order.
+	 */
+	public static List<Coordinate> simplify(List<Coordinate> coordinateList, double tolerance) {
+
+		int size = coordinateList.size();
+
+		if (tolerance <= 0 || size < 3){
+			return new ArrayList<Coordinate>(coordinateList);
+		}
+
+		// Project the coordinates once
+		double[] x = new double[size];
+		double[] y = new double[size];
+		double latitudeSum = 0;
+		for (int i = 0; i < size; i++){
+			latitudeSum += coordinateList.get(i).getLatitude();
+		}
+		double longitudeScale = Math.cos(Math.toRadians(latitudeSum / size));
+		for (int i = 0; i < size; i++){
+			Coordinate coordinate = coordinateList.get(i);
+			x[i] = coordinate.getLongitude() * longitudeScale;
+			y[i] = coordinate.getLatitude();
+		}
+
+		boolean[] kept = new boolean[size];
+		kept[0] = true;
+		kept[size - 1] = true;
+
+		// The segments pending to simplify, as pairs of first and last index. An explicit stack is used
+		// because the recursion depth can reach the number of coordinates.
+		int[] stack = new int[64];
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		stack[stackSize++] = size - 1;
+
+		double squaredTolerance = tolerance * tolerance;
+
+		while (stackSize > 0){
+
+			int last = stack[--stackSize];
+			int first = stack[--stackSize];
+
+			int farthestIdx = -1;
+			double farthestSquaredDistance = squaredTolerance;
+
+			for (int i = first + 1; i < last; i++){
+				double squaredDistance = squaredSegmentDistance(x[i], y[i], x[first], y[first], x[last], y[last]);
+				if (squaredDistance > farthestSquaredDistance){
+					farthestSquaredDistance = squaredDistance;
+					farthestIdx = i;
+				}
+			}
+
+			if (-1 != farthestIdx){
+
+				kept[farthestIdx] = true;
+
+				if (stackSize + 4 > stack.length){
+					int[] newStack = new int[stack.length * 2];
+					System.arraycopy(stack, 0, newStack, 0, stackSize);
+					stack = newStack;
+				}
+
+				stack[stackSize++] = first;
+				stack[stackSize++] = farthestIdx;
+				stack[stackSize++] = farthestIdx;
+				stack[stackSize++] = last;
+
+			}
+
+		}
+
+		List<Coordinate> simplifiedCoordinateList = new ArrayList<Coordinate>();
+		for (int i = 0; i < size; i++){
+			if (kept[i]){
+				simplifiedCoordinateList.add(coordinateList.get(i));
+			}
+		}
+
+		return simplifiedCoordinateList;
+	}
+
+	/**
+	 * Retrieve the bounding box of the given coordinates.
+	 *
+	 * @param coordinateList the coordinates, not empty.
+	 * @return the north, south, east and west limits, in this order.
+	 */
+	public static double[] getBoundingBox(List<Coordinate> coordinateList) {
+
+		double north = -90;
+		double south = 90;
+		double east = -180;
+		double west = 180;
+
+		for (Coordinate coordinate : coordinateList){
+			north = Math.max(north, coordinate.getLatitude());
+			south = Math.min(south, coordinate.getLatitude());
+			east = Math.max(east, coordinate.getLongitude());
+			west = Math.min(west, coordinate.getLongitude());
+		}
+
+		return new double[] {north, south, east, west};
+	}
+
+	/**
+	 * Squared distance from the point (px, py) to the segment (ax, ay) - (bx, by).
+	 */
+	private static double squaredSegmentDistance(double px, double py, double ax, double ay, double bx, double by) {
+
+		double dx = bx - ax;
+		double dy = by - ay;
+		double squaredLength = dx * dx + dy * dy;
+
+		double t = 0;
+		if (squaredLength > 0){
+			t = ((px - ax) * dx + (py - ay) * dy) / squaredLength;
+			t = Math.max(0, Math.min(1, t));
+		}
+
+		double ex = px - (ax + t * dx);
+		double ey = py - (ay + t * dy);
+
+		return ex * ex + ey * ey;
+	}
+
+}
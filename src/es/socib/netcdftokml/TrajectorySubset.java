@@ -0,0 +1,175 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.util.Date;
+
+/**
+ * The part of the trajectory converted: a time window and a latitude and longitude bounding box, both optional.
+ *
+ * The time window is resolved by binary search on the time coordinate, which must be monotone, and only its records
+ * are read (see {@link TimeIndexSearch}). The positions outside the bounding box are skipped like the bad positions.
+ *
+ */
+public class TrajectorySubset {
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * startTimeMillis the start of the time window, inclusive, expressed in milliseconds. Null if the window doesn't have start.
+	 */
+	private Long startTimeMillis;
+
+	/**
+	 * endTimeMillis the end of the time window, inclusive, expressed in milliseconds. Null if the window doesn't have end.
+	 */
+	private Long endTimeMillis;
+
+	private Double north;
+
+	private Double south;
+
+	private Double east;
+
+	private Double west;
+
+	/**
+	 * Construct a new {@link TrajectorySubset} without time window nor bounding box, the whole trajectory.
+	 */
+	public TrajectorySubset() {
+	}
+
+	/**
+	 * Create the subset of the given time window.
+	 *
+	 * @param startTime the start of the time window, inclusive. Null if the window doesn't have start.
+	 * @param endTime the end of the time window, inclusive. Null if the window doesn't have end.
+	 * @return the {@link TrajectorySubset}
+	 */
+	public static TrajectorySubset createTimeWindow(Date startTime, Date endTime) {
+		TrajectorySubset trajectorySubset = new TrajectorySubset();
+		trajectorySubset.setTimeWindow(startTime, endTime);
+		return trajectorySubset;
+	}
+
+	/**
+	 * Create the subset of the last days until now.
+	 *
+	 * @param days the number of days
+	 * @return the {@link TrajectorySubset}
+	 */
+	public static TrajectorySubset createLastDays(int days) {
+		return createTimeWindow(new Date(System.currentTimeMillis() - days * MILLIS_PER_DAY), null);
+	}
+
+	/**
+	 * Set the time window.
+	 *
+	 * @param startTime the start of the time window, inclusive. Null if the window doesn't have start.
+	 * @param endTime the end of the time window, inclusive. Null if the window doesn't have end.
+	 */
+	public void setTimeWindow(Date startTime, Date endTime) {
+
+		if (null != startTime && null != endTime && startTime.after(endTime)){
+			throw new IllegalArgumentException("The start time " + startTime + " is after the end time " + endTime);
+		}
+
+		this.startTimeMillis = null == startTime ? null : startTime.getTime();
+		this.endTimeMillis = null == endTime ? null : endTime.getTime();
+	}
+
+	/**
+	 * Set the bounding box. If the west longitude is greater than the east longitude the box crosses the antimeridian.
+	 *
+	 * @param north the north latitude, in degrees north
+	 * @param south the south latitude, in degrees north
+	 * @param east the east longitude, in degrees east
+	 * @param west the west longitude, in degrees east
+	 */
+	public void setBoundingBox(double north, double south, double east, double west) {
+
+		if (south > north){
+			throw new IllegalArgumentException("The south latitude " + south + " is greater than the north latitude " + north);
+		}
+
+		this.north = north;
+		this.south = south;
+		this.east = east;
+		this.west = west;
+	}
+
+	public boolean hasTimeWindow() {
+		return null != startTimeMillis || null != endTimeMillis;
+	}
+
+	public boolean hasBoundingBox() {
+		return null != north;
+	}
+
+	/**
+	 * If the given time is inside the time window.
+	 *
+	 * @param timeMillis the time expressed in milliseconds
+	 * @return true if the time is inside the window or there isn't time window, otherwise false.
+	 */
+	public boolean containsTime(long timeMillis) {
+		return (null == startTimeMillis || timeMillis >= startTimeMillis) && (null == endTimeMillis || timeMillis <= endTimeMillis);
+	}
+
+	/**
+	 * If the given position is inside the bounding box.
+	 *
+	 * @param latitude the latitude, in degrees north
+	 * @param longitude the longitude, in degrees east
+	 * @return true if the position is inside the bounding box or there isn't bounding box, otherwise false.
+	 */
+	public boolean containsPosition(double latitude, double longitude) {
+
+		if (!hasBoundingBox()){
+			return true;
+		}
+
+		if (latitude < south || latitude > north){
+			return false;
+		}
+
+		if (west <= east){
+			return longitude >= west && longitude <= east;
+		}
+
+		// Crosses the antimeridian
+		return longitude >= west || longitude <= east;
+	}
+
+	public Long getStartTimeMillis() {
+		return startTimeMillis;
+	}
+
+	public Long getEndTimeMillis() {
+		return endTimeMillis;
+	}
+
+	public Double getNorth() {
+		return north;
+	}
+
+	public Double getSouth() {
+		return south;
+	}
+
+	public Double getEast() {
+		return east;
+	}
+
+	public Double getWest() {
+		return west;
+	}
+
+	@Override
+	public String toString() {
+		return "TrajectorySubset [startTimeMillis=" + startTimeMillis + ", endTimeMillis=" + endTimeMillis + ", north=" + north + ", south=" + south
+				+ ", east=" + east + ", west=" + west + "]";
+	}
+
+}
@@ -0,0 +1,40 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+
+/**
+ * Output format of the trajectory, fed with the decoded rows by {@link KmlManager#writeTrajectory(java.util.List)}.
+ * The NetCDF file is read and the quality controls applied once, whatever the number of writers.
+ *
+ * The rows are received in time order, only the good positions.
+ *
+ */
+public interface TrajectoryWriter {
+
+	/**
+	 * Start the trajectory.
+	 *
+	 * @param trajectoryHeader the {@link TrajectoryHeader}
+	 * @throws IOException
+	 */
+	public void startTrajectory(TrajectoryHeader trajectoryHeader) throws IOException;
+
+	/**
+	 * Add the next row of the trajectory.
+	 *
+	 * @param trajectoryRow the {@link TrajectoryRow}, reused for the next rows.
+	 * @throws IOException
+	 */
+	public void addRow(TrajectoryRow trajectoryRow) throws IOException;
+
+	/**
+	 * Finish the trajectory. The underlying stream isn't closed.
+	 *
+	 * @throws IOException
+	 */
+	public void finishTrajectory() throws IOException;
+
+}
@@ -0,0 +1,379 @@
+/**
+ *
+ */
+package es.socib.netcdftokml;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+import ucar.ma2.Array;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.constants.AxisType;
+import ucar.nc2.dataset.CoordinateAxis;
+import ucar.nc2.dataset.CoordinateSystem;
+import ucar.nc2.dataset.VariableDS;
+
+/**
+ * Everything needed to display the value of a data variable at a time index, resolved once per variable:
+ * the variable data, the height coordinate data, the fill value, the units and the quality control data.
+ *
+ * The variable can be of one dimension (time) or two dimensions (time, level). If have two dimensions,
+ * the value displayed is the one at the current time index and the display level, by default the
+ * level zero, array.get(i,0).
+ *
+ */
+public class VariableRenderPlan {
+
+	public static final String NOT_AVAILABLE = "N/A";
+
+	private static final String AT = " at ";
+
+	private Variable variable;
+
+	/**
+	 * dataArray the variable data at the display level, indexed by time.
+	 */
+	private Array dataArray;
+
+	private boolean numeric;
+
+	private boolean singlePrecision;
+
+	private boolean hasFillValue;
+
+	private double fillValue;
+
+	/**
+	 * fillValueString the fill value string, used to compare non numeric data.
+	 */
+	private String fillValueString;
+
+	/**
+	 * unitsSuffix the formatted units, see {@link #formatUnits(Variable)}.
+	 */
+	private String unitsSuffix;
+
+	/**
+	 * fieldName the extended data field name of the variable, see {@link BalloonTemplate}.
+	 */
+	private String fieldName;
+
+	/**
+	 * heightArray the height coordinate data at the display level, indexed by time. Null if the variable is one dimensional.
+	 */
+	private Array heightArray;
+
+	private String heightUnits;
+
+	/**
+	 * heightFieldName the extended data field name of the height coordinate, see {@link BalloonTemplate}. Null if the variable is one dimensional.
+	 */
+	private String heightFieldName;
+
+	/**
+	 * goodDataMask the good data indexes, compiled from the quality control data of the variable at the display level.
+	 * Null if the variable doesn't have quality controls.
+	 */
+	private BitSet goodDataMask;
+
+	/**
+	 * Construct a new {@link VariableRenderPlan}. The data of the two dimensional variables, their quality
+	 * controls and their height coordinate are read only at the display level, see {@link NetcdfReadSession#readLevel(Variable, int)}.
+	 *
+	 * @param variable the data {@link Variable}
+	 * @param qcVariable the quality control {@link Variable}, null if the variable doesn't have quality controls
+	 * @param readSession the {@link NetcdfReadSession} used to read the data
+	 * @param level the level displayed of the two dimensional variables
+	 * @throws KmlManagerException if the variable can't be displayed
+	 * @throws IOException if the data can't be read
+	 * @see #VariableRenderPlan(Variable, Variable, NetcdfReadSession, int, QcFlagPolicy)
+	 */
+	public VariableRenderPlan(Variable variable, Variable qcVariable, NetcdfReadSession readSession, int level) throws KmlManagerException, IOException {
+		this(variable, qcVariable, readSession, level, new QcFlagPolicy());
+	}
+
+	/**
+	 * Construct a new {@link VariableRenderPlan}. The quality controls are compiled with the given {@link QcFlagPolicy}
+	 * and released from the read session.
+	 *
+	 * @param variable the data {@link Variable}
+	 * @param qcVariable the quality control {@link Variable}, null if the variable doesn't have quality controls
+	 * @param readSession the {@link NetcdfReadSession} used to read the data
+	 * @param level the level displayed of the two dimensional variables
+	 * @param qcFlagPolicy the quality control flags accepted as good data
+	 * @throws KmlManagerException if the variable can't be displayed
+	 * @throws IOException if the data can't be read
+	 */
+	public VariableRenderPlan(Variable variable, Variable qcVariable, NetcdfReadSession readSession, int level, QcFlagPolicy qcFlagPolicy) throws KmlManagerException, IOException {
+
+		this.variable = variable;
+		this.numeric = variable.getDataType().isNumeric();
+		this.unitsSuffix = formatUnits(variable);
+		this.fieldName = BalloonTemplate.getFieldName(variable.getFullName());
+
+		if (2 == variable.getRank()){
+
+			List<CoordinateSystem> coordinateSystemsList = ((VariableDS) variable).getCoordinateSystems();
+			if (null == coordinateSystemsList || coordinateSystemsList.size() == 0){
+				throw new KmlManagerException("Coordinate systems of variable " + variable.getFullName() + " is null or 0");
+			}
+
+			CoordinateAxis coordinateAxis = coordinateSystemsList.get(0).findAxis(AxisType.Height);
+			if (null == coordinateAxis){
+				throw new KmlManagerException("The variable " + variable.getFullName() + " doesn't have a coordinate axis of type height");
+			}
+
+			if (coordinateAxis.getRank() > 2){
+				throw new KmlManagerException("The coordinate "  + coordinateAxis.getFullName() +  " must be 1 or 2 dimensional");
+			}
+
+			heightArray = readSession.readLevel(coordinateAxis, level);
+			heightUnits = coordinateAxis.getUnitsString();
+
+		} else if (1 != variable.getRank()){
+
+			throw new KmlManagerException("The variable "  + variable.getFullName() +  " must be 1 or 2 dimensional");
+
+		}
+
+		this.dataArray = readSession.readLevel(variable, level);
+		this.singlePrecision = float.class.equals(dataArray.getElementType());
+
+		if (null != qcVariable){
+			this.goodDataMask = qcFlagPolicy.compile(readSession.readLevel(qcVariable, level));
+			readSession.release(qcVariable);
+		}
+
+		Attribute fillValueAttribute = variable.findAttribute(AttributesNamesAndValues.FILL_VALUE);
+		if (null != fillValueAttribute && null != fillValueAttribute.getNumericValue()){
+			hasFillValue = true;
+			fillValue = fillValueAttribute.getNumericValue().doubleValue();
+			fillValueString = fillValueAttribute.getNumericValue().toString().trim().toLowerCase();
+		}
+
+	}
+
+	/**
+	 * Read the variable data at the given time index, with units and the height if the variable is
+	 * two dimensional.
+	 *
+	 * The value returned is N/A if the value is bad data (from the quality controls, if exists) or
+	 * the value is missing value.
+	 *
+	 * @param timeIdx the time index
+	 * @return the data with units or N/A
+	 */
+	public String readDataLike1D(int timeIdx) {
+
+		if (!isGoodData(timeIdx)){
+			return NOT_AVAILABLE;
+		}
+
+		String stringData = dataArray.getObject(timeIdx).toString();
+
+		if (null == heightArray){
+			return stringData + unitsSuffix;
+		}
+
+		return stringData + unitsSuffix + AT + heightArray.getObject(timeIdx).toString() + heightUnits;
+
+	}
+
+	/**
+	 * Read the variable data at the given time index, without units nor height, like the
+	 * {@link BalloonTemplate} extended data.
+	 *
+	 * @param timeIdx the time index
+	 * @return the data or N/A
+	 */
+	public String readData(int timeIdx) {
+
+		if (!isGoodData(timeIdx)){
+			return NOT_AVAILABLE;
+		}
+
+		return dataArray.getObject(timeIdx).toString();
+
+	}
+
+	/**
+	 * Read the height coordinate at the given time index, without units.
+	 *
+	 * @param timeIdx the time index
+	 * @return the height, null if the variable is one dimensional
+	 */
+	public String readHeight(int timeIdx) {
+
+		if (null == heightArray){
+			return null;
+		}
+
+		return heightArray.getObject(timeIdx).toString();
+
+	}
+
+	/**
+	 * Append the variable data at the given time index to the given builder, like {@link #readDataLike1D(int)}
+	 * but without intermediate strings. The numbers are appended from the primitive values.
+	 *
+	 * @param builder the {@link StringBuilder}
+	 * @param timeIdx the time index
+	 */
+	public void appendDataLike1D(StringBuilder builder, int timeIdx) {
+
+		if (!isGoodData(timeIdx)){
+			builder.append(NOT_AVAILABLE);
+			return;
+		}
+
+		appendValue(builder, dataArray, timeIdx);
+		builder.append(unitsSuffix);
+
+		if (null != heightArray){
+			builder.append(AT);
+			appendValue(builder, heightArray, timeIdx);
+			builder.append(heightUnits);
+		}
+
+	}
+
+	/**
+	 * Append the value at the given index with the same representation as the boxed value toString.
+	 */
+	private static void appendValue(StringBuilder builder, Array array, int idx) {
+
+		Class<?> elementType = array.getElementType();
+
+		if (float.class == elementType){
+			builder.append(array.getFloat(idx));
+		} else if (double.class == elementType){
+			builder.append(array.getDouble(idx));
+		} else if (int.class == elementType){
+			builder.append(array.getInt(idx));
+		} else if (short.class == elementType){
+			builder.append((int) array.getShort(idx));
+		} else if (byte.class == elementType){
+			builder.append((int) array.getByte(idx));
+		} else if (long.class == elementType){
+			builder.append(array.getLong(idx));
+		} else {
+			builder.append(array.getObject(idx));
+		}
+
+	}
+
+	/**
+	 * If the value at the given time index isn't bad data (from the quality controls, if exists),
+	 * NaN or the fill value.
+	 *
+	 * @param timeIdx the time index
+	 * @return true if the value can be displayed, otherwise false
+	 */
+	private boolean isGoodData(int timeIdx) {
+
+		if (null != goodDataMask && !goodDataMask.get(timeIdx)){
+			return false;
+		}
+
+		if (!numeric){
+			String stringData = dataArray.getObject(timeIdx).toString().trim().toLowerCase();
+			return !"nan".equals(stringData) && !stringData.equals(fillValueString);
+		}
+
+		double value = dataArray.getDouble(timeIdx);
+		if (Double.isNaN(value)){
+			return false;
+		}
+
+		if (hasFillValue){
+			if (singlePrecision){
+				return (float) value != (float) fillValue;
+			}
+			return value != fillValue;
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Format units.
+	 *
+	 * If the units are "1" or "" return "". Otherwise return " " + the untis.
+	 *
+	 * @param units the units
+	 * @return the units formatted
+	 */
+	private static String formatUnits(Variable variable){
+
+		String units = variable.getUnitsString();
+
+		if (null == units){
+			return "";
+		}
+
+		if ("1".equals(units.trim()) || "".equals(units.trim())){
+			return "";
+		} else {
+			return " " + units.trim();
+		}
+
+	}
+
+	/**
+	 * Retrieve the variable value at the given time index, without units nor height.
+	 *
+	 * @param timeIdx the time index
+	 * @return the value, a {@link Number} if the variable is numeric, null if the value is bad data or missing value.
+	 */
+	public Object getValue(int timeIdx) {
+
+		if (!isGoodData(timeIdx)){
+			return null;
+		}
+
+		return dataArray.getObject(timeIdx);
+	}
+
+	/**
+	 * Retrieve the variable units, like displayed.
+	 *
+	 * @return the units, empty if the variable doesn't have units or is dimensionless.
+	 */
+	public String getUnits() {
+		return unitsSuffix.trim();
+	}
+
+	public Variable getVariable() {
+		return variable;
+	}
+
+	public String getName() {
+		return variable.getFullName();
+	}
+
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * Retrieve the extended data field name of the height coordinate.
+	 *
+	 * @return the field name, null if the variable is one dimensional
+	 */
+	public String getHeightFieldName() {
+		return heightFieldName;
+	}
+
+	/**
+	 * Retrieve the height coordinate units, like displayed after the height.
+	 *
+	 * @return the units, null if the variable is one dimensional
+	 */
+	public String getHeightUnits() {
+		return heightUnits;
+	}
+
+}
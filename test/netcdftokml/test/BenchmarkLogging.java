@@ -0,0 +1,66 @@
+package netcdftokml.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import es.socib.netcdftokml.KmlManager;
+
+/**
+ * Log4j configuration of the {@link ConversionBenchmark} and the {@link SoakHarness}: the log4j_kmz.properties
+ * loggers, but only the warnings are logged, so the logging doesn't distort the measures nor interleave with the
+ * printed results, and the log file is written to the temporary directory instead of the working directory.
+ *
+ */
+public class BenchmarkLogging {
+
+	private static final String LOGGER_PREFIX = "log4j.logger.";
+
+	private static final String FILE_APPENDER_PROPERTY = "log4j.appender.R.File";
+
+	/**
+	 * Configure Log4j.
+	 *
+	 * @param logFileName the name of the log file in the temporary directory
+	 * @throws IOException
+	 */
+	public static void configure(String logFileName) throws IOException {
+
+		InputStream stream = KmlManager.class.getResourceAsStream("/log4j_kmz.properties");
+		if (null == stream){
+			BasicConfigurator.configure();
+			Logger.getRootLogger().setLevel(Level.WARN);
+			return;
+		}
+
+		Properties properties = new Properties();
+		try {
+			properties.load(stream);
+		} finally {
+			stream.close();
+		}
+
+		// Every configured logger, like KmlManager = info, stdout, R, keeps its appenders with the warn level
+		for (String name : properties.stringPropertyNames()){
+			if (name.startsWith(LOGGER_PREFIX)){
+				String value = properties.getProperty(name);
+				int appendersIdx = value.indexOf(',');
+				properties.setProperty(name, "warn" + (-1 == appendersIdx ? "" : value.substring(appendersIdx)));
+			}
+		}
+
+		if (properties.containsKey(FILE_APPENDER_PROPERTY)){
+			properties.setProperty(FILE_APPENDER_PROPERTY, new File(System.getProperty("java.io.tmpdir"), logFileName).getPath());
+		}
+
+		PropertyConfigurator.configure(properties);
+
+	}
+
+}
@@ -0,0 +1,431 @@
+package netcdftokml.test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import ucar.nc2.Variable;
+import ucar.nc2.constants.AxisType;
+import ucar.nc2.dataset.CoordinateAxis;
+import ucar.nc2.dataset.VariableDS;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import es.socib.netcdftokml.AdditionalInfo;
+import es.socib.netcdftokml.AncillaryVariablesManager;
+import es.socib.netcdftokml.DatasetSchema;
+import es.socib.netcdftokml.KmlManager;
+import es.socib.netcdftokml.KmlManagerException;
+import es.socib.netcdftokml.NetcdfReadSession;
+import es.socib.netcdftokml.QcFlagPolicy;
+import es.socib.netcdftokml.VariableRenderPlan;
+
+/**
+ * Benchmark of the conversion hot paths over the synthetic files of {@link SyntheticTrajectoryFile}:
+ * the {@link AncillaryVariablesManager} construction, with and without a cached {@link DatasetSchema},
+ * {@link VariableRenderPlan#readDataLike1D(int)},
+ * {@link KmlManager#createKMLFile()}, {@link Kml#marshalAsKmz(String, Kml...)} and the streaming
+ * {@link KmlManager#writeKmz(OutputStream)}, sequential and with a placemark worker per processor.
+ *
+ * Each benchmark runs some warmup iterations and then the measured iterations. The setup of each iteration
+ * (opening the file, creating the kml manager) isn't measured. The report shows the time per operation,
+ * the throughput in records per second and the bytes allocated by the benchmark thread, per operation
+ * and per second (the allocation is only available in HotSpot based virtual machines).
+ *
+ * Usage: ConversionBenchmark [directory] [record counts...]
+ *
+ * The synthetic files are written to the directory, by default the temporary directory, and reused by the
+ * following runs. The default record counts are 10000 100000 1000000. The number of iterations is set with the
+ * system properties benchmark.warmup (default 3) and benchmark.iterations (default 5), the depth levels of
+ * the trajectoryProfile files with benchmark.levels (default 5).
+ *
+ */
+public class ConversionBenchmark {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(ConversionBenchmark.class.getSimpleName());
+
+	private static final int[] DEFAULT_RECORD_COUNTS = {10000, 100000, 1000000};
+
+	private static final double MEGABYTE = 1024 * 1024;
+
+	/**
+	 * sink the results of the benchmarks are accumulated, so the measured code can't be removed as dead code.
+	 */
+	private static long sink;
+
+	private int warmupIterations;
+
+	private int iterations;
+
+	private com.sun.management.ThreadMXBean threadBean;
+
+	/**
+	 * A measured operation. The set up and tear down of each iteration aren't measured.
+	 */
+	private abstract static class Benchmark {
+
+		private String name;
+
+		public Benchmark(String name) {
+			this.name = name;
+		}
+
+		public void setUp() throws Exception {
+		}
+
+		public abstract void run() throws Exception;
+
+		public void tearDown() throws Exception {
+		}
+
+	}
+
+	public ConversionBenchmark(int warmupIterations, int iterations) {
+
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()){
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			logger.warn("The thread allocated memory isn't supported, the allocation won't be reported");
+		}
+
+	}
+
+	/**
+	 * @param args the directory of the synthetic files and the record counts
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		// Only the warnings are logged, so the logging doesn't distort the results
+		BenchmarkLogging.configure("NC2KML_benchmark.log");
+
+		String directory = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+		int[] recordCounts = DEFAULT_RECORD_COUNTS;
+		if (args.length > 1){
+			recordCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++){
+				recordCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		int levelCount = Integer.getInteger("benchmark.levels", 5);
+		ConversionBenchmark benchmark = new ConversionBenchmark(Integer.getInteger("benchmark.warmup", 3), Integer.getInteger("benchmark.iterations", 5));
+
+		System.out.println(String.format("%-48s %10s %12s %14s %12s %12s", "Benchmark", "Records", "ms/op", "records/s", "MB/op", "MB/s"));
+
+		for (int recordCount : recordCounts){
+			benchmark.runAll(SyntheticTrajectoryFile.getFile(directory, recordCount, 0), "trajectory", recordCount, directory);
+			benchmark.runAll(SyntheticTrajectoryFile.getFile(directory, recordCount, levelCount), "trajectoryProfile", recordCount, directory);
+		}
+
+		logger.debug("Benchmark sink " + sink);
+
+	}
+
+	/**
+	 * Run all the benchmarks over the given file.
+	 */
+	private void runAll(final String location, String featureType, int recordCount, String directory) throws Exception {
+
+		final File kmzFile = new File(directory, "benchmark_" + featureType + "_" + recordCount + ".kmz");
+
+		measure(featureType + ".ancillaryVariablesManager", recordCount, new Benchmark("ancillaryVariablesManager") {
+
+			private NetcdfReadSession readSession;
+
+			private Map<AxisType, VariableDS> coordinateAxisMap;
+
+			@Override
+			public void setUp() throws Exception {
+				readSession = NetcdfReadSession.open(location);
+				coordinateAxisMap = getCoordinateAxisMap(readSession);
+			}
+
+			@Override
+			public void run() throws Exception {
+				AncillaryVariablesManager manager = new AncillaryVariablesManager(readSession, coordinateAxisMap, new QcFlagPolicy());
+				sink += manager.getLastestGoodDataIdx();
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				readSession.close();
+			}
+
+		});
+
+		measure(featureType + ".ancillaryVariablesManagerCachedSchema", recordCount, new Benchmark("ancillaryVariablesManagerCachedSchema") {
+
+			private NetcdfReadSession readSession;
+
+			private Map<AxisType, VariableDS> coordinateAxisMap;
+
+			private DatasetSchema datasetSchema;
+
+			@Override
+			public void setUp() throws Exception {
+				readSession = NetcdfReadSession.open(location);
+				coordinateAxisMap = getCoordinateAxisMap(readSession);
+				datasetSchema = new DatasetSchema(DatasetSchema.computeFingerprint(readSession.getDataset()), coordinateAxisMap,
+						new AncillaryVariablesManager(readSession, coordinateAxisMap, new QcFlagPolicy()));
+			}
+
+			@Override
+			public void run() throws Exception {
+				// The fingerprint is computed for every file
+				sink += DatasetSchema.computeFingerprint(readSession.getDataset()).length();
+				AncillaryVariablesManager manager = new AncillaryVariablesManager(readSession, coordinateAxisMap, new QcFlagPolicy(), datasetSchema);
+				sink += manager.getLastestGoodDataIdx();
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				readSession.close();
+			}
+
+		});
+
+		measure(featureType + ".readDataLike1D", recordCount, new Benchmark("readDataLike1D") {
+
+			private NetcdfReadSession readSession;
+
+			private List<VariableRenderPlan> variableRenderPlanList;
+
+			@Override
+			public void setUp() throws Exception {
+				readSession = NetcdfReadSession.open(location);
+				variableRenderPlanList = createVariableRenderPlanList(readSession);
+			}
+
+			@Override
+			public void run() throws Exception {
+				int timeSize = recordCountOf(readSession);
+				for (VariableRenderPlan variableRenderPlan : variableRenderPlanList){
+					for (int i = 0; i < timeSize; i++){
+						sink += variableRenderPlan.readDataLike1D(i).length();
+					}
+				}
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				readSession.close();
+			}
+
+		});
+
+		measure(featureType + ".createKMLFile", recordCount, new Benchmark("createKMLFile") {
+
+			private KmlManager kmlManager;
+
+			@Override
+			public void setUp() throws Exception {
+				kmlManager = new KmlManager(location, new AdditionalInfo(null, null, null, false), null);
+			}
+
+			@Override
+			public void run() throws Exception {
+				sink += kmlManager.createKMLFile().hashCode();
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				kmlManager.close();
+			}
+
+		});
+
+		measure(featureType + ".marshalAsKmz", recordCount, new Benchmark("marshalAsKmz") {
+
+			private Kml kml;
+
+			@Override
+			public void setUp() throws Exception {
+				KmlManager kmlManager = new KmlManager(location, new AdditionalInfo(null, null, null, false), null);
+				try {
+					kml = kmlManager.createKMLFile();
+				} finally {
+					kmlManager.close();
+				}
+			}
+
+			@Override
+			public void run() throws Exception {
+				kml.marshalAsKmz(kmzFile.getPath());
+				sink += kmzFile.length();
+			}
+
+		});
+
+		measure(featureType + ".writeKmz", recordCount, new Benchmark("writeKmz") {
+
+			private KmlManager kmlManager;
+
+			@Override
+			public void setUp() throws Exception {
+				kmlManager = new KmlManager(location, new AdditionalInfo(null, null, null, false), null);
+			}
+
+			@Override
+			public void run() throws Exception {
+				OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(kmzFile));
+				try {
+					kmlManager.writeKmz(outputStream);
+				} finally {
+					outputStream.close();
+				}
+				sink += kmzFile.length();
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				kmlManager.close();
+			}
+
+		});
+
+		measure(featureType + ".writeKmzParallel", recordCount, new Benchmark("writeKmzParallel") {
+
+			private KmlManager kmlManager;
+
+			@Override
+			public void setUp() throws Exception {
+				AdditionalInfo additionalInfo = new AdditionalInfo(null, null, null, false);
+				additionalInfo.setPlacemarkWorkerCount(0);
+				kmlManager = new KmlManager(location, additionalInfo, null);
+			}
+
+			@Override
+			public void run() throws Exception {
+				OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(kmzFile));
+				try {
+					kmlManager.writeKmz(outputStream);
+				} finally {
+					outputStream.close();
+				}
+				sink += kmzFile.length();
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				kmlManager.close();
+			}
+
+		});
+
+		if (!kmzFile.delete()){
+			logger.warn("Impossible delete the benchmark file " + kmzFile);
+		}
+
+	}
+
+	/**
+	 * Run the warmup and measured iterations of the benchmark and print the results.
+	 */
+	private void measure(String name, int recordCount, Benchmark benchmark) throws Exception {
+
+		for (int i = 0; i < warmupIterations; i++){
+			runIteration(benchmark, null);
+		}
+
+		long[] totals = new long[2];
+		for (int i = 0; i < iterations; i++){
+			runIteration(benchmark, totals);
+		}
+
+		double secondsPerOp = totals[0] / 1e9 / iterations;
+		double bytesPerOp = (double) totals[1] / iterations;
+
+		System.out.println(String.format("%-48s %10d %12.3f %14.0f %12s %12s", name, recordCount, secondsPerOp * 1e3, recordCount / secondsPerOp,
+				null == threadBean ? "n/a" : String.format("%.2f", bytesPerOp / MEGABYTE),
+				null == threadBean ? "n/a" : String.format("%.1f", bytesPerOp / MEGABYTE / secondsPerOp)));
+
+		logger.debug("Benchmark " + benchmark.name + " finished");
+
+	}
+
+	/**
+	 * Run one iteration of the benchmark, adding the elapsed nanoseconds and the allocated bytes to the given totals
+	 * if not null.
+	 */
+	private void runIteration(Benchmark benchmark, long[] totals) throws Exception {
+
+		benchmark.setUp();
+		try {
+
+			long threadId = Thread.currentThread().getId();
+			long allocatedBytes = null == threadBean ? 0 : threadBean.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+
+			benchmark.run();
+
+			long elapsed = System.nanoTime() - start;
+			if (null != totals){
+				totals[0] += elapsed;
+				totals[1] += null == threadBean ? 0 : threadBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+			}
+
+		} finally {
+			benchmark.tearDown();
+		}
+
+	}
+
+	/**
+	 * Create the coordinate axis map like the {@link KmlManager}.
+	 */
+	private static Map<AxisType, VariableDS> getCoordinateAxisMap(NetcdfReadSession readSession) {
+
+		Map<AxisType, VariableDS> coordinateAxisMap = new HashMap<AxisType, VariableDS>();
+		for (CoordinateAxis coordinateAxis : readSession.getDataset().getCoordinateAxes()){
+			coordinateAxisMap.put(coordinateAxis.getAxisType(), coordinateAxis);
+		}
+
+		return coordinateAxisMap;
+	}
+
+	/**
+	 * Create the render plans of the variables displayed, like the {@link KmlManager}.
+	 */
+	private static List<VariableRenderPlan> createVariableRenderPlanList(NetcdfReadSession readSession) throws IOException {
+
+		AncillaryVariablesManager ancillaryVariablesManager = new AncillaryVariablesManager(readSession, getCoordinateAxisMap(readSession), new QcFlagPolicy());
+
+		List<VariableRenderPlan> variableRenderPlanList = new ArrayList<VariableRenderPlan>();
+		for (Variable variable : ancillaryVariablesManager.getVariableListWithotAncillaryVariables()){
+
+			if (null != variable.findAttribute("cf_role")){
+				continue;
+			}
+
+			try {
+				variableRenderPlanList.add(new VariableRenderPlan(variable, ancillaryVariablesManager.getQcVariable(variable), readSession, 0));
+			} catch (KmlManagerException e) {
+				logger.warn(e.getMessage());
+			}
+
+		}
+
+		return variableRenderPlanList;
+	}
+
+	private static int recordCountOf(NetcdfReadSession readSession) {
+		return readSession.getDataset().findCoordinateAxis(AxisType.Time).getShape()[0];
+	}
+
+}
@@ -0,0 +1,294 @@
+package netcdftokml.test;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import es.socib.netcdftokml.AdditionalInfo;
+import es.socib.netcdftokml.KmlManager;
+import es.socib.netcdftokml.NetcdfReadSession;
+import es.socib.netcdftokml.TimePartition;
+
+/**
+ * End to end soak of the {@link KmlManager} conversions of large synthetic files (see {@link SyntheticTrajectoryFile}).
+ *
+ * Each configuration (output mode, number of records and number of concurrent conversions) is converted and the
+ * wall time, peak heap, garbage collections and output size are reported. A configuration fails if the wall time
+ * exceeds the time budget, the peak heap exceeds the memory budget, a conversion throws an exception or leaks
+ * the NetCDF file: the read session isn't closed after the conversion or the open file descriptors of the process
+ * grow. A small file is converted once in each mode before the configurations, so the class loading isn't taken
+ * for a leak.
+ *
+ * The harness must be run with the capped heap of the production deployment, for example -Xmx512m, so the
+ * conversions that don't fit fail with {@link OutOfMemoryError}. The peak heap is the sum of the peak usage of the
+ * heap memory pools, an upper bound of the real peak.
+ *
+ * Usage: SoakHarness [directory]
+ *
+ * The synthetic files are written to the directory, by default the temporary directory, and reused by the following
+ * runs. The configurations are set with the system properties:
+ * 		soak.records the record counts, default 2000000,5000000
+ * 		soak.levels the depth levels of the files, 0 for trajectory files, default 5
+ * 		soak.modes the output modes, default DOCUMENT,STREAMING,PARTITIONED
+ * 		soak.concurrency the concurrent conversions, default 1,4
+ * 		soak.timeBudget the time budget of a configuration in seconds, default 600
+ * 		soak.memoryBudget the memory budget of a configuration in megabytes, default the maximum heap
+ *
+ * The process exits with status 1 if any configuration fails.
+ *
+ */
+public class SoakHarness {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(SoakHarness.class.getSimpleName());
+
+	private static final long MEGABYTE = 1024 * 1024;
+
+	/**
+	 * WARM_UP_RECORDS the records of the file of the discarded warm up conversions.
+	 */
+	private static final int WARM_UP_RECORDS = 1000;
+
+	/**
+	 * The output of the conversion.
+	 */
+	private enum Mode {
+
+		/**
+		 * DOCUMENT the in memory kml document, marshalled as kmz.
+		 */
+		DOCUMENT,
+
+		/**
+		 * STREAMING the kmz streamed by {@link KmlManager#writeKmz(String)}.
+		 */
+		STREAMING,
+
+		/**
+		 * PARTITIONED the monthly partitioned kmz.
+		 */
+		PARTITIONED
+
+	}
+
+	private String directory;
+
+	private long timeBudget;
+
+	private long memoryBudget;
+
+	/**
+	 * @param args the directory of the synthetic files
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		// Only the warnings are logged, so the logging doesn't distort the results
+		BenchmarkLogging.configure("NC2KML_soak.log");
+
+		SoakHarness harness = new SoakHarness();
+		harness.directory = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+		harness.timeBudget = Long.getLong("soak.timeBudget", 600) * 1000;
+		harness.memoryBudget = Long.getLong("soak.memoryBudget", Runtime.getRuntime().maxMemory() / MEGABYTE) * MEGABYTE;
+
+		int levelCount = Integer.getInteger("soak.levels", 5);
+		String[] recordCounts = System.getProperty("soak.records", "2000000,5000000").split(",");
+		String[] modes = System.getProperty("soak.modes", "DOCUMENT,STREAMING,PARTITIONED").split(",");
+		String[] concurrencies = System.getProperty("soak.concurrency", "1,4").split(",");
+
+		System.out.println("Maximum heap " + Runtime.getRuntime().maxMemory() / MEGABYTE + " MB, time budget " + harness.timeBudget / 1000
+				+ " s, memory budget " + harness.memoryBudget / MEGABYTE + " MB");
+		System.out.println(String.format("%-12s %10s %8s %10s %10s %8s %10s %14s %s", "Mode", "Records", "Threads", "Wall s", "Peak MB", "GCs", "GC ms", "Output bytes", "Result"));
+
+		// A discarded conversion of each mode loads the classes, opening their jar files, before the open file
+		// descriptors baseline of the first configuration is taken
+		String warmUpLocation = SyntheticTrajectoryFile.getFile(harness.directory, WARM_UP_RECORDS, levelCount);
+		for (String mode : modes){
+			convert(Mode.valueOf(mode.trim()), warmUpLocation, new File(harness.directory, "soak_warmup.kmz"));
+		}
+
+		boolean passed = true;
+		for (String recordCount : recordCounts){
+
+			String location = SyntheticTrajectoryFile.getFile(harness.directory, Integer.parseInt(recordCount.trim()), levelCount);
+
+			for (String mode : modes){
+				for (String concurrency : concurrencies){
+					passed &= harness.run(Mode.valueOf(mode.trim()), location, Integer.parseInt(recordCount.trim()), Integer.parseInt(concurrency.trim()));
+				}
+			}
+
+		}
+
+		if (!passed){
+			System.out.println("Soak failed");
+			System.exit(1);
+		}
+
+		System.out.println("Soak passed");
+
+	}
+
+	/**
+	 * Run a configuration and print the results.
+	 *
+	 * @return true if the configuration passed, otherwise false
+	 */
+	private boolean run(final Mode mode, final String location, int recordCount, int concurrency) throws InterruptedException {
+
+		System.gc();
+		resetPeakHeap();
+		long openFiles = getOpenFileDescriptorCount();
+		long[] gcBefore = getGarbageCollections();
+		long start = System.currentTimeMillis();
+
+		List<String> failures = new ArrayList<String>();
+		long outputSize = 0;
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+
+			List<Future<Long>> conversions = new ArrayList<Future<Long>>();
+			for (int i = 0; i < concurrency; i++){
+				final File output = new File(directory, "soak_" + mode.name().toLowerCase() + "_" + recordCount + "_" + i + ".kmz");
+				conversions.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return convert(mode, location, output);
+					}
+				}));
+			}
+
+			for (Future<Long> conversion : conversions){
+				try {
+					outputSize += conversion.get();
+				} catch (Exception e) {
+					failures.add(e.getCause() instanceof OutOfMemoryError ? "out of memory" : String.valueOf(e.getCause()));
+					logger.error("Conversion of " + location + " failed", e.getCause());
+				}
+			}
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long wallTime = System.currentTimeMillis() - start;
+		long[] gcAfter = getGarbageCollections();
+		long peakHeap = getPeakHeap();
+
+		if (wallTime > timeBudget){
+			failures.add("time budget exceeded");
+		}
+		if (peakHeap > memoryBudget){
+			failures.add("memory budget exceeded");
+		}
+
+		System.gc();
+		long leakedFiles = getOpenFileDescriptorCount() - openFiles;
+		if (openFiles >= 0 && leakedFiles > 0){
+			failures.add(leakedFiles + " file descriptors leaked");
+		}
+
+		System.out.println(String.format("%-12s %10d %8d %10.1f %10d %8d %10d %14d %s", mode, recordCount, concurrency, wallTime / 1000.0, peakHeap / MEGABYTE,
+				gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], outputSize, failures.isEmpty() ? "PASS" : "FAIL " + failures));
+
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Convert the NetCDF file and check that the read session is closed.
+	 *
+	 * @return the output size in bytes
+	 */
+	private static long convert(Mode mode, String location, File output) throws Exception {
+
+		NetcdfReadSession readSession = NetcdfReadSession.open(location);
+		KmlManager kmlManager = new KmlManager(readSession, new AdditionalInfo(null, null, null, false), output.getPath());
+
+		try {
+
+			if (Mode.DOCUMENT == mode){
+				kmlManager.createKMLFile().marshalAsKmz(output.getPath());
+			} else if (Mode.STREAMING == mode){
+				kmlManager.writeKmz(output.getPath());
+			} else {
+				kmlManager.writePartitionedKmz(output.getPath(), TimePartition.MONTH);
+			}
+
+			if (!readSession.isClosed()){
+				throw new IllegalStateException("The NetCDF file " + location + " wasn't closed by the conversion");
+			}
+
+		} finally {
+			kmlManager.close();
+		}
+
+		long outputSize = output.length();
+		if (!output.delete()){
+			logger.warn("Impossible delete the soak file " + output);
+		}
+
+		return outputSize;
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if (MemoryType.HEAP == pool.getType()){
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static long getPeakHeap() {
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if (MemoryType.HEAP == pool.getType()){
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		return peakHeap;
+	}
+
+	/**
+	 * Retrieve the total number of garbage collections and their total time in milliseconds.
+	 */
+	private static long[] getGarbageCollections() {
+
+		long[] collections = new long[2];
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			collections[0] += Math.max(0, collector.getCollectionCount());
+			collections[1] += Math.max(0, collector.getCollectionTime());
+		}
+
+		return collections;
+	}
+
+	/**
+	 * Retrieve the open file descriptors of the process, -1 if not available.
+	 */
+	private static long getOpenFileDescriptorCount() {
+
+		OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		if (bean instanceof com.sun.management.UnixOperatingSystemMXBean){
+			return ((com.sun.management.UnixOperatingSystemMXBean) bean).getOpenFileDescriptorCount();
+		}
+
+		return -1;
+	}
+
+}
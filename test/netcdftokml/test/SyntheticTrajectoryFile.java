@@ -0,0 +1,332 @@
+package netcdftokml.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+
+/**
+ * Writes synthetic CF trajectory and trajectoryProfile NetCDF files, used to benchmark the conversion.
+ *
+ * The files look like the SOCIB glider and drifter files: time, latitude and longitude coordinates with
+ * quality controls, two data variables with quality controls, fill values and NaNs and one data variable
+ * without quality controls. The trajectoryProfile files have the data variables and the depth coordinate
+ * of two dimensions (time, depth).
+ *
+ * The data is pseudo random with a fixed seed, so the files of the same size are always the same.
+ *
+ */
+public class SyntheticTrajectoryFile {
+
+	/**
+	 * logger the logger instance
+	 */
+	private static Logger logger = Logger.getLogger(SyntheticTrajectoryFile.class.getSimpleName());
+
+	public static final String TIME = "time";
+
+	public static final String DEPTH = "depth";
+
+	public static final String LAT = "LAT";
+
+	public static final String LON = "LON";
+
+	public static final float FILL_VALUE = 9.96921e36f;
+
+	private static final long SEED = 20120101L;
+
+	/**
+	 * TIME_ORIGIN the first time value, 2012-01-01 00:00:00 in seconds since 1970-01-01 00:00:00.
+	 */
+	private static final double TIME_ORIGIN = 1325376000;
+
+	private static final double TIME_STEP = 300;
+
+	private static final byte GOOD_DATA = 1;
+
+	private static final byte PROBABLY_GOOD_DATA = 2;
+
+	private static final byte BAD_DATA = 4;
+
+	private static final byte INTERPOLATED_DATA = 8;
+
+	private static final String FLAG_MEANINGS = "no_qc_performed good_data probably_good_data probably_bad_data bad_data value_changed not_used not_used interpolated_value missing_value";
+
+	private NetcdfFileWriter writer;
+
+	private Random random = new Random(SEED);
+
+	private int recordCount;
+
+	private int levelCount;
+
+	private SyntheticTrajectoryFile(int recordCount, int levelCount) {
+		this.recordCount = recordCount;
+		this.levelCount = levelCount;
+	}
+
+	/**
+	 * Retrieve the synthetic file of the given size in the given directory, writing it if doesn't exist.
+	 *
+	 * @param directory the directory of the synthetic files
+	 * @param recordCount the number of records (time steps)
+	 * @param levelCount the number of depth levels of each record, 0 for a trajectory file
+	 * @return the location of the file
+	 * @throws IOException if the file can't be written
+	 */
+	public static String getFile(String directory, int recordCount, int levelCount) throws IOException {
+
+		String featureType = 0 == levelCount ? "trajectory" : "trajectoryProfile";
+		File file = new File(directory, "synthetic_" + featureType + "_" + recordCount + ".nc");
+
+		if (!file.exists()){
+			write(file.getPath(), recordCount, levelCount);
+		}
+
+		return file.getPath();
+	}
+
+	/**
+	 * Write a synthetic file.
+	 *
+	 * @param location the location of the file
+	 * @param recordCount the number of records (time steps)
+	 * @param levelCount the number of depth levels of each record, 0 for a trajectory file
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(String location, int recordCount, int levelCount) throws IOException {
+
+		logger.info("Writing the synthetic file " + location);
+
+		SyntheticTrajectoryFile syntheticFile = new SyntheticTrajectoryFile(recordCount, levelCount);
+
+		syntheticFile.writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, location);
+		try {
+			syntheticFile.writeFile();
+		} catch (InvalidRangeException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			syntheticFile.writer.close();
+		}
+
+	}
+
+	private void writeFile() throws IOException, InvalidRangeException {
+
+		boolean profile = levelCount > 0;
+		String dataDimensions = profile ? TIME + " " + DEPTH : TIME;
+		String coordinates = profile ? TIME + " " + DEPTH + " " + LAT + " " + LON : TIME + " " + LAT + " " + LON;
+
+		writer.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
+		writer.addGroupAttribute(null, new Attribute("featureType", profile ? "trajectoryProfile" : "trajectory"));
+		writer.addGroupAttribute(null, new Attribute("title", "Synthetic " + (profile ? "glider" : "drifter") + " " + recordCount + " records"));
+
+		writer.addDimension(null, TIME, recordCount);
+		if (profile){
+			writer.addDimension(null, DEPTH, levelCount);
+		}
+
+		Variable trajectory = writer.addVariable(null, "trajectory", DataType.INT, "");
+		writer.addVariableAttribute(trajectory, new Attribute("cf_role", "trajectory_id"));
+
+		Variable time = writer.addVariable(null, TIME, DataType.DOUBLE, TIME);
+		writer.addVariableAttribute(time, new Attribute("standard_name", "time"));
+		writer.addVariableAttribute(time, new Attribute("units", "seconds since 1970-01-01 00:00:00"));
+		writer.addVariableAttribute(time, new Attribute("axis", "T"));
+
+		Variable lat = addCoordinate(LAT, "latitude", "degrees_north", "Y");
+		Variable lon = addCoordinate(LON, "longitude", "degrees_east", "X");
+		Variable qcLat = addQcVariable(LAT);
+		Variable qcLon = addQcVariable(LON);
+
+		Variable depth = null;
+		if (profile){
+			depth = writer.addVariable(null, DEPTH, DataType.FLOAT, dataDimensions);
+			writer.addVariableAttribute(depth, new Attribute("standard_name", "depth"));
+			writer.addVariableAttribute(depth, new Attribute("units", "m"));
+			writer.addVariableAttribute(depth, new Attribute("positive", "down"));
+			writer.addVariableAttribute(depth, new Attribute("axis", "Z"));
+		}
+
+		Variable temp = addDataVariable("TEMP", "sea_water_temperature", "C", dataDimensions, coordinates, true);
+		Variable salt = addDataVariable("SALT", "sea_water_salinity", "PSU", dataDimensions, coordinates, true);
+		Variable cond = addDataVariable("COND", "sea_water_electrical_conductivity", "S m-1", dataDimensions, coordinates, false);
+		Variable qcTemp = addQcVariable("TEMP", dataDimensions);
+		Variable qcSalt = addQcVariable("SALT", dataDimensions);
+
+		writer.create();
+
+		writer.write(trajectory, Array.factory(DataType.INT, new int[0], new int[] {1}));
+		writer.write(time, createTimeArray());
+
+		double[][] position = createPositionArrays();
+		writer.write(lat, Array.factory(DataType.DOUBLE, new int[] {recordCount}, position[0]));
+		writer.write(lon, Array.factory(DataType.DOUBLE, new int[] {recordCount}, position[1]));
+		writer.write(qcLat, createQcArray(recordCount));
+		writer.write(qcLon, createQcArray(recordCount));
+
+		int[] dataShape = profile ? new int[] {recordCount, levelCount} : new int[] {recordCount};
+		int dataSize = profile ? recordCount * levelCount : recordCount;
+
+		if (profile){
+			writer.write(depth, createDepthArray(dataShape, dataSize));
+		}
+
+		writer.write(temp, createDataArray(dataShape, dataSize, 14, 12));
+		writer.write(salt, createDataArray(dataShape, dataSize, 37, 1.5));
+		writer.write(cond, createDataArray(dataShape, dataSize, 4.5, 1));
+		writer.write(qcTemp, createQcArray(dataShape, dataSize));
+		writer.write(qcSalt, createQcArray(dataShape, dataSize));
+
+	}
+
+	private Variable addCoordinate(String name, String standardName, String units, String axis) {
+
+		Variable variable = writer.addVariable(null, name, DataType.DOUBLE, TIME);
+		writer.addVariableAttribute(variable, new Attribute("standard_name", standardName));
+		writer.addVariableAttribute(variable, new Attribute("units", units));
+		writer.addVariableAttribute(variable, new Attribute("axis", axis));
+		writer.addVariableAttribute(variable, new Attribute("ancillary_variables", "QC_" + name));
+
+		return variable;
+	}
+
+	private Variable addDataVariable(String name, String standardName, String units, String dimensions, String coordinates, boolean qualityControls) {
+
+		Variable variable = writer.addVariable(null, name, DataType.FLOAT, dimensions);
+		writer.addVariableAttribute(variable, new Attribute("standard_name", standardName));
+		writer.addVariableAttribute(variable, new Attribute("units", units));
+		writer.addVariableAttribute(variable, new Attribute("coordinates", coordinates));
+		writer.addVariableAttribute(variable, new Attribute("_FillValue", Float.valueOf(FILL_VALUE)));
+		if (qualityControls){
+			writer.addVariableAttribute(variable, new Attribute("ancillary_variables", "QC_" + name));
+		}
+
+		return variable;
+	}
+
+	private Variable addQcVariable(String name) {
+		return addQcVariable(name, TIME);
+	}
+
+	private Variable addQcVariable(String name, String dimensions) {
+
+		Variable variable = writer.addVariable(null, "QC_" + name, DataType.BYTE, dimensions);
+		writer.addVariableAttribute(variable, new Attribute("long_name", "Quality flag of " + name));
+		writer.addVariableAttribute(variable, new Attribute("flag_meanings", FLAG_MEANINGS));
+
+		return variable;
+	}
+
+	private Array createTimeArray() {
+
+		double[] time = new double[recordCount];
+		for (int i = 0; i < recordCount; i++){
+			time[i] = TIME_ORIGIN + i * TIME_STEP;
+		}
+
+		return Array.factory(DataType.DOUBLE, new int[] {recordCount}, time);
+	}
+
+	/**
+	 * Create a random walk around Mallorca, with a NaN position every 1000 records.
+	 */
+	private double[][] createPositionArrays() {
+
+		double[] lat = new double[recordCount];
+		double[] lon = new double[recordCount];
+		double currentLat = 39.2;
+		double currentLon = 2.4;
+
+		for (int i = 0; i < recordCount; i++){
+
+			currentLat += (random.nextDouble() - 0.5) * 0.002;
+			currentLon += (random.nextDouble() - 0.5) * 0.002;
+
+			if (999 == i % 1000){
+				lat[i] = lon[i] = Double.NaN;
+			} else {
+				lat[i] = currentLat;
+				lon[i] = currentLon;
+			}
+
+		}
+
+		return new double[][] {lat, lon};
+	}
+
+	private Array createDepthArray(int[] shape, int size) {
+
+		float[] depth = new float[size];
+		for (int i = 0; i < size; i++){
+			depth[i] = (i % levelCount) * 5f + random.nextFloat();
+		}
+
+		return Array.factory(DataType.FLOAT, shape, depth);
+	}
+
+	/**
+	 * Create the data with a fill value every 50 values and a NaN every 200 values.
+	 */
+	private Array createDataArray(int[] shape, int size, double mean, double range) {
+
+		float[] data = new float[size];
+		for (int i = 0; i < size; i++){
+
+			if (49 == i % 50){
+				data[i] = FILL_VALUE;
+			} else if (199 == i % 200){
+				data[i] = Float.NaN;
+			} else {
+				data[i] = (float) (mean + (random.nextDouble() - 0.5) * range);
+			}
+
+		}
+
+		return Array.factory(DataType.FLOAT, shape, data);
+	}
+
+	private Array createQcArray(int size) {
+		return createQcArray(new int[] {size}, size);
+	}
+
+	/**
+	 * Create the quality controls: mostly good data, with runs of bad data and some probably good
+	 * and interpolated data.
+	 */
+	private Array createQcArray(int[] shape, int size) {
+
+		byte[] qc = new byte[size];
+		int badRun = 0;
+
+		for (int i = 0; i < size; i++){
+
+			double draw = random.nextDouble();
+			if (badRun > 0){
+				qc[i] = BAD_DATA;
+				badRun--;
+			} else if (draw < 0.005){
+				qc[i] = BAD_DATA;
+				badRun = random.nextInt(20);
+			} else if (draw < 0.02){
+				qc[i] = INTERPOLATED_DATA;
+			} else if (draw < 0.05){
+				qc[i] = PROBABLY_GOOD_DATA;
+			} else {
+				qc[i] = GOOD_DATA;
+			}
+
+		}
+
+		return Array.factory(DataType.BYTE, shape, qc);
+	}
+
+}